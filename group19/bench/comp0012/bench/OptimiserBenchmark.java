@@ -0,0 +1,187 @@
+package comp0012.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import comp0012.main.ConstantFolder;
+
+/**
+ * Measures how the optimiser scales, on classes from SyntheticClassGenerator.
+ *
+ * Two sweeps are run for each shape: one over the size of a class's single method, and one over the number
+ * of methods in a class of fixed-size methods. Each row gives the time to optimise one class, classes and
+ * instructions per second, the number of passes the methods needed to converge and the time per pass, and
+ * the peak heap use while optimising. The growth column is the exponent k in time ~ n^k against the previous
+ * row of the sweep: about 1 is linear, and about 2 is the quadratic behaviour this is meant to catch.
+ */
+public class OptimiserBenchmark
+{
+	@Option(name="-shapes", usage="Comma-separated method shapes: FOLD, CHAIN, BRANCH")
+	private String shapes = "FOLD,CHAIN,BRANCH";
+
+	@Option(name="-sizes", usage="Comma-separated method sizes, in instructions, of the method size sweep")
+	private String sizes = "1000,2000,4000,8000";
+
+	@Option(name="-methods", usage="Comma-separated method counts of the method count sweep")
+	private String methodCounts = "100,200,400,800";
+
+	@Option(name="-method-size", usage="Size in instructions of each method in the method count sweep")
+	private int methodSize = 100;
+
+	@Option(name="-locals", usage="Number of locals the generated chains are stored through")
+	private int locals = 16;
+
+	@Option(name="-warmup", usage="Number of untimed runs before each measurement")
+	private int warmupRuns = 2;
+
+	@Option(name="-runs", usage="Number of timed runs per measurement")
+	private int runs = 5;
+
+	@Option(name="-report", usage="File the report is written to, as well as standard output")
+	private String reportFile;
+
+	private static final class Result
+	{
+		double millisPerClass;
+		int instructions;
+		int passes;
+		long peakHeapBytes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		OptimiserBenchmark benchmark = new OptimiserBenchmark();
+		CmdLineParser parser = new CmdLineParser(benchmark);
+		parser.setUsageWidth(80);
+		try {
+			parser.parseArgument(args);
+			if (benchmark.runs < 1 || benchmark.warmupRuns < 0 || benchmark.methodSize < 1) {
+				throw new CmdLineException(parser, "-runs and -method-size must be positive, -warmup must not be negative");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+		benchmark.run();
+	}
+
+	private void run() throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(String.format("%-7s %8s %8s %9s %11s %10s %12s %7s %9s %10s %7s", "Shape", "Methods", "Size",
+				"Instrs", "ms/class", "classes/s", "k instr/s", "Passes", "ms/pass", "Peak MB", "Growth"));
+
+		// Let the JIT compile the optimiser before the first row, which would otherwise look slower than the next
+		for (SyntheticClassGenerator.Shape shape : SyntheticClassGenerator.Shape.values()) {
+			measure(new SyntheticClassGenerator(shape, locals, 0).generate("synthetic.Warmup", 50, methodSize));
+		}
+
+		for (String shapeName : shapes.split(",")) {
+			SyntheticClassGenerator.Shape shape = SyntheticClassGenerator.Shape.valueOf(shapeName.trim().toUpperCase());
+
+			Result previous = null;
+			for (int size : parse(sizes)) {
+				previous = report(lines, shape, 1, size, previous);
+			}
+			previous = null;
+			for (int count : parse(methodCounts)) {
+				previous = report(lines, shape, count, methodSize, previous);
+			}
+		}
+
+		for (String line : lines) {
+			System.out.println(line);
+		}
+		if (reportFile != null) {
+			File report = new File(reportFile);
+			if (report.getParentFile() != null) {
+				report.getParentFile().mkdirs();
+			}
+			Files.write(report.toPath(), lines);
+			System.out.println("Report written to " + report);
+		}
+	}
+
+	private Result report(List<String> lines, SyntheticClassGenerator.Shape shape, int methods, int size, Result previous) throws IOException {
+		JavaClass generated = new SyntheticClassGenerator(shape, locals, 12).generate("synthetic.Synthetic", methods, size);
+		Result result = measure(generated);
+
+		String growth = previous == null ? "" : String.format("%.2f", Math.log(result.millisPerClass / previous.millisPerClass)
+				/ Math.log((double) result.instructions / previous.instructions));
+		lines.add(String.format("%-7s %8d %8d %9d %11.2f %10.1f %12.1f %7d %9.3f %10.1f %7s", shape, methods, size,
+				result.instructions, result.millisPerClass, 1000 / result.millisPerClass,
+				result.instructions / result.millisPerClass, result.passes, result.millisPerClass / result.passes,
+				result.peakHeapBytes / (1024.0 * 1024.0), growth));
+		return result;
+	}
+
+	private Result measure(JavaClass generated) throws IOException {
+		byte[] bytes = generated.getBytes();
+		Result result = new Result();
+		for (Method method : generated.getMethods()) {
+			if (method.getCode() != null) {
+				result.instructions += new org.apache.bcel.generic.InstructionList(method.getCode().getCode()).getLength();
+			}
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			optimise(bytes, null);
+		}
+
+		List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				heapPools.add(pool);
+			}
+		}
+		System.gc();
+		for (MemoryPoolMXBean pool : heapPools) {
+			pool.resetPeakUsage();
+		}
+
+		long nanos = 0;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			result.passes = optimise(bytes, generated.getClassName());
+			nanos += System.nanoTime() - start;
+		}
+		for (MemoryPoolMXBean pool : heapPools) {
+			result.peakHeapBytes += pool.getPeakUsage().getUsed();
+		}
+		result.millisPerClass = nanos / 1e6 / runs;
+		return result;
+	}
+
+	// Optimises the class as Main does, from its bytes to the bytes written out; returns the passes its methods took.
+	private static int optimise(byte[] bytes, String className) throws IOException {
+		ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(bytes), className == null ? "warmup" : className);
+		folder.getOptimizedBytes();
+		int passes = 0;
+		for (int count : folder.getIterationCounts().values()) {
+			passes += count;
+		}
+		return passes;
+	}
+
+	private static List<Integer> parse(String values) {
+		List<Integer> parsed = new ArrayList<>();
+		for (String value : values.split(",")) {
+			if (!value.trim().isEmpty()) {
+				parsed.add(Integer.parseInt(value.trim()));
+			}
+		}
+		return parsed;
+	}
+}
@@ -0,0 +1,173 @@
+package comp0012.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.*;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Generates large class files for stress testing the optimiser, in the shapes generated code tends to have.
+ *
+ * Every method is a static method returning an int, made of about the requested number of instructions:
+ *  - fold: one long expression over constants, i.e. nothing but work for the peephole folder;
+ *  - chain: a chain of stores and loads through a pool of locals, each value computed from an earlier one;
+ *  - branch: the same chain with a comparison of a local against a constant every few steps, guarding
+ *    an increment, so constant propagation and branch folding have conditional code to work through.
+ * The output only depends on the arguments, so a run can be repeated exactly. Classes are written in the
+ * Java 6 format without stack map frames, so the optimiser has no frames to keep up to date.
+ */
+public class SyntheticClassGenerator
+{
+	public enum Shape
+	{
+		FOLD, CHAIN, BRANCH
+	}
+
+	private static final int[] INT_OPERATIONS = { Constants.IADD, Constants.ISUB, Constants.IMUL, Constants.IXOR, Constants.IAND, Constants.IOR };
+
+	@Option(name="-out", required=true, usage="Root directory the generated classfiles are written to")
+	private String outputRoot;
+
+	@Option(name="-shape", usage="Shape of the generated methods: FOLD, CHAIN or BRANCH")
+	private Shape shape = Shape.CHAIN;
+
+	@Option(name="-classes", usage="Number of classes to generate")
+	private int classes = 1;
+
+	@Option(name="-methods", usage="Number of methods in each class")
+	private int methods = 100;
+
+	@Option(name="-size", usage="Approximate number of instructions in each method")
+	private int size = 100;
+
+	@Option(name="-locals", usage="Number of locals the chains are stored through")
+	private int locals = 16;
+
+	@Option(name="-seed", usage="Seed of the constants and operations chosen")
+	private long seed = 12;
+
+	private final Shape methodShape;
+	private final int localCount;
+	private final Random random;
+
+	public SyntheticClassGenerator(Shape shape, int locals, long seed) {
+		this.methodShape = shape;
+		this.localCount = Math.max(1, locals);
+		this.random = new Random(seed);
+	}
+
+	// Only used by main(), which sets the fields from the command line first
+	private SyntheticClassGenerator() {
+		this(Shape.CHAIN, 16, 12);
+	}
+
+	public static void main(String[] args) throws IOException {
+		SyntheticClassGenerator options = new SyntheticClassGenerator();
+		CmdLineParser parser = new CmdLineParser(options);
+		parser.setUsageWidth(80);
+		try {
+			parser.parseArgument(args);
+			if (options.classes < 1 || options.methods < 1 || options.size < 1) {
+				throw new CmdLineException(parser, "-classes, -methods and -size must be positive");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+
+		SyntheticClassGenerator generator = new SyntheticClassGenerator(options.shape, options.locals, options.seed);
+		for (int i = 0; i < options.classes; i++) {
+			JavaClass generated = generator.generate("synthetic.Synthetic" + i, options.methods, options.size);
+			File file = new File(options.outputRoot, generated.getClassName().replace('.', File.separatorChar) + ".class");
+			file.getParentFile().mkdirs();
+			generated.dump(file);
+		}
+		System.out.println("Generated " + options.classes + " " + options.shape + " classes in " + options.outputRoot);
+	}
+
+	public JavaClass generate(String className, int methodCount, int methodSize) {
+		ClassGen cgen = new ClassGen(className, "java.lang.Object", className.substring(className.lastIndexOf('.') + 1) + ".java",
+				Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+		cgen.setMajor(50);
+		cgen.setMinor(0);
+		cgen.addEmptyConstructor(Constants.ACC_PUBLIC);
+		ConstantPoolGen cpgen = cgen.getConstantPool();
+
+		for (int i = 0; i < methodCount; i++) {
+			InstructionList il = new InstructionList();
+			switch (methodShape) {
+				case FOLD:
+					fold(il, cpgen, methodSize);
+					break;
+				default:
+					chain(il, cpgen, methodSize, methodShape == Shape.BRANCH);
+					break;
+			}
+			MethodGen method = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null,
+					"method" + i, className, il, cpgen);
+			method.setMaxStack();
+			method.setMaxLocals();
+			cgen.addMethod(method.getMethod());
+			il.dispose();
+		}
+		return cgen.getJavaClass();
+	}
+
+	// c0 op c1 op c2 ... op cn, evaluated left to right so the stack never holds more than two values.
+	private void fold(InstructionList il, ConstantPoolGen cpgen, int methodSize) {
+		il.append(new PUSH(cpgen, constant()));
+		for (int emitted = 1; emitted + 3 <= methodSize; emitted += 2) {
+			il.append(new PUSH(cpgen, constant()));
+			il.append(InstructionConstants.INSTRUCTIONS[operation()]);
+		}
+		il.append(InstructionConstants.IRETURN);
+	}
+
+	// Every local is assigned first, so each later load reads a value whatever path reached it.
+	private void chain(InstructionList il, ConstantPoolGen cpgen, int methodSize, boolean branches) {
+		for (int local = 0; local < localCount; local++) {
+			il.append(new PUSH(cpgen, constant()));
+			il.append(new ISTORE(local));
+		}
+		int emitted = 2 * localCount;
+		int step = 0;
+		while (emitted + 2 < methodSize) {
+			int from = random.nextInt(localCount);
+			int to = random.nextInt(localCount);
+			if (branches && step % 4 == 3) {
+				// if (from > c) to++;
+				InstructionHandle skip = il.append(new NOP());
+				il.insert(skip, new ILOAD(from));
+				il.insert(skip, new PUSH(cpgen, constant()));
+				il.insert(skip, new IF_ICMPLE(skip));
+				il.insert(skip, new IINC(to, 1));
+				emitted += 5;
+			} else {
+				il.append(new ILOAD(from));
+				il.append(new PUSH(cpgen, constant()));
+				il.append(InstructionConstants.INSTRUCTIONS[operation()]);
+				il.append(new ISTORE(to));
+				emitted += 4;
+			}
+			step++;
+		}
+		il.append(new ILOAD(random.nextInt(localCount)));
+		il.append(InstructionConstants.IRETURN);
+	}
+
+	// Mostly small constants, which fold into short pushes, with some that need the constant pool.
+	private int constant() {
+		return random.nextInt(4) == 0 ? random.nextInt() : random.nextInt(200) - 100;
+	}
+
+	private short operation() {
+		return (short) INT_OPERATIONS[random.nextInt(INT_OPERATIONS.length)];
+	}
+}
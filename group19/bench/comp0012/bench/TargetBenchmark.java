@@ -0,0 +1,273 @@
+package comp0012.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Benchmarks every public method of the target classes as compiled and as optimised, side by side.
+ *
+ * The two versions are loaded from their directories by separate class loaders, so they run in the same
+ * JVM under the same names. Each method is called in timed iterations after warm-up iterations that let
+ * the JIT compile it; the report gives its throughput, the bytes it allocates per call, and the size of its
+ * bytecode in both versions. Methods are called reflectively, which costs the same in both versions, so the
+ * ratio of the throughputs is what shows whether the optimiser helped; int parameters are passed ARGUMENT.
+ */
+public class TargetBenchmark
+{
+	private static final String TARGET_PACKAGE = "comp0012/target";
+	private static final int ARGUMENT = 10;
+	private static final int BATCH = 256;
+
+	@Option(name="-original", required=true, usage="Root directory of the original classfiles")
+	private String originalRoot;
+
+	@Option(name="-optimised", required=true, usage="Root directory of the optimised classfiles")
+	private String optimisedRoot;
+
+	@Option(name="-report", usage="File the comparison report is written to, as well as standard output")
+	private String reportFile;
+
+	@Option(name="-warmup", usage="Number of warm-up iterations per method and version")
+	private int warmupIterations = 3;
+
+	@Option(name="-iterations", usage="Number of measured iterations per method and version")
+	private int iterations = 5;
+
+	@Option(name="-time", usage="Length of each iteration in milliseconds")
+	private int iterationMillis = 200;
+
+	// Results are folded into this so the JIT cannot drop the calls
+	private volatile int sink;
+
+	private static final class Measurement
+	{
+		long operations;
+		long nanos;
+		long allocatedBytes;
+
+		double throughput() {
+			return operations * 1e9 / nanos;
+		}
+
+		double bytesPerOperation() {
+			return operations == 0 ? 0 : (double) allocatedBytes / operations;
+		}
+	}
+
+	private static final class Version
+	{
+		final ClassLoader loader;
+		final File root;
+
+		Version(File root) throws IOException {
+			this.root = root;
+			// The parent is the platform loader, so the targets on the benchmark's own classpath are never used
+			this.loader = new URLClassLoader(new URL[] { root.toURI().toURL() }, ClassLoader.getPlatformClassLoader());
+		}
+
+		JavaClass parse(String className) throws IOException {
+			File file = new File(root, className.replace('.', File.separatorChar) + ".class");
+			return new ClassParser(new ByteArrayInputStream(Files.readAllBytes(file.toPath())), file.getName()).parse();
+		}
+
+		long classFileSize(String className) {
+			return new File(root, className.replace('.', File.separatorChar) + ".class").length();
+		}
+	}
+
+	private void parseArguments(String[] args) {
+		CmdLineParser parser = new CmdLineParser(this);
+		parser.setUsageWidth(80);
+		try {
+			parser.parseArgument(args);
+			if (iterations < 1 || warmupIterations < 0 || iterationMillis < 1) {
+				throw new CmdLineException(parser, "-iterations and -time must be positive, -warmup must not be negative");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		TargetBenchmark benchmark = new TargetBenchmark();
+		benchmark.parseArguments(args);
+		benchmark.run();
+	}
+
+	private void run() throws Exception {
+		Version original = new Version(new File(originalRoot));
+		Version optimised = new Version(new File(optimisedRoot));
+
+		List<String> lines = new ArrayList<>();
+		lines.add(String.format("%-48s %14s %14s %8s %10s %10s %12s", "Method", "Original op/s", "Optimised op/s",
+				"Speedup", "Orig B/op", "Opt B/op", "Code bytes"));
+
+		// The methods print their results; only the report goes to standard output
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			for (String className : targetClasses(original.root)) {
+				Class<?> originalClass = original.loader.loadClass(className);
+				Class<?> optimisedClass = optimised.loader.loadClass(className);
+				JavaClass originalFile = original.parse(className);
+				JavaClass optimisedFile = optimised.parse(className);
+
+				for (Method method : benchmarkedMethods(originalClass)) {
+					Method optimisedMethod = optimisedClass.getMethod(method.getName(), method.getParameterTypes());
+					Measurement[] measurements = measure(method, optimisedMethod);
+					Measurement before = measurements[0];
+					Measurement after = measurements[1];
+
+					lines.add(String.format("%-48s %14.0f %14.0f %7.2fx %10.1f %10.1f %5d -> %-4d",
+							originalClass.getSimpleName() + "." + method.getName() + descriptorSuffix(method),
+							before.throughput(), after.throughput(), after.throughput() / before.throughput(),
+							before.bytesPerOperation(), after.bytesPerOperation(),
+							codeLength(originalFile, method), codeLength(optimisedFile, optimisedMethod)));
+				}
+				lines.add(String.format("%-48s %68s %5d -> %-4d", originalClass.getSimpleName() + " (class file)", "",
+						original.classFileSize(className), optimised.classFileSize(className)));
+			}
+		} finally {
+			System.setOut(out);
+		}
+
+		for (String line : lines) {
+			out.println(line);
+		}
+		if (reportFile != null) {
+			File report = new File(reportFile);
+			if (report.getParentFile() != null) {
+				report.getParentFile().mkdirs();
+			}
+			Files.write(report.toPath(), lines);
+			out.println("Report written to " + report);
+		}
+	}
+
+	private static List<String> targetClasses(File root) {
+		List<String> classNames = new ArrayList<>();
+		File[] files = new File(root, TARGET_PACKAGE).listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				// Nested classes are benchmarked through the methods of the class that uses them
+				if (file.getName().endsWith(".class") && !file.getName().contains("$")) {
+					String simpleName = file.getName().substring(0, file.getName().length() - ".class".length());
+					classNames.add(TARGET_PACKAGE.replace('/', '.') + "." + simpleName);
+				}
+			}
+		}
+		return classNames;
+	}
+
+	// Public instance methods declared by the class whose parameters are all ints.
+	private static List<Method> benchmarkedMethods(Class<?> cls) {
+		List<Method> methods = new ArrayList<>();
+		for (Method method : cls.getDeclaredMethods()) {
+			if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())) {
+				continue;
+			}
+			boolean intsOnly = true;
+			for (Class<?> parameter : method.getParameterTypes()) {
+				intsOnly &= parameter == int.class;
+			}
+			if (intsOnly) {
+				methods.add(method);
+			}
+		}
+		methods.sort(Comparator.comparing(Method::getName).thenComparing(m -> m.getParameterCount()));
+		return methods;
+	}
+
+	/**
+	 * Measures the original and optimised method in alternating iterations, each version going first
+	 * in every other round, so neither gains from running while the JVM is warmer or its profile cleaner.
+	 */
+	private Measurement[] measure(Method original, Method optimised) throws ReflectiveOperationException {
+		Method[] methods = { original, optimised };
+		Object[] instances = new Object[2];
+		for (int v = 0; v < 2; v++) {
+			instances[v] = methods[v].getDeclaringClass().getConstructor().newInstance();
+		}
+		Object[] arguments = new Object[original.getParameterCount()];
+		Arrays.fill(arguments, ARGUMENT);
+
+		Measurement[] totals = { new Measurement(), new Measurement() };
+		for (int i = 0; i < warmupIterations + iterations; i++) {
+			for (int turn = 0; turn < 2; turn++) {
+				int v = (i + turn) % 2;
+				Measurement sample = iteration(instances[v], methods[v], arguments);
+				if (i >= warmupIterations) {
+					totals[v].operations += sample.operations;
+					totals[v].nanos += sample.nanos;
+					totals[v].allocatedBytes += sample.allocatedBytes;
+				}
+			}
+		}
+		return totals;
+	}
+
+	// Calls the method in batches until the iteration's time is up.
+	private Measurement iteration(Object instance, Method method, Object[] arguments) throws ReflectiveOperationException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long deadline = iterationMillis * 1000000L;
+		int hash = 0;
+
+		Measurement measurement = new Measurement();
+		long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				try {
+					hash ^= System.identityHashCode(method.invoke(instance, arguments));
+				} catch (InvocationTargetException e) {
+					hash ^= e.getCause().getClass().hashCode();
+				}
+			}
+			measurement.operations += BATCH;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < deadline);
+		measurement.nanos = elapsed;
+		measurement.allocatedBytes = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+		sink ^= hash;
+		return measurement;
+	}
+
+	private static int codeLength(JavaClass file, Method method) {
+		for (org.apache.bcel.classfile.Method candidate : file.getMethods()) {
+			if (candidate.getName().equals(method.getName())
+					&& candidate.getArgumentTypes().length == method.getParameterCount() && candidate.getCode() != null) {
+				return candidate.getCode().getCode().length;
+			}
+		}
+		return -1;
+	}
+
+	private static String descriptorSuffix(Method method) {
+		return method.getParameterCount() == 0 ? "()" : "(" + ARGUMENT + ")";
+	}
+}
@@ -0,0 +1,150 @@
+package comp0012.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.MethodGen;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import comp0012.bench.SyntheticClassGenerator;
+
+/**
+ * Measures what the local variable analyses allocate, on classes from SyntheticClassGenerator.
+ *
+ * The peephole folder and constant propagation are run twice on fresh copies of each generated method: the
+ * first run folds what it can, and the second, like the last iteration of the optimiser's fixpoint, finds
+ * nothing left to change and so only analyses. Only run() is measured, not the copying or the set-up in
+ * the passes' constructors, such as building the control flow graph. Each row gives the bytes the thread
+ * allocated and the time taken per analysed instruction for both runs, averaged over the runs. It
+ * lives in comp0012.main, next to the package-private passes, as the unit tests in test/comp0012/main do.
+ */
+public class AnalysisBenchmark
+{
+	@Option(name="-shapes", usage="Comma-separated method shapes: FOLD, CHAIN, BRANCH")
+	private String shapes = "FOLD,CHAIN,BRANCH";
+
+	@Option(name="-sizes", usage="Comma-separated method sizes, in instructions")
+	private String sizes = "1000,4000";
+
+	@Option(name="-locals", usage="Number of locals the generated chains are stored through")
+	private int locals = 64;
+
+	@Option(name="-warmup", usage="Number of untimed runs before each measurement")
+	private int warmupRuns = 20;
+
+	@Option(name="-runs", usage="Number of measured runs per measurement")
+	private int runs = 20;
+
+	@Option(name="-report", usage="File the report is written to, as well as standard output")
+	private String reportFile;
+
+	// Sets a pass up on a method, unmeasured, and returns its run, which is measured.
+	private interface Pass
+	{
+		Runnable prepare(MethodGen methodGen, ConstantPoolGen cpgen);
+	}
+
+	public static void main(String[] args) throws Exception {
+		AnalysisBenchmark benchmark = new AnalysisBenchmark();
+		CmdLineParser parser = new CmdLineParser(benchmark);
+		parser.setUsageWidth(80);
+		try {
+			parser.parseArgument(args);
+			if (benchmark.runs < 1 || benchmark.warmupRuns < 0) {
+				throw new CmdLineException(parser, "-runs must be positive and -warmup must not be negative");
+			}
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+		benchmark.run();
+	}
+
+	private void run() throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add(String.format("%-7s %8s %-22s %12s %10s %14s %12s", "Shape", "Size", "Pass", "B/instr", "ns/instr",
+				"Again B/instr", "ns/instr"));
+
+		for (String shapeName : shapes.split(",")) {
+			SyntheticClassGenerator.Shape shape = SyntheticClassGenerator.Shape.valueOf(shapeName.trim().toUpperCase());
+			for (String size : sizes.split(",")) {
+				JavaClass generated = new SyntheticClassGenerator(shape, locals, 12)
+						.generate("synthetic.Synthetic", 1, Integer.parseInt(size.trim()));
+				report(lines, shape, generated, "peephole", (methodGen, cpgen) -> new PeepholeFolder(methodGen, cpgen)::run);
+				report(lines, shape, generated, "constant-propagation", (methodGen, cpgen) -> new ConstantPropagation(methodGen, cpgen)::run);
+			}
+		}
+
+		for (String line : lines) {
+			System.out.println(line);
+		}
+		if (reportFile != null) {
+			File report = new File(reportFile);
+			if (report.getParentFile() != null) {
+				report.getParentFile().mkdirs();
+			}
+			Files.write(report.toPath(), lines);
+			System.out.println("Report written to " + report);
+		}
+	}
+
+	private void report(List<String> lines, SyntheticClassGenerator.Shape shape, JavaClass generated, String name, Pass pass) {
+		ClassGen cgen = new ClassGen(generated);
+		ConstantPoolGen cpgen = cgen.getConstantPool();
+		List<Method> methods = new ArrayList<>();
+		int instructions = 0;
+		for (Method method : generated.getMethods()) {
+			if (method.getCode() != null && !method.getName().equals("<init>")) {
+				methods.add(method);
+				instructions += new MethodGen(method, generated.getClassName(), cpgen).getInstructionList().getLength();
+			}
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			measure(methods, generated.getClassName(), cpgen, pass);
+		}
+		long[] totals = new long[4];
+		for (int i = 0; i < runs; i++) {
+			long[] measured = measure(methods, generated.getClassName(), cpgen, pass);
+			for (int j = 0; j < totals.length; j++) {
+				totals[j] += measured[j];
+			}
+		}
+		double perInstruction = (double) runs * instructions;
+		lines.add(String.format("%-7s %8d %-22s %12.1f %10.1f %14.1f %12.1f", shape, instructions, name,
+				totals[0] / perInstruction, totals[1] / perInstruction, totals[2] / perInstruction, totals[3] / perInstruction));
+	}
+
+	/**
+	 * Runs the pass twice over fresh copies of the methods; returns the bytes allocated and the time taken
+	 * by the first runs, then by the second.
+	 */
+	private long[] measure(List<Method> methods, String className, ConstantPoolGen cpgen, Pass pass) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long[] measured = new long[4];
+		for (Method method : methods) {
+			MethodGen methodGen = new MethodGen(method, className, cpgen);
+			for (int i = 0; i < 2; i++) {
+				Runnable run = pass.prepare(methodGen, cpgen);
+				long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+				long start = System.nanoTime();
+				run.run();
+				measured[2 * i + 1] += System.nanoTime() - start;
+				measured[2 * i] += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+			}
+		}
+		return measured;
+	}
+}
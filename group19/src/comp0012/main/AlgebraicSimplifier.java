@@ -0,0 +1,355 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Rewrites arithmetic that has a single known operand into a cheaper form with the same result for every
+ * value of the other: x + 0, x * 1, x / 1 and x & -1 become x, x * 0 and x % 1 become 0, x * 2^k becomes
+ * x << k, x - x becomes 0 and -(-x) becomes x. For an x that cannot be negative, e.g. an array length,
+ * x / 2^k also becomes x >> k and x % 2^k becomes x & (2^k - 1).
+ *
+ * Each rewrite is a row of a rule table, matched against the instruction with the row's opcode and the
+ * few instructions pushing its operands right before it, none of which but the first control can jump to.
+ * Only int and long arithmetic is rewritten, apart from x * 1.0 and x / 1.0, which are x for every float
+ * and double: x + 0.0 is not (-0.0 + 0.0 is 0.0), nor is x * 0.0 (it is NaN for an infinite x, and -0.0
+ * for a negative one).
+ */
+class AlgebraicSimplifier
+{
+	enum Shape
+	{
+		// c OP, where c is a constant pushed right before the operation
+		CONSTANT,
+		// x c OP, where x is pushed by an instruction whose result is never negative
+		CONSTANT_ON_NON_NEGATIVE,
+		// load n, load n, OP, reading the same local twice
+		SAME_LOCAL,
+		// FIRST OP, an operation right after one it undoes
+		INVERSE
+	}
+
+	// The instructions replacing those a rule matched, the operation included.
+	@FunctionalInterface
+	interface Replacement
+	{
+		Instruction[] of(Number constant, InstructionHandle[] matched, ConstantPoolGen cpgen);
+	}
+
+	/**
+	 * A row of the table. The constant test is only used by the CONSTANT shapes, and the first opcode only
+	 * by INVERSE.
+	 */
+	static final class Rule
+	{
+		final Shape shape;
+		final short opcode;
+		final Predicate<Number> test;
+		final short first;
+		final Replacement replacement;
+
+		Rule(Shape shape, short opcode, Predicate<Number> test, short first, Replacement replacement) {
+			this.shape = shape;
+			this.opcode = opcode;
+			this.test = test;
+			this.first = first;
+			this.replacement = replacement;
+		}
+
+		// How many instructions the rule matches, the operation included.
+		int length() {
+			return shape == Shape.SAME_LOCAL ? 3 : 2;
+		}
+	}
+
+	static final List<Rule> RULES;
+
+	static {
+		List<Rule> rules = new ArrayList<>();
+
+		// x OP 0, x OP 1 and x OP -1 that leave x as it is; each long opcode follows the int one
+		for (short opcode : new short[] { Constants.IADD, Constants.ISUB, Constants.IOR, Constants.IXOR }) {
+			constant(rules, opcode, c -> isInt(c, 0), nothing());
+			constant(rules, (short) (opcode + 1), c -> isLong(c, 0), nothing());
+		}
+		for (short opcode : new short[] { Constants.IMUL, Constants.IDIV }) {
+			constant(rules, opcode, c -> isInt(c, 1), nothing());
+			constant(rules, (short) (opcode + 1), c -> isLong(c, 1), nothing());
+		}
+		constant(rules, Constants.IAND, c -> isInt(c, -1), nothing());
+		constant(rules, Constants.LAND, c -> isLong(c, -1), nothing());
+		// Shift distances are masked, so shifting by 32 is shifting by 0
+		for (short opcode : new short[] { Constants.ISHL, Constants.ISHR, Constants.IUSHR }) {
+			constant(rules, opcode, c -> c instanceof Integer && (c.intValue() & 0x1f) == 0, nothing());
+			constant(rules, (short) (opcode + 1), c -> c instanceof Integer && (c.intValue() & 0x3f) == 0, nothing());
+		}
+		constant(rules, Constants.FMUL, c -> c instanceof Float && c.floatValue() == 1.0f, nothing());
+		constant(rules, Constants.FDIV, c -> c instanceof Float && c.floatValue() == 1.0f, nothing());
+		constant(rules, Constants.DMUL, c -> c instanceof Double && c.doubleValue() == 1.0, nothing());
+		constant(rules, Constants.DDIV, c -> c instanceof Double && c.doubleValue() == 1.0, nothing());
+
+		// x OP c whose result does not depend on x, which is popped; x % 1 and x % -1 never throw
+		constant(rules, Constants.IMUL, c -> isInt(c, 0), result(InstructionConstants.POP, 0));
+		constant(rules, Constants.IAND, c -> isInt(c, 0), result(InstructionConstants.POP, 0));
+		constant(rules, Constants.IREM, c -> isInt(c, 1) || isInt(c, -1), result(InstructionConstants.POP, 0));
+		constant(rules, Constants.IOR, c -> isInt(c, -1), result(InstructionConstants.POP, -1));
+		constant(rules, Constants.LMUL, c -> isLong(c, 0), result(InstructionConstants.POP2, 0L));
+		constant(rules, Constants.LAND, c -> isLong(c, 0), result(InstructionConstants.POP2, 0L));
+		constant(rules, Constants.LREM, c -> isLong(c, 1) || isLong(c, -1), result(InstructionConstants.POP2, 0L));
+		constant(rules, Constants.LOR, c -> isLong(c, -1), result(InstructionConstants.POP2, -1L));
+
+		// x * -1 and x / -1 are -x, which wraps around for MIN_VALUE just as they do
+		constant(rules, Constants.IMUL, c -> isInt(c, -1), instructions(InstructionConstants.INEG));
+		constant(rules, Constants.IDIV, c -> isInt(c, -1), instructions(InstructionConstants.INEG));
+		constant(rules, Constants.LMUL, c -> isLong(c, -1), instructions(InstructionConstants.LNEG));
+		constant(rules, Constants.LDIV, c -> isLong(c, -1), instructions(InstructionConstants.LNEG));
+
+		// x * 2^k is x << k, also when 2^k is MIN_VALUE
+		constant(rules, Constants.IMUL, c -> c instanceof Integer && Integer.bitCount(c.intValue()) == 1,
+				shift(InstructionConstants.ISHL));
+		constant(rules, Constants.LMUL, c -> c instanceof Long && Long.bitCount(c.longValue()) == 1,
+				shift(InstructionConstants.LSHL));
+
+		// Division rounds towards zero and a shift towards minus infinity, which only agree for x >= 0
+		constant(rules, Constants.IDIV, AlgebraicSimplifier::isPositivePowerOfTwo, shift(InstructionConstants.ISHR),
+				Shape.CONSTANT_ON_NON_NEGATIVE);
+		constant(rules, Constants.LDIV, AlgebraicSimplifier::isPositivePowerOfTwo, shift(InstructionConstants.LSHR),
+				Shape.CONSTANT_ON_NON_NEGATIVE);
+		constant(rules, Constants.IREM, AlgebraicSimplifier::isPositivePowerOfTwo,
+				(c, matched, cpgen) -> new Instruction[] { push(c.intValue() - 1, cpgen), InstructionConstants.IAND },
+				Shape.CONSTANT_ON_NON_NEGATIVE);
+		constant(rules, Constants.LREM, AlgebraicSimplifier::isPositivePowerOfTwo,
+				(c, matched, cpgen) -> new Instruction[] { push(c.longValue() - 1, cpgen), InstructionConstants.LAND },
+				Shape.CONSTANT_ON_NON_NEGATIVE);
+
+		// x - x and x ^ x are 0, x & x and x | x are x
+		sameLocal(rules, Constants.ISUB, (c, matched, cpgen) -> new Instruction[] { push(0, cpgen) });
+		sameLocal(rules, Constants.IXOR, (c, matched, cpgen) -> new Instruction[] { push(0, cpgen) });
+		sameLocal(rules, Constants.LSUB, (c, matched, cpgen) -> new Instruction[] { push(0L, cpgen) });
+		sameLocal(rules, Constants.LXOR, (c, matched, cpgen) -> new Instruction[] { push(0L, cpgen) });
+		for (short opcode : new short[] { Constants.IAND, Constants.IOR, Constants.LAND, Constants.LOR }) {
+			sameLocal(rules, opcode, (c, matched, cpgen) -> new Instruction[] { matched[0].getInstruction().copy() });
+		}
+
+		// -(-x) is x; int to long and back is x too
+		rules.add(new Rule(Shape.INVERSE, Constants.INEG, null, Constants.INEG, nothing()));
+		rules.add(new Rule(Shape.INVERSE, Constants.LNEG, null, Constants.LNEG, nothing()));
+		rules.add(new Rule(Shape.INVERSE, Constants.L2I, null, Constants.I2L, nothing()));
+
+		RULES = Collections.unmodifiableList(rules);
+	}
+
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	// The rules to try, by the opcode of the operation they rewrite
+	private final List<List<Rule>> rules = new ArrayList<>();
+
+	// Operations rewritten
+	private int folds;
+
+	AlgebraicSimplifier(MethodGen methodGen, ConstantPoolGen cpgen) {
+		this(methodGen, cpgen, RULES);
+	}
+
+	AlgebraicSimplifier(MethodGen methodGen, ConstantPoolGen cpgen, List<Rule> rules) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		for (int opcode = 0; opcode < 256; opcode++) {
+			this.rules.add(new ArrayList<Rule>());
+		}
+		for (Rule rule : rules) {
+			this.rules.get(rule.opcode).add(rule);
+		}
+	}
+
+	boolean run() {
+		if (instructionList == null || instructionList.isEmpty()) {
+			return false;
+		}
+		boolean modified = false;
+		// A rewrite only changes the operation and the instructions before it, so its result can feed the next one
+		InstructionHandle handle = instructionList.getStart();
+		while (handle != null) {
+			InstructionHandle next = handle.getNext();
+			for (Rule rule : rules.get(handle.getInstruction().getOpcode())) {
+				if (apply(rule, handle)) {
+					folds++;
+					modified = true;
+					break;
+				}
+			}
+			handle = next;
+		}
+
+		if (modified) {
+			instructionList.setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	private boolean apply(Rule rule, InstructionHandle operation) {
+		InstructionHandle[] matched = new InstructionHandle[rule.length()];
+		matched[matched.length - 1] = operation;
+		for (int i = matched.length - 2; i >= 0; i--) {
+			matched[i] = matched[i + 1].getPrev();
+			if (matched[i] == null || InstructionUtil.isJumpTarget(matched[i + 1])) {
+				return false;
+			}
+		}
+
+		Number constant = null;
+		Instruction first = matched[0].getInstruction();
+		switch (rule.shape) {
+		case CONSTANT_ON_NON_NEGATIVE:
+			if (InstructionUtil.isJumpTarget(matched[0]) || !isNonNegative(matched[0].getPrev())) {
+				return false;
+			}
+			constant = testedConstant(rule, first);
+			if (constant == null) {
+				return false;
+			}
+			break;
+		case CONSTANT:
+			constant = testedConstant(rule, first);
+			if (constant == null) {
+				return false;
+			}
+			break;
+		case SAME_LOCAL:
+			Instruction second = matched[1].getInstruction();
+			if (!(first instanceof LoadInstruction) || first.getClass() != second.getClass()
+					|| ((LoadInstruction) first).getIndex() != ((LoadInstruction) second).getIndex()) {
+				return false;
+			}
+			break;
+		case INVERSE:
+			if (first.getOpcode() != rule.first) {
+				return false;
+			}
+			break;
+		}
+
+		replace(matched, rule.replacement.of(constant, matched, cpgen));
+		return true;
+	}
+
+	// The constant the instruction pushes if it passes the rule's test, or null.
+	private Number testedConstant(Rule rule, Instruction instruction) {
+		Number constant = PeepholeFolder.getConstantValue(instruction, cpgen);
+		return constant != null && rule.test.test(constant) ? constant : null;
+	}
+
+	// Puts the replacement in place of the matched instructions, reusing their handles so jumps to the first stay.
+	private void replace(InstructionHandle[] matched, Instruction[] replacement) {
+		InstructionHandle last = null;
+		for (int i = 0; i < replacement.length; i++) {
+			if (i < matched.length) {
+				matched[i].setInstruction(replacement[i]);
+				last = matched[i];
+			} else {
+				last = instructionList.append(last, replacement[i]);
+			}
+		}
+		for (int i = replacement.length; i < matched.length; i++) {
+			InstructionUtil.delete(methodGen, matched[i]);
+		}
+	}
+
+	// Whether the value the instruction pushes is known to be zero or more, with no jump to it in between.
+	private boolean isNonNegative(InstructionHandle producer) {
+		if (producer == null) {
+			return false;
+		}
+		Instruction instruction = producer.getInstruction();
+		Number constant = PeepholeFolder.getConstantValue(instruction, cpgen);
+		if (constant != null) {
+			return (constant instanceof Integer || constant instanceof Long) && constant.longValue() >= 0;
+		}
+		if (instruction instanceof ARRAYLENGTH || instruction instanceof I2C || instruction instanceof CALOAD) {
+			return true;
+		}
+		if (instruction instanceof GETFIELD || instruction instanceof GETSTATIC || instruction instanceof InvokeInstruction) {
+			return ((FieldOrMethod) instruction).getType(cpgen) == Type.CHAR;
+		}
+
+		// x & c with c >= 0, and x >>> s for a distance that is not masked to 0
+		InstructionHandle operand = producer.getPrev();
+		Number right = operand == null || InstructionUtil.isJumpTarget(producer) ? null
+				: PeepholeFolder.getConstantValue(operand.getInstruction(), cpgen);
+		if (right == null) {
+			return false;
+		}
+		switch (instruction.getOpcode()) {
+		case Constants.IAND:
+		case Constants.LAND:
+			return right.longValue() >= 0;
+		case Constants.IUSHR:
+			return (right.intValue() & 0x1f) != 0;
+		case Constants.LUSHR:
+			return (right.intValue() & 0x3f) != 0;
+		default:
+			return false;
+		}
+	}
+
+	private static void constant(List<Rule> rules, short opcode, Predicate<Number> test, Replacement replacement) {
+		constant(rules, opcode, test, replacement, Shape.CONSTANT);
+	}
+
+	private static void constant(List<Rule> rules, short opcode, Predicate<Number> test, Replacement replacement, Shape shape) {
+		rules.add(new Rule(shape, opcode, test, (short) -1, replacement));
+	}
+
+	private static void sameLocal(List<Rule> rules, short opcode, Replacement replacement) {
+		rules.add(new Rule(Shape.SAME_LOCAL, opcode, null, (short) -1, replacement));
+	}
+
+	private static Replacement nothing() {
+		return (c, matched, cpgen) -> new Instruction[0];
+	}
+
+	private static Replacement instructions(Instruction... instructions) {
+		return (c, matched, cpgen) -> instructions.clone();
+	}
+
+	// Pops x and pushes the result instead
+	private static Replacement result(Instruction pop, Number result) {
+		return (c, matched, cpgen) -> new Instruction[] { pop, push(result, cpgen) };
+	}
+
+	// Shifts x by the exponent of the power of two the constant is
+	private static Replacement shift(Instruction shift) {
+		return (c, matched, cpgen) -> {
+			int distance = c instanceof Long ? Long.numberOfTrailingZeros(c.longValue()) : Integer.numberOfTrailingZeros(c.intValue());
+			return new Instruction[] { push(distance, cpgen), shift };
+		};
+	}
+
+	private static Instruction push(Number value, ConstantPoolGen cpgen) {
+		return PeepholeFolder.createFoldingInstruction(value, cpgen);
+	}
+
+	private static boolean isInt(Number constant, int value) {
+		return constant instanceof Integer && constant.intValue() == value;
+	}
+
+	private static boolean isLong(Number constant, long value) {
+		return constant instanceof Long && constant.longValue() == value;
+	}
+
+	private static boolean isPositivePowerOfTwo(Number constant) {
+		return (constant instanceof Integer || constant instanceof Long) && constant.longValue() > 0
+				&& Long.bitCount(constant.longValue()) == 1;
+	}
+}
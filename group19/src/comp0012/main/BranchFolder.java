@@ -0,0 +1,209 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Folds conditional branches and switches whose operands are constants pushed right before them into
+ * a GOTO or a fall-through, then deletes the code that can no longer be reached.
+ *
+ * Code is reachable if the start of the method or a live exception handler leads to it; a handler is live
+ * while some reachable code is in its protected range. Ranges are shrunk onto the reachable code they cover
+ * before anything is deleted, so the exception table never points into removed instructions.
+ */
+class BranchFolder
+{
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+
+	// Branches folded, jumps to the next instruction removed and runs of unreachable code deleted
+	private int folds;
+	private String bailout;
+
+	BranchFolder(MethodGen methodGen, ConstantPoolGen cpgen) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	boolean run() {
+		boolean modified = foldBranches();
+		modified |= removeUnreachableCode();
+
+		if (modified) {
+			instructionList.setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	String getBailout() {
+		return bailout;
+	}
+
+	private boolean foldBranches() {
+		boolean modified = false;
+
+		InstructionHandle handle = instructionList.getStart();
+		while (handle != null) {
+			InstructionHandle next = handle.getNext();
+			Instruction instruction = handle.getInstruction();
+
+			if (instruction instanceof IfInstruction || instruction instanceof Select) {
+				if (foldBranch(handle)) {
+					folds++;
+					modified = true;
+				}
+			} else if (instruction instanceof GotoInstruction && ((GotoInstruction) instruction).getTarget() == next) {
+				// Left behind when the code between a jump and its target is removed
+				InstructionUtil.delete(methodGen, handle);
+				folds++;
+				modified = true;
+			}
+			handle = next;
+		}
+		return modified;
+	}
+
+	private boolean foldBranch(InstructionHandle handle) {
+		BranchInstruction branch = (BranchInstruction) handle.getInstruction();
+		int words = branch.consumeStack(cpgen);
+
+		// The operands must come straight from constant pushes that nothing else can jump past
+		List<InstructionHandle> producers = new ArrayList<>();
+		List<Number> operands = new ArrayList<>();
+		InstructionHandle operand = handle;
+		for (int i = 0; i < words; i++) {
+			if (InstructionUtil.isJumpTarget(operand)) {
+				return false;
+			}
+			operand = operand.getPrev();
+			Number value = operand == null ? null : PeepholeFolder.getConstantValue(operand.getInstruction(), cpgen);
+			if (!(value instanceof Integer)) {
+				return false;
+			}
+			producers.add(0, operand);
+			operands.add(0, value);
+		}
+
+		InstructionHandle target;
+		if (branch instanceof Select) {
+			Select select = (Select) branch;
+			target = select.getTarget();
+			for (int i = 0; i < select.getMatchs().length; i++) {
+				if (select.getMatchs()[i] == operands.get(0).intValue()) {
+					target = select.getTargets()[i];
+				}
+			}
+		} else {
+			Boolean jumps = ConstantEvaluator.evaluateCondition(branch.getOpcode(), operands);
+			if (jumps == null) {
+				return false;
+			}
+			target = jumps ? branch.getTarget() : null;
+		}
+
+		for (InstructionHandle producer : producers) {
+			InstructionUtil.delete(methodGen, producer);
+		}
+		if (target == null) {
+			InstructionUtil.delete(methodGen, handle);
+		} else {
+			List<InstructionHandle> jumpedTo = InstructionUtil.targetsOf(branch);
+			handle.setInstruction(new GOTO(target));
+			for (InstructionHandle old : jumpedTo) {
+				InstructionUtil.restoreTargeters(instructionList, old);
+			}
+		}
+		return true;
+	}
+
+	private boolean removeUnreachableCode() {
+		if (instructionList.isEmpty()) {
+			return false;
+		}
+		ControlFlowGraph cfg = new ControlFlowGraph(methodGen);
+		if (cfg.hasSubroutines()) {
+			bailout = "method has subroutines (JSR/RET)";
+			return false;
+		}
+		List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+
+		boolean[] reachable = new boolean[blocks.size()];
+		Deque<ControlFlowGraph.BasicBlock> worklist = new ArrayDeque<>();
+		reachable[0] = true;
+		worklist.add(cfg.getEntry());
+		while (!worklist.isEmpty()) {
+			ControlFlowGraph.BasicBlock block = worklist.poll();
+			List<ControlFlowGraph.BasicBlock> successors = new ArrayList<>(block.successors);
+			successors.addAll(block.handlers);
+			for (ControlFlowGraph.BasicBlock successor : successors) {
+				if (!reachable[successor.index]) {
+					reachable[successor.index] = true;
+					worklist.add(successor);
+				}
+			}
+		}
+
+		boolean any = false;
+		for (boolean r : reachable) {
+			any |= !r;
+		}
+		if (!any) {
+			return false;
+		}
+
+		// Shrink every protected range onto the reachable blocks it covers, or drop the handler if there are none
+		Map<InstructionHandle, ControlFlowGraph.BasicBlock> blockOf = new HashMap<>();
+		for (ControlFlowGraph.BasicBlock block : blocks) {
+			for (InstructionHandle handle : block.instructions()) {
+				blockOf.put(handle, block);
+			}
+		}
+		for (CodeExceptionGen handler : methodGen.getExceptionHandlers()) {
+			ControlFlowGraph.BasicBlock first = null;
+			ControlFlowGraph.BasicBlock last = null;
+			if (reachable[blockOf.get(handler.getHandlerPC()).index]) {
+				for (int i = blockOf.get(handler.getStartPC()).index; i <= blockOf.get(handler.getEndPC()).index; i++) {
+					if (reachable[i]) {
+						if (first == null) {
+							first = blocks.get(i);
+						}
+						last = blocks.get(i);
+					}
+				}
+			}
+			if (first == null) {
+				InstructionUtil.removeExceptionHandler(methodGen, handler);
+			} else {
+				handler.setStartPC(first.first);
+				handler.setEndPC(last.last);
+			}
+		}
+
+		// Delete each run of consecutive unreachable blocks in one go
+		for (int i = 0; i < blocks.size(); i++) {
+			if (reachable[i]) {
+				continue;
+			}
+			int end = i;
+			while (end + 1 < blocks.size() && !reachable[end + 1]) {
+				end++;
+			}
+			InstructionUtil.deleteUnreachable(methodGen, blocks.get(i).first, blocks.get(end).last);
+			folds++;
+			i = end;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,109 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Replaces calls to tiny pure static methods by a copy of the method's body, so the caller's other passes
+ * can fold through it: f(x, 3) with f(a, b) = a * b + 1 becomes x * 3 + 1.
+ *
+ * The arguments are stored into fresh locals above the caller's own, which the body's locals are moved to.
+ * Only bodies of at most MethodSummaries.INLINE_LIMIT instructions, with no branches, calls or instructions
+ * that can throw, are copied, so the copy runs exactly as the call would have; calls whose result is known
+ * are folded by PeepholeFolder instead. Constants are copied into the caller's constant pool as they are.
+ */
+class CallInliner
+{
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	private final ProgramIndex program;
+
+	// Calls inlined
+	private int folds;
+
+	CallInliner(MethodGen methodGen, ConstantPoolGen cpgen, ProgramIndex program) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		this.program = program;
+	}
+
+	boolean run() {
+		if (program == null || instructionList.isEmpty()) {
+			return false;
+		}
+		boolean modified = false;
+		methodGen.setMaxLocals();
+		for (InstructionHandle handle : instructionList.getInstructionHandles()) {
+			if (!(handle.getInstruction() instanceof INVOKESTATIC)) {
+				continue;
+			}
+			MethodSummaries.Summary callee = program.getMethods().resolve(methodGen.getClassName(),
+					(InvokeInstruction) handle.getInstruction(), cpgen);
+			if (callee != null && callee.isInlineable()) {
+				inline(handle, callee);
+				folds++;
+				modified = true;
+			}
+		}
+
+		if (modified) {
+			instructionList.setPositions();
+			methodGen.setMaxLocals();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	private void inline(InstructionHandle call, MethodSummaries.Summary callee) {
+		int base = methodGen.getMaxLocals();
+		List<Instruction> body = new ArrayList<>();
+
+		// The arguments are on the stack, the last on top, and become the callee's parameters
+		int[] slots = new int[callee.argumentTypes.length];
+		int slot = 0;
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = slot;
+			slot += callee.argumentTypes[i].getSize();
+		}
+		for (int i = slots.length - 1; i >= 0; i--) {
+			body.add(InstructionFactory.createStore(callee.argumentTypes[i], base + slots[i]));
+		}
+
+		InstructionHandle[] handles = callee.instructionList.getInstructionHandles();
+		for (int i = 0; i < handles.length - 1; i++) {
+			body.add(copy(handles[i].getInstruction(), callee, base));
+		}
+
+		// Whatever targeted the call now starts the copy
+		InstructionHandle last = call;
+		call.setInstruction(body.get(0));
+		for (Instruction instruction : body.subList(1, body.size())) {
+			last = instructionList.append(last, instruction);
+		}
+		methodGen.setMaxLocals(Math.max(methodGen.getMaxLocals(), base + callee.maxLocals));
+	}
+
+	private Instruction copy(Instruction instruction, MethodSummaries.Summary callee, int base) {
+		Number constant = PeepholeFolder.getConstantValue(instruction, callee.cpgen);
+		if (constant == null && instruction instanceof GETSTATIC) {
+			GETSTATIC field = (GETSTATIC) instruction;
+			constant = program.getFieldConstants().get(field.getReferenceType(callee.cpgen).toString(),
+					field.getFieldName(callee.cpgen), field.getSignature(callee.cpgen));
+		}
+		if (constant != null) {
+			return PeepholeFolder.createFoldingInstruction(constant, cpgen);
+		}
+		Instruction copy = instruction.copy();
+		if (copy instanceof LocalVariableInstruction) {
+			((LocalVariableInstruction) copy).setIndex(base + ((LocalVariableInstruction) copy).getIndex());
+		}
+		return copy;
+	}
+}
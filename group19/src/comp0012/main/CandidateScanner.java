@@ -0,0 +1,375 @@
+package comp0012.main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Finds the methods a pass might change by scanning the raw bytes of their Code attributes, before any
+ * BCEL object is built for the class, so the other methods need no MethodGen and a class with none is
+ * copied as it is.
+ *
+ * The scan is conservative: a method is a candidate if its code holds anything a pass starts from. That is
+ * a store (dead stores, constant locals, counted loops), a call that may be folded or inlined, a read of a
+ * primitive static field, a constant next to an instruction that can fold it, an expression computed
+ * twice, a pop of a value pushed for nothing, a jump to the next instruction, or code that cannot be
+ * reached. A class file it cannot read makes every method a candidate.
+ */
+final class CandidateScanner
+{
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Float = 4;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_String = 8;
+
+	private final byte[] in;
+	private int pos;
+
+	// Offset of each pool entry's tag byte; 0 for the unusable slot after a long or double
+	private int[] entryOffsets;
+
+	private String className;
+	// Whether each method, in class file order, may be changed; null if the class file could not be read
+	private boolean[] candidates;
+	// Methods with code that no pass can change
+	private int skipped;
+
+	private CandidateScanner(byte[] classFile) {
+		this.in = classFile;
+	}
+
+	static CandidateScanner scan(byte[] classFile) {
+		CandidateScanner scanner = new CandidateScanner(classFile);
+		try {
+			scanner.scan();
+		} catch (RuntimeException e) {
+			// Truncated or unknown structures: leave the class to the parser, which reports them properly
+			scanner.className = null;
+			scanner.candidates = null;
+			scanner.skipped = 0;
+		}
+		return scanner;
+	}
+
+	// The dotted name of the class, or null if the class file could not be read.
+	String getClassName() {
+		return className;
+	}
+
+	boolean isCandidate(int methodIndex) {
+		return candidates == null || candidates[methodIndex];
+	}
+
+	boolean hasCandidates() {
+		if (candidates == null) {
+			return true;
+		}
+		for (boolean candidate : candidates) {
+			if (candidate) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int getSkipped() {
+		return skipped;
+	}
+
+	private void scan() {
+		pos = 8; // magic, minor_version, major_version
+		int count = u2();
+		entryOffsets = new int[count];
+		for (int index = 1; index < count; index++) {
+			entryOffsets[index] = pos;
+			int tag = u1();
+			pos += entryLength(tag);
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double) {
+				index++;
+			}
+		}
+
+		pos += 2; // access_flags
+		className = utf8(readU2(entryOffsets[u2()] + 1)).replace('/', '.');
+		pos += 2; // super_class
+		int interfaces = u2();
+		pos += 2 * interfaces;
+		int fields = u2();
+		for (int i = 0; i < fields; i++) {
+			pos += 6;
+			skipAttributes();
+		}
+
+		int methods = u2();
+		candidates = new boolean[methods];
+		for (int i = 0; i < methods; i++) {
+			pos += 6; // access_flags, name_index, descriptor_index
+			int attributes = u2();
+			for (int j = 0; j < attributes; j++) {
+				int name = u2();
+				int length = u4();
+				if (isUtf8(name, "Code")) {
+					candidates[i] = hasCandidate(pos);
+					if (!candidates[i]) {
+						skipped++;
+					}
+				}
+				pos += length;
+			}
+		}
+	}
+
+	private void skipAttributes() {
+		int count = u2();
+		for (int i = 0; i < count; i++) {
+			pos += 2;
+			int length = u4();
+			pos += length;
+		}
+	}
+
+	private int entryLength(int tag) {
+		switch (tag) {
+			case 1: // Utf8
+				return 2 + readU2(pos);
+			case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+				return 2;
+			case 15: // MethodHandle
+				return 3;
+			case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+				return 4;
+			case 5: case 6: // Long, Double
+				return 8;
+			default:
+				throw new IllegalArgumentException("constant pool tag " + tag);
+		}
+	}
+
+	// Scans the code of a Code attribute, given by the offset of its max_stack.
+	private boolean hasCandidate(int attribute) {
+		int start = attribute + 8;
+		int end = start + readU4(attribute + 4);
+
+		boolean constant = false;
+		boolean folds = false;
+		boolean[] evaluated = new boolean[256];
+		BitSet fieldsRead = new BitSet();
+		int previous = -1;
+		int previousLoad = -1;
+		for (int offset = start; offset < end; offset += length(offset, start)) {
+			int opcode = in[offset] & 0xff;
+			int load = -1;
+
+			if ((opcode >= 0x36 && opcode <= 0x4e) || opcode == 0x84 || (opcode == 0xc4 && !isLoad(in[offset + 1] & 0xff))) {
+				return true; // stores and IINC, possibly wide
+			}
+			if (opcode >= 0x02 && opcode <= 0x11) {
+				constant = true;
+			} else if (opcode == 0x12 || opcode == 0x13 || opcode == 0x14) {
+				int index = opcode == 0x12 ? in[offset + 1] & 0xff : readU2(offset + 1);
+				int tag = in[entryOffsets[index]] & 0xff;
+				constant |= tag == CONSTANT_Integer || tag == CONSTANT_Float || tag == CONSTANT_Long
+						|| tag == CONSTANT_Double || tag == CONSTANT_String;
+			} else if (isLoad(opcode)) {
+				// A local read twice in a row may be combined with itself, as in x - x
+				load = opcode >= 0x1a ? (opcode - 0x1a) / 4 << 16 | (opcode - 0x1a) % 4 : (opcode - 0x15) << 16 | (in[offset + 1] & 0xff);
+			} else if (opcode == 0xc4) {
+				load = ((in[offset + 1] & 0xff) - 0x15) << 16 | readU2(offset + 2);
+			} else if (ConstantEvaluator.canEvaluate((short) opcode) || opcode == 0xbe) {
+				folds |= opcode != 0xbe;
+				if (evaluated[opcode] || (opcode == 0x88 && previous == 0x85)) {
+					return true; // computed twice, or an inverse pair such as (int) (long) x
+				}
+				evaluated[opcode] = true;
+			} else if ((opcode >= 0x99 && opcode <= 0xa6) || opcode == 0xaa || opcode == 0xab) {
+				folds = true;
+			} else if ((opcode == 0xa7 && readS2(offset + 1) == 3) || (opcode == 0xc8 && readU4(offset + 1) == 5)) {
+				return true;
+			} else if (opcode == 0x57 || opcode == 0x58) {
+				if (previous >= 0x01 && (previous <= 0x2d || ConstantEvaluator.canEvaluate((short) previous))) {
+					return true; // pops what a constant, load or arithmetic just pushed
+				}
+			} else if (opcode == 0xb2 || opcode == 0xb4) {
+				int field = readU2(offset + 1);
+				if (fieldsRead.get(field) || (opcode == 0xb2 && isPrimitive(descriptor(field)))) {
+					return true; // read twice, or possibly a constant
+				}
+				fieldsRead.set(field);
+			} else if (opcode == 0xb6 || opcode == 0xb7 || opcode == 0xb8) {
+				int nameAndType = entryOffsets[readU2(entryOffsets[readU2(offset + 1)] + 3)];
+				int name = entryOffsets[readU2(nameAndType + 1)];
+				int descriptor = entryOffsets[readU2(nameAndType + 3)];
+				if (in[name + 3] != '<' && in[descriptor + 2 + readU2(descriptor + 1)] != 'V') {
+					return true; // a pure call, intrinsic or string method may fold; constructors and void methods never do
+				}
+			} else if (opcode == 0xba) {
+				return true; // string concatenation
+			}
+
+			if (load >= 0 && load == previousLoad) {
+				return true;
+			}
+			previous = opcode == 0xc4 ? in[offset + 1] & 0xff : opcode;
+			previousLoad = load;
+		}
+		return (constant && folds) || hasUnreachableCode(start, end);
+	}
+
+	private static boolean isLoad(int opcode) {
+		return opcode >= 0x15 && opcode <= 0x2d;
+	}
+
+	private static boolean isPrimitive(int descriptor) {
+		return descriptor != 'L' && descriptor != '[';
+	}
+
+	// The first character of a field reference's descriptor.
+	private int descriptor(int fieldref) {
+		int nameAndType = entryOffsets[readU2(entryOffsets[fieldref] + 3)];
+		return in[entryOffsets[readU2(nameAndType + 3)] + 3] & 0xff;
+	}
+
+	/**
+	 * Whether some instruction cannot be reached from the start of the code, or from the handler of a
+	 * protected range that can be, as the branch folder removes such code.
+	 */
+	private boolean hasUnreachableCode(int start, int end) {
+		BitSet instructions = new BitSet();
+		for (int offset = start; offset < end; offset += length(offset, start)) {
+			instructions.set(offset - start);
+		}
+		int handlers = readU2(end);
+
+		BitSet reached = new BitSet();
+		Deque<Integer> worklist = new ArrayDeque<>();
+		worklist.push(0);
+		while (!worklist.isEmpty()) {
+			while (!worklist.isEmpty()) {
+				int pc = worklist.pop();
+				if (pc >= 0 && pc < end - start && !reached.get(pc)) {
+					reached.set(pc);
+					successors(start, pc, worklist);
+				}
+			}
+			for (int i = 0; i < handlers; i++) {
+				int entry = end + 2 + 8 * i;
+				int covered = reached.nextSetBit(readU2(entry));
+				if (covered >= 0 && covered < readU2(entry + 2) && !reached.get(readU2(entry + 4))) {
+					worklist.push(readU2(entry + 4));
+				}
+			}
+		}
+		return !reached.equals(instructions);
+	}
+
+	private void successors(int start, int pc, Deque<Integer> worklist) {
+		int offset = start + pc;
+		int opcode = in[offset] & 0xff;
+		if ((opcode >= 0x99 && opcode <= 0xa8) || opcode == 0xc6 || opcode == 0xc7) {
+			worklist.push(pc + readS2(offset + 1));
+			if (opcode != 0xa7) {
+				worklist.push(pc + 3); // not taken, or returned to from a subroutine
+			}
+		} else if (opcode == 0xc8 || opcode == 0xc9) {
+			worklist.push(pc + readU4(offset + 1));
+			if (opcode == 0xc9) {
+				worklist.push(pc + 5);
+			}
+		} else if (opcode == 0xaa || opcode == 0xab) {
+			int operands = offset + 1 + (4 - (pc + 1) % 4) % 4;
+			worklist.push(pc + readU4(operands));
+			if (opcode == 0xaa) {
+				int targets = readU4(operands + 8) - readU4(operands + 4) + 1;
+				for (int i = 0; i < targets; i++) {
+					worklist.push(pc + readU4(operands + 12 + 4 * i));
+				}
+			} else {
+				int pairs = readU4(operands + 4);
+				for (int i = 0; i < pairs; i++) {
+					worklist.push(pc + readU4(operands + 12 + 8 * i));
+				}
+			}
+		} else if (opcode != 0xa9 && !(opcode >= 0xac && opcode <= 0xb1) && opcode != 0xbf
+				&& !(opcode == 0xc4 && (in[offset + 1] & 0xff) == 0xa9)) {
+			worklist.push(pc + length(offset, start)); // everything but ret, the returns and athrow falls through
+		}
+	}
+
+	// The length in bytes of the instruction at the offset, in code starting at the given offset.
+	private int length(int offset, int start) {
+		int opcode = in[offset] & 0xff;
+		switch (opcode) {
+			case 0x12: // ldc
+				return 2;
+			case 0x13: case 0x14: // ldc_w, ldc2_w
+			case 0xb2: case 0xb3: case 0xb4: case 0xb5: // field instructions
+			case 0xb6: case 0xb7: case 0xb8: // invokevirtual, invokespecial, invokestatic
+			case 0xbb: case 0xbd: case 0xc0: case 0xc1: // new, anewarray, checkcast, instanceof
+				return 3;
+			case 0xb9: case 0xba: // invokeinterface, invokedynamic
+				return 5;
+			case 0xc5: // multianewarray
+				return 4;
+			case 0xaa: { // tableswitch
+				int operands = offset + 1 + (4 - (offset + 1 - start) % 4) % 4;
+				return operands - offset + 12 + 4 * (readU4(operands + 8) - readU4(operands + 4) + 1);
+			}
+			case 0xab: { // lookupswitch
+				int operands = offset + 1 + (4 - (offset + 1 - start) % 4) % 4;
+				return operands - offset + 8 + 8 * readU4(operands + 4);
+			}
+			case 0xc4: // wide
+				return (in[offset + 1] & 0xff) == 0x84 ? 6 : 4;
+			default:
+				return 1 + ConstantPoolCompactor.operandLength(opcode);
+		}
+	}
+
+	private boolean isUtf8(int index, String value) {
+		int offset = entryOffsets[index];
+		if (readU2(offset + 1) != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (in[offset + 3 + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String utf8(int index) {
+		int offset = entryOffsets[index];
+		return new String(in, offset + 3, readU2(offset + 1), StandardCharsets.UTF_8);
+	}
+
+	private int u1() {
+		return in[pos++] & 0xff;
+	}
+
+	private int u2() {
+		int value = readU2(pos);
+		pos += 2;
+		return value;
+	}
+
+	private int u4() {
+		int value = readU4(pos);
+		pos += 4;
+		return value;
+	}
+
+	private int readU2(int offset) {
+		return ((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff);
+	}
+
+	private int readS2(int offset) {
+		return (short) readU2(offset);
+	}
+
+	private int readU4(int offset) {
+		return (readU2(offset) << 16) | readU2(offset + 2);
+	}
+}
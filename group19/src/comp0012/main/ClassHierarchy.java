@@ -0,0 +1,157 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+
+/**
+ * The superclass of every class and whether it is an interface, for merging the reference types that two
+ * paths leave in a local or on the stack. Classes of the input tree are added while it is indexed; any
+ * other class is read from the optimiser's own class path, which includes the Java runtime.
+ *
+ * Names are internal, as in java/lang/String, and arrays are given by their descriptors, as in [I.
+ */
+final class ClassHierarchy
+{
+	static final String OBJECT = "java/lang/Object";
+	// Prefixes the name of each class a view records
+	static final String FACT = "class ";
+
+	private static final class Entry
+	{
+		final String superclass; // null for java/lang/Object
+		final boolean isInterface;
+
+		Entry(String superclass, boolean isInterface) {
+			this.superclass = superclass;
+			this.isInterface = isInterface;
+		}
+	}
+
+	// Stands in for a class that is neither in the tree nor on the class path
+	private static final Entry UNKNOWN = new Entry(null, false);
+
+	// The input tree, fixed once indexed
+	private final Map<String, Entry> tree;
+	// Classes read from the class path, filled in as they are needed by any thread. The class path is the
+	// same for every tree, so all of them share what has been read, as do the runs of a daemon.
+	private static final Map<String, Entry> CLASS_PATH = new ConcurrentHashMap<>();
+
+	// Where a view over the tree records each class it looks up, with its fact(), or null
+	private final Map<String, String> used;
+
+	ClassHierarchy() {
+		this(new HashMap<String, Entry>(), null);
+	}
+
+	private ClassHierarchy(Map<String, Entry> tree, Map<String, String> used) {
+		this.tree = tree;
+		this.used = used;
+	}
+
+	// A view over the same tree that records in used the classes the frames of one class depend on.
+	ClassHierarchy recording(Map<String, String> used) {
+		return new ClassHierarchy(tree, used);
+	}
+
+	void add(JavaClass cls) {
+		String name = cls.getClassName().replace('.', '/');
+		tree.put(name, new Entry(name.equals(OBJECT) ? null : cls.getSuperclassName().replace('.', '/'), cls.isInterface()));
+	}
+
+	/**
+	 * The most specific class both types can be assigned to, or null if a class they depend on cannot be
+	 * found. Interfaces merge to java/lang/Object, as the verifier treats every interface type as it.
+	 */
+	String commonSuperclass(String a, String b) {
+		if (a.equals(b)) {
+			return a;
+		}
+		if (a.startsWith("[") || b.startsWith("[")) {
+			if (!a.startsWith("[") || !b.startsWith("[") || !isReference(a.substring(1)) || !isReference(b.substring(1))) {
+				return OBJECT; // arrays of different primitives, or an array and a class
+			}
+			String component = commonSuperclass(internalName(a.substring(1)), internalName(b.substring(1)));
+			return component == null ? null : "[" + (component.startsWith("[") ? component : "L" + component + ";");
+		}
+
+		Entry first = lookup(a);
+		Entry second = lookup(b);
+		if (first == UNKNOWN || second == UNKNOWN) {
+			return null;
+		}
+		if (first.isInterface || second.isInterface) {
+			return OBJECT;
+		}
+		Set<String> ancestors = new HashSet<>();
+		for (String name = a; name != null; name = lookup(name).superclass) {
+			if (lookup(name) == UNKNOWN) {
+				return null;
+			}
+			ancestors.add(name);
+		}
+		for (String name = b; name != null; name = lookup(name).superclass) {
+			if (lookup(name) == UNKNOWN) {
+				return null;
+			}
+			if (ancestors.contains(name)) {
+				return name;
+			}
+		}
+		return OBJECT;
+	}
+
+	private static boolean isReference(String descriptor) {
+		return descriptor.startsWith("L") || descriptor.startsWith("[");
+	}
+
+	// The internal name of a class descriptor; array descriptors are kept as they are.
+	private static String internalName(String descriptor) {
+		return descriptor.startsWith("L") ? descriptor.substring(1, descriptor.length() - 1) : descriptor;
+	}
+
+	private Entry lookup(String name) {
+		Entry entry = tree.get(name);
+		if (used != null) {
+			used.put(FACT + name, describe(entry));
+		}
+		if (entry == null) {
+			entry = CLASS_PATH.computeIfAbsent(name, ClassHierarchy::read);
+		}
+		return entry;
+	}
+
+	private static Entry read(String name) {
+		ClassLoader loader = ClassHierarchy.class.getClassLoader();
+		try (InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(name + ".class")
+				: loader.getResourceAsStream(name + ".class")) {
+			if (in == null) {
+				return UNKNOWN;
+			}
+			JavaClass cls = new ClassParser(in, name + ".class").parse();
+			return new Entry(name.equals(OBJECT) ? null : cls.getSuperclassName().replace('.', '/'), cls.isInterface());
+		} catch (IOException | ClassFormatException e) {
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * What the tree says about the class: its superclass and whether it is an interface, or - if it is not
+	 * in the tree, so whatever the class path has is used. Cached frames stay right while this is the same.
+	 */
+	String fact(String name) {
+		return describe(tree.get(name));
+	}
+
+	private static String describe(Entry entry) {
+		return entry == null ? "-" : entry.superclass + " " + entry.isInterface;
+	}
+}
@@ -0,0 +1,305 @@
+package comp0012.main;
+
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.Type;
+
+/**
+ * Evaluates the value-computing JVM instructions on constant operands, with the exact semantics
+ * of the JVM specification: two's complement wrap-around, shift distances masked to 5 or 6 bits,
+ * IEEE 754 NaN and signed zero propagation, and saturating floating point to integer conversions.
+ *
+ * Each opcode is a row in a table giving its operation, operand types and result type, written as
+ * descriptor characters (I, J, F, D, and B, C, S for the narrowing conversions). Integer division and
+ * remainder by zero throw at run time, so they are never folded.
+ */
+final class ConstantEvaluator
+{
+	enum Operation
+	{
+		ADD, SUB, MUL, DIV, REM, NEG, SHL, SHR, USHR, AND, OR, XOR,
+		// Comparisons push -1, 0 or 1; the L and G forms push -1 and 1 respectively if either operand is NaN
+		COMPARE_L, COMPARE_G,
+		CONVERT
+	}
+
+	private static final class Row
+	{
+		final Operation operation;
+		final String operands;
+		final char result;
+		final int[] sizes;
+
+		Row(Operation operation, String operands, char result) {
+			this.operation = operation;
+			this.operands = operands;
+			this.result = result;
+			this.sizes = new int[operands.length()];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = sizeOf(operands.charAt(i));
+			}
+		}
+	}
+
+	private static final Row[] TABLE = new Row[256];
+
+	static {
+		binary(Constants.IADD, Constants.LADD, Constants.FADD, Constants.DADD, Operation.ADD);
+		binary(Constants.ISUB, Constants.LSUB, Constants.FSUB, Constants.DSUB, Operation.SUB);
+		binary(Constants.IMUL, Constants.LMUL, Constants.FMUL, Constants.DMUL, Operation.MUL);
+		binary(Constants.IDIV, Constants.LDIV, Constants.FDIV, Constants.DDIV, Operation.DIV);
+		binary(Constants.IREM, Constants.LREM, Constants.FREM, Constants.DREM, Operation.REM);
+
+		row(Constants.INEG, Operation.NEG, "I", 'I');
+		row(Constants.LNEG, Operation.NEG, "J", 'J');
+		row(Constants.FNEG, Operation.NEG, "F", 'F');
+		row(Constants.DNEG, Operation.NEG, "D", 'D');
+
+		row(Constants.IAND, Operation.AND, "II", 'I');
+		row(Constants.IOR, Operation.OR, "II", 'I');
+		row(Constants.IXOR, Operation.XOR, "II", 'I');
+		row(Constants.LAND, Operation.AND, "JJ", 'J');
+		row(Constants.LOR, Operation.OR, "JJ", 'J');
+		row(Constants.LXOR, Operation.XOR, "JJ", 'J');
+
+		// The shift distance is always an int
+		row(Constants.ISHL, Operation.SHL, "II", 'I');
+		row(Constants.ISHR, Operation.SHR, "II", 'I');
+		row(Constants.IUSHR, Operation.USHR, "II", 'I');
+		row(Constants.LSHL, Operation.SHL, "JI", 'J');
+		row(Constants.LSHR, Operation.SHR, "JI", 'J');
+		row(Constants.LUSHR, Operation.USHR, "JI", 'J');
+
+		row(Constants.LCMP, Operation.COMPARE_L, "JJ", 'I');
+		row(Constants.FCMPL, Operation.COMPARE_L, "FF", 'I');
+		row(Constants.FCMPG, Operation.COMPARE_G, "FF", 'I');
+		row(Constants.DCMPL, Operation.COMPARE_L, "DD", 'I');
+		row(Constants.DCMPG, Operation.COMPARE_G, "DD", 'I');
+
+		row(Constants.I2L, Operation.CONVERT, "I", 'J');
+		row(Constants.I2F, Operation.CONVERT, "I", 'F');
+		row(Constants.I2D, Operation.CONVERT, "I", 'D');
+		row(Constants.L2I, Operation.CONVERT, "J", 'I');
+		row(Constants.L2F, Operation.CONVERT, "J", 'F');
+		row(Constants.L2D, Operation.CONVERT, "J", 'D');
+		row(Constants.F2I, Operation.CONVERT, "F", 'I');
+		row(Constants.F2L, Operation.CONVERT, "F", 'J');
+		row(Constants.F2D, Operation.CONVERT, "F", 'D');
+		row(Constants.D2I, Operation.CONVERT, "D", 'I');
+		row(Constants.D2L, Operation.CONVERT, "D", 'J');
+		row(Constants.D2F, Operation.CONVERT, "D", 'F');
+		row(Constants.I2B, Operation.CONVERT, "I", 'B');
+		row(Constants.I2C, Operation.CONVERT, "I", 'C');
+		row(Constants.I2S, Operation.CONVERT, "I", 'S');
+	}
+
+	private static void binary(short intOpcode, short longOpcode, short floatOpcode, short doubleOpcode, Operation operation) {
+		row(intOpcode, operation, "II", 'I');
+		row(longOpcode, operation, "JJ", 'J');
+		row(floatOpcode, operation, "FF", 'F');
+		row(doubleOpcode, operation, "DD", 'D');
+	}
+
+	private static void row(short opcode, Operation operation, String operands, char result) {
+		TABLE[opcode] = new Row(operation, operands, result);
+	}
+
+	private ConstantEvaluator() {
+	}
+
+	static boolean canEvaluate(short opcode) {
+		return opcode >= 0 && opcode < TABLE.length && TABLE[opcode] != null;
+	}
+
+	// Stack sizes of the operands, deepest first. The array is shared and must not be changed.
+	static int[] operandSizes(short opcode) {
+		return TABLE[opcode].sizes;
+	}
+
+	static int resultSize(short opcode) {
+		return sizeOf(TABLE[opcode].result);
+	}
+
+	static Type resultType(short opcode) {
+		return Type.getType(String.valueOf(TABLE[opcode].result));
+	}
+
+	// Integer division and remainder throw ArithmeticException on a zero divisor; nothing else in the table can throw.
+	static boolean canThrow(short opcode) {
+		return opcode == Constants.IDIV || opcode == Constants.IREM || opcode == Constants.LDIV || opcode == Constants.LREM;
+	}
+
+	/**
+	 * The result of the instruction on the given operands, deepest first, or null if the opcode is not
+	 * in the table, an operand does not have the type the instruction expects, or the instruction would throw.
+	 */
+	static Number evaluate(short opcode, Number... operands) {
+		if (!canEvaluate(opcode)) {
+			return null;
+		}
+		Row row = TABLE[opcode];
+		if (operands.length != row.operands.length()) {
+			return null;
+		}
+		for (int i = 0; i < operands.length; i++) {
+			if (!hasType(operands[i], row.operands.charAt(i))) {
+				return null;
+			}
+		}
+
+		switch (row.operation) {
+			case CONVERT:
+				return convert(operands[0], row.result);
+			case COMPARE_L:
+			case COMPARE_G:
+				return compare(operands[0], operands[1], row.operation == Operation.COMPARE_G);
+			default:
+				break;
+		}
+		Number right = operands.length > 1 ? operands[1] : null;
+		switch (row.operands.charAt(0)) {
+			case 'I':
+				return evaluateInt(row.operation, operands[0].intValue(), right == null ? 0 : right.intValue());
+			case 'J':
+				return evaluateLong(row.operation, operands[0].longValue(), right);
+			case 'F':
+				return evaluateFloat(row.operation, operands[0].floatValue(), right == null ? 0 : right.floatValue());
+			case 'D':
+				return evaluateDouble(row.operation, operands[0].doubleValue(), right == null ? 0 : right.doubleValue());
+			default:
+				return null;
+		}
+	}
+
+	private static Integer evaluateInt(Operation operation, int a, int b) {
+		switch (operation) {
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			case DIV: return b == 0 ? null : (Integer) (a / b); // Integer.MIN_VALUE / -1 wraps to Integer.MIN_VALUE
+			case REM: return b == 0 ? null : (Integer) (a % b);
+			case NEG: return -a;
+			case SHL: return a << b; // Java masks the distance to its low 5 bits, as the JVM does
+			case SHR: return a >> b;
+			case USHR: return a >>> b;
+			case AND: return a & b;
+			case OR: return a | b;
+			case XOR: return a ^ b;
+			default: return null;
+		}
+	}
+
+	// For shifts the distance is an int; for everything else the right operand is a long.
+	private static Long evaluateLong(Operation operation, long a, Number right) {
+		long b = right == null ? 0 : right.longValue();
+		int distance = right == null ? 0 : right.intValue();
+		switch (operation) {
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			case DIV: return b == 0 ? null : (Long) (a / b);
+			case REM: return b == 0 ? null : (Long) (a % b);
+			case NEG: return -a;
+			case SHL: return a << distance; // masked to the low 6 bits
+			case SHR: return a >> distance;
+			case USHR: return a >>> distance;
+			case AND: return a & b;
+			case OR: return a | b;
+			case XOR: return a ^ b;
+			default: return null;
+		}
+	}
+
+	private static Float evaluateFloat(Operation operation, float a, float b) {
+		switch (operation) {
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			case DIV: return a / b;
+			case REM: return a % b; // truncating remainder, not IEEE 754 remainder, as FREM is defined
+			case NEG: return -a;
+			default: return null;
+		}
+	}
+
+	private static Double evaluateDouble(Operation operation, double a, double b) {
+		switch (operation) {
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			case DIV: return a / b;
+			case REM: return a % b;
+			case NEG: return -a;
+			default: return null;
+		}
+	}
+
+	private static Integer compare(Number a, Number b, boolean nanIsGreater) {
+		if (a instanceof Long) {
+			return Long.compare(a.longValue(), b.longValue());
+		}
+		double x = a.doubleValue(), y = b.doubleValue(); // exact for floats too
+		if (x > y) return 1;
+		if (x == y) return 0; // -0.0 == 0.0
+		if (x < y) return -1;
+		return nanIsGreater ? 1 : -1;
+	}
+
+	// Number's conversions are the Java casts, which are the JVM's conversion instructions.
+	private static Number convert(Number value, char to) {
+		switch (to) {
+			case 'I': return value.intValue();
+			case 'J': return value.longValue();
+			case 'F': return value.floatValue();
+			case 'D': return value.doubleValue();
+			case 'B': return (int) (byte) value.intValue();
+			case 'C': return (int) (char) value.intValue();
+			case 'S': return (int) (short) value.intValue();
+			default: return null;
+		}
+	}
+
+	// Whether a conditional branch on the given int operands jumps, or null if that is not known.
+	static Boolean evaluateCondition(short opcode, List<?> operands) {
+		for (Object operand : operands) {
+			if (!(operand instanceof Integer)) {
+				return null;
+			}
+		}
+		return evaluateCondition(opcode, (Integer) operands.get(0), operands.size() > 1 ? (Integer) operands.get(1) : 0);
+	}
+
+	// As above, on unboxed operands; b is ignored by the branches that compare a with zero.
+	static Boolean evaluateCondition(short opcode, int a, int b) {
+		switch (opcode) {
+			case Constants.IFEQ: return a == 0;
+			case Constants.IFNE: return a != 0;
+			case Constants.IFLT: return a < 0;
+			case Constants.IFGE: return a >= 0;
+			case Constants.IFGT: return a > 0;
+			case Constants.IFLE: return a <= 0;
+			case Constants.IF_ICMPEQ: return a == b;
+			case Constants.IF_ICMPNE: return a != b;
+			case Constants.IF_ICMPLT: return a < b;
+			case Constants.IF_ICMPGE: return a >= b;
+			case Constants.IF_ICMPGT: return a > b;
+			case Constants.IF_ICMPLE: return a <= b;
+			default: return null;
+		}
+	}
+
+	private static boolean hasType(Number value, char type) {
+		switch (type) {
+			case 'I': return value instanceof Integer;
+			case 'J': return value instanceof Long;
+			case 'F': return value instanceof Float;
+			case 'D': return value instanceof Double;
+			default: return false;
+		}
+	}
+
+	private static int sizeOf(char type) {
+		return type == 'J' || type == 'D' ? 2 : 1;
+	}
+}
@@ -1,512 +1,294 @@
 package comp0012.main;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.TreeMap;
 
-import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Code;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.*;
-import org.apache.bcel.util.InstructionFinder;
 import org.apache.bcel.classfile.*;
 
 public class ConstantFolder
 {
-	ClassParser parser = null;
-	ClassGen gen = null;
+	// Bump whenever the optimiser output changes, so cached results from older versions are not reused.
+	public static final String VERSION = "20";
 
+	// The class file as it was read, returned as it is when no method changes
+	private final byte[] bytes;
+	private final CandidateScanner candidates;
+
+	// Parsed only if some method is a candidate for a pass
 	JavaClass original = null;
 	JavaClass optimized = null;
 
-	public ConstantFolder(String classFilePath)
-	{
-		try{
-			this.parser = new ClassParser(classFilePath);
-			this.original = this.parser.parse();
-			this.gen = new ClassGen(this.original);
-		} catch(IOException e){
-			e.printStackTrace();
-		}
-	}
+	// Whether optimize() replaced any method of the original class
+	boolean modified = false;
 
-	// Separate LDC and LDC2_W.
-	private Number getConstantValue(InstructionHandle handle, ConstantPoolGen constPoolGen) {
-		Instruction ins = handle.getInstruction();
-		if (ins instanceof LDC) {
-			return (Number) ((LDC) ins).getValue(constPoolGen); // Could be Integer or Float.
-		} else if (ins instanceof LDC2_W) {
-			return (Number) ((LDC2_W) ins).getValue(constPoolGen); // Could be Long or Double.
-		}
-		return null;
-	}
+	private final Map<String, Integer> iterationCounts = new LinkedHashMap<>();
 
-	private Number computeArithmetic(Number v1, Number v2, short opcode) {
-		switch (opcode) {
-			case Constants.IADD:
-				return v1.intValue() + v2.intValue();
-			case Constants.ISUB:
-				return v1.intValue() - v2.intValue();
-			case Constants.IMUL:
-				return v1.intValue() * v2.intValue();
-			case Constants.IDIV:
-				if (v2.intValue() == 0) {
-					return null;
-				}
-				return v1.intValue() / v2.intValue();
-			case Constants.IREM:
-				if (v2.intValue() == 0) {
-					return null;
-				}
-				return v1.intValue() % v2.intValue();
-
-			case Constants.FADD:
-				return v1.floatValue() + v2.floatValue();
-			case Constants.FSUB:
-				return v1.floatValue() - v2.floatValue();
-			case Constants.FMUL:
-				return v1.floatValue() * v2.floatValue();
-			case Constants.FDIV:
-				if (v2.floatValue() == 0.00f) {
-					return null;
-				}
-				return v1.floatValue() / v2.floatValue();
-			case Constants.FREM:
-				if (v2.floatValue() == 0.00f) {
-					return null;
-				}
-				return v1.floatValue() % v2.floatValue();
-
-			case Constants.LADD:
-				return v1.longValue() + v2.longValue();
-			case Constants.LSUB:
-				return v1.longValue() - v2.longValue();
-			case Constants.LMUL:
-				return v1.longValue() * v2.longValue();
-			case Constants.LDIV:
-				if (v2.longValue() == 0L) {
-					return null;
-				}
-				return v1.longValue() / v2.longValue();
-			case Constants.LREM:
-				if (v2.longValue() == 0L) {
-					return null;
-				}
-				return v1.longValue() % v2.longValue();
-
-			case Constants.DADD:
-				return v1.doubleValue() + v2.doubleValue();
-			case Constants.DSUB:
-				return v1.doubleValue() - v2.doubleValue();
-			case Constants.DMUL:
-				return v1.doubleValue() * v2.doubleValue();
-			case Constants.DDIV:
-				if (v2.doubleValue() == 0.00) {
-					return null;
-				}
-				return v1.doubleValue() / v2.doubleValue();
-			case Constants.DREM:
-				if (v2.doubleValue() == 0.00) {
-					return null;
-				}
-				return v1.doubleValue() % v2.doubleValue();
+	// Metrics of the last call to optimize()
+	private OptimisationReport.ClassMetrics metrics = null;
 
-			default:
-				return null;
-		}
-	}
+	// Constant fields and pure methods of the whole input tree, or null to index the class on its own
+	private ProgramIndex program = null;
 
-	// Distinguish the numeric type, return related instructions.
-	private Instruction createFoldingInstruction(Number result, ConstantPoolGen constPoolGen) {
-		if (result instanceof Integer) {
-			return new LDC(constPoolGen.addInteger((Integer) result));
-		}
-		else if (result instanceof Float) {
-			return new LDC(constPoolGen.addFloat((Float) result));
-		}
-		else if (result instanceof Long) {
-			return new LDC2_W(constPoolGen.addLong((Long) result));
-		}
-		else if (result instanceof Double) {
-			return new LDC2_W(constPoolGen.addDouble((Double) result));
-		}
-		else {
-			return null;
-		}
-	}
+	// Bytes of code each loop may grow by when unrolled; 0 leaves loops that cannot be evaluated alone
+	private int loopBudget = LoopUnroller.DEFAULT_BUDGET;
 
-	public void optimize() {
-		ClassGen cgen = new ClassGen(original);
-		ConstantPoolGen cpgen = cgen.getConstantPool();
+	// The passes and their budgets, or null for every pass with the default budgets
+	private PassManager passes = null;
 
-		// Repeatedly optimize until no more changes can be made
-		boolean classModified;
-
-		do {
-			classModified = false;
-			Method[] methods = cgen.getMethods();
-
-			for (int methodIndex = 0; methodIndex < methods.length; methodIndex++) {
-				Method method = methods[methodIndex];
-				Code code = method.getCode();
-
-				if (code != null) {
-					MethodGen methodGen = new MethodGen(method, cgen.getClassName(), cpgen);
-					InstructionList instructionList = methodGen.getInstructionList();
-
-					if (instructionList != null && !instructionList.isEmpty()) {
-						boolean methodModified = false;
-
-						// TASK 1: SIMPLE FOLDING
-						methodModified |= performSimpleFolding(instructionList, cpgen);
-
-						// TASK 2: CONSTANT VARIABLES
-						Map<Integer, Number> constantVariables = findConstantVariables(instructionList, cpgen);
-						if (!constantVariables.isEmpty()) {
-							methodModified |= optimizeConstantVariables(instructionList, cpgen, constantVariables);
-						}
-
-						// TASK 3: DYNAMIC VARIABLES
-						methodModified |= optimizeDynamicVariables(instructionList, cpgen);
-
-						if (methodModified) {
-							instructionList.setPositions();
-							methodGen.setMaxStack();
-							methodGen.setMaxLocals();
-							Method newMethod = methodGen.getMethod();
-							cgen.replaceMethod(method, newMethod);
-							classModified = true;
-						}
-					}
-				}
-			}
-		} while (classModified);
+	// Whether optimize() left a method unchanged because it went over its budget
+	private boolean overBudget = false;
 
-		this.gen = cgen;
-		this.optimized = cgen.getJavaClass();
+	// What the last call to optimize() read of the program index; see ProgramIndex.recording()
+	private final Map<String, String> dependencies = new TreeMap<>();
+
+	public ConstantFolder(String classFilePath) throws IOException
+	{
+		this(Files.readAllBytes(Paths.get(classFilePath)), classFilePath);
 	}
 
-	// TASK 1: SIMPLE FOLDING IMPLEMENTATION
-	private boolean performSimpleFolding(InstructionList insList, ConstantPoolGen cpgen) {
-		boolean modified = false;
-
-		InstructionFinder finder = new InstructionFinder(insList);
-		String pattern =
-				"(LDC|LDC2_W) (LDC|LDC2_W) " +
-						"(IADD|ISUB|IMUL|IDIV|IREM|" +
-						" FADD|FSUB|FMUL|FDIV|FREM|" +
-						" LADD|LSUB|LMUL|LDIV|LREM|" +
-						" DADD|DSUB|DMUL|DDIV|DREM)";
-
-		// Pattern matching.
-		for (Iterator<?> i = finder.search(pattern); i.hasNext();) {
-			InstructionHandle[] match = (InstructionHandle[]) i.next();
-			InstructionHandle handle1 = match[0];
-			InstructionHandle handle2 = match[1];
-			InstructionHandle opHandle = match[2];
-
-			Number val1 = getConstantValue(handle1, cpgen);
-			Number val2 = getConstantValue(handle2, cpgen);
-
-			ArithmeticInstruction op = (ArithmeticInstruction) opHandle.getInstruction();
-			short opcode = op.getOpcode();
-
-			Number result = computeArithmetic(val1, val2, opcode);
-			if (result == null) {
-				continue;
-			}
+	// Parse the class from a stream, e.g. an entry of a JAR file, without going through the file system.
+	public ConstantFolder(InputStream classFile, String className) throws IOException
+	{
+		this(classFile.readAllBytes(), className);
+	}
 
-			// Insert the new instruction and delete old ones.
-			Instruction newInst = createFoldingInstruction(result, cpgen);
-			InstructionHandle newHandle = insList.insert(handle1, newInst);
-			try {
-				insList.delete(handle1, opHandle);
-				modified = true;
-			} catch (TargetLostException e) {
-				for (InstructionHandle target : e.getTargets()) {
-					for (InstructionTargeter targeter : target.getTargeters()) {
-						targeter.updateTarget(target, newHandle);
-					}
-				}
-			}
+	private ConstantFolder(byte[] bytes, String fileName) throws IOException
+	{
+		this.bytes = bytes;
+		this.candidates = CandidateScanner.scan(bytes);
+		if (this.candidates.hasCandidates()) {
+			this.original = new ClassParser(new ByteArrayInputStream(bytes), fileName).parse();
 		}
+	}
 
-		return modified;
+	public void setProgram(ProgramIndex program) {
+		this.program = program;
 	}
 
-	// TASK 2: CONSTANT VARIABLES METHODS
+	public void setLoopBudget(int loopBudget) {
+		this.loopBudget = loopBudget;
+	}
 
-	private Map<Integer, Number> findConstantVariables(InstructionList instructionList, ConstantPoolGen cpgen) {
-		Map<Integer, Number> constantVars = new HashMap<>();
-		Map<Integer, Boolean> modifiedVars = new HashMap<>();
+	void setPasses(PassManager passes) {
+		this.passes = passes;
+	}
 
-		// First pass: find variables that are assigned only once
-		InstructionHandle handle = instructionList.getStart();
-		while (handle != null) {
-			Instruction instruction = handle.getInstruction();
+	/**
+	 * Whether the last call to optimize() left a method unchanged for going over its budget. As the time
+	 * budget depends on the machine and its load, such a class is not cached.
+	 */
+	public boolean isOverBudget() {
+		return this.overBudget;
+	}
 
-			if (instruction instanceof StoreInstruction) {
-				int index = ((StoreInstruction) instruction).getIndex();
+	// The facts of the program the last call to optimize() depends on, to store with a cached result.
+	public Map<String, String> getDependencies() {
+		return dependencies;
+	}
 
-				if (modifiedVars.containsKey(index)) {
-					modifiedVars.put(index, true); // Variable is modified more than once
-				} else {
-					modifiedVars.put(index, false); // First assignment
-				}
+	public void optimize() {
+		long start = System.nanoTime();
+		this.modified = false;
+		this.overBudget = false;
+		this.iterationCounts.clear();
+		this.dependencies.clear();
+		if (original == null) {
+			// Nothing any pass could change: the class is never parsed
+			this.metrics = new OptimisationReport.ClassMetrics(candidates.getClassName());
+			this.metrics.skippedMethods = candidates.getSkipped();
+			this.metrics.nanos = System.nanoTime() - start;
+			return;
+		}
+		ClassGen cgen = new ClassGen(original);
+		ConstantPoolGen cpgen = cgen.getConstantPool();
+		this.metrics = new OptimisationReport.ClassMetrics(original.getClassName());
+		this.metrics.skippedMethods = candidates.getSkipped();
+		ProgramIndex program = (this.program != null ? this.program : ProgramIndex.of(original)).recording(dependencies);
+		PassManager passes = this.passes != null ? this.passes : PassManager.forLevel(PassManager.DEFAULT_LEVEL);
+		BootstrapMethods bootstrapMethods = null;
+		for (Attribute attribute : original.getAttributes()) {
+			if (attribute instanceof BootstrapMethods) {
+				bootstrapMethods = (BootstrapMethods) attribute;
 			}
-
-			handle = handle.getNext();
 		}
 
-		// Second pass: find constant values for variables that are assigned only once
-		handle = instructionList.getStart();
-		while (handle != null) {
-			Instruction instruction = handle.getInstruction();
-			InstructionHandle next = handle.getNext();
-
-			// Check for constant assignments - push constant followed by store
-			if (next != null && next.getInstruction() instanceof StoreInstruction) {
-				StoreInstruction store = (StoreInstruction) next.getInstruction();
-				int index = store.getIndex();
-
-				// Only consider variables that arent modified after initialisation
-				if (modifiedVars.containsKey(index) && !modifiedVars.get(index)) {
-					Number value = null;
-
-					// Check all possible constant push instructions
-					if (instruction instanceof LDC) {
-						Object val = ((LDC) instruction).getValue(cpgen);
-						if (val instanceof Number) {
-							value = (Number) val;
-						}
-					} else if (instruction instanceof LDC2_W) {
-						Object val = ((LDC2_W) instruction).getValue(cpgen);
-						if (val instanceof Number) {
-							value = (Number) val;
-						}
-					} else if (instruction instanceof BIPUSH) {
-						value = ((BIPUSH) instruction).getValue();
-					} else if (instruction instanceof SIPUSH) {
-						value = ((SIPUSH) instruction).getValue();
-					} else if (instruction instanceof ICONST) {
-						value = ((ICONST) instruction).getValue();
-					} else if (instruction instanceof FCONST) {
-						value = ((FCONST) instruction).getValue();
-					} else if (instruction instanceof LCONST) {
-						value = ((LCONST) instruction).getValue();
-					} else if (instruction instanceof DCONST) {
-						value = ((DCONST) instruction).getValue();
-					}
-
-					if (value != null) {
-						constantVars.put(index, value);
-					}
+		Method[] methods = cgen.getMethods();
+		MethodGen[] methodGens = new MethodGen[methods.length];
+		StackMapFrames[] frames = new StackMapFrames[methods.length];
+		LocalVariableTypes[] localTypes = new LocalVariableTypes[methods.length];
+		PassContext[] contexts = new PassContext[methods.length];
+		OptimisationReport.MethodMetrics[] methodMetrics = new OptimisationReport.MethodMetrics[methods.length];
+		int[] iterations = new int[methods.length];
+		boolean[] methodModified = new boolean[methods.length];
+
+		// Every candidate method keeps a live MethodGen and is iterated to its own fixpoint.
+		// A method is only put back on the worklist when the last pass over it changed something,
+		// so methods that have converged are never revisited.
+		Deque<Integer> worklist = new ArrayDeque<>();
+		for (int methodIndex = 0; methodIndex < methods.length; methodIndex++) {
+			Code code = methods[methodIndex].getCode();
+			if (code != null && candidates.isCandidate(methodIndex)) {
+				methodGens[methodIndex] = new MethodGen(methods[methodIndex], cgen.getClassName(), cpgen);
+				localTypes[methodIndex] = restoreLocalVariables(methodGens[methodIndex], code);
+				if (methodGens[methodIndex].getInstructionList() != null) {
+					InstructionUtil.repairInvokeDynamic(methodGens[methodIndex].getInstructionList());
+				}
+				frames[methodIndex] = StackMapFrames.detach(methodGens[methodIndex], cpgen);
+				InstructionList instructionList = methodGens[methodIndex].getInstructionList();
+				if (instructionList != null && !instructionList.isEmpty()) {
+					worklist.add(methodIndex);
+					methodMetrics[methodIndex] = new OptimisationReport.MethodMetrics(original.getClassName(),
+							methods[methodIndex].getName() + methods[methodIndex].getSignature());
+					methodMetrics[methodIndex].instructionsBefore = instructionList.getLength();
+					contexts[methodIndex] = new PassContext(methodGens[methodIndex], cpgen, program, bootstrapMethods,
+							original.getFields(), loopBudget, methodMetrics[methodIndex]);
 				}
 			}
-
-			handle = next;
 		}
 
-		return constantVars;
-	}
-
-	private boolean optimizeConstantVariables(InstructionList instructionList, ConstantPoolGen cpgen,
-											 Map<Integer, Number> constantVars) {
-		// Check if method has branch instructions
-		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
-			if (handle.getInstruction() instanceof BranchInstruction) {
-				// Skip methods with branches for now
-				return false;
+		while (!worklist.isEmpty()) {
+			int methodIndex = worklist.poll();
+			iterations[methodIndex]++;
+
+			long methodStart = System.nanoTime();
+			boolean changed = passes.run(contexts[methodIndex]);
+			methodMetrics[methodIndex].nanos += System.nanoTime() - methodStart;
+			if (contexts[methodIndex].overBudget != null) {
+				// Whatever the passes did so far is dropped, and the original method kept
+				methodModified[methodIndex] = false;
+				this.overBudget = true;
+			} else if (changed) {
+				methodModified[methodIndex] = true;
+				worklist.add(methodIndex);
 			}
 		}
 
-		boolean modified = false;
-		InstructionHandle handle = instructionList.getStart();
-
-		while (handle != null) {
-			InstructionHandle next = handle.getNext();
-
-			if (handle.getInstruction() instanceof LoadInstruction) {
-				LoadInstruction load = (LoadInstruction) handle.getInstruction();
-				int index = load.getIndex();
-				
-				if (constantVars.containsKey(index)) {
-					Number value = constantVars.get(index);
-					Instruction newInst = null;
-					
-					if (value instanceof Integer) {
-						newInst = new LDC(cpgen.addInteger(value.intValue()));
-					} else if (value instanceof Float) {
-						newInst = new LDC(cpgen.addFloat(value.floatValue()));
-					} else if (value instanceof Long) {
-						newInst = new LDC2_W(cpgen.addLong(value.longValue()));
-					} else if (value instanceof Double) {
-						newInst = new LDC2_W(cpgen.addDouble(value.doubleValue()));
-					}
-					
-					if (newInst != null) {
-						InstructionHandle newHandle = instructionList.insert(handle, newInst);
-						
-						try {
-							instructionList.delete(handle);
-							modified = true;
-							
-							if (handle.hasTargeters()) {
-								for (InstructionTargeter targeter : handle.getTargeters()) {
-									targeter.updateTarget(handle, newHandle);
-								}
-							}
-							
-							handle = newHandle;
-						} catch (TargetLostException e) {
-							for (InstructionHandle target : e.getTargets()) {
-								for (InstructionTargeter targeter : target.getTargeters()) {
-									targeter.updateTarget(target, newHandle);
-								}
-							}
-						}
-					}
-				}
+		for (int methodIndex = 0; methodIndex < methods.length; methodIndex++) {
+			if (methodGens[methodIndex] != null) {
+				iterationCounts.put(methods[methodIndex].getName() + methods[methodIndex].getSignature(), iterations[methodIndex]);
 			}
-			
-			handle = next;
-		}
-		
-		if (modified) {
-			instructionList.setPositions(true);
-		}
-		
-		return modified;
-	}
-
-	// TASK 3: DYNAMIC VARIABLES IMPLEMENTATION
-	private boolean optimizeDynamicVariables(InstructionList instructionList, ConstantPoolGen cpgen) {
-		boolean modified = false;
-		Map<Integer, Number> currentConstants = new HashMap<>();
-		Set<Integer> comparisonVariables = new HashSet<>();
-
-		for (InstructionHandle h = instructionList.getStart(); h != null; h = h.getNext()) {
-			Instruction inst = h.getInstruction();
-			if (inst instanceof IfInstruction) {
-				short opcode = ((IfInstruction) inst).getOpcode();
-				if (opcode >= Constants.IF_ICMPEQ && opcode <= Constants.IF_ICMPLE) {
-					InstructionHandle prev1 = h.getPrev();
-					InstructionHandle prev2 = (prev1 != null) ? prev1.getPrev() : null;
-
-					if (prev1 != null && prev1.getInstruction() instanceof LoadInstruction) {
-						comparisonVariables.add(((LoadInstruction) prev1.getInstruction()).getIndex());
-					}
-					if (prev2 != null && prev2.getInstruction() instanceof LoadInstruction) {
-						comparisonVariables.add(((LoadInstruction) prev2.getInstruction()).getIndex());
-					}
-				}
+			if (methodMetrics[methodIndex] != null) {
+				methodMetrics[methodIndex].iterations = iterations[methodIndex];
+				methodMetrics[methodIndex].instructionsAfter = methodModified[methodIndex]
+						? methodGens[methodIndex].getInstructionList().getLength() : methodMetrics[methodIndex].instructionsBefore;
+				metrics.methods.add(methodMetrics[methodIndex]);
 			}
-		}
-
-		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
-			Instruction inst = handle.getInstruction();
-			InstructionHandle next = handle.getNext();
-
-			// Constant assignment: push followed by store
-			if (next != null && inst instanceof ConstantPushInstruction && next.getInstruction() instanceof StoreInstruction) {
-				StoreInstruction store = (StoreInstruction) next.getInstruction();
-				int varIndex = store.getIndex();
-				Number value = null;
-
-				if (inst instanceof BIPUSH) value = ((BIPUSH) inst).getValue();
-				else if (inst instanceof SIPUSH) value = ((SIPUSH) inst).getValue();
-				else if (inst instanceof ICONST) value = ((ICONST) inst).getValue();
-				else if (inst instanceof LCONST) value = ((LCONST) inst).getValue();
-				else if (inst instanceof FCONST) value = ((FCONST) inst).getValue();
-				else if (inst instanceof DCONST) value = ((DCONST) inst).getValue();
-				else if (inst instanceof LDC) {
-					Object val = ((LDC) inst).getValue(cpgen);
-					if (val instanceof Number) value = (Number) val;
-				} else if (inst instanceof LDC2_W) {
-					Object val = ((LDC2_W) inst).getValue(cpgen);
-					if (val instanceof Number) value = (Number) val;
+			if (methodModified[methodIndex]) {
+				MethodGen methodGen = methodGens[methodIndex];
+				methodGen.getInstructionList().setPositions();
+				methodGen.setMaxStack();
+				methodGen.setMaxLocals();
+				// Frames are computed afresh where the split verifier reads them; the carried ones are the fallback
+				StackMapFrames computed = original.getMajor() >= 50
+						? new FrameComputer(methodGen, cpgen, program.getHierarchy()).compute() : null;
+				if (computed != null) {
+					computed.attach(methodGen, cpgen);
+				} else if (frames[methodIndex] != null) {
+					frames[methodIndex].attach(methodGen, cpgen);
 				}
-
-				if (value != null) {
-					currentConstants.put(varIndex, value);
+				if (localTypes[methodIndex] != null) {
+					localTypes[methodIndex].attach(methodGen, cpgen);
 				}
-
-				handle = next;
-				continue;
+				cgen.replaceMethod(methods[methodIndex], methodGen.getMethod());
+				this.modified = true;
 			}
+		}
 
-			else if (inst instanceof LoadInstruction) {
-				int varIndex = ((LoadInstruction) inst).getIndex();
-
-				if (comparisonVariables.contains(varIndex)) {
-					continue;
-				}
+		this.optimized = cgen.getJavaClass();
+		this.metrics.modified = this.modified;
+		this.metrics.nanos = System.nanoTime() - start;
+	}
 
-				if (currentConstants.containsKey(varIndex)) {
-					Number value = currentConstants.get(varIndex);
-					Instruction newInst = null;
-
-					if (value instanceof Integer) newInst = new LDC(cpgen.addInteger(value.intValue()));
-					else if (value instanceof Float) newInst = new LDC(cpgen.addFloat(value.floatValue()));
-					else if (value instanceof Long) newInst = new LDC2_W(cpgen.addLong(value.longValue()));
-					else if (value instanceof Double) newInst = new LDC2_W(cpgen.addDouble(value.doubleValue()));
-
-					if (newInst != null) {
-						InstructionHandle newHandle = instructionList.insert(handle, newInst);
-						try {
-							instructionList.delete(handle);
-							modified = true;
-
-							if (handle.hasTargeters()) {
-								for (InstructionTargeter targeter : handle.getTargeters()) {
-									targeter.updateTarget(handle, newHandle);
-								}
-							}
-
-							handle = newHandle;
-						} catch (TargetLostException e) {
-							for (InstructionHandle lostTarget : e.getTargets()) {
-								for (InstructionTargeter targeter : lostTarget.getTargeters()) {
-									targeter.updateTarget(lostTarget, newHandle);
-								}
-							}
-						}
-					}
-				}
+	/**
+	 * Makes the method's local variables exactly those of the original LocalVariableTable. MethodGen names
+	 * this and the arguments itself when there is no table, and lets a LocalVariableTypeTable replace the
+	 * table with its generic signatures; the type table itself is returned, tied to the variables it
+	 * describes, to be written back once the passes are done, or null if the method has none.
+	 */
+	private static LocalVariableTypes restoreLocalVariables(MethodGen methodGen, Code code) {
+		LocalVariableTypeTable typeTable = null;
+		for (Attribute attribute : code.getAttributes()) {
+			if (attribute instanceof LocalVariableTypeTable) {
+				typeTable = (LocalVariableTypeTable) attribute;
 			}
+		}
+		if (code.getLocalVariableTable() != null && typeTable == null) {
+			return null;
+		}
 
-			else if (inst instanceof StoreInstruction) {
-				int varIndex = ((StoreInstruction) inst).getIndex();
-				currentConstants.remove(varIndex);
+		methodGen.removeLocalVariables();
+		if (code.getLocalVariableTable() == null) {
+			return null;
+		}
+		InstructionList instructionList = methodGen.getInstructionList();
+		LocalVariableTypes types = new LocalVariableTypes();
+		for (LocalVariable local : code.getLocalVariableTable().getLocalVariableTable()) {
+			InstructionHandle start = instructionList.findHandle(local.getStartPC());
+			InstructionHandle end = instructionList.findHandle(local.getStartPC() + local.getLength());
+			LocalVariableGen added = methodGen.addLocalVariable(local.getName(), Type.getType(local.getSignature()), local.getIndex(),
+					start == null ? instructionList.getStart() : start, end == null ? instructionList.getEnd() : end);
+			// The type table names the same variables as the table, by slot, name and range
+			for (LocalVariable signature : typeTable.getLocalVariableTypeTable()) {
+				if (signature.getIndex() == local.getIndex() && signature.getStartPC() == local.getStartPC()
+						&& signature.getLength() == local.getLength() && signature.getName().equals(local.getName())) {
+					types.add(added, signature);
+				}
 			}
 		}
+		return types.isEmpty() ? null : types;
+	}
 
-		if (modified) {
-			instructionList.setPositions(true);
-		}
+	/**
+	 * Number of passes each method needed to reach its fixpoint in the last call to optimize(),
+	 * keyed by method name and signature. The final pass, which changes nothing, is included.
+	 */
+	public Map<String, Integer> getIterationCounts() {
+		return iterationCounts;
+	}
 
-		return modified;
+	// What each pass did to each method in the last call to optimize(), or null before the first.
+	public OptimisationReport.ClassMetrics getMetrics() {
+		return this.metrics;
 	}
 
+	public boolean isModified() {
+		return this.modified;
+	}
 
-	public void write(String optimisedFilePath) {
+	/**
+	 * The optimised class file, with the constants left unused by the passes dropped from its pool,
+	 * or the original class file, as it was read, if no method changed.
+	 */
+	public byte[] getOptimizedBytes() {
 		this.optimize();
+		if (!this.modified) {
+			return this.bytes;
+		}
+		return ConstantPoolCompactor.compact(this.optimized.getBytes());
+	}
+
+	public void write(String optimisedFilePath) throws IOException {
+		byte[] bytes = this.getOptimizedBytes();
 
+		FileOutputStream out = new FileOutputStream(new File(optimisedFilePath));
 		try {
-			FileOutputStream out = new FileOutputStream(new File(optimisedFilePath));
-			this.optimized.dump(out);
+			out.write(bytes);
+		} finally {
 			out.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
 }
\ No newline at end of file
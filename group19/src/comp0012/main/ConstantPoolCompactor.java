@@ -0,0 +1,556 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Drops the constant pool entries a class file no longer references and renumbers every reference
+ * to the ones that remain.
+ *
+ * Folding leaves the pool full of constants and names nothing points at any more. Entries are marked
+ * from the class, field, method and attribute structures and from the bytecode, then from the entries
+ * already marked. The survivors keep their relative order, so no index grows and an LDC that fitted in
+ * one byte still does; code offsets and attribute lengths are unchanged. Class files with an attribute
+ * whose layout is not known here are returned as they are, since it may hold pool indices.
+ */
+final class ConstantPoolCompactor
+{
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Float = 4;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_String = 8;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType = 12;
+	private static final int CONSTANT_MethodHandle = 15;
+	private static final int CONSTANT_MethodType = 16;
+	private static final int CONSTANT_Dynamic = 17;
+	private static final int CONSTANT_InvokeDynamic = 18;
+	private static final int CONSTANT_Module = 19;
+	private static final int CONSTANT_Package = 20;
+
+	private static class UnsupportedClassFileException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedClassFileException(String message) {
+			super(message);
+		}
+	}
+
+	private final byte[] in;
+	private int pos;
+
+	// Offset of each pool entry's tag byte in the input; 0 for the unusable slot after a long or double
+	private int[] entryOffsets;
+	private boolean[] used;
+	// New index of each surviving entry, or null while marking
+	private int[] newIndex;
+	private DataOutputStream out;
+
+	private ConstantPoolCompactor(byte[] classFile) {
+		this.in = classFile;
+	}
+
+	/**
+	 * The class file without its unreferenced constants, or the same array if there are none
+	 * or the class file cannot be rewritten safely.
+	 */
+	static byte[] compact(byte[] classFile) {
+		try {
+			return new ConstantPoolCompactor(classFile).compact();
+		} catch (UnsupportedClassFileException | IOException | RuntimeException e) {
+			return classFile;
+		}
+	}
+
+	private byte[] compact() throws UnsupportedClassFileException, IOException {
+		pos = 8; // magic, minor_version, major_version
+		int count = u2();
+		entryOffsets = new int[count];
+		used = new boolean[count];
+		for (int index = 1; index < count; index++) {
+			entryOffsets[index] = pos;
+			int tag = u1();
+			pos += entryLength(tag);
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double) {
+				index++;
+			}
+		}
+		int membersOffset = pos;
+
+		// Mark everything the class structure refers to, then everything those entries refer to
+		out = new DataOutputStream(new ByteArrayOutputStream());
+		walkMembers();
+		Deque<Integer> worklist = new ArrayDeque<>();
+		for (int index = 1; index < count; index++) {
+			if (used[index]) {
+				worklist.add(index);
+			}
+		}
+		while (!worklist.isEmpty()) {
+			for (int reference : entryReferences(worklist.poll())) {
+				if (reference != 0 && !used[reference]) {
+					used[reference] = true;
+					worklist.add(reference);
+				}
+			}
+		}
+
+		newIndex = new int[count];
+		int next = 1;
+		for (int index = 1; index < count; index++) {
+			if (used[index]) {
+				newIndex[index] = next;
+				next += isWide(index) ? 2 : 1;
+			}
+			if (isWide(index)) {
+				index++;
+			}
+		}
+		if (next == count) {
+			return in;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.length);
+		out = new DataOutputStream(bytes);
+		out.write(in, 0, 8);
+		out.writeShort(next);
+		for (int index = 1; index < count; index++) {
+			if (used[index]) {
+				writeEntry(index);
+			}
+			if (isWide(index)) {
+				index++;
+			}
+		}
+		pos = membersOffset;
+		walkMembers();
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private boolean isWide(int index) {
+		int tag = in[entryOffsets[index]] & 0xff;
+		return tag == CONSTANT_Long || tag == CONSTANT_Double;
+	}
+
+	private int entryLength(int tag) throws UnsupportedClassFileException {
+		switch (tag) {
+			case CONSTANT_Utf8:
+				return 2 + (((in[pos] & 0xff) << 8) | (in[pos + 1] & 0xff));
+			case CONSTANT_Class:
+			case CONSTANT_String:
+			case CONSTANT_MethodType:
+			case CONSTANT_Module:
+			case CONSTANT_Package:
+				return 2;
+			case CONSTANT_MethodHandle:
+				return 3;
+			case CONSTANT_Integer:
+			case CONSTANT_Float:
+			case CONSTANT_Fieldref:
+			case CONSTANT_Methodref:
+			case CONSTANT_InterfaceMethodref:
+			case CONSTANT_NameAndType:
+			case CONSTANT_Dynamic:
+			case CONSTANT_InvokeDynamic:
+				return 4;
+			case CONSTANT_Long:
+			case CONSTANT_Double:
+				return 8;
+			default:
+				throw new UnsupportedClassFileException("constant pool tag " + tag);
+		}
+	}
+
+	// The pool indices an entry refers to.
+	private int[] entryReferences(int index) {
+		int offset = entryOffsets[index];
+		switch (in[offset] & 0xff) {
+			case CONSTANT_Class:
+			case CONSTANT_String:
+			case CONSTANT_MethodType:
+			case CONSTANT_Module:
+			case CONSTANT_Package:
+				return new int[] { readU2(offset + 1) };
+			case CONSTANT_Fieldref:
+			case CONSTANT_Methodref:
+			case CONSTANT_InterfaceMethodref:
+			case CONSTANT_NameAndType:
+				return new int[] { readU2(offset + 1), readU2(offset + 3) };
+			case CONSTANT_MethodHandle:
+				return new int[] { readU2(offset + 2) };
+			case CONSTANT_Dynamic:
+			case CONSTANT_InvokeDynamic:
+				return new int[] { readU2(offset + 3) }; // the first u2 indexes BootstrapMethods, not the pool
+			default:
+				return new int[0];
+		}
+	}
+
+	private void writeEntry(int index) throws IOException {
+		int offset = entryOffsets[index];
+		int tag = in[offset] & 0xff;
+		out.writeByte(tag);
+		switch (tag) {
+			case CONSTANT_Class:
+			case CONSTANT_String:
+			case CONSTANT_MethodType:
+			case CONSTANT_Module:
+			case CONSTANT_Package:
+				out.writeShort(newIndex[readU2(offset + 1)]);
+				break;
+			case CONSTANT_Fieldref:
+			case CONSTANT_Methodref:
+			case CONSTANT_InterfaceMethodref:
+			case CONSTANT_NameAndType:
+				out.writeShort(newIndex[readU2(offset + 1)]);
+				out.writeShort(newIndex[readU2(offset + 3)]);
+				break;
+			case CONSTANT_MethodHandle:
+				out.writeByte(in[offset + 1]);
+				out.writeShort(newIndex[readU2(offset + 2)]);
+				break;
+			case CONSTANT_Dynamic:
+			case CONSTANT_InvokeDynamic:
+				out.write(in, offset + 1, 2);
+				out.writeShort(newIndex[readU2(offset + 3)]);
+				break;
+			case CONSTANT_Utf8:
+				out.write(in, offset + 1, 2 + readU2(offset + 1));
+				break;
+			default:
+				out.write(in, offset + 1, tag == CONSTANT_Long || tag == CONSTANT_Double ? 8 : 4);
+		}
+	}
+
+	// Everything after the constant pool: access flags, this and super class, interfaces, fields, methods and attributes.
+	private void walkMembers() throws UnsupportedClassFileException, IOException {
+		copy(2);
+		ref();
+		ref();
+		refs(copyU2());
+		for (int kind = 0; kind < 2; kind++) {
+			int members = copyU2();
+			for (int i = 0; i < members; i++) {
+				copy(2);
+				ref();
+				ref();
+				attributes();
+			}
+		}
+		attributes();
+	}
+
+	private void attributes() throws UnsupportedClassFileException, IOException {
+		int count = copyU2();
+		for (int i = 0; i < count; i++) {
+			String name = utf8(ref());
+			int length = copyU4();
+			int end = pos + length;
+			attribute(name, length);
+			if (pos != end) {
+				throw new UnsupportedClassFileException("malformed " + name + " attribute");
+			}
+		}
+	}
+
+	private void attribute(String name, int length) throws UnsupportedClassFileException, IOException {
+		switch (name) {
+			case "ConstantValue":
+			case "Signature":
+			case "SourceFile":
+			case "NestHost":
+			case "ModuleMainClass":
+				ref();
+				break;
+			case "Exceptions":
+			case "NestMembers":
+			case "PermittedSubclasses":
+			case "ModulePackages":
+				refs(copyU2());
+				break;
+			case "Synthetic":
+			case "Deprecated":
+			case "SourceDebugExtension":
+			case "LineNumberTable":
+				copy(length);
+				break;
+			case "Code":
+				copy(4); // max_stack, max_locals
+				code(copyU4());
+				int handlers = copyU2();
+				for (int i = 0; i < handlers; i++) {
+					copy(6);
+					ref();
+				}
+				attributes();
+				break;
+			case "StackMapTable":
+				stackMapTable();
+				break;
+			case "InnerClasses":
+				int classes = copyU2();
+				for (int i = 0; i < classes; i++) {
+					ref();
+					ref();
+					ref();
+					copy(2);
+				}
+				break;
+			case "EnclosingMethod":
+				ref();
+				ref();
+				break;
+			case "LocalVariableTable":
+			case "LocalVariableTypeTable":
+				int variables = copyU2();
+				for (int i = 0; i < variables; i++) {
+					copy(4);
+					ref();
+					ref();
+					copy(2);
+				}
+				break;
+			case "RuntimeVisibleAnnotations":
+			case "RuntimeInvisibleAnnotations":
+				annotations();
+				break;
+			case "RuntimeVisibleParameterAnnotations":
+			case "RuntimeInvisibleParameterAnnotations":
+				int parameters = copyU1();
+				for (int i = 0; i < parameters; i++) {
+					annotations();
+				}
+				break;
+			case "AnnotationDefault":
+				elementValue();
+				break;
+			case "BootstrapMethods":
+				int methods = copyU2();
+				for (int i = 0; i < methods; i++) {
+					ref();
+					refs(copyU2());
+				}
+				break;
+			case "MethodParameters":
+				int count = copyU1();
+				for (int i = 0; i < count; i++) {
+					ref();
+					copy(2);
+				}
+				break;
+			case "Record":
+				int components = copyU2();
+				for (int i = 0; i < components; i++) {
+					ref();
+					ref();
+					attributes();
+				}
+				break;
+			default:
+				throw new UnsupportedClassFileException("attribute " + name);
+		}
+	}
+
+	private void code(int length) throws UnsupportedClassFileException, IOException {
+		int start = pos;
+		int end = pos + length;
+		while (pos < end) {
+			int opcode = copyU1();
+			switch (opcode) {
+				case 0x12: // ldc
+					int index = u1();
+					mark(index);
+					out.writeByte(newIndex == null ? index : newIndex[index]);
+					break;
+				case 0x13: case 0x14: // ldc_w, ldc2_w
+				case 0xb2: case 0xb3: case 0xb4: case 0xb5: // getstatic, putstatic, getfield, putfield
+				case 0xb6: case 0xb7: case 0xb8: // invokevirtual, invokespecial, invokestatic
+				case 0xbb: case 0xbd: case 0xc0: case 0xc1: // new, anewarray, checkcast, instanceof
+					ref();
+					break;
+				case 0xb9: case 0xba: // invokeinterface, invokedynamic
+					ref();
+					copy(2);
+					break;
+				case 0xc5: // multianewarray
+					ref();
+					copy(1);
+					break;
+				case 0xaa: // tableswitch
+					copy((4 - (pos - start) % 4) % 4);
+					copy(4);
+					int low = copyU4();
+					int high = copyU4();
+					copy(4 * (high - low + 1));
+					break;
+				case 0xab: // lookupswitch
+					copy((4 - (pos - start) % 4) % 4);
+					copy(4);
+					copy(8 * copyU4());
+					break;
+				case 0xc4: // wide
+					copy(copyU1() == 0x84 ? 4 : 2);
+					break;
+				default:
+					copy(operandLength(opcode));
+			}
+		}
+	}
+
+	static int operandLength(int opcode) {
+		if (opcode == 0x10 || (opcode >= 0x15 && opcode <= 0x19) || (opcode >= 0x36 && opcode <= 0x3a)
+				|| opcode == 0xa9 || opcode == 0xbc) {
+			return 1; // bipush, loads, stores, ret, newarray
+		}
+		if (opcode == 0x11 || opcode == 0x84 || (opcode >= 0x99 && opcode <= 0xa8) || opcode == 0xc6 || opcode == 0xc7) {
+			return 2; // sipush, iinc, branches
+		}
+		if (opcode == 0xc8 || opcode == 0xc9) {
+			return 4; // goto_w, jsr_w
+		}
+		return 0;
+	}
+
+	private void stackMapTable() throws IOException {
+		int frames = copyU2();
+		for (int i = 0; i < frames; i++) {
+			int type = copyU1();
+			if (type >= 64 && type <= 127) {
+				verificationTypes(1);
+			} else if (type == 247) {
+				copy(2);
+				verificationTypes(1);
+			} else if (type >= 248 && type <= 251) {
+				copy(2);
+			} else if (type >= 252 && type <= 254) {
+				copy(2);
+				verificationTypes(type - 251);
+			} else if (type == 255) {
+				copy(2);
+				verificationTypes(copyU2());
+				verificationTypes(copyU2());
+			}
+		}
+	}
+
+	private void verificationTypes(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			int tag = copyU1();
+			if (tag == 7) {
+				ref(); // Object_variable_info
+			} else if (tag == 8) {
+				copy(2); // Uninitialized_variable_info holds a code offset
+			}
+		}
+	}
+
+	private void annotations() throws IOException {
+		int count = copyU2();
+		for (int i = 0; i < count; i++) {
+			annotation();
+		}
+	}
+
+	private void annotation() throws IOException {
+		ref();
+		int pairs = copyU2();
+		for (int i = 0; i < pairs; i++) {
+			ref();
+			elementValue();
+		}
+	}
+
+	private void elementValue() throws IOException {
+		int tag = copyU1();
+		switch (tag) {
+			case 'e':
+				ref();
+				ref();
+				break;
+			case '@':
+				annotation();
+				break;
+			case '[':
+				int values = copyU2();
+				for (int i = 0; i < values; i++) {
+					elementValue();
+				}
+				break;
+			default:
+				ref(); // constants and class literals
+		}
+	}
+
+	// Reads a pool index, marks it, and writes its new number; returns the old index.
+	private int ref() throws IOException {
+		int index = u2();
+		mark(index);
+		out.writeShort(newIndex == null || index == 0 ? index : newIndex[index]);
+		return index;
+	}
+
+	private void refs(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			ref();
+		}
+	}
+
+	private void mark(int index) {
+		if (newIndex == null && index != 0) {
+			used[index] = true;
+		}
+	}
+
+	private String utf8(int index) {
+		int offset = entryOffsets[index];
+		return new String(in, offset + 3, readU2(offset + 1), StandardCharsets.UTF_8);
+	}
+
+	private void copy(int length) throws IOException {
+		out.write(in, pos, length);
+		pos += length;
+	}
+
+	private int copyU1() throws IOException {
+		int value = u1();
+		out.writeByte(value);
+		return value;
+	}
+
+	private int copyU2() throws IOException {
+		int value = u2();
+		out.writeShort(value);
+		return value;
+	}
+
+	private int copyU4() throws IOException {
+		int value = (u2() << 16) | u2();
+		out.writeInt(value);
+		return value;
+	}
+
+	private int u1() {
+		return in[pos++] & 0xff;
+	}
+
+	private int u2() {
+		int value = readU2(pos);
+		pos += 2;
+		return value;
+	}
+
+	private int readU2(int offset) {
+		return ((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff);
+	}
+}
@@ -0,0 +1,423 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Sparse conditional constant propagation over the control flow graph.
+ *
+ * Every local slot and operand stack word holds a lattice value: TOP (no value has reached it yet),
+ * a constant, or BOTTOM (more than one value may reach it), kept in a LocalLattice so the analysis
+ * neither boxes nor hashes per instruction. Blocks are only visited once an edge
+ * into them is known to be executable, and a branch on constant operands only marks the edge it takes,
+ * so constants survive branches and loops whose other paths can never run.
+ * Once the analysis has converged, loads of locals that hold a constant are replaced by the constant;
+ * the peephole folder then folds whatever arithmetic this exposes.
+ */
+class ConstantPropagation
+{
+	// The lattice values of the locals and of the operand stack words at one program point.
+	private static class State
+	{
+		LocalLattice locals;
+		LocalLattice stack;
+		int height;
+
+		State(LocalLattice locals, LocalLattice stack, int height) {
+			this.locals = locals;
+			this.stack = stack;
+			this.height = height;
+		}
+
+		State copy() {
+			return new State(locals.copy(), stack.copy(), height);
+		}
+
+		void copyFrom(State other) {
+			locals.copyFrom(other.locals);
+			stack.copyFrom(other.stack);
+			height = other.height;
+		}
+	}
+
+	private final MethodGen methodGen;
+	private final ConstantPoolGen cpgen;
+	private final ControlFlowGraph cfg;
+
+	private State[] entryStates;
+	// Set when two paths reach a block with different stack heights, which the analysis cannot model
+	private boolean inconsistent;
+
+	// Loads replaced by the constant the local holds, and why the method was left alone, if it was
+	private int folds;
+	private String bailout;
+
+	ConstantPropagation(MethodGen methodGen, ConstantPoolGen cpgen) {
+		this(methodGen, cpgen, new ControlFlowGraph(methodGen));
+	}
+
+	// With the control flow graph of the method's current code, e.g. one an earlier pass built
+	ConstantPropagation(MethodGen methodGen, ConstantPoolGen cpgen, ControlFlowGraph cfg) {
+		this.methodGen = methodGen;
+		this.cpgen = cpgen;
+		this.cfg = cfg;
+	}
+
+	boolean run() {
+		if (cfg.hasSubroutines()) {
+			bailout = "method has subroutines (JSR/RET)";
+			return false;
+		}
+		if (!analyse()) {
+			bailout = "paths with different stack heights merge";
+			return false;
+		}
+
+		boolean modified = false;
+		State state = null;
+		for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()) {
+			if (entryStates[block.index] == null) {
+				continue; // never executed
+			}
+			if (state == null) {
+				state = entryStates[block.index].copy();
+			} else {
+				state.copyFrom(entryStates[block.index]);
+			}
+			for (InstructionHandle handle = block.first; handle != block.last.getNext(); handle = handle.getNext()) {
+				Instruction instruction = handle.getInstruction();
+				if (instruction instanceof LoadInstruction && !(instruction instanceof ALOAD)) {
+					int index = ((LoadInstruction) instruction).getIndex();
+					if (matches((LoadInstruction) instruction, state.locals.kind(index))) {
+						handle.setInstruction(PeepholeFolder.createFoldingInstruction(state.locals.get(index), cpgen));
+						folds++;
+						modified = true;
+					}
+				}
+				transfer(handle, state);
+			}
+		}
+
+		if (modified) {
+			methodGen.getInstructionList().setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	String getBailout() {
+		return bailout;
+	}
+
+	// Runs the analysis to its fixpoint; returns false if the code is not in a shape it can model.
+	private boolean analyse() {
+		List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+		entryStates = new State[blocks.size()];
+
+		LocalLattice locals = new LocalLattice(Math.max(methodGen.getMaxLocals(), 1), LocalLattice.TOP);
+		int slot = 0;
+		if (!methodGen.isStatic()) {
+			locals.setBottom(slot++);
+		}
+		for (Type argument : methodGen.getArgumentTypes()) {
+			for (int i = 0; i < argument.getSize(); i++) {
+				locals.setBottom(slot++);
+			}
+		}
+		entryStates[0] = new State(locals, new LocalLattice(Math.max(methodGen.getMaxStack(), 2), LocalLattice.BOTTOM), 0);
+
+		// One state and one copy of the locals for exception edges are reused for every block visited
+		State state = null;
+		LocalLattice throwLocals = null;
+		Deque<ControlFlowGraph.BasicBlock> worklist = new ArrayDeque<>();
+		worklist.add(cfg.getEntry());
+		while (!worklist.isEmpty() && !inconsistent) {
+			ControlFlowGraph.BasicBlock block = worklist.poll();
+			if (state == null) {
+				state = entryStates[block.index].copy();
+			} else {
+				state.copyFrom(entryStates[block.index]);
+			}
+			boolean handled = !block.handlers.isEmpty();
+			if (handled && throwLocals == null) {
+				throwLocals = state.locals.copy();
+			} else if (handled) {
+				throwLocals.copyFrom(state.locals);
+			}
+
+			InstructionHandle taken = null;
+			for (InstructionHandle handle = block.first; handle != block.last.getNext(); handle = handle.getNext()) {
+				if (handle == block.last) {
+					taken = takenBranch(handle, state);
+				}
+				transfer(handle, state);
+				if (handled) {
+					throwLocals.meet(state.locals);
+				}
+			}
+
+			if (taken != null) {
+				ControlFlowGraph.BasicBlock successor = cfg.blockAt(taken);
+				if (merge(successor, state)) {
+					worklist.add(successor);
+				}
+			} else {
+				for (ControlFlowGraph.BasicBlock successor : block.successors) {
+					if (merge(successor, state)) {
+						worklist.add(successor);
+					}
+				}
+			}
+			if (handled) {
+				for (ControlFlowGraph.BasicBlock handler : block.handlers) {
+					LocalLattice exceptionStack = new LocalLattice(state.stack.size(), LocalLattice.BOTTOM);
+					if (merge(handler, new State(throwLocals.copy(), exceptionStack, 1))) {
+						worklist.add(handler);
+					}
+				}
+			}
+		}
+
+		return !inconsistent;
+	}
+
+	// Merges a state into the entry state of a block; returns whether the entry state changed.
+	private boolean merge(ControlFlowGraph.BasicBlock block, State incoming) {
+		State current = entryStates[block.index];
+		if (current == null) {
+			entryStates[block.index] = incoming.copy();
+			return true;
+		}
+		if (current.height != incoming.height) {
+			inconsistent = true;
+			return false;
+		}
+		boolean changed = current.locals.meet(incoming.locals);
+		changed |= current.stack.meet(incoming.stack, current.height);
+		return changed;
+	}
+
+	/**
+	 * The only instruction control can go to after a branch on constant operands, or null if that is not
+	 * known here (or the instruction is not a branch), in which case every successor is executable.
+	 */
+	private static InstructionHandle takenBranch(InstructionHandle handle, State state) {
+		Instruction instruction = handle.getInstruction();
+		if (instruction instanceof IfInstruction) {
+			int words = ((IfInstruction) instruction).consumeStack(null);
+			if (state.height < words) {
+				return null;
+			}
+			int a = state.height - words;
+			for (int i = a; i < state.height; i++) {
+				if (state.stack.kind(i) != LocalLattice.INT) {
+					return null;
+				}
+			}
+			int b = words > 1 ? state.stack.intValue(a + 1) : 0;
+			Boolean jumps = ConstantEvaluator.evaluateCondition(instruction.getOpcode(), state.stack.intValue(a), b);
+			if (jumps == null) {
+				return null;
+			}
+			return jumps ? ((IfInstruction) instruction).getTarget() : handle.getNext();
+		}
+		if (instruction instanceof Select && state.height > 0 && state.stack.kind(state.height - 1) == LocalLattice.INT) {
+			Select select = (Select) instruction;
+			int key = state.stack.intValue(state.height - 1);
+			InstructionHandle taken = select.getTarget();
+			for (int i = 0; i < select.getMatchs().length; i++) {
+				if (select.getMatchs()[i] == key) {
+					taken = select.getTargets()[i];
+				}
+			}
+			return taken;
+		}
+		return null;
+	}
+
+	// Applies the effect of one instruction to the state.
+	private void transfer(InstructionHandle handle, State state) {
+		Instruction instruction = handle.getInstruction();
+		LocalLattice locals = state.locals;
+		Number constant = PeepholeFolder.getConstantValue(instruction, cpgen);
+		if (constant != null) {
+			int size = sizeOf(constant);
+			reserve(state, size);
+			state.stack.set(state.height, constant);
+			pushCopy(state, size);
+		} else if (instruction instanceof LoadInstruction) {
+			int size = ((LoadInstruction) instruction).getType(cpgen).getSize();
+			int index = ((LoadInstruction) instruction).getIndex();
+			reserve(state, size);
+			if (!(instruction instanceof ALOAD) && locals.isConstant(index) && locals.sizeOf(index) == size) {
+				state.stack.set(state.height, locals, index);
+			} else {
+				state.stack.setBottom(state.height);
+			}
+			pushCopy(state, size);
+		} else if (instruction instanceof StoreInstruction) {
+			int size = ((StoreInstruction) instruction).getType(cpgen).getSize();
+			int index = ((StoreInstruction) instruction).getIndex();
+			int word = pop(state, size);
+			if (index > 0 && locals.sizeOf(index - 1) == 2) {
+				locals.setBottom(index - 1);
+			}
+			if (instruction instanceof ASTORE || word < 0) {
+				locals.setBottom(index);
+			} else {
+				locals.set(index, state.stack, word);
+			}
+			if (size == 2) {
+				locals.setBottom(index + 1);
+			}
+		} else if (instruction instanceof IINC) {
+			int index = ((IINC) instruction).getIndex();
+			if (locals.kind(index) == LocalLattice.INT) {
+				locals.setInt(index, locals.intValue(index) + ((IINC) instruction).getIncrement());
+			} else {
+				locals.setBottom(index);
+			}
+		} else if (ConstantEvaluator.canEvaluate(instruction.getOpcode())) {
+			evaluate(instruction.getOpcode(), state);
+		} else if (instruction instanceof StackInstruction) {
+			shuffle((StackInstruction) instruction, state);
+		} else {
+			popWords(state, instruction.consumeStack(cpgen));
+			int produced = instruction.produceStack(cpgen);
+			reserve(state, produced);
+			for (int i = 0; i < produced; i++) {
+				state.stack.setBottom(state.height++);
+			}
+		}
+	}
+
+	// Arithmetic on the top words, boxed for the evaluator only when every operand is a constant.
+	private static void evaluate(short opcode, State state) {
+		int[] sizes = ConstantEvaluator.operandSizes(opcode);
+		int resultSize = ConstantEvaluator.resultSize(opcode);
+		// The words are still readable once popped, until the result is written over them
+		int right = pop(state, sizes[sizes.length - 1]);
+		int left = sizes.length > 1 ? pop(state, sizes[0]) : -1;
+		boolean known = right >= 0 && state.stack.isConstant(right)
+				&& (sizes.length == 1 || left >= 0 && state.stack.isConstant(left));
+		Number result = null;
+		if (known && sizes.length == 1) {
+			result = ConstantEvaluator.evaluate(opcode, state.stack.get(right));
+		} else if (known) {
+			result = ConstantEvaluator.evaluate(opcode, state.stack.get(left), state.stack.get(right));
+		}
+		reserve(state, resultSize);
+		if (result != null) {
+			state.stack.set(state.height, result);
+		} else {
+			state.stack.setBottom(state.height);
+		}
+		pushCopy(state, resultSize);
+	}
+
+	private void shuffle(StackInstruction instruction, State state) {
+		int consumed = instruction.consumeStack(cpgen);
+		int[] order;
+		switch (instruction.getOpcode()) {
+			case Constants.DUP: order = DUP; break;
+			case Constants.DUP_X1: order = DUP_X1; break;
+			case Constants.DUP_X2: order = DUP_X2; break;
+			case Constants.DUP2: order = DUP2; break;
+			case Constants.DUP2_X1: order = DUP2_X1; break;
+			case Constants.DUP2_X2: order = DUP2_X2; break;
+			case Constants.SWAP: order = SWAP; break;
+			default: order = NONE; // POP, POP2
+		}
+		if (state.height < consumed) {
+			state.height = 0;
+			reserve(state, order.length);
+			while (state.height < order.length) {
+				state.stack.setBottom(state.height++);
+			}
+			return;
+		}
+
+		// The consumed words are copied above the stack first, where the result can be written from
+		int base = state.height - consumed;
+		reserve(state, consumed + order.length);
+		for (int i = 0; i < consumed; i++) {
+			state.stack.set(state.height + i, state.stack, base + i);
+		}
+		for (int i = 0; i < order.length; i++) {
+			state.stack.set(base + i, state.stack, state.height + order[i]);
+		}
+		state.height = base + order.length;
+	}
+
+	private static final int[] DUP = { 0, 0 };
+	private static final int[] DUP_X1 = { 1, 0, 1 };
+	private static final int[] DUP_X2 = { 2, 0, 1, 2 };
+	private static final int[] DUP2 = { 0, 1, 0, 1 };
+	private static final int[] DUP2_X1 = { 1, 2, 0, 1, 2 };
+	private static final int[] DUP2_X2 = { 2, 3, 0, 1, 2, 3 };
+	private static final int[] SWAP = { 1, 0 };
+	private static final int[] NONE = {};
+
+	// Makes room for the given number of words above the top of the stack.
+	private static void reserve(State state, int words) {
+		int needed = state.height + words;
+		if (needed > state.stack.size()) {
+			LocalLattice grown = new LocalLattice(Math.max(needed, state.stack.size() * 2), LocalLattice.BOTTOM);
+			for (int i = 0; i < state.height; i++) {
+				grown.set(i, state.stack, i);
+			}
+			state.stack = grown;
+		}
+	}
+
+	// Pushes the value written just above the top of the stack; a category 2 value occupies two words that both hold it.
+	private static void pushCopy(State state, int size) {
+		if (size == 2) {
+			state.stack.set(state.height + 1, state.stack, state.height);
+		}
+		state.height += size;
+	}
+
+	// Pops a value and returns the word it was in, or -1 if it was not a value of that size.
+	private static int pop(State state, int size) {
+		if (state.height < size) {
+			state.height = 0;
+			return -1;
+		}
+		state.height -= size;
+		int word = state.height;
+		if (size == 2 && !state.stack.same(word, state.stack, word + 1)) {
+			return -1;
+		}
+		if (state.stack.isConstant(word) && state.stack.sizeOf(word) != size) {
+			return -1;
+		}
+		return word;
+	}
+
+	private static void popWords(State state, int words) {
+		state.height = Math.max(state.height - words, 0);
+	}
+
+	private static int sizeOf(Number value) {
+		return value instanceof Long || value instanceof Double ? 2 : 1;
+	}
+
+	// Whether the local holds a constant of the type the load instruction expects.
+	private boolean matches(LoadInstruction load, byte kind) {
+		Type type = load.getType(cpgen);
+		if (type == Type.INT) return kind == LocalLattice.INT;
+		if (type == Type.LONG) return kind == LocalLattice.LONG;
+		if (type == Type.FLOAT) return kind == LocalLattice.FLOAT;
+		if (type == Type.DOUBLE) return kind == LocalLattice.DOUBLE;
+		return false;
+	}
+}
@@ -0,0 +1,148 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Basic blocks of a method and the control flow between them, including the edges from every block
+ * covered by an exception handler to that handler.
+ * Blocks never straddle the boundary of a protected range, so a handler either covers a whole block or none of it.
+ */
+class ControlFlowGraph
+{
+	static class BasicBlock
+	{
+		final int index;
+		final InstructionHandle first;
+		InstructionHandle last;
+
+		// Normal control flow; for conditional branches the fall-through block comes first
+		final List<BasicBlock> successors = new ArrayList<>();
+		// Handlers whose protected range covers this block, in exception table order
+		final List<BasicBlock> handlers = new ArrayList<>();
+		final List<BasicBlock> predecessors = new ArrayList<>();
+
+		BasicBlock(int index, InstructionHandle first) {
+			this.index = index;
+			this.first = first;
+		}
+
+		Iterable<InstructionHandle> instructions() {
+			List<InstructionHandle> handles = new ArrayList<>();
+			for (InstructionHandle handle = first; handle != last.getNext(); handle = handle.getNext()) {
+				handles.add(handle);
+			}
+			return handles;
+		}
+
+		@Override
+		public String toString() {
+			return "B" + index + "[" + first.getPosition() + ".." + last.getPosition() + "]";
+		}
+	}
+
+	private final List<BasicBlock> blocks = new ArrayList<>();
+	private final Map<InstructionHandle, BasicBlock> blockAt = new HashMap<>();
+	private boolean subroutines = false;
+
+	ControlFlowGraph(MethodGen methodGen) {
+		InstructionList instructionList = methodGen.getInstructionList();
+		instructionList.setPositions();
+		CodeExceptionGen[] exceptionHandlers = methodGen.getExceptionHandlers();
+
+		// Find the leaders
+		Set<InstructionHandle> leaders = new LinkedHashSet<>();
+		leaders.add(instructionList.getStart());
+		for (CodeExceptionGen handler : exceptionHandlers) {
+			leaders.add(handler.getStartPC());
+			leaders.add(handler.getHandlerPC());
+			if (handler.getEndPC().getNext() != null) {
+				leaders.add(handler.getEndPC().getNext());
+			}
+		}
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof JsrInstruction || instruction instanceof RET) {
+				subroutines = true;
+			}
+			if (instruction instanceof BranchInstruction) {
+				leaders.add(((BranchInstruction) instruction).getTarget());
+				if (instruction instanceof Select) {
+					Collections.addAll(leaders, ((Select) instruction).getTargets());
+				}
+			}
+			if ((instruction instanceof BranchInstruction || InstructionUtil.endsBlock(instruction)) && handle.getNext() != null) {
+				leaders.add(handle.getNext());
+			}
+		}
+
+		// Cut the instruction list into blocks
+		BasicBlock current = null;
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			if (leaders.contains(handle)) {
+				current = new BasicBlock(blocks.size(), handle);
+				blocks.add(current);
+				blockAt.put(handle, current);
+			}
+			current.last = handle;
+		}
+
+		// Connect them
+		for (BasicBlock block : blocks) {
+			Instruction instruction = block.last.getInstruction();
+			if (!InstructionUtil.endsBlock(instruction) && block.last.getNext() != null) {
+				addEdge(block, blockAt.get(block.last.getNext()));
+			}
+			if (instruction instanceof BranchInstruction && !(instruction instanceof JsrInstruction)) {
+				addEdge(block, blockAt.get(((BranchInstruction) instruction).getTarget()));
+				if (instruction instanceof Select) {
+					for (InstructionHandle target : ((Select) instruction).getTargets()) {
+						addEdge(block, blockAt.get(target));
+					}
+				}
+			}
+			for (CodeExceptionGen handler : exceptionHandlers) {
+				int position = block.first.getPosition();
+				if (handler.getStartPC().getPosition() <= position && position <= handler.getEndPC().getPosition()) {
+					BasicBlock handlerBlock = blockAt.get(handler.getHandlerPC());
+					if (!block.handlers.contains(handlerBlock)) {
+						block.handlers.add(handlerBlock);
+						handlerBlock.predecessors.add(block);
+					}
+				}
+			}
+		}
+	}
+
+	private static void addEdge(BasicBlock from, BasicBlock to) {
+		if (!from.successors.contains(to)) {
+			from.successors.add(to);
+			to.predecessors.add(from);
+		}
+	}
+
+	List<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
+	BasicBlock getEntry() {
+		return blocks.get(0);
+	}
+
+	// The block starting at the given instruction, or null if it does not start a block.
+	BasicBlock blockAt(InstructionHandle handle) {
+		return blockAt.get(handle);
+	}
+
+	// Whether the method uses JSR/RET, whose control flow this graph does not model.
+	boolean hasSubroutines() {
+		return subroutines;
+	}
+}
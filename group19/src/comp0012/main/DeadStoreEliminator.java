@@ -0,0 +1,313 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Removes stores to locals that are never read again, the side-effect-free code that only computed
+ * the stored values, and then the local slots nothing uses any more.
+ *
+ * Liveness is computed backwards over the control flow graph; a local live at the entry of an exception
+ * handler is live throughout the code the handler protects. A dead store becomes a POP or POP2, and a pop
+ * directly after a side-effect-free instruction is folded into pops of that instruction's own operands,
+ * so whole chains of loads and arithmetic disappear. The remaining locals are then renumbered densely
+ * after the parameters, and stack map frames are rewritten to match, with locals that are dead at
+ * the frame turned into Top.
+ */
+class DeadStoreEliminator
+{
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	private final ControlFlowGraph cfg; // null to build one in run()
+
+	// Locals live after each store and IINC, and live at each stack map frame
+	private final Map<InstructionHandle, BitSet> liveAfter = new HashMap<>();
+	private final Map<StackMapFrames.Frame, BitSet> liveAtFrame = new IdentityHashMap<>();
+
+	// Dead stores and side-effect-free pushes removed
+	private int folds;
+	private String bailout;
+
+	DeadStoreEliminator(MethodGen methodGen, ConstantPoolGen cpgen) {
+		this(methodGen, cpgen, null);
+	}
+
+	// With the control flow graph of the method's current code, or null to build it
+	DeadStoreEliminator(MethodGen methodGen, ConstantPoolGen cpgen, ControlFlowGraph cfg) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		this.cfg = cfg;
+	}
+
+	boolean run() {
+		if (instructionList.isEmpty()) {
+			return false;
+		}
+		ControlFlowGraph cfg = this.cfg != null ? this.cfg : new ControlFlowGraph(methodGen);
+		if (cfg.hasSubroutines()) {
+			bailout = "method has subroutines (JSR/RET)";
+			return false;
+		}
+		analyse(cfg);
+
+		boolean modified = removeDeadStores();
+		modified |= removeDeadPushes();
+		modified |= compactLocals(modified);
+
+		if (modified) {
+			instructionList.setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	String getBailout() {
+		return bailout;
+	}
+
+	private void analyse(ControlFlowGraph cfg) {
+		List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+		BitSet[] liveIn = new BitSet[blocks.size()];
+		for (int i = 0; i < liveIn.length; i++) {
+			liveIn[i] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = blocks.size() - 1; i >= 0; i--) {
+				BitSet in = transfer(blocks.get(i), liveIn, false);
+				if (!in.equals(liveIn[i])) {
+					liveIn[i] = in;
+					changed = true;
+				}
+			}
+		}
+
+		for (ControlFlowGraph.BasicBlock block : blocks) {
+			transfer(block, liveIn, true);
+		}
+	}
+
+	// Walks a block backwards from the locals live at its exits; returns the locals live at its entry.
+	private BitSet transfer(ControlFlowGraph.BasicBlock block, BitSet[] liveIn, boolean record) {
+		BitSet handlerLive = new BitSet();
+		for (ControlFlowGraph.BasicBlock handler : block.handlers) {
+			handlerLive.or(liveIn[handler.index]);
+		}
+		BitSet live = new BitSet();
+		for (ControlFlowGraph.BasicBlock successor : block.successors) {
+			live.or(liveIn[successor.index]);
+		}
+
+		List<InstructionHandle> handles = new ArrayList<>();
+		for (InstructionHandle handle : block.instructions()) {
+			handles.add(handle);
+		}
+		for (int i = handles.size() - 1; i >= 0; i--) {
+			InstructionHandle handle = handles.get(i);
+			Instruction instruction = handle.getInstruction();
+
+			if (record && (instruction instanceof StoreInstruction || instruction instanceof IINC)) {
+				liveAfter.put(handle, (BitSet) live.clone());
+			}
+			if (instruction instanceof LocalVariableInstruction) {
+				int index = ((LocalVariableInstruction) instruction).getIndex();
+				int size = slotSize(instruction);
+				if (instruction instanceof StoreInstruction) {
+					live.clear(index, index + size);
+				} else {
+					live.set(index, index + size); // loads, and IINC reads before it writes
+				}
+			}
+			live.or(handlerLive);
+
+			if (record) {
+				for (StackMapFrames.Frame frame : StackMapFrames.framesAt(handle)) {
+					liveAtFrame.put(frame, (BitSet) live.clone());
+				}
+			}
+		}
+		return live;
+	}
+
+	private boolean removeDeadStores() {
+		boolean modified = false;
+		for (Map.Entry<InstructionHandle, BitSet> entry : liveAfter.entrySet()) {
+			InstructionHandle handle = entry.getKey();
+			LocalVariableInstruction instruction = (LocalVariableInstruction) handle.getInstruction();
+			int index = instruction.getIndex();
+			int size = slotSize(instruction);
+			if (!entry.getValue().get(index, index + size).isEmpty()) {
+				continue;
+			}
+
+			if (instruction instanceof IINC) {
+				InstructionUtil.delete(methodGen, handle);
+			} else {
+				handle.setInstruction(pop(size));
+			}
+			folds++;
+			modified = true;
+		}
+		return modified;
+	}
+
+	// Folds each POP/POP2 into the side-effect-free instruction that pushed exactly the popped words.
+	private boolean removeDeadPushes() {
+		boolean modified = false;
+		InstructionHandle handle = instructionList.getStart();
+		while (handle != null) {
+			Instruction instruction = handle.getInstruction();
+			InstructionHandle producer = handle.getPrev();
+			if (!(instruction instanceof POP || instruction instanceof POP2) || producer == null
+					|| InstructionUtil.isJumpTarget(handle) || !isSideEffectFree(producer.getInstruction())
+					|| producer.getInstruction().produceStack(cpgen) != instruction.consumeStack(cpgen)) {
+				handle = handle.getNext();
+				continue;
+			}
+
+			// Pop the producer's operands instead, topmost first, and look again from before the producer
+			InstructionHandle resume = producer.getPrev();
+			int[] operands = operandSizes(producer.getInstruction());
+			if (operands.length == 0) {
+				InstructionUtil.delete(methodGen, producer);
+				InstructionUtil.delete(methodGen, handle);
+			} else if (operands.length == 1) {
+				producer.setInstruction(pop(operands[0]));
+				InstructionUtil.delete(methodGen, handle);
+			} else {
+				producer.setInstruction(pop(operands[1]));
+				handle.setInstruction(pop(operands[0]));
+			}
+			folds++;
+			modified = true;
+			handle = resume != null ? resume : instructionList.getStart();
+		}
+		return modified;
+	}
+
+	/**
+	 * Renumbers the locals still in use so they follow the parameters without gaps, and rewrites every
+	 * stack map frame to the new numbering. Frames are also rewritten after stores were removed, since
+	 * a local the frame declares may no longer be assigned on every path to it.
+	 */
+	private boolean compactLocals(boolean storesRemoved) {
+		int fixed = methodGen.isStatic() ? 0 : 1;
+		for (Type argument : methodGen.getArgumentTypes()) {
+			fixed += argument.getSize();
+		}
+
+		int maxLocals = fixed;
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			if (handle.getInstruction() instanceof LocalVariableInstruction) {
+				LocalVariableInstruction instruction = (LocalVariableInstruction) handle.getInstruction();
+				maxLocals = Math.max(maxLocals, instruction.getIndex() + slotSize(instruction));
+			}
+		}
+		boolean[] used = new boolean[maxLocals];
+		boolean[] wide = new boolean[maxLocals];
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			if (handle.getInstruction() instanceof LocalVariableInstruction) {
+				LocalVariableInstruction instruction = (LocalVariableInstruction) handle.getInstruction();
+				used[instruction.getIndex()] = true;
+				wide[instruction.getIndex()] |= slotSize(instruction) == 2;
+			}
+		}
+
+		// A slot that is also the second half of a category 2 local stays right after it, so slots only move down
+		int[] newSlots = new int[maxLocals];
+		Arrays.fill(newSlots, -1);
+		boolean renumbered = false;
+		int next = fixed;
+		for (int slot = 0; slot < maxLocals; slot++) {
+			if (slot < fixed) {
+				newSlots[slot] = slot;
+				continue;
+			}
+			if (!used[slot]) {
+				continue;
+			}
+			if (newSlots[slot] < 0) {
+				newSlots[slot] = next;
+			}
+			if (wide[slot] && slot + 1 < maxLocals && used[slot + 1]) {
+				newSlots[slot + 1] = newSlots[slot] + 1;
+			}
+			renumbered |= newSlots[slot] != slot;
+			next = Math.max(next, newSlots[slot] + (wide[slot] ? 2 : 1));
+		}
+		if (!renumbered && !storesRemoved) {
+			return false;
+		}
+
+		if (renumbered) {
+			for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+				if (handle.getInstruction() instanceof LocalVariableInstruction) {
+					LocalVariableInstruction instruction = (LocalVariableInstruction) handle.getInstruction();
+					instruction.setIndex(newSlots[instruction.getIndex()]);
+				}
+			}
+			methodGen.setMaxLocals();
+		}
+		// The class file is rejected if the LocalVariableTable names a slot beyond max_locals
+		for (LocalVariableGen local : methodGen.getLocalVariables()) {
+			int slot = local.getIndex();
+			if (slot >= maxLocals || newSlots[slot] < 0) {
+				methodGen.removeLocalVariable(local);
+			} else {
+				local.setIndex(newSlots[slot]);
+			}
+		}
+
+		for (Map.Entry<StackMapFrames.Frame, BitSet> entry : liveAtFrame.entrySet()) {
+			int[] frameSlots = new int[maxLocals];
+			for (int slot = 0; slot < maxLocals; slot++) {
+				frameSlots[slot] = entry.getValue().get(slot) ? newSlots[slot] : -1;
+			}
+			entry.getKey().remapLocals(frameSlots);
+		}
+		return renumbered;
+	}
+
+	// Instructions that only compute a value from their operands and can never throw.
+	private boolean isSideEffectFree(Instruction instruction) {
+		if (instruction instanceof LDC) {
+			Object value = ((LDC) instruction).getValue(cpgen);
+			return value instanceof Number || value instanceof String;
+		}
+		if (ConstantEvaluator.canEvaluate(instruction.getOpcode())) {
+			return !ConstantEvaluator.canThrow(instruction.getOpcode());
+		}
+		return instruction instanceof ConstantPushInstruction || instruction instanceof LDC2_W
+				|| instruction instanceof ACONST_NULL || instruction instanceof LoadInstruction;
+	}
+
+	// Sizes of the operands of a side-effect-free instruction, deepest first.
+	private static int[] operandSizes(Instruction instruction) {
+		if (ConstantEvaluator.canEvaluate(instruction.getOpcode())) {
+			return ConstantEvaluator.operandSizes(instruction.getOpcode());
+		}
+		return new int[0];
+	}
+
+	private static Instruction pop(int size) {
+		return size == 2 ? new POP2() : new POP();
+	}
+
+	private int slotSize(Instruction instruction) {
+		return instruction instanceof IINC ? 1 : ((TypedInstruction) instruction).getType(cpgen).getSize();
+	}
+}
@@ -0,0 +1,33 @@
+package comp0012.main;
+
+/**
+ * The time by which the passes over a method must be done. The passes that loop check it as they go, and
+ * once it has passed stop without changing anything more; the pass manager then finds the method over its
+ * time budget and keeps the original.
+ */
+final class Deadline
+{
+	// Never passes, for work done outside a budget
+	static final Deadline NONE = new Deadline(0, false);
+
+	// Read every so many steps of the loops checking it, which keeps the checks a small part of the work
+	static final int CHECK_INTERVAL = 256;
+
+	private final long nanoTime;
+	private final boolean set;
+
+	private Deadline(long nanoTime, boolean set) {
+		this.nanoTime = nanoTime;
+		this.set = set;
+	}
+
+	// The deadline the given number of nanoseconds from now.
+	static Deadline in(long nanos) {
+		return new Deadline(System.nanoTime() + nanos, true);
+	}
+
+	boolean hasPassed() {
+		// System.nanoTime() may wrap, so only the difference is meaningful
+		return set && System.nanoTime() - nanoTime > 0;
+	}
+}
@@ -0,0 +1,331 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantValue;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+/**
+ * Whole-program index of the static final primitive fields of an input tree whose value is a known
+ * constant, so reads of them in any class of the tree fold like the constants of the class itself.
+ *
+ * A field's value comes from its ConstantValue attribute, or from the class initialiser when, once folded,
+ * <clinit> is straight-line code storing a constant into it; a field stored into by any other method is
+ * never indexed. Replacing a GETSTATIC by the value also skips the initialisation of the field's class, so
+ * only classes whose initialisation has no visible effect are indexed: <clinit> may only compute constants
+ * and use the class's own static fields, and a class may not extend anything but Object or implement an
+ * interface, whose initialisation would run first. Reads in the initialiser of the field's own class are
+ * never replaced, as they can run before the field is assigned.
+ *
+ * Like javac's inlining of constant variables, this assumes the tree is deployed as a whole: a class
+ * folded against the index keeps the values even if the declaring class is later replaced.
+ */
+public class FieldConstantIndex
+{
+	// Prefix the field and the class each view records
+	static final String FIELD_FACT = "field ";
+	static final String INITIALISATION_FACT = "initialisation-free ";
+
+	// Keyed by declaring class, field name and descriptor: comp0012.target.Limits.WIDTH:I
+	private final Map<String, Number> values;
+
+	// Classes whose initialisation has no visible effect, so skipping it by folding their members is safe
+	private final Set<String> initialisationFree;
+
+	// Where a view records each field and class it is asked about, with the answer, or null
+	private final Map<String, String> used;
+
+	public FieldConstantIndex() {
+		this.values = new HashMap<>();
+		this.initialisationFree = new HashSet<>();
+		this.used = null;
+	}
+
+	private FieldConstantIndex(FieldConstantIndex index, Map<String, String> used) {
+		this.values = index.values;
+		this.initialisationFree = index.initialisationFree;
+		this.used = used;
+	}
+
+	// A view over the same index that records in used what one class has read of it.
+	FieldConstantIndex recording(Map<String, String> used) {
+		return new FieldConstantIndex(this, used);
+	}
+
+	// Class files that cannot be parsed are skipped here; the optimiser reports them when it gets to them.
+	void add(byte[] classBytes) {
+		try {
+			add(new ClassParser(new ByteArrayInputStream(classBytes), "index").parse());
+		} catch (Exception e) {
+			// Nothing from the class is indexed
+		}
+	}
+
+	void add(JavaClass cls) {
+		if (!cls.isInterface() && (!"java.lang.Object".equals(cls.getSuperclassName()) || cls.getInterfaceIndices().length > 0)) {
+			return;
+		}
+
+		// Static final primitive fields, by name and descriptor, and the values of their ConstantValue attributes
+		Set<String> declared = new HashSet<>();
+		Set<String> candidates = new HashSet<>();
+		Map<String, Number> fields = new HashMap<>();
+		for (Field field : cls.getFields()) {
+			String key = field.getName() + ":" + field.getSignature();
+			if (field.isStatic()) {
+				declared.add(key);
+			}
+			if (field.isStatic() && field.isFinal() && "ZBCSIJFD".indexOf(field.getSignature().charAt(0)) >= 0) {
+				candidates.add(key);
+				Number value = constantValue(cls, field);
+				if (value != null) {
+					fields.put(key, value);
+				}
+			}
+		}
+
+		for (Method method : cls.getMethods()) {
+			if (method.getCode() == null) {
+				continue;
+			}
+			if (method.getName().equals("<clinit>")) {
+				fields = initialisedValues(cls, method, declared, candidates, fields);
+				if (fields == null) {
+					return;
+				}
+			}
+		}
+		initialisationFree.add(cls.getClassName());
+		for (Method method : cls.getMethods()) {
+			if (method.getCode() != null && !method.getName().equals("<clinit>")) {
+				fields.keySet().removeAll(storedFields(cls, method));
+			}
+		}
+
+		for (Map.Entry<String, Number> field : fields.entrySet()) {
+			values.put(cls.getClassName() + "." + field.getKey(), field.getValue());
+		}
+	}
+
+	private static Number constantValue(JavaClass cls, Field field) {
+		ConstantValue attribute = field.getConstantValue();
+		if (attribute == null) {
+			return null;
+		}
+		Constant constant = cls.getConstantPool().getConstant(attribute.getConstantValueIndex());
+		Number value = null;
+		if (constant instanceof ConstantInteger) {
+			value = ((ConstantInteger) constant).getBytes();
+		} else if (constant instanceof ConstantLong) {
+			value = ((ConstantLong) constant).getBytes();
+		} else if (constant instanceof ConstantFloat) {
+			value = ((ConstantFloat) constant).getBytes();
+		} else if (constant instanceof ConstantDouble) {
+			value = ((ConstantDouble) constant).getBytes();
+		}
+		return value == null ? null : ofType(value, field.getSignature().charAt(0));
+	}
+
+	/**
+	 * The values of the candidates once the class initialiser has run, starting from their ConstantValue
+	 * attributes, or null if running the initialiser could be observed. The initialiser is folded on a copy
+	 * of the class; reads of fields it has already stored constants into are replaced as it goes, so fields
+	 * computed from each other are found as well.
+	 */
+	private static Map<String, Number> initialisedValues(JavaClass cls, Method clinit, Set<String> declared,
+			Set<String> candidates, Map<String, Number> constantValues) {
+		ConstantPoolGen cpgen = new ClassGen(cls).getConstantPool();
+		MethodGen methodGen = new MethodGen(clinit, cls.getClassName(), cpgen);
+		InstructionList instructionList = methodGen.getInstructionList();
+		// Checked before folding as well, so the initialisers of most classes are rejected without the work
+		if (instructionList == null || !isSideEffectFree(cls.getClassName(), instructionList, cpgen, declared, true)) {
+			return null;
+		}
+		methodGen.removeLocalVariables();
+		methodGen.removeLineNumbers();
+		StackMapFrames.detach(methodGen, cpgen);
+
+		boolean handlers = methodGen.getExceptionHandlers().length > 0;
+		while (true) {
+			boolean changed;
+			do {
+				changed = new PeepholeFolder(methodGen, cpgen).run();
+				changed |= new ConstantPropagation(methodGen, cpgen).run();
+				changed |= new BranchFolder(methodGen, cpgen).run();
+			} while (changed);
+
+			// The straight-line code from the start runs once, in order, so the value of a field at each of its
+			// instructions is the one last stored; past the first branch or jump target that is no longer known
+			Map<String, Number> known = new HashMap<>(constantValues);
+			boolean straightLine = !handlers;
+			boolean replaced = false;
+			for (InstructionHandle handle : instructionList.getInstructionHandles()) {
+				Instruction instruction = handle.getInstruction();
+				if (!straightLine || InstructionUtil.isJumpTarget(handle) || instruction instanceof BranchInstruction) {
+					straightLine = false;
+					break;
+				}
+				if (!(instruction instanceof FieldInstruction)) {
+					continue;
+				}
+				FieldInstruction field = (FieldInstruction) instruction;
+				String key = field.getFieldName(cpgen) + ":" + field.getSignature(cpgen);
+				if (!candidates.contains(key)) {
+					continue;
+				}
+				if (instruction instanceof PUTSTATIC) {
+					Number stored = handle.getPrev() == null ? null
+							: PeepholeFolder.getConstantValue(handle.getPrev().getInstruction(), cpgen);
+					stored = stored == null ? null : ofType(stored, key.charAt(key.indexOf(':') + 1));
+					if (stored == null) {
+						known.remove(key);
+					} else {
+						known.put(key, stored);
+					}
+				} else if (known.containsKey(key)) {
+					handle.setInstruction(PeepholeFolder.createFoldingInstruction(known.get(key), cpgen));
+					replaced = true;
+				}
+			}
+			if (replaced) {
+				continue;
+			}
+
+			if (!isSideEffectFree(cls.getClassName(), instructionList, cpgen, declared, false)) {
+				return null;
+			}
+			if (straightLine) {
+				return known;
+			}
+			// Which stores run is not known, so only fields the initialiser never stores into keep their values
+			Map<String, Number> unassigned = new HashMap<>(constantValues);
+			unassigned.keySet().removeAll(storedFields(cls, clinit));
+			return unassigned;
+		}
+	}
+
+	/**
+	 * Whether running the code could not be observed outside the class: it only pushes constants, uses
+	 * locals and the operand stack, computes, branches, and reads and writes the class's own static fields.
+	 * Division and remainder may throw, so they are only allowed where folding may still remove them.
+	 */
+	private static boolean isSideEffectFree(String className, InstructionList instructionList, ConstantPoolGen cpgen,
+			Set<String> declared, boolean allowThrowing) {
+		for (InstructionHandle handle : instructionList.getInstructionHandles()) {
+			Instruction instruction = handle.getInstruction();
+			short opcode = instruction.getOpcode();
+			if (instruction instanceof GETSTATIC || instruction instanceof PUTSTATIC) {
+				FieldInstruction field = (FieldInstruction) instruction;
+				if (!field.getReferenceType(cpgen).toString().equals(className)
+						|| !declared.contains(field.getFieldName(cpgen) + ":" + field.getSignature(cpgen))) {
+					return false;
+				}
+			} else if (ConstantEvaluator.canEvaluate(opcode)) {
+				if (ConstantEvaluator.canThrow(opcode) && !allowThrowing) {
+					return false;
+				}
+			} else if (instruction instanceof LDC) {
+				Object value = ((LDC) instruction).getValue(cpgen);
+				if (!(value instanceof Number) && !(value instanceof String)) {
+					return false;
+				}
+			} else if (!(instruction instanceof ConstantPushInstruction || instruction instanceof LDC2_W
+					|| instruction instanceof LocalVariableInstruction || instruction instanceof StackInstruction
+					|| instruction instanceof IfInstruction || instruction instanceof GotoInstruction
+					|| opcode == Constants.ACONST_NULL || opcode == Constants.NOP || opcode == Constants.RETURN)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The class's own fields the method stores into, by name and descriptor.
+	private static Set<String> storedFields(JavaClass cls, Method method) {
+		ConstantPoolGen cpgen = new ConstantPoolGen(cls.getConstantPool());
+		Set<String> stored = new HashSet<>();
+		for (Instruction instruction : InstructionUtil.instructions(new InstructionList(method.getCode().getCode()))) {
+			if (instruction instanceof PUTSTATIC && ((PUTSTATIC) instruction).getReferenceType(cpgen).toString().equals(cls.getClassName())) {
+				PUTSTATIC put = (PUTSTATIC) instruction;
+				stored.add(put.getFieldName(cpgen) + ":" + put.getSignature(cpgen));
+			}
+		}
+		return stored;
+	}
+
+	// The value as a field or return value of the given descriptor holds it, or null if it is of another type or out of range.
+	static Number ofType(Number value, char type) {
+		switch (type) {
+			case 'Z':
+				return value instanceof Integer && (value.intValue() & 1) == value.intValue() ? value : null;
+			case 'B':
+				return value instanceof Integer && (byte) value.intValue() == value.intValue() ? value : null;
+			case 'C':
+				return value instanceof Integer && (char) value.intValue() == value.intValue() ? value : null;
+			case 'S':
+				return value instanceof Integer && (short) value.intValue() == value.intValue() ? value : null;
+			case 'I':
+				return value instanceof Integer ? value : null;
+			case 'J':
+				return value instanceof Long ? value : null;
+			case 'F':
+				return value instanceof Float ? value : null;
+			case 'D':
+				return value instanceof Double ? value : null;
+			default:
+				return null;
+		}
+	}
+
+	Number get(String className, String fieldName, String signature) {
+		String key = className + "." + fieldName + ":" + signature;
+		if (used != null) {
+			used.put(FIELD_FACT + key, fieldFact(key));
+		}
+		return values.get(key);
+	}
+
+	// The value the GETSTATIC in the method reads, or null if it is not known there.
+	Number valueOf(GETSTATIC instruction, ConstantPoolGen cpgen, MethodGen method) {
+		String className = instruction.getReferenceType(cpgen).toString();
+		if (method.getName().equals("<clinit>") && className.equals(method.getClassName())) {
+			return null;
+		}
+		return get(className, instruction.getFieldName(cpgen), instruction.getSignature(cpgen));
+	}
+
+	// Whether initialising the class, given by its dotted name, could not be observed.
+	boolean isInitialisationFree(String className) {
+		if (used != null) {
+			used.put(INITIALISATION_FACT + className, initialisationFact(className));
+		}
+		return initialisationFree.contains(className);
+	}
+
+	// The value of the field, given as class.name:descriptor, with its type, or - if it is not known.
+	String fieldFact(String key) {
+		Number value = values.get(key);
+		return value == null ? "-" : value.getClass().getSimpleName() + ":" + value;
+	}
+
+	String initialisationFact(String className) {
+		return String.valueOf(initialisationFree.contains(className));
+	}
+
+	public int size() {
+		return values.size();
+	}
+}
@@ -0,0 +1,443 @@
+package comp0012.main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.generic.*;
+
+/**
+ * Computes the stack map frames of a rewritten method from scratch, by inferring the verification type
+ * of every local and stack slot at the start of each basic block, rather than carrying the original
+ * frames through the passes.
+ *
+ * Types flow forwards over the control flow graph until nothing changes. Where two paths meet, equal
+ * types stay, two references become their common superclass from the class hierarchy, and anything else
+ * becomes Top; an exception handler sees the locals before and after every instruction it covers. Code
+ * this cannot type, such as subroutines, unreachable blocks or classes missing from the hierarchy, gets
+ * no frames, so the caller keeps the ones it carried.
+ */
+final class FrameComputer
+{
+	private static class UnsupportedCodeException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedCodeException(String message) {
+			super(message);
+		}
+	}
+
+	// The types of the locals and of the operand stack, one per word; the second word of a long or double is Top
+	private static final class State
+	{
+		final StackMapFrames.VerificationType[] locals;
+		final List<StackMapFrames.VerificationType> stack;
+
+		State(StackMapFrames.VerificationType[] locals, List<StackMapFrames.VerificationType> stack) {
+			this.locals = locals;
+			this.stack = stack;
+		}
+
+		State copy() {
+			return new State(locals.clone(), new ArrayList<>(stack));
+		}
+	}
+
+	// Words each stack instruction pops, and the order in which it pushes them back, deepest first
+	private static final int[] DUP = { 0, 0 };
+	private static final int[] DUP_X1 = { 1, 0, 1 };
+	private static final int[] DUP_X2 = { 2, 0, 1, 2 };
+	private static final int[] DUP2 = { 0, 1, 0, 1 };
+	private static final int[] DUP2_X1 = { 1, 2, 0, 1, 2 };
+	private static final int[] DUP2_X2 = { 2, 3, 0, 1, 2, 3 };
+	private static final int[] SWAP = { 1, 0 };
+	private static final int[] NONE = {};
+
+	private final MethodGen methodGen;
+	private final ConstantPoolGen cpgen;
+	private final ClassHierarchy hierarchy;
+	private final String className;
+
+	private ControlFlowGraph cfg;
+	// The state on entry to each block, null while no path to it is known
+	private State[] entries;
+	// Type of the exception each handler block starts with
+	private String[] caught;
+	private Deque<ControlFlowGraph.BasicBlock> worklist;
+	private boolean[] queued;
+
+	private String failure;
+
+	FrameComputer(MethodGen methodGen, ConstantPoolGen cpgen, ClassHierarchy hierarchy) {
+		this.methodGen = methodGen;
+		this.cpgen = cpgen;
+		this.hierarchy = hierarchy;
+		this.className = methodGen.getClassName().replace('.', '/');
+	}
+
+	/**
+	 * The frames of the method as it is now, or null if it cannot be typed; getFailure() then says why.
+	 * Max locals must be up to date.
+	 */
+	StackMapFrames compute() {
+		try {
+			return frames();
+		} catch (UnsupportedCodeException e) {
+			failure = e.getMessage();
+		} catch (RuntimeException e) {
+			// Constants or signatures BCEL cannot resolve
+			failure = e.toString();
+		}
+		return null;
+	}
+
+	String getFailure() {
+		return failure;
+	}
+
+	private StackMapFrames frames() throws UnsupportedCodeException {
+		InstructionList instructionList = methodGen.getInstructionList();
+		StackMapFrames frames = StackMapFrames.empty(methodGen);
+		if (instructionList == null || instructionList.isEmpty()) {
+			return frames;
+		}
+		cfg = new ControlFlowGraph(methodGen);
+		if (cfg.hasSubroutines()) {
+			throw new UnsupportedCodeException("method has subroutines (JSR/RET)");
+		}
+		List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+		entries = new State[blocks.size()];
+		caught = new String[blocks.size()];
+		for (CodeExceptionGen handler : methodGen.getExceptionHandlers()) {
+			int index = cfg.blockAt(handler.getHandlerPC()).index;
+			String type = handler.getCatchType() == null ? "java/lang/Throwable" : handler.getCatchType().getClassName().replace('.', '/');
+			caught[index] = caught[index] == null ? type : commonSuperclass(caught[index], type);
+		}
+
+		worklist = new ArrayDeque<>();
+		queued = new boolean[blocks.size()];
+		merge(cfg.getEntry(), new State(initialLocals(), new ArrayList<StackMapFrames.VerificationType>()));
+		while (!worklist.isEmpty()) {
+			ControlFlowGraph.BasicBlock block = worklist.poll();
+			queued[block.index] = false;
+			State state = entries[block.index].copy();
+			for (InstructionHandle handle : block.instructions()) {
+				mergeHandlers(block, state);
+				execute(handle, state);
+				mergeHandlers(block, state);
+			}
+			for (ControlFlowGraph.BasicBlock successor : block.successors) {
+				merge(successor, state);
+			}
+		}
+
+		for (ControlFlowGraph.BasicBlock block : blocks) {
+			if (entries[block.index] == null) {
+				throw new UnsupportedCodeException("unreachable code at " + block.first.getPosition());
+			}
+			// Only the blocks control can jump to keep their frame when it is encoded
+			frames.addFrame(block.first, localsOf(entries[block.index]), stackOf(entries[block.index]));
+		}
+		return frames;
+	}
+
+	// The locals on entry, from the method descriptor; slots past the parameters start as Top.
+	private StackMapFrames.VerificationType[] initialLocals() throws UnsupportedCodeException {
+		StackMapFrames.VerificationType[] locals = new StackMapFrames.VerificationType[methodGen.getMaxLocals()];
+		Arrays.fill(locals, top());
+		int slot = 0;
+		if (!methodGen.isStatic()) {
+			locals[slot++] = methodGen.getName().equals(Constants.CONSTRUCTOR_NAME)
+					? new StackMapFrames.VerificationType(Constants.ITEM_InitObject, null, null) : object(className);
+		}
+		for (Type type : methodGen.getArgumentTypes()) {
+			if (slot + type.getSize() > locals.length) {
+				throw new UnsupportedCodeException("max locals below the parameters");
+			}
+			locals[slot] = StackMapFrames.fromType(type);
+			slot += type.getSize();
+		}
+		return locals;
+	}
+
+	private void mergeHandlers(ControlFlowGraph.BasicBlock block, State state) throws UnsupportedCodeException {
+		for (ControlFlowGraph.BasicBlock handler : block.handlers) {
+			List<StackMapFrames.VerificationType> stack = new ArrayList<>();
+			stack.add(object(caught[handler.index]));
+			merge(handler, new State(state.locals.clone(), stack));
+		}
+	}
+
+	// Merges the state into the block's entry state, queueing the block if that changed.
+	private void merge(ControlFlowGraph.BasicBlock block, State state) throws UnsupportedCodeException {
+		State entry = entries[block.index];
+		boolean changed = false;
+		if (entry == null) {
+			entries[block.index] = state.copy();
+			changed = true;
+		} else {
+			if (entry.stack.size() != state.stack.size()) {
+				throw new UnsupportedCodeException("stack heights differ at " + block.first.getPosition());
+			}
+			for (int i = 0; i < entry.locals.length; i++) {
+				StackMapFrames.VerificationType merged = mergeTypes(entry.locals[i], state.locals[i]);
+				if (merged != entry.locals[i]) {
+					entry.locals[i] = merged;
+					changed = true;
+				}
+			}
+			for (int i = 0; i < entry.stack.size(); i++) {
+				StackMapFrames.VerificationType merged = mergeTypes(entry.stack.get(i), state.stack.get(i));
+				if (merged.tag == Constants.ITEM_Bogus && entry.stack.get(i).tag != Constants.ITEM_Bogus) {
+					throw new UnsupportedCodeException("stack types differ at " + block.first.getPosition());
+				}
+				if (merged != entry.stack.get(i)) {
+					entry.stack.set(i, merged);
+					changed = true;
+				}
+			}
+		}
+		if (changed && !queued[block.index]) {
+			queued[block.index] = true;
+			worklist.add(block);
+		}
+	}
+
+	// The type a slot holds where paths with the two types meet; the current type itself if it does not change.
+	private StackMapFrames.VerificationType mergeTypes(StackMapFrames.VerificationType current,
+			StackMapFrames.VerificationType incoming) throws UnsupportedCodeException {
+		if (current.sameAs(incoming) || current.tag == Constants.ITEM_Bogus) {
+			return current;
+		}
+		if (isReference(current) && isReference(incoming)) {
+			if (incoming.tag == Constants.ITEM_Null) {
+				return current;
+			}
+			if (current.tag == Constants.ITEM_Null) {
+				return incoming;
+			}
+			String merged = commonSuperclass(current.className, incoming.className);
+			return merged.equals(current.className) ? current : object(merged);
+		}
+		return top();
+	}
+
+	private String commonSuperclass(String a, String b) throws UnsupportedCodeException {
+		String merged = hierarchy.commonSuperclass(a, b);
+		if (merged == null) {
+			throw new UnsupportedCodeException("class hierarchy of " + a + " and " + b + " unknown");
+		}
+		return merged;
+	}
+
+	private static boolean isReference(StackMapFrames.VerificationType type) {
+		return type.tag == Constants.ITEM_Object || type.tag == Constants.ITEM_Null;
+	}
+
+	// Applies one instruction to the state.
+	private void execute(InstructionHandle handle, State state) throws UnsupportedCodeException {
+		Instruction instruction = handle.getInstruction();
+		short opcode = instruction.getOpcode();
+
+		if (instruction instanceof LoadInstruction) {
+			int index = ((LoadInstruction) instruction).getIndex();
+			push(state, state.locals[index]);
+		} else if (instruction instanceof StoreInstruction) {
+			StackMapFrames.VerificationType value = pop(state);
+			int index = ((StoreInstruction) instruction).getIndex();
+			if (index > 0 && size(state.locals[index - 1]) == 2) {
+				state.locals[index - 1] = top(); // the store breaks a long or double that ended in the slot
+			}
+			state.locals[index] = value;
+			if (size(value) == 2) {
+				state.locals[index + 1] = top();
+			}
+		} else if (instruction instanceof IINC) {
+			return;
+		} else if (instruction instanceof StackInstruction) {
+			shuffle(state, opcode);
+		} else if (instruction instanceof ACONST_NULL) {
+			push(state, new StackMapFrames.VerificationType(Constants.ITEM_Null, null, null));
+		} else if (instruction instanceof NEW) {
+			push(state, new StackMapFrames.VerificationType(Constants.ITEM_NewObject, null, handle));
+		} else if (instruction instanceof AALOAD) {
+			pop(state);
+			StackMapFrames.VerificationType array = pop(state);
+			if (array.tag == Constants.ITEM_Null) {
+				push(state, array);
+			} else if (array.tag == Constants.ITEM_Object && array.className.startsWith("[")) {
+				push(state, StackMapFrames.fromType(Type.getType(array.className.substring(1))));
+			} else {
+				throw new UnsupportedCodeException("aaload from a non-array");
+			}
+		} else if (instruction instanceof ATHROW) {
+			pop(state); // the state after it is never used, though BCEL counts the exception as pushed back
+		} else if (instruction instanceof NEWARRAY) {
+			pop(state);
+			push(state, StackMapFrames.fromType(((NEWARRAY) instruction).getType()));
+		} else if (instruction instanceof ANEWARRAY) {
+			pop(state);
+			push(state, StackMapFrames.fromType(new ArrayType(((ANEWARRAY) instruction).getType(cpgen), 1)));
+		} else if (instruction instanceof ARRAYLENGTH || instruction instanceof INSTANCEOF) {
+			pop(state);
+			push(state, StackMapFrames.fromType(Type.INT));
+		} else if (instruction instanceof InvokeInstruction) {
+			invoke(handle, state);
+		} else if (instruction instanceof INVOKEDYNAMIC) {
+			ConstantInvokeDynamic site = (ConstantInvokeDynamic) cpgen.getConstant(((INVOKEDYNAMIC) instruction).getIndex());
+			ConstantNameAndType nameAndType = (ConstantNameAndType) cpgen.getConstant(site.getNameAndTypeIndex());
+			String descriptor = nameAndType.getSignature(cpgen.getConstantPool());
+			call(state, Type.getArgumentTypes(descriptor), Type.getReturnType(descriptor));
+		} else if (ConstantEvaluator.canEvaluate(opcode)) {
+			popWords(state, instruction.consumeStack(cpgen));
+			push(state, StackMapFrames.fromType(ConstantEvaluator.resultType(opcode)));
+		} else {
+			popWords(state, instruction.consumeStack(cpgen));
+			if (instruction.produceStack(cpgen) > 0) {
+				if (!(instruction instanceof TypedInstruction)) {
+					throw new UnsupportedCodeException("cannot type " + instruction);
+				}
+				// Constants, array elements, fields, casts and new arrays
+				push(state, StackMapFrames.fromType(((TypedInstruction) instruction).getType(cpgen)));
+			}
+		}
+	}
+
+	private void invoke(InstructionHandle handle, State state) throws UnsupportedCodeException {
+		InvokeInstruction invoke = (InvokeInstruction) handle.getInstruction();
+		if (invoke instanceof INVOKESTATIC) {
+			call(state, invoke.getArgumentTypes(cpgen), invoke.getReturnType(cpgen));
+			return;
+		}
+		for (Type argument : invoke.getArgumentTypes(cpgen)) {
+			popWords(state, argument.getSize());
+		}
+		StackMapFrames.VerificationType receiver = pop(state);
+		if (invoke instanceof INVOKESPECIAL && invoke.getMethodName(cpgen).equals(Constants.CONSTRUCTOR_NAME)) {
+			initialise(state, receiver);
+		}
+		call(state, Type.NO_ARGS, invoke.getReturnType(cpgen));
+	}
+
+	// Pops the arguments of a call without a receiver and pushes its result.
+	private static void call(State state, Type[] arguments, Type result) throws UnsupportedCodeException {
+		for (Type argument : arguments) {
+			popWords(state, argument.getSize());
+		}
+		if (result != Type.VOID) {
+			push(state, StackMapFrames.fromType(result));
+		}
+	}
+
+	// A constructor call initialises every copy of the object it was called on.
+	private void initialise(State state, StackMapFrames.VerificationType receiver) throws UnsupportedCodeException {
+		StackMapFrames.VerificationType initialised;
+		if (receiver.tag == Constants.ITEM_InitObject) {
+			initialised = object(className);
+		} else if (receiver.tag == Constants.ITEM_NewObject) {
+			initialised = object(((NEW) receiver.newSite.getInstruction()).getLoadClassType(cpgen).getClassName().replace('.', '/'));
+		} else {
+			return;
+		}
+		for (int i = 0; i < state.locals.length; i++) {
+			if (state.locals[i].sameAs(receiver)) {
+				state.locals[i] = initialised;
+			}
+		}
+		for (int i = 0; i < state.stack.size(); i++) {
+			if (state.stack.get(i).sameAs(receiver)) {
+				state.stack.set(i, initialised);
+			}
+		}
+	}
+
+	private void shuffle(State state, short opcode) throws UnsupportedCodeException {
+		int[] order;
+		int words;
+		switch (opcode) {
+			case Constants.POP: words = 1; order = NONE; break;
+			case Constants.POP2: words = 2; order = NONE; break;
+			case Constants.DUP: words = 1; order = DUP; break;
+			case Constants.DUP_X1: words = 2; order = DUP_X1; break;
+			case Constants.DUP_X2: words = 3; order = DUP_X2; break;
+			case Constants.DUP2: words = 2; order = DUP2; break;
+			case Constants.DUP2_X1: words = 3; order = DUP2_X1; break;
+			case Constants.DUP2_X2: words = 4; order = DUP2_X2; break;
+			case Constants.SWAP: words = 2; order = SWAP; break;
+			default: throw new UnsupportedCodeException("unknown stack instruction " + opcode);
+		}
+		if (state.stack.size() < words) {
+			throw new UnsupportedCodeException("stack underflow");
+		}
+		List<StackMapFrames.VerificationType> top = state.stack.subList(state.stack.size() - words, state.stack.size());
+		StackMapFrames.VerificationType[] popped = top.toArray(new StackMapFrames.VerificationType[words]);
+		top.clear();
+		for (int index : order) {
+			state.stack.add(popped[index]);
+		}
+	}
+
+	private static void push(State state, StackMapFrames.VerificationType type) {
+		state.stack.add(type);
+		if (size(type) == 2) {
+			state.stack.add(top());
+		}
+	}
+
+	// Pops one value, of one word or two.
+	private static StackMapFrames.VerificationType pop(State state) throws UnsupportedCodeException {
+		if (state.stack.isEmpty()) {
+			throw new UnsupportedCodeException("stack underflow");
+		}
+		StackMapFrames.VerificationType type = state.stack.remove(state.stack.size() - 1);
+		if (type.tag == Constants.ITEM_Bogus && !state.stack.isEmpty() && size(state.stack.get(state.stack.size() - 1)) == 2) {
+			type = state.stack.remove(state.stack.size() - 1);
+		}
+		return type;
+	}
+
+	private static void popWords(State state, int words) throws UnsupportedCodeException {
+		if (state.stack.size() < words) {
+			throw new UnsupportedCodeException("stack underflow");
+		}
+		state.stack.subList(state.stack.size() - words, state.stack.size()).clear();
+	}
+
+	// The locals of a frame, one per variable rather than per word, without the Tops at the end.
+	private static StackMapFrames.VerificationType[] localsOf(State state) {
+		List<StackMapFrames.VerificationType> locals = new ArrayList<>();
+		for (int i = 0; i < state.locals.length; i += size(state.locals[i])) {
+			locals.add(state.locals[i]);
+		}
+		while (!locals.isEmpty() && locals.get(locals.size() - 1).tag == Constants.ITEM_Bogus) {
+			locals.remove(locals.size() - 1);
+		}
+		return locals.toArray(new StackMapFrames.VerificationType[locals.size()]);
+	}
+
+	private static StackMapFrames.VerificationType[] stackOf(State state) {
+		List<StackMapFrames.VerificationType> stack = new ArrayList<>();
+		for (int i = 0; i < state.stack.size(); i += size(state.stack.get(i))) {
+			stack.add(state.stack.get(i));
+		}
+		return stack.toArray(new StackMapFrames.VerificationType[stack.size()]);
+	}
+
+	private static int size(StackMapFrames.VerificationType type) {
+		return type.tag == Constants.ITEM_Long || type.tag == Constants.ITEM_Double ? 2 : 1;
+	}
+
+	private static StackMapFrames.VerificationType top() {
+		return new StackMapFrames.VerificationType(Constants.ITEM_Bogus, null, null);
+	}
+
+	private static StackMapFrames.VerificationType object(String name) {
+		return new StackMapFrames.VerificationType(Constants.ITEM_Object, name, null);
+	}
+}
@@ -0,0 +1,285 @@
+package comp0012.main;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+/**
+ * Helpers shared by the passes for editing a method's instruction list in place.
+ */
+final class InstructionUtil
+{
+	private InstructionUtil() {
+	}
+
+	// Whether control can arrive at the instruction other than by falling through from its predecessor.
+	static boolean isJumpTarget(InstructionHandle handle) {
+		if (!handle.hasTargeters()) {
+			return false;
+		}
+		for (InstructionTargeter targeter : handle.getTargeters()) {
+			if (targeter instanceof BranchInstruction) {
+				return true;
+			}
+			if (targeter instanceof CodeExceptionGen && ((CodeExceptionGen) targeter).getHandlerPC() == handle) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether execution never falls through to the next instruction.
+	static boolean endsBlock(Instruction instruction) {
+		return instruction instanceof GotoInstruction || instruction instanceof ReturnInstruction
+				|| instruction instanceof ATHROW || instruction instanceof Select
+				|| instruction instanceof JsrInstruction || instruction instanceof RET;
+	}
+
+	/**
+	 * Deletes a single instruction that has no effect on the following code once removed
+	 * (e.g. a folded constant push). Anything targeting it is moved to the next instruction, except
+	 * for the ends of exception and local variable ranges, which shrink back to the previous one.
+	 */
+	static void delete(MethodGen methodGen, InstructionHandle handle) {
+		InstructionList instructionList = methodGen.getInstructionList();
+		InstructionHandle next = handle.getNext();
+		InstructionHandle prev = handle.getPrev();
+		List<InstructionHandle> jumpedTo = handle.getInstruction() instanceof BranchInstruction
+				? targetsOf((BranchInstruction) handle.getInstruction()) : Collections.<InstructionHandle>emptyList();
+
+		if (handle.hasTargeters()) {
+			boolean jumpedFrom = false;
+			for (InstructionTargeter targeter : handle.getTargeters()) {
+				if (targeter instanceof BranchInstruction) {
+					jumpedFrom = true;
+				} else if (targeter instanceof CodeExceptionGen) {
+					CodeExceptionGen handler = (CodeExceptionGen) targeter;
+					if (handler.getStartPC() == handle && handler.getEndPC() == handle) {
+						// The range only covered this instruction
+						removeExceptionHandler(methodGen, handler);
+						continue;
+					}
+					if (handler.getEndPC() == handle) {
+						handler.setEndPC(prev);
+					}
+					if (handler.getStartPC() == handle) {
+						handler.setStartPC(next);
+					}
+					if (handler.getHandlerPC() == handle) {
+						handler.setHandlerPC(next);
+					}
+				} else if (targeter instanceof LocalVariableGen) {
+					LocalVariableGen local = (LocalVariableGen) targeter;
+					if (local.getStart() == handle && local.getEnd() == handle) {
+						methodGen.removeLocalVariable(local);
+						continue;
+					}
+					if (local.getEnd() == handle) {
+						local.setEnd(prev);
+					}
+					if (local.getStart() == handle) {
+						local.setStart(next);
+					}
+				} else {
+					targeter.updateTarget(handle, next);
+				}
+			}
+			if (jumpedFrom) {
+				for (BranchInstruction branch : branchesTo(instructionList, handle)) {
+					branch.updateTarget(handle, next);
+				}
+				restoreTargeters(instructionList, handle);
+			}
+		}
+
+		try {
+			instructionList.delete(handle);
+		} catch (TargetLostException e) {
+			// Every targeter has been moved above
+			throw new IllegalStateException(e);
+		}
+		for (InstructionHandle target : jumpedTo) {
+			restoreTargeters(instructionList, target);
+		}
+	}
+
+	/**
+	 * Deletes a run of instructions that control never reaches. Only code inside the run can jump into it,
+	 * and exception ranges must already have been moved off it. Local variable ranges are cut back to the
+	 * surrounding code; line numbers and anything else pointing into the run are dropped.
+	 */
+	static void deleteUnreachable(MethodGen methodGen, InstructionHandle from, InstructionHandle to) {
+		Set<InstructionHandle> run = new HashSet<>();
+		for (InstructionHandle handle = from; handle != to.getNext(); handle = handle.getNext()) {
+			run.add(handle);
+		}
+		// Where the run jumps out to, losing the branches it disposes of
+		Set<InstructionHandle> jumpedTo = new HashSet<>();
+		for (InstructionHandle handle : run) {
+			if (handle.getInstruction() instanceof BranchInstruction) {
+				jumpedTo.addAll(targetsOf((BranchInstruction) handle.getInstruction()));
+			}
+		}
+		jumpedTo.removeAll(run);
+
+		for (InstructionHandle handle : run) {
+			if (!handle.hasTargeters()) {
+				continue;
+			}
+			for (InstructionTargeter targeter : handle.getTargeters()) {
+				if (targeter instanceof BranchInstruction) {
+					if (!targetsOf((BranchInstruction) targeter).contains(handle)) {
+						handle.removeTargeter(targeter); // left behind by a branch that jumps elsewhere now
+					}
+					continue; // disposed along with the run
+				} else if (targeter instanceof LocalVariableGen) {
+					LocalVariableGen local = (LocalVariableGen) targeter;
+					if (run.contains(local.getStart()) && run.contains(local.getEnd())) {
+						methodGen.removeLocalVariable(local);
+						continue;
+					}
+					if (run.contains(local.getEnd())) {
+						local.setEnd(from.getPrev());
+					}
+					if (run.contains(local.getStart())) {
+						local.setStart(to.getNext());
+					}
+				} else if (targeter instanceof LineNumberGen) {
+					methodGen.removeLineNumber((LineNumberGen) targeter);
+					handle.removeTargeter(targeter);
+				} else if (targeter instanceof CodeExceptionGen) {
+					throw new IllegalStateException("exception range still covers unreachable code");
+				} else {
+					targeter.updateTarget(handle, null);
+				}
+			}
+		}
+
+		try {
+			methodGen.getInstructionList().delete(from, to);
+		} catch (TargetLostException e) {
+			// Something outside the run still jumps into it, so it was not unreachable
+			throw new IllegalStateException(e);
+		}
+		for (InstructionHandle target : jumpedTo) {
+			restoreTargeters(methodGen.getInstructionList(), target);
+		}
+	}
+
+	// The instructions the branch jumps to.
+	static List<InstructionHandle> targetsOf(BranchInstruction branch) {
+		List<InstructionHandle> targets = new ArrayList<>();
+		targets.add(branch.getTarget());
+		if (branch instanceof Select) {
+			Collections.addAll(targets, ((Select) branch).getTargets());
+		}
+		return targets;
+	}
+
+	/**
+	 * The branches in the list that jump to the handle. A handle keeps its targeters in a hash set, and BCEL
+	 * counts two branches with the same opcode and targets as equal, so the handle may list only one of them.
+	 */
+	static List<BranchInstruction> branchesTo(InstructionList instructionList, InstructionHandle target) {
+		List<BranchInstruction> branches = new ArrayList<>();
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			if (handle.getInstruction() instanceof BranchInstruction && targetsOf((BranchInstruction) handle.getInstruction()).contains(target)) {
+				branches.add((BranchInstruction) handle.getInstruction());
+			}
+		}
+		return branches;
+	}
+
+	// The branches jumping to each instruction of the list, for a pass asking about many targets at once.
+	static Map<InstructionHandle, List<BranchInstruction>> branchesByTarget(InstructionList instructionList) {
+		Map<InstructionHandle, List<BranchInstruction>> branches = new HashMap<>();
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			if (handle.getInstruction() instanceof BranchInstruction) {
+				BranchInstruction branch = (BranchInstruction) handle.getInstruction();
+				// A switch may list a target more than once; handles are only equal to themselves
+				for (InstructionHandle target : new HashSet<>(targetsOf(branch))) {
+					branches.computeIfAbsent(target, key -> new ArrayList<BranchInstruction>()).add(branch);
+				}
+			}
+		}
+		return branches;
+	}
+
+	/**
+	 * Makes the handle's targeters list exactly the branches that jump to it, once a branch to it has been
+	 * deleted, replaced or retargeted. Removing a branch from the hash set removes whichever equal branch it
+	 * finds first, which may be another branch still jumping there, and leave the one that moved behind.
+	 */
+	static void restoreTargeters(InstructionList instructionList, InstructionHandle target) {
+		if (target.hasTargeters()) {
+			for (InstructionTargeter targeter : target.getTargeters()) {
+				if (targeter instanceof BranchInstruction && !targetsOf((BranchInstruction) targeter).contains(target)) {
+					// Anything equal to it jumps elsewhere too
+					target.removeTargeter(targeter);
+				}
+			}
+		}
+		for (BranchInstruction branch : branchesTo(instructionList, target)) {
+			target.addTargeter(branch);
+		}
+	}
+
+	// Unlike MethodGen.removeExceptionHandler, also detaches the handler from the instructions it targets.
+	static void removeExceptionHandler(MethodGen methodGen, CodeExceptionGen handler) {
+		methodGen.removeExceptionHandler(handler);
+		handler.setStartPC(null);
+		handler.setEndPC(null);
+		handler.setHandlerPC(null);
+	}
+
+	/**
+	 * The instructions of the list. Unlike InstructionList.getInstructions, which reads back the code BCEL
+	 * writes, this is also right for code with an INVOKEDYNAMIC BCEL has not been repaired to write.
+	 */
+	static Instruction[] instructions(InstructionList instructionList) {
+		InstructionHandle[] handles = instructionList.getInstructionHandles();
+		Instruction[] instructions = new Instruction[handles.length];
+		for (int i = 0; i < handles.length; i++) {
+			instructions[i] = handles[i].getInstruction();
+		}
+		return instructions;
+	}
+
+	/**
+	 * Replaces every INVOKEDYNAMIC in the list with one that writes itself out correctly. BCEL 6.0-SNAPSHOT
+	 * counts the two zero bytes after the constant pool index in the instruction's length but never
+	 * writes them, so the code after the first call site is misaligned in the written class file.
+	 */
+	static void repairInvokeDynamic(InstructionList instructionList) {
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof INVOKEDYNAMIC && !(instruction instanceof InvokeDynamic)) {
+				handle.setInstruction(new InvokeDynamic(((INVOKEDYNAMIC) instruction).getIndex()));
+			}
+		}
+	}
+
+	private static final class InvokeDynamic extends INVOKEDYNAMIC
+	{
+		private static final long serialVersionUID = 1L;
+
+		InvokeDynamic(int index) {
+			super(org.apache.bcel.Constants.INVOKEDYNAMIC, index);
+			length = 5; // only set when the instruction is read from a class file
+		}
+
+		@Override
+		public void dump(DataOutputStream out) throws IOException {
+			super.dump(out);
+			out.writeShort(0);
+		}
+	}
+}
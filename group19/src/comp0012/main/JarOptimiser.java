@@ -0,0 +1,202 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a JAR/ZIP file through the optimiser without extracting it.
+ * Entries are optimised in parallel from memory and written in the order of the input archive,
+ * so the output does not depend on the number of threads.
+ */
+public class JarOptimiser
+{
+	private final String inputJar;
+	private final String outputJar;
+	private final int threads;
+	private final OptimisationCache cache;
+	private final OptimisationReport report;
+	private final List<String> failures;
+	private ProgramIndex program = null;
+	private int loopBudget = LoopUnroller.DEFAULT_BUDGET;
+	private PassManager passes = null;
+
+	// Total size of the class entries read and written
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	// The cache and the report may be null
+	public JarOptimiser(String inputJar, String outputJar, int threads, OptimisationCache cache, OptimisationReport report, List<String> failures)
+	{
+		this.inputJar = inputJar;
+		this.outputJar = outputJar;
+		this.threads = threads;
+		this.cache = cache;
+		this.report = report;
+		this.failures = failures;
+	}
+
+	// The constant fields and pure methods of the whole archive, which every entry is folded against
+	public void setProgram(ProgramIndex program) {
+		this.program = program;
+	}
+
+	// Bytes of code each loop may grow by when unrolled
+	public void setLoopBudget(int loopBudget) {
+		this.loopBudget = loopBudget;
+	}
+
+	// The passes run over every entry, and their budgets
+	void setPasses(PassManager passes) {
+		this.passes = passes;
+	}
+
+	public void run() throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ZipFile in = new ZipFile(inputJar);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outputJar));
+		try {
+			// At most this many entries are held in memory waiting to be written
+			int window = threads * 2;
+			Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			Deque<ZipEntry> pendingEntries = new ArrayDeque<ZipEntry>();
+
+			Enumeration<? extends ZipEntry> entries = in.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				byte[] bytes = entry.isDirectory() ? new byte[0] : readFully(in.getInputStream(entry));
+
+				if (pending.size() == window) {
+					writeEntry(out, pendingEntries.removeFirst(), await(pending.removeFirst()));
+				}
+				pendingEntries.addLast(entry);
+				if (Main.isOptimisable(entry.getName())) {
+					pending.addLast(workers.submit(optimiseEntry(entry.getName(), bytes)));
+				} else {
+					// Non-class entries need no work, so they skip the worker pool entirely
+					pending.addLast(CompletableFuture.completedFuture(bytes));
+				}
+			}
+			while (!pending.isEmpty()) {
+				writeEntry(out, pendingEntries.removeFirst(), await(pending.removeFirst()));
+			}
+		} finally {
+			workers.shutdownNow();
+			out.close();
+			in.close();
+		}
+	}
+
+	private Callable<byte[]> optimiseEntry(final String name, final byte[] original) {
+		return new Callable<byte[]>() {
+			public byte[] call() {
+				try {
+					String key = null;
+					if (cache != null) {
+						key = cache.key(original);
+						byte[] cached = cache.get(key, program);
+						if (cached != null) {
+							record(original, cached);
+							if (report != null) {
+								report.addCached(name, original.length, cached.length);
+							}
+							return cached;
+						}
+					}
+
+					ConstantFolder cf = new ConstantFolder(new ByteArrayInputStream(original), name);
+					cf.setProgram(program);
+					cf.setLoopBudget(loopBudget);
+					cf.setPasses(passes);
+					byte[] optimised = cf.getOptimizedBytes();
+					if (cache != null && !cf.isOverBudget()) {
+						cache.put(key, optimised, cf.getDependencies());
+					}
+					record(original, optimised);
+					if (report != null) {
+						cf.getMetrics().bytesIn = original.length;
+						cf.getMetrics().bytesOut = optimised.length;
+						report.add(cf.getMetrics());
+					}
+					return optimised;
+				} catch (Exception e) {
+					failures.add(inputJar + "!/" + name + ": " + e);
+					return original;
+				}
+			}
+		};
+	}
+
+	private void record(byte[] original, byte[] optimised) {
+		bytesIn.addAndGet(original.length);
+		bytesOut.addAndGet(optimised.length);
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	private void writeEntry(ZipOutputStream out, ZipEntry entry, byte[] bytes) throws IOException {
+		ZipEntry copy = new ZipEntry(entry.getName());
+		copy.setTime(entry.getTime());
+		copy.setComment(entry.getComment());
+		copy.setExtra(entry.getExtra());
+		copy.setMethod(entry.getMethod());
+		if (entry.getMethod() == ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			copy.setSize(bytes.length);
+			copy.setCompressedSize(bytes.length);
+			copy.setCrc(crc.getValue());
+		}
+		out.putNextEntry(copy);
+		out.write(bytes);
+		out.closeEntry();
+	}
+
+	private static byte[] await(Future<byte[]> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+			}
+			return buffer.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package comp0012.main;
+
+import java.util.Arrays;
+
+/**
+ * The constant lattice values of a method's local slots (or operand stack words) at one program point,
+ * stored densely by slot: a kind byte per slot, and for constants the value's bits in a long, so reading
+ * or writing a slot neither boxes nor hashes.
+ *
+ * A slot is TOP (no value has reached it yet), BOTTOM (not a known constant), or a constant of one of the
+ * four numeric kinds. Float and double constants keep their raw bits, so 0.0 and -0.0 are different
+ * constants, as are NaNs with different bits. A category 2 constant is held by its first slot.
+ *
+ * Copies are copy-on-write: copy() shares the arrays until either side is written, and copyFrom() reuses
+ * the arrays of a frame already allocated, so a pass can keep one scratch frame for a whole method.
+ */
+final class LocalLattice
+{
+	static final byte TOP = 0;
+	static final byte BOTTOM = 1;
+	static final byte INT = 2;
+	static final byte LONG = 3;
+	static final byte FLOAT = 4;
+	static final byte DOUBLE = 5;
+
+	private byte[] kinds;
+	private long[] bits;
+	// Whether the arrays may also belong to another frame, which must not see this one's writes
+	private boolean shared;
+
+	LocalLattice(int size, byte initial) {
+		this.kinds = new byte[size];
+		this.bits = new long[size];
+		if (initial != TOP) {
+			Arrays.fill(kinds, initial);
+		}
+	}
+
+	private LocalLattice(byte[] kinds, long[] bits) {
+		this.kinds = kinds;
+		this.bits = bits;
+		this.shared = true;
+	}
+
+	int size() {
+		return kinds.length;
+	}
+
+	LocalLattice copy() {
+		shared = true;
+		return new LocalLattice(kinds, bits);
+	}
+
+	// Makes this frame equal to the other, reusing its own arrays when they are not shared and large enough.
+	void copyFrom(LocalLattice other) {
+		if (shared || kinds.length != other.kinds.length) {
+			kinds = new byte[other.kinds.length];
+			bits = new long[other.bits.length];
+			shared = false;
+		}
+		System.arraycopy(other.kinds, 0, kinds, 0, kinds.length);
+		System.arraycopy(other.bits, 0, bits, 0, bits.length);
+	}
+
+	byte kind(int slot) {
+		return kinds[slot];
+	}
+
+	boolean isConstant(int slot) {
+		return kinds[slot] >= INT;
+	}
+
+	// The size in words of the value the slot holds; BOTTOM and TOP count as one word.
+	int sizeOf(int slot) {
+		return kinds[slot] == LONG || kinds[slot] == DOUBLE ? 2 : 1;
+	}
+
+	int intValue(int slot) {
+		return (int) bits[slot];
+	}
+
+	long longValue(int slot) {
+		return bits[slot];
+	}
+
+	float floatValue(int slot) {
+		return Float.intBitsToFloat((int) bits[slot]);
+	}
+
+	double doubleValue(int slot) {
+		return Double.longBitsToDouble(bits[slot]);
+	}
+
+	// The constant the slot holds, boxed, or null if it holds none. Only for a constant about to be folded.
+	Number get(int slot) {
+		switch (kinds[slot]) {
+			case INT: return intValue(slot);
+			case LONG: return longValue(slot);
+			case FLOAT: return floatValue(slot);
+			case DOUBLE: return doubleValue(slot);
+			default: return null;
+		}
+	}
+
+	// Whether both slots hold the same lattice value.
+	boolean same(int slot, LocalLattice other, int otherSlot) {
+		return kinds[slot] == other.kinds[otherSlot] && (kinds[slot] < INT || bits[slot] == other.bits[otherSlot]);
+	}
+
+	void setTop(int slot) {
+		write(slot, TOP, 0);
+	}
+
+	void setBottom(int slot) {
+		write(slot, BOTTOM, 0);
+	}
+
+	void setInt(int slot, int value) {
+		write(slot, INT, value);
+	}
+
+	void setLong(int slot, long value) {
+		write(slot, LONG, value);
+	}
+
+	void setFloat(int slot, float value) {
+		write(slot, FLOAT, Float.floatToRawIntBits(value));
+	}
+
+	void setDouble(int slot, double value) {
+		write(slot, DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	// Sets the slot to a boxed constant, or to BOTTOM if it is null or not a JVM numeric type.
+	void set(int slot, Number value) {
+		if (value instanceof Integer) {
+			setInt(slot, value.intValue());
+		} else if (value instanceof Long) {
+			setLong(slot, value.longValue());
+		} else if (value instanceof Float) {
+			setFloat(slot, value.floatValue());
+		} else if (value instanceof Double) {
+			setDouble(slot, value.doubleValue());
+		} else {
+			setBottom(slot);
+		}
+	}
+
+	// Copies the lattice value of another slot, possibly of another frame, into the slot.
+	void set(int slot, LocalLattice from, int fromSlot) {
+		write(slot, from.kinds[fromSlot], from.bits[fromSlot]);
+	}
+
+	// Sets every slot to the given value, e.g. to forget everything known at a jump target.
+	void fill(byte kind) {
+		own();
+		Arrays.fill(kinds, kind);
+	}
+
+	/**
+	 * Meets every slot of this frame with the same slot of the other, which must be as large, and returns
+	 * whether any slot changed. TOP meets anything to that thing; equal constants meet to themselves,
+	 * and anything else to BOTTOM.
+	 */
+	boolean meet(LocalLattice other) {
+		return meet(other, kinds.length);
+	}
+
+	// As meet(LocalLattice), over the first count slots only.
+	boolean meet(LocalLattice other, int count) {
+		boolean changed = false;
+		for (int slot = 0; slot < count; slot++) {
+			byte mine = kinds[slot];
+			byte theirs = other.kinds[slot];
+			if (theirs == TOP || mine == BOTTOM || same(slot, other, slot)) {
+				continue;
+			}
+			if (mine == TOP) {
+				write(slot, theirs, other.bits[slot]);
+			} else {
+				write(slot, BOTTOM, 0);
+			}
+			changed = true;
+		}
+		return changed;
+	}
+
+	private void write(int slot, byte kind, long value) {
+		if (kinds[slot] == kind && bits[slot] == value) {
+			return;
+		}
+		own();
+		kinds[slot] = kind;
+		bits[slot] = value;
+	}
+
+	// Gives the frame arrays of its own before it is written.
+	private void own() {
+		if (shared) {
+			kinds = kinds.clone();
+			bits = bits.clone();
+			shared = false;
+		}
+	}
+}
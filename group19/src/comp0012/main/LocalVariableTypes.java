@@ -0,0 +1,54 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.classfile.LocalVariable;
+import org.apache.bcel.classfile.LocalVariableTypeTable;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.LocalVariableGen;
+import org.apache.bcel.generic.MethodGen;
+
+/**
+ * The LocalVariableTypeTable of a method whose code is being rewritten. MethodGen keeps no type table, so
+ * each entry is tied to the variable of the LocalVariableTable it gives the generic signature of; the entry
+ * follows that variable's range through the passes, and is dropped with the variable if a pass removes it.
+ */
+class LocalVariableTypes
+{
+	static final String ATTRIBUTE_NAME = "LocalVariableTypeTable";
+
+	private final List<LocalVariableGen> locals = new ArrayList<>();
+	private final List<LocalVariable> signatures = new ArrayList<>();
+
+	void add(LocalVariableGen local, LocalVariable signature) {
+		locals.add(local);
+		signatures.add(signature);
+	}
+
+	boolean isEmpty() {
+		return locals.isEmpty();
+	}
+
+	/**
+	 * Encodes the entries whose variables the method still has against its current instruction positions,
+	 * and adds the resulting LocalVariableTypeTable to the method.
+	 */
+	void attach(MethodGen methodGen, ConstantPoolGen cpgen) {
+		List<LocalVariable> entries = new ArrayList<>();
+		for (LocalVariableGen local : methodGen.getLocalVariables()) {
+			for (int i = 0; i < locals.size(); i++) {
+				// LocalVariableGen.equals compares ranges, which the passes change; only the same object will do
+				if (locals.get(i) == local) {
+					LocalVariable range = local.getLocalVariable(cpgen);
+					entries.add(new LocalVariable(range.getStartPC(), range.getLength(), signatures.get(i).getNameIndex(),
+							signatures.get(i).getSignatureIndex(), range.getIndex(), cpgen.getConstantPool()));
+				}
+			}
+		}
+		if (!entries.isEmpty()) {
+			methodGen.addCodeAttribute(new LocalVariableTypeTable(cpgen.addUtf8(ATTRIBUTE_NAME), 2 + 10 * entries.size(),
+					entries.toArray(new LocalVariable[entries.size()]), cpgen.getConstantPool()));
+		}
+	}
+}
@@ -0,0 +1,528 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Removes counted loops whose trip count is known, e.g. for (int i = 0; i < 10; i++) with i set just
+ * before the loop and only changed by the increment.
+ *
+ * A loop that only computes is evaluated by the MethodSummaries interpreter and replaced by the values it
+ * leaves in the locals it writes. Any other loop is unrolled: the body is copied once per iteration,
+ * each copy preceded by a store of that iteration's value of the counter, so the other passes fold the
+ * counter into the copies. A loop too large to unroll within the growth budget is unrolled partially
+ * instead, by a factor dividing the trip count, so the copies between two tests of the condition always
+ * all run.
+ *
+ * Loops are recognised in the two forms javac compiles them to: the condition tested at the top, exiting
+ * forwards, with a goto back to it after the increment (for and while), and the condition tested at the
+ * bottom, jumping back (do-while, or any loop entered by a goto to its test). Only the counter and a
+ * constant may be compared, nothing outside the loop may jump into it, and no exception range may start,
+ * end or be handled inside it. Inner loops come first in the code, so are removed first.
+ */
+class LoopUnroller
+{
+	// Bytes of code one loop may grow by when unrolled, unless configured otherwise
+	static final int DEFAULT_BUDGET = 256;
+
+	// HotSpot does not compile methods longer than this, so a method is never unrolled past it
+	private static final int HUGE_METHOD = 8000;
+
+	// Trip counts above this are taken as unknown
+	private static final int MAX_TRIPS = 100000;
+
+	// Most copies of the body a partially unrolled loop holds
+	private static final int MAX_FACTOR = 8;
+
+	// A counted loop found in the code
+	private static final class Loop
+	{
+		// The first and last instructions of the loop; control enters at first, by falling through
+		InstructionHandle first;
+		InstructionHandle last;
+		// The body, the last instruction of which is the increment of the counter
+		InstructionHandle bodyStart;
+		InstructionHandle increment;
+		// The condition: whether the loop goes on for each value of the counter
+		InstructionHandle test;
+		boolean testedFirst;
+		boolean continuesOnJump;
+		int counter;
+		int trips;
+		int initial;
+		int step;
+
+		// The value of the counter in the given iteration, or after the last one when given trips
+		int value(int trip) {
+			return initial + trip * step;
+		}
+	}
+
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	// May be null, when loops are only unrolled
+	private final ProgramIndex program;
+	private final int budget;
+	// After which no more loops are looked at
+	private final Deadline deadline;
+
+	// Loops evaluated or unrolled
+	private int folds;
+
+	// The branches to each instruction, found once per run as the loops are checked, or null until then
+	private Map<InstructionHandle, List<BranchInstruction>> branches;
+
+	LoopUnroller(MethodGen methodGen, ConstantPoolGen cpgen, ProgramIndex program, int budget, Deadline deadline) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		this.program = program;
+		this.budget = budget;
+		this.deadline = deadline;
+	}
+
+	// Removes or unrolls at most one loop; the fixpoint folds it and comes back for the next.
+	boolean run() {
+		if (instructionList == null || instructionList.isEmpty()) {
+			return false;
+		}
+		instructionList.setPositions();
+		methodGen.setMaxLocals();
+		branches = null;
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			Loop loop = findLoop(handle);
+			if (loop != null && deadline.hasPassed()) {
+				// Nothing has changed yet; the pass manager finds the method over its budget
+				return false;
+			}
+			if (loop != null && (evaluate(loop) || unroll(loop) || unrollPartially(loop))) {
+				instructionList.setPositions();
+				methodGen.setMaxLocals();
+				folds++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	/**
+	 * The counted loop that the backward branch at the handle closes, or null if it is not one: a goto
+	 * back to a top-tested condition, or the conditional branch of a bottom-tested one.
+	 */
+	private Loop findLoop(InstructionHandle handle) {
+		Instruction instruction = handle.getInstruction();
+		if (!(instruction instanceof BranchInstruction) || instruction instanceof Select) {
+			return null;
+		}
+		InstructionHandle target = ((BranchInstruction) instruction).getTarget();
+		if (target.getPosition() >= handle.getPosition()) {
+			return null;
+		}
+
+		Loop loop = new Loop();
+		loop.last = handle;
+		if (instruction instanceof GotoInstruction) {
+			// header: test, exiting forwards; body; increment; goto header
+			loop.first = target;
+			loop.test = target;
+			loop.testedFirst = true;
+			loop.continuesOnJump = false;
+			InstructionHandle exit = testBranch(target);
+			if (exit == null || ((IfInstruction) exit.getInstruction()).getTarget() != handle.getNext()) {
+				return null;
+			}
+			loop.bodyStart = exit.getNext();
+			loop.increment = handle.getPrev();
+		} else if (instruction instanceof IfInstruction) {
+			// body; increment; test, jumping back to the body; entered at the test if a goto to it precedes the body
+			loop.bodyStart = target;
+			loop.continuesOnJump = true;
+			InstructionHandle test = handle.getPrev() != null && handle.getPrev().getPrev() != null
+					&& testBranch(handle.getPrev().getPrev()) == handle ? handle.getPrev().getPrev() : handle.getPrev();
+			if (test == null || testBranch(test) != handle || test == target) {
+				return null;
+			}
+			loop.test = test;
+			loop.increment = test.getPrev();
+			InstructionHandle entry = target.getPrev();
+			loop.testedFirst = entry != null && entry.getInstruction() instanceof GotoInstruction
+					&& ((GotoInstruction) entry.getInstruction()).getTarget() == test;
+			loop.first = loop.testedFirst ? entry : target;
+		} else {
+			return null;
+		}
+
+		if (loop.increment == null || !(loop.increment.getInstruction() instanceof IINC)
+				|| loop.increment.getPosition() < loop.bodyStart.getPosition()) {
+			return null;
+		}
+		loop.counter = ((IINC) loop.increment.getInstruction()).getIndex();
+		if (counterOf(loop.test) != loop.counter || !isClosed(loop)) {
+			return null;
+		}
+
+		Number initial = knownLocals(loop.first)[loop.counter];
+		if (!(initial instanceof Integer)) {
+			return null;
+		}
+		return countTrips(loop, (Integer) initial) ? loop : null;
+	}
+
+	/**
+	 * The branch ending the test starting at the handle, or null if it is not a test of a local against a
+	 * constant: load, constant, IF_ICMP; constant, load, IF_ICMP; or load, IF.
+	 */
+	private InstructionHandle testBranch(InstructionHandle start) {
+		InstructionHandle second = start.getNext();
+		if (second == null) {
+			return null;
+		}
+		if (start.getInstruction() instanceof ILOAD && second.getInstruction() instanceof IfInstruction
+				&& second.getInstruction().consumeStack(cpgen) == 1) {
+			return second;
+		}
+		InstructionHandle third = second.getNext();
+		if (third == null || !(third.getInstruction() instanceof IfInstruction) || third.getInstruction().consumeStack(cpgen) != 2) {
+			return null;
+		}
+		boolean loadFirst = start.getInstruction() instanceof ILOAD && isIntConstant(second);
+		boolean loadSecond = isIntConstant(start) && second.getInstruction() instanceof ILOAD;
+		return loadFirst || loadSecond ? third : null;
+	}
+
+	private boolean isIntConstant(InstructionHandle handle) {
+		return PeepholeFolder.getConstantValue(handle.getInstruction(), cpgen) instanceof Integer;
+	}
+
+	// The local the test starting at the handle reads.
+	private int counterOf(InstructionHandle test) {
+		Instruction instruction = test.getInstruction() instanceof ILOAD ? test.getInstruction() : test.getNext().getInstruction();
+		return ((ILOAD) instruction).getIndex();
+	}
+
+	// Whether the test passes for the value of the counter.
+	private boolean continues(Loop loop, int value) {
+		List<Number> operands = new ArrayList<>();
+		InstructionHandle handle = loop.test;
+		while (!(handle.getInstruction() instanceof IfInstruction)) {
+			Number constant = PeepholeFolder.getConstantValue(handle.getInstruction(), cpgen);
+			operands.add(constant != null ? constant : value);
+			handle = handle.getNext();
+		}
+		return ConstantEvaluator.evaluateCondition(handle.getInstruction().getOpcode(), operands) == loop.continuesOnJump;
+	}
+
+	// The constant the test compares the counter with; a test of the counter alone compares it with 0.
+	private int constantOf(InstructionHandle test) {
+		for (InstructionHandle handle = test; !(handle.getInstruction() instanceof IfInstruction); handle = handle.getNext()) {
+			Number constant = PeepholeFolder.getConstantValue(handle.getInstruction(), cpgen);
+			if (constant != null) {
+				return constant.intValue();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds how many times the body runs without running the loop. The test only depends on whether the
+	 * counter is below, at or above the constant, so its outcome can only change at the first test, where
+	 * the counter reaches the constant and where it passes it; the loop exits at the first of those where
+	 * the test fails. A loop that would not exit before its counter overflows is taken as unknown.
+	 */
+	private boolean countTrips(Loop loop, int initial) {
+		int step = ((IINC) loop.increment.getInstruction()).getIncrement();
+		long firstTest = loop.testedFirst ? 0 : 1;
+		List<Long> changes = new ArrayList<>();
+		changes.add(firstTest);
+		// The last iteration whose counter is in range
+		long lastTrip = Long.MAX_VALUE;
+		if (step != 0) {
+			long distance = step > 0 ? (long) constantOf(loop.test) - initial : initial - (long) constantOf(loop.test);
+			long size = Math.abs((long) step);
+			changes.add(Math.max(firstTest, -Math.floorDiv(-distance, size)));
+			changes.add(Math.max(firstTest, Math.floorDiv(distance, size) + 1));
+			lastTrip = step > 0 ? (Integer.MAX_VALUE - (long) initial) / size : (initial - (long) Integer.MIN_VALUE) / size;
+		}
+		Collections.sort(changes);
+		for (long trip : changes) {
+			if (trip > lastTrip || trip > MAX_TRIPS) {
+				return false;
+			}
+			if (!continues(loop, (int) (initial + trip * step))) {
+				loop.trips = (int) trip;
+				loop.initial = initial;
+				loop.step = step;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether control only enters the loop at its first instruction and the counter is only changed by
+	 * the increment. Branches out of the body, e.g. for break or return, are allowed; branches back to
+	 * the test other than the loop's own are not, since they would skip the increment.
+	 */
+	private boolean isClosed(Loop loop) {
+		Set<Instruction> inside = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+		for (InstructionHandle handle = loop.first; handle != loop.last.getNext(); handle = handle.getNext()) {
+			inside.add(handle.getInstruction());
+		}
+		for (InstructionHandle handle = loop.first; handle != loop.last.getNext(); handle = handle.getNext()) {
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof Select || instruction instanceof JsrInstruction || instruction instanceof RET) {
+				return false;
+			}
+			if (handle != loop.increment && writes(instruction, loop.counter)) {
+				return false;
+			}
+			if (!handle.hasTargeters()) {
+				continue;
+			}
+			boolean inBody = handle.getPosition() >= loop.bodyStart.getPosition() && handle.getPosition() <= loop.increment.getPosition();
+			// The handle may list only one of several equal branches to it
+			if (branches == null) {
+				branches = InstructionUtil.branchesByTarget(instructionList);
+			}
+			List<InstructionTargeter> targeters = new ArrayList<>();
+			if (branches.containsKey(handle)) {
+				targeters.addAll(branches.get(handle));
+			}
+			for (InstructionTargeter targeter : handle.getTargeters()) {
+				if (!(targeter instanceof BranchInstruction)) {
+					targeters.add(targeter);
+				}
+			}
+			for (InstructionTargeter targeter : targeters) {
+				boolean allowed;
+				if (targeter instanceof CodeExceptionGen) {
+					allowed = false;
+				} else if (!(targeter instanceof BranchInstruction)) {
+					allowed = true;
+				} else if (handle == loop.first) {
+					allowed = targeter == loop.last.getInstruction();
+				} else if (inBody) {
+					allowed = inside.contains(targeter);
+				} else {
+					// Only the goto entering a bottom-tested loop may jump to its test
+					allowed = handle == loop.test && targeter == loop.first.getInstruction();
+				}
+				if (!allowed) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Whether the instruction writes the local, or half of a long or double over it.
+	private boolean writes(Instruction instruction, int index) {
+		if (instruction instanceof IINC) {
+			return ((IINC) instruction).getIndex() == index;
+		}
+		if (instruction instanceof StoreInstruction) {
+			StoreInstruction store = (StoreInstruction) instruction;
+			return store.getIndex() == index || (store.getIndex() == index - 1 && store.getType(cpgen).getSize() == 2);
+		}
+		return false;
+	}
+
+	/**
+	 * The constants the locals hold on arriving at the handle, null where unknown, from the stores of
+	 * constants in the straight-line code leading to it.
+	 */
+	private Number[] knownLocals(InstructionHandle handle) {
+		Number[] locals = new Number[methodGen.getMaxLocals() + 1];
+		boolean[] written = new boolean[locals.length + 1];
+		for (InstructionHandle previous = handle.getPrev(); previous != null; previous = previous.getPrev()) {
+			Instruction instruction = previous.getInstruction();
+			if (instruction instanceof BranchInstruction || InstructionUtil.endsBlock(instruction)) {
+				break;
+			}
+			if (instruction instanceof StoreInstruction || instruction instanceof IINC) {
+				int index = ((IndexedInstruction) instruction).getIndex();
+				int size = instruction instanceof StoreInstruction ? ((StoreInstruction) instruction).getType(cpgen).getSize() : 1;
+				// A store that is jumped to joins paths that may have pushed other values; only what is
+				// pushed straight before a store that nothing jumps to is known
+				Number value = instruction instanceof StoreInstruction && previous.getPrev() != null && !InstructionUtil.isJumpTarget(previous)
+						? PeepholeFolder.getConstantValue(previous.getPrev().getInstruction(), cpgen) : null;
+				if (!written[index] && (size == 1 || !written[index + 1])) {
+					locals[index] = value;
+				}
+				written[index] = true;
+				written[index + size - 1] = true;
+			}
+			if (InstructionUtil.isJumpTarget(previous)) {
+				break;
+			}
+		}
+		return locals;
+	}
+
+	// Replaces a loop that only computes by stores of what it leaves in the locals it writes.
+	private boolean evaluate(Loop loop) {
+		if (program == null || methodGen.getName().equals("<clinit>")) {
+			// A class initialiser may read its own fields before they hold their final values
+			return false;
+		}
+		Map<Integer, Type> written = new TreeMap<>();
+		Set<InstructionHandle> region = new HashSet<>();
+		for (InstructionHandle handle = loop.first; handle != loop.last.getNext(); handle = handle.getNext()) {
+			region.add(handle);
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof StoreInstruction || instruction instanceof IINC) {
+				int index = ((IndexedInstruction) instruction).getIndex();
+				Type type = instruction instanceof IINC ? Type.INT : ((StoreInstruction) instruction).getType(cpgen);
+				if (!(type instanceof BasicType) || (written.containsKey(index) && !written.get(index).equals(type))) {
+					return false;
+				}
+				written.put(index, type);
+			}
+		}
+
+		Number[] locals = program.getMethods().evaluateRegion(methodGen.getClassName(), cpgen, loop.first,
+				loop.last.getNext(), region, knownLocals(loop.first), deadline);
+		if (locals == null) {
+			return false;
+		}
+		InstructionList stores = new InstructionList();
+		for (Map.Entry<Integer, Type> local : written.entrySet()) {
+			Number value = locals[local.getKey()];
+			value = value == null ? null : FieldConstantIndex.ofType(value, local.getValue().getSignature().charAt(0));
+			if (value == null) {
+				return false;
+			}
+			stores.append(PeepholeFolder.createFoldingInstruction(value, cpgen));
+			stores.append(InstructionFactory.createStore(local.getValue(), local.getKey()));
+		}
+		replace(loop, stores);
+		return true;
+	}
+
+	private void replace(Loop loop, InstructionList code) {
+		if (!code.isEmpty()) {
+			instructionList.insert(loop.first, code);
+		}
+		InstructionUtil.deleteUnreachable(methodGen, loop.first, loop.last);
+	}
+
+	private static int length(InstructionHandle from, InstructionHandle to) {
+		return to.getPosition() + to.getInstruction().getLength() - from.getPosition();
+	}
+
+	// Whether the method may grow by the given number of bytes.
+	private boolean fits(int growth) {
+		InstructionHandle end = instructionList.getEnd();
+		return growth <= budget && end.getPosition() + end.getInstruction().getLength() + growth <= HUGE_METHOD;
+	}
+
+	// Copies the body once per iteration, each copy preceded by a store of the counter.
+	private boolean unroll(Loop loop) {
+		int bodyLength = loop.bodyStart == loop.increment ? 0 : length(loop.bodyStart, loop.increment.getPrev());
+		int growth = -length(loop.first, loop.last);
+		// Every store of the counter takes at least two bytes, which rules out long loops before looking at each
+		if (!fits(growth + 2 * (loop.trips + 1))) {
+			return false;
+		}
+		for (int trip = 0; trip <= loop.trips; trip++) {
+			growth += PeepholeFolder.createFoldingInstruction(loop.value(trip), cpgen).getLength() + 2;
+		}
+		growth += loop.trips * bodyLength;
+		if (!fits(growth)) {
+			return false;
+		}
+
+		InstructionHandle[] prologues = new InstructionHandle[loop.trips + 1];
+		List<Map<InstructionHandle, InstructionHandle>> copies = new ArrayList<>();
+		for (int trip = 0; trip <= loop.trips; trip++) {
+			InstructionList prologue = new InstructionList();
+			prologue.append(PeepholeFolder.createFoldingInstruction(loop.value(trip), cpgen));
+			prologue.append(new ISTORE(loop.counter));
+			prologues[trip] = instructionList.insert(loop.first, prologue);
+			if (trip < loop.trips && loop.bodyStart != loop.increment) {
+				copies.add(copy(loop.bodyStart, loop.increment.getPrev(), loop.first));
+			}
+		}
+		// Continuing the loop goes on to the next iteration's store of the counter
+		for (int trip = 0; trip < copies.size(); trip++) {
+			Map<InstructionHandle, InstructionHandle> redirects = new HashMap<>();
+			redirects.put(loop.increment, prologues[trip + 1]);
+			retarget(copies.get(trip), redirects);
+		}
+		InstructionUtil.deleteUnreachable(methodGen, loop.first, loop.last);
+		return true;
+	}
+
+	/**
+	 * Copies the body and increment factor - 1 more times, for a loop whose trip count the factor divides,
+	 * so the condition is tested once every factor iterations.
+	 */
+	private boolean unrollPartially(Loop loop) {
+		int bodyLength = length(loop.bodyStart, loop.increment);
+		for (int factor = Math.min(MAX_FACTOR, loop.trips); factor > 1; factor--) {
+			if (loop.trips % factor == 0 && fits((factor - 1) * bodyLength)) {
+				for (int i = 1; i < factor; i++) {
+					retarget(copy(loop.bodyStart, loop.increment, loop.increment.getNext()), new HashMap<InstructionHandle, InstructionHandle>());
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Inserts copies of the instructions from first to last before the handle; returns the copy of each.
+	private Map<InstructionHandle, InstructionHandle> copy(InstructionHandle first, InstructionHandle last, InstructionHandle before) {
+		Map<InstructionHandle, InstructionHandle> copies = new IdentityHashMap<>();
+		for (InstructionHandle handle = first; handle != last.getNext(); handle = handle.getNext()) {
+			Instruction instruction = handle.getInstruction().copy();
+			InstructionHandle copy = instruction instanceof BranchInstruction
+					? instructionList.insert(before, (BranchInstruction) instruction) : instructionList.insert(before, instruction);
+			copies.put(handle, copy);
+		}
+		return copies;
+	}
+
+	/**
+	 * Points the copied branches at the copies of their targets, or where the redirects say, or else at
+	 * the original target outside the copied code, and copies the frames of the copied instructions.
+	 */
+	private void retarget(Map<InstructionHandle, InstructionHandle> copies, Map<InstructionHandle, InstructionHandle> redirects) {
+		Set<InstructionHandle> originals = new HashSet<>();
+		for (Map.Entry<InstructionHandle, InstructionHandle> entry : copies.entrySet()) {
+			if (entry.getValue().getInstruction() instanceof BranchInstruction) {
+				BranchInstruction branch = (BranchInstruction) entry.getValue().getInstruction();
+				InstructionHandle target = branch.getTarget();
+				InstructionHandle copy = copies.containsKey(target) ? copies.get(target) : redirects.get(target);
+				// Also registers the copy as a targeter of its new target, and may unregister an equal branch
+				// from the original target
+				branch.setTarget(copy != null ? copy : target);
+				originals.add(target);
+			}
+		}
+		for (InstructionHandle target : originals) {
+			InstructionUtil.restoreTargeters(instructionList, target);
+		}
+		Map<InstructionHandle, InstructionHandle> all = new IdentityHashMap<>(copies);
+		all.putAll(redirects);
+		for (Map.Entry<InstructionHandle, InstructionHandle> entry : all.entrySet()) {
+			for (StackMapFrames.Frame frame : StackMapFrames.framesAt(entry.getKey())) {
+				frame.owner().copyFrame(frame, entry.getValue(), copies);
+			}
+		}
+	}
+}
@@ -4,10 +4,20 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * COMP0012 courswork 2
@@ -16,32 +26,244 @@ import java.nio.file.attribute.BasicFileAttributes;
 
 public class Main extends SimpleFileVisitor<Path> {
 
-    @Option(name="-in",required=true, usage="Root directory of the input classfiles")
+    @Option(name="-in",required=true, usage="Root directory of the input classfiles, or a JAR/ZIP file")
     private String inputRoot;
 
-    @Option(name="-out",required=true, usage="Root directory where optimised classfiles will be stored")
+    @Option(name="-out",required=true, usage="Root directory where optimised classfiles will be stored, or the output JAR/ZIP file")
     private String outputRoot;
 
-    private void parseArguments(String args[])
+    @Option(name="-threads", usage="Number of class files optimised in parallel (1 = sequential)")
+    private int threads = 1;
+
+    @Option(name="-cache", usage="Directory of the incremental cache of optimised classfiles")
+    private String cacheRoot;
+
+    @Option(name="-report", usage="Write per-class, per-method and per-pass metrics to this file, as JSON, or as CSV if it ends in .csv")
+    private String reportFile;
+
+    @Option(name="-intrinsics", usage="File of library methods to add to the defaults taken as pure, one per line as java.lang.Math.abs(I)I; a line starting with - removes one")
+    private String intrinsicsFile;
+
+    @Option(name="-unroll-budget", usage="Bytes of code each counted loop may grow by when unrolled (0 = only evaluate loops)")
+    private int loopBudget = LoopUnroller.DEFAULT_BUDGET;
+
+    @Option(name="-O", usage="Optimisation level, also given as -O0 to -O3: 0 runs no pass, 1 the local folds, 2 adds the flow analyses, 3 (default) adds loops and inlining")
+    private int level = PassManager.DEFAULT_LEVEL;
+
+    @Option(name="-passes", usage="Comma-separated passes to run instead of those of the level, put in dependency order: peephole, algebra, strings, constant-propagation, branch-folding, value-numbering, dead-stores, loops, inlining")
+    private String passNames;
+
+    @Option(name="-budget-ms", usage="Milliseconds the passes may spend on one method before it is left unchanged (0 = no limit)")
+    private long budgetMillis = 0;
+
+    @Option(name="-budget-instructions", usage="Instructions a method may have, or grow to, before it is left unchanged (0 = no limit)")
+    private int budgetInstructions = PassManager.DEFAULT_INSTRUCTION_BUDGET;
+
+    private PassManager passes = null;
+
+    // Where the progress and errors of this run are printed; a daemon sends them back to its client
+    private final PrintStream out;
+    private final PrintStream err;
+
+    // Indexes kept between runs by a daemon, or null to index the input afresh
+    private final ProgramIndexCache indexes;
+
+    private OptimisationCache cache = null;
+
+    private OptimisationReport report = null;
+
+    // Constant fields and pure methods of the whole input tree, indexed before any class is optimised
+    private ProgramIndex program = null;
+
+    private ExecutorService workers = null;
+    private Semaphore inFlight = null;
+
+    // Total size of the class files read and written
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    // Failures are collected from every worker and reported once the walk has finished
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    private Main(PrintStream out, PrintStream err, ProgramIndexCache indexes) {
+        this.out = out;
+        this.err = err;
+        this.indexes = indexes;
+    }
+
+    // Returns false, having printed the usage, if the arguments are not valid.
+    private boolean parseArguments(String args[])
     {
         CmdLineParser parser = new CmdLineParser(this);
         parser.setUsageWidth(80);
         try{
-            parser.parseArgument(args);
+            parser.parseArgument(splitLevel(args));
+            if (threads < 1) {
+                throw new CmdLineException(parser, "-threads must be at least 1");
+            }
+            if (loopBudget < 0) {
+                throw new CmdLineException(parser, "-unroll-budget must not be negative");
+            }
+            if (budgetMillis < 0 || budgetInstructions < 0) {
+                throw new CmdLineException(parser, "budgets must not be negative");
+            }
+            try {
+                passes = passNames != null ? PassManager.forPasses(passNames) : PassManager.forLevel(level);
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException(parser, e.getMessage());
+            }
+            passes.setInstructionBudget(budgetInstructions);
+            passes.setTimeBudget(budgetMillis);
         } catch (CmdLineException e) {
-            System.err.println(e.getMessage());
-            System.err.println("java BatchExperiment inputFolder outputFolder");
-            parser.printUsage(System.err);
-            System.err.println();
-            System.exit(-1);
+            err.println(e.getMessage());
+            err.println("java BatchExperiment inputFolder outputFolder");
+            parser.printUsage(err);
+            err.println();
+            return false;
         }
+        return true;
+    }
+
+    // Turns -O2 into -O 2, as the level is usually written.
+    private static String[] splitLevel(String args[]) {
+        List<String> split = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.matches("-O\\d+")) {
+                split.add("-O");
+                split.add(arg.substring(2));
+            } else {
+                split.add(arg);
+            }
+        }
+        return split.toArray(new String[split.size()]);
     }
 
     public static void main(String args[]) throws IOException {
-	System.out.println("Running COMP207p courswork-2");
-        Main main = new Main();
-        main.parseArguments(args);
-        Files.walkFileTree(Paths.get(main.inputRoot), main);
+        int status = execute(args, System.out, System.err, null);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the optimiser with the given command line, printing to the given streams, and returns the exit
+     * status: 0 on success, 1 if a class could not be optimised and -1 if the arguments are not valid.
+     */
+    static int execute(String args[], PrintStream out, PrintStream err, ProgramIndexCache indexes) throws IOException {
+        out.println("Running COMP207p courswork-2");
+        Main main = new Main(out, err, indexes);
+        if (!main.parseArguments(args)) {
+            return -1;
+        }
+        main.run();
+        main.reportWarnings();
+        return main.reportFailures() ? 1 : 0;
+    }
+
+    private void run() throws IOException {
+        if (indexes != null) {
+            program = indexes.get(inputRoot, intrinsicsFile);
+        } else {
+            PureIntrinsics intrinsics = intrinsicsFile != null ? PureIntrinsics.load(Paths.get(intrinsicsFile)) : PureIntrinsics.defaults();
+            program = isArchive(inputRoot) ? ProgramIndex.ofArchive(inputRoot, intrinsics) : ProgramIndex.ofDirectory(Paths.get(inputRoot), intrinsics);
+        }
+        if (program.getFieldCount() > 0 || program.getMethodCount() > 0) {
+            out.println("Indexed " + program.getFieldCount() + " constant field(s), " + program.getMethodCount() + " pure method(s)");
+        }
+        if (cacheRoot != null) {
+            // Classes folded against a different program must not share cache entries
+            cache = new OptimisationCache(Paths.get(cacheRoot), "constant-folder-" + ConstantFolder.VERSION + "-" + loopBudget + "-"
+                    + passes.describe() + "-" + program.fingerprint());
+        }
+        if (reportFile != null) {
+            report = new OptimisationReport();
+        }
+        if (isArchive(inputRoot)) {
+            JarOptimiser jar = new JarOptimiser(inputRoot, outputRoot, threads, cache, report, failures);
+            jar.setProgram(program);
+            jar.setLoopBudget(loopBudget);
+            jar.setPasses(passes);
+            jar.run();
+            reportCache();
+            reportSizes(jar.getBytesIn(), jar.getBytesOut());
+            writeReport();
+            return;
+        }
+        if (threads > 1) {
+            workers = Executors.newFixedThreadPool(threads);
+            // Bound the number of parsed classes held in memory at once
+            inFlight = new Semaphore(threads * 2);
+        }
+        try {
+            Files.walkFileTree(Paths.get(inputRoot), this);
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        reportCache();
+        reportSizes(bytesIn.get(), bytesOut.get());
+        writeReport();
+    }
+
+    private void writeReport() throws IOException {
+        if (report != null) {
+            report.printSummary(out, 10);
+            report.write(Paths.get(reportFile));
+            out.println("Report written to " + reportFile);
+        }
+    }
+
+    private void reportCache() {
+        if (cache != null) {
+            out.println("Cache: " + cache.getHits() + " hit(s), " + cache.getMisses() + " miss(es)");
+        }
+    }
+
+    private void reportSizes(long before, long after) {
+        if (before > 0) {
+            out.println(String.format("Class files: %d -> %d bytes (%+.1f%%)", before, after, 100.0 * (after - before) / before));
+        }
+    }
+
+    static boolean isArchive(String path) {
+        String lower = path.toLowerCase();
+        return (lower.endsWith(".jar") || lower.endsWith(".zip")) && Files.isRegularFile(Paths.get(path));
+    }
+
+    // The optimiser's own classes may be part of the input tree and are never rewritten.
+    static boolean isOptimisable(String fname) {
+        return fname.endsWith(".class") && !fname.endsWith("Main.class") && !fname.endsWith("ConstantFolder.class");
+    }
+
+    private void reportWarnings() {
+        List<String> sorted = new ArrayList<String>(passes.getWarnings());
+        if (sorted.isEmpty()) {
+            return;
+        }
+        Collections.sort(sorted);
+        err.println(sorted.size() + " method(s) went over budget:");
+        for (String warning : sorted) {
+            err.println("  " + warning);
+        }
+    }
+
+    private boolean reportFailures() {
+        if (failures.isEmpty()) {
+            return false;
+        }
+        List<String> sorted = new ArrayList<String>(failures);
+        Collections.sort(sorted);
+        err.println(sorted.size() + " class file(s) could not be optimised:");
+        for (String failure : sorted) {
+            err.println("  " + failure);
+        }
+        return true;
     }
 
     @Override
@@ -53,13 +275,60 @@ public class Main extends SimpleFileVisitor<Path> {
     }
 
     @Override
-    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        String fname = file.toString();
-        if(fname.endsWith(".class") && !fname.endsWith("Main.class") && !fname.endsWith("ConstantFolder.class")){
-            ConstantFolder cf = new ConstantFolder(file.toString());
-            Path rel = Paths.get(inputRoot).relativize(file);
-            cf.write(Paths.get(outputRoot, rel.toString()).toAbsolutePath().toString());
+    public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+        if(isOptimisable(file.toString())){
+            if (workers == null) {
+                optimiseFile(file);
+            } else {
+                inFlight.acquireUninterruptibly();
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            optimiseFile(file);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
         }
         return super.visitFile(file, attrs);
     }
+
+    private void optimiseFile(Path file) {
+        try {
+            Path rel = Paths.get(inputRoot).relativize(file);
+            Path out = Paths.get(outputRoot, rel.toString()).toAbsolutePath();
+            byte[] original = Files.readAllBytes(file);
+
+            String key = null;
+            byte[] optimised = null;
+            if (cache != null) {
+                key = cache.key(original);
+                optimised = cache.get(key, program);
+            }
+            if (optimised == null) {
+                ConstantFolder cf = new ConstantFolder(new ByteArrayInputStream(original), file.toString());
+                cf.setProgram(program);
+                cf.setLoopBudget(loopBudget);
+                cf.setPasses(passes);
+                optimised = cf.getOptimizedBytes();
+                if (cache != null && !cf.isOverBudget()) {
+                    cache.put(key, optimised, cf.getDependencies());
+                }
+                if (report != null) {
+                    cf.getMetrics().bytesIn = original.length;
+                    cf.getMetrics().bytesOut = optimised.length;
+                    report.add(cf.getMetrics());
+                }
+            } else if (report != null) {
+                report.addCached(rel.toString(), original.length, optimised.length);
+            }
+            Files.write(out, optimised);
+            bytesIn.addAndGet(original.length);
+            bytesOut.addAndGet(optimised.length);
+        } catch (Exception e) {
+            failures.add(file + ": " + e);
+        }
+    }
 }
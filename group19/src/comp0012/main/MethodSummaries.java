@@ -0,0 +1,476 @@
+package comp0012.main;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+/**
+ * Summaries of the methods of the input tree that compute a primitive result from primitive arguments
+ * and nothing else, so calls to them can be evaluated while optimising their callers.
+ *
+ * A method is summarised as pure when it is static, or private and so cannot be overridden, and its code
+ * only pushes constants, uses locals and the operand stack, computes, branches, reads indexed constant
+ * fields and calls other pure methods or whitelisted PureIntrinsics on primitives. Anything else, including a call to a method outside the tree,
+ * makes it impure, and impurity spreads from callee to caller over the call graph until nothing changes.
+ *
+ * A call is evaluated by interpreting the callee on the arguments that are known. The result forms a
+ * constant-return lattice: the call is folded when the result is known whatever the unknown arguments
+ * are, and left alone when it depends on them, when an instruction would throw, or when the interpreter
+ * runs out of its step budget. As with field constants, only calls into the caller's own class or into
+ * classes whose initialisation has no visible effect are folded.
+ */
+class MethodSummaries
+{
+	// Instructions interpreted for a single call, including the calls it makes
+	static final int STEP_BUDGET = 10000;
+	private static final int MAX_DEPTH = 16;
+
+	// Methods at most this many instructions long, without branches, are inlined where a call is not folded
+	static final int INLINE_LIMIT = 8;
+
+	// Prefixes the method each view records
+	static final String FACT = "method ";
+
+	static final class Summary
+	{
+		final String className;
+		final String name;
+		final String signature;
+		final boolean isStatic;
+		final Type[] argumentTypes;
+		final Type returnType;
+		final int maxLocals;
+		final InstructionList instructionList;
+		final ConstantPoolGen cpgen;
+		// Digest of what the summary says about the method, computed when a view first records it
+		private String fact = null;
+
+		Summary(JavaClass cls, Method method) {
+			this.className = cls.getClassName();
+			this.name = method.getName();
+			this.signature = method.getSignature();
+			this.isStatic = method.isStatic();
+			this.argumentTypes = Type.getArgumentTypes(signature);
+			this.returnType = Type.getReturnType(signature);
+			this.maxLocals = method.getCode().getMaxLocals();
+			this.instructionList = new InstructionList(method.getCode().getCode());
+			this.cpgen = new ConstantPoolGen(cls.getConstantPool());
+		}
+
+		// Whether the body is a short run of instructions ending in its only return, which can be copied into a caller.
+		boolean isInlineable() {
+			InstructionHandle[] handles = instructionList.getInstructionHandles();
+			if (!isStatic || handles.length - 1 > INLINE_LIMIT) {
+				return false;
+			}
+			for (int i = 0; i < handles.length; i++) {
+				Instruction instruction = handles[i].getInstruction();
+				boolean last = i == handles.length - 1;
+				if ((instruction instanceof ReturnInstruction) != last || instruction instanceof BranchInstruction
+						|| instruction instanceof InvokeInstruction
+						|| (ConstantEvaluator.canEvaluate(instruction.getOpcode()) && ConstantEvaluator.canThrow(instruction.getOpcode()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// The kind of method and its instructions, as text the constant pool has been resolved into.
+		String fact() {
+			if (fact == null) {
+				MessageDigest digest = OptimisationCache.newDigest();
+				StringBuilder text = new StringBuilder(isStatic ? "static " : "private ").append(maxLocals).append('\n');
+				for (Instruction instruction : InstructionUtil.instructions(instructionList)) {
+					text.append(instruction.toString(cpgen.getConstantPool())).append('\n');
+				}
+				digest.update(text.toString().getBytes(StandardCharsets.UTF_8));
+				fact = OptimisationCache.hex(digest);
+			}
+			return fact;
+		}
+	}
+
+	private final Map<String, Summary> summaries;
+	private final FieldConstantIndex fieldConstants;
+	private final PureIntrinsics intrinsics;
+	// Where a view records each pure method it looks up, with its fact(), or null
+	private final Map<String, String> used;
+
+	MethodSummaries(FieldConstantIndex fieldConstants, PureIntrinsics intrinsics) {
+		this.summaries = new HashMap<>();
+		this.fieldConstants = fieldConstants;
+		this.intrinsics = intrinsics;
+		this.used = null;
+	}
+
+	private MethodSummaries(MethodSummaries methods, Map<String, String> used) {
+		this.summaries = methods.summaries;
+		this.fieldConstants = methods.fieldConstants.recording(used);
+		this.intrinsics = methods.intrinsics;
+		this.used = used;
+	}
+
+	// A view over the same summaries that records in used the methods, and the fields they read, one class has looked up.
+	MethodSummaries recording(Map<String, String> used) {
+		return new MethodSummaries(this, used);
+	}
+
+	private static String key(String className, String name, String signature) {
+		return className + "." + name + signature;
+	}
+
+	/**
+	 * Records the methods of the class whose own instructions are pure. Whether what they read and call
+	 * is pure as well is only known once the whole tree has been added; see summarise().
+	 */
+	void add(JavaClass cls) {
+		for (Method method : cls.getMethods()) {
+			Type returnType = Type.getReturnType(method.getSignature());
+			if (method.getCode() == null || method.isSynchronized() || !(method.isStatic() || method.isPrivate())
+					|| method.getName().startsWith("<") || !(returnType instanceof BasicType) || returnType == Type.VOID) {
+				continue;
+			}
+			boolean primitiveArguments = true;
+			for (Type argument : Type.getArgumentTypes(method.getSignature())) {
+				primitiveArguments &= argument instanceof BasicType;
+			}
+			if (!primitiveArguments) {
+				continue;
+			}
+
+			Summary summary = new Summary(cls, method);
+			boolean pure = true;
+			for (Instruction instruction : InstructionUtil.instructions(summary.instructionList)) {
+				pure &= isPureInstruction(instruction, summary.cpgen);
+			}
+			if (pure) {
+				summaries.put(key(summary.className, summary.name, summary.signature), summary);
+			}
+		}
+	}
+
+	private static boolean isPureInstruction(Instruction instruction, ConstantPoolGen cpgen) {
+		short opcode = instruction.getOpcode();
+		if (instruction instanceof LDC) {
+			return ((LDC) instruction).getValue(cpgen) instanceof Number;
+		}
+		if (instruction instanceof LoadInstruction || instruction instanceof StoreInstruction) {
+			return !(instruction instanceof ALOAD || instruction instanceof ASTORE);
+		}
+		if (instruction instanceof IfInstruction) {
+			return !(instruction instanceof IFNULL || instruction instanceof IFNONNULL
+					|| instruction instanceof IF_ACMPEQ || instruction instanceof IF_ACMPNE);
+		}
+		if (instruction instanceof ReturnInstruction) {
+			return !(instruction instanceof ARETURN) && opcode != Constants.RETURN;
+		}
+		return instruction instanceof ConstantPushInstruction || instruction instanceof LDC2_W || instruction instanceof IINC
+				|| ConstantEvaluator.canEvaluate(opcode) || instruction instanceof StackInstruction
+				|| instruction instanceof GotoInstruction || opcode == Constants.NOP
+				// Checked against the rest of the program by summarise()
+				|| instruction instanceof INVOKESTATIC || instruction instanceof GETSTATIC;
+	}
+
+	/**
+	 * Drops the methods that read a field that is not a known constant, or call a method that is not
+	 * summarised or is in another class whose initialisation could be observed, until every method left
+	 * only depends on methods that are left.
+	 */
+	void summarise() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Summary summary : new ArrayList<>(summaries.values())) {
+				for (Instruction instruction : InstructionUtil.instructions(summary.instructionList)) {
+					if (!dependsOnPure(summary, instruction)) {
+						summaries.remove(key(summary.className, summary.name, summary.signature));
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private boolean dependsOnPure(Summary summary, Instruction instruction) {
+		if (instruction instanceof GETSTATIC) {
+			GETSTATIC field = (GETSTATIC) instruction;
+			return fieldConstants.get(field.getReferenceType(summary.cpgen).toString(), field.getFieldName(summary.cpgen),
+					field.getSignature(summary.cpgen)) != null;
+		}
+		if (instruction instanceof INVOKESTATIC) {
+			InvokeInstruction invoke = (InvokeInstruction) instruction;
+			Summary callee = resolve(summary.className, invoke, summary.cpgen);
+			return callee != null && callee.isStatic || intrinsics.isNumeric(invoke.getReferenceType(summary.cpgen).toString(),
+					invoke.getMethodName(summary.cpgen), invoke.getSignature(summary.cpgen));
+		}
+		return true;
+	}
+
+	/**
+	 * The pure method the call invokes from the given class, or null if it is not pure, it is not certain
+	 * to be the method that runs, or calling it could initialise a class with a visible effect.
+	 */
+	Summary resolve(String callerClass, InvokeInstruction invoke, ConstantPoolGen cpgen) {
+		if (!(invoke instanceof INVOKESTATIC || invoke instanceof INVOKESPECIAL || invoke instanceof INVOKEVIRTUAL)) {
+			return null;
+		}
+		String className = invoke.getReferenceType(cpgen).toString();
+		Summary summary = lookup(key(className, invoke.getMethodName(cpgen), invoke.getSignature(cpgen)));
+		if (summary == null || (invoke instanceof INVOKESTATIC) != summary.isStatic) {
+			return null;
+		}
+		if (!summary.isStatic && !className.equals(callerClass)) {
+			// Private methods are only called on the caller's own class
+			return null;
+		}
+		if (!className.equals(callerClass) && !fieldConstants.isInitialisationFree(className)) {
+			return null;
+		}
+		return summary;
+	}
+
+	/**
+	 * The method's result on the given arguments, null where unknown, or null if it is not known, which
+	 * includes when the deadline passes before the interpreter is done.
+	 */
+	Number evaluate(Summary summary, Number[] arguments, Deadline deadline) {
+		try {
+			return execute(summary, arguments, 0, new int[] { STEP_BUDGET }, deadline);
+		} catch (RuntimeException e) {
+			// Code the verifier would reject, e.g. popping an empty stack: the call is left to fail at run time
+			return null;
+		}
+	}
+
+	// How interpret() finished
+	private enum Outcome { RETURNED, STOPPED, UNKNOWN }
+
+	private Number execute(Summary summary, Number[] arguments, int depth, int[] budget, Deadline deadline) {
+		if (depth > MAX_DEPTH) {
+			return null;
+		}
+		Number[] locals = new Number[Math.max(summary.maxLocals, 1)];
+		int slot = summary.isStatic ? 0 : 1;
+		for (int i = 0; i < arguments.length; i++) {
+			locals[slot] = arguments[i];
+			slot += summary.argumentTypes[i].getSize();
+		}
+
+		List<Number> stack = new ArrayList<>();
+		if (interpret(summary.className, summary.cpgen, summary.instructionList.getStart(), null, null, locals, stack, depth, budget,
+				deadline) != Outcome.RETURNED) {
+			return null;
+		}
+		Number result = pop(stack, summary.returnType.getSize());
+		return result == null ? null : FieldConstantIndex.ofType(result, summary.returnType.getSignature().charAt(0));
+	}
+
+	/**
+	 * The locals once control leaves the region of code at exit, run from start with the given locals,
+	 * or null if that is not known: the region reads an unknown value where it matters, does anything
+	 * impure, is left any other way, or runs out of the step budget or the time before the deadline. Used
+	 * to evaluate whole loops.
+	 */
+	Number[] evaluateRegion(String className, ConstantPoolGen cpgen, InstructionHandle start, InstructionHandle exit,
+			Set<InstructionHandle> region, Number[] locals, Deadline deadline) {
+		Number[] result = locals.clone();
+		List<Number> stack = new ArrayList<>();
+		try {
+			if (interpret(className, cpgen, start, exit, region, result, stack, 0, new int[] { STEP_BUDGET }, deadline) != Outcome.STOPPED
+					|| !stack.isEmpty()) {
+				return null;
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * An interpreter over known and unknown (null) primitive values; any doubt about the result gives
+	 * UNKNOWN. It runs until a return, which leaves the result on the stack, or until control reaches
+	 * stop; if a region is given, control may not go anywhere else outside it.
+	 */
+	private Outcome interpret(String className, ConstantPoolGen cpgen, InstructionHandle handle, InstructionHandle stop,
+			Set<InstructionHandle> region, Number[] locals, List<Number> stack, int depth, int[] budget, Deadline deadline) {
+		while (handle != null) {
+			if (handle == stop) {
+				return Outcome.STOPPED;
+			}
+			if ((region != null && !region.contains(handle)) || --budget[0] < 0
+					|| (budget[0] % Deadline.CHECK_INTERVAL == 0 && deadline.hasPassed())) {
+				return Outcome.UNKNOWN;
+			}
+			Instruction instruction = handle.getInstruction();
+			short opcode = instruction.getOpcode();
+			InstructionHandle next = handle.getNext();
+
+			Number constant = PeepholeFolder.getConstantValue(instruction, cpgen);
+			if (constant != null) {
+				push(stack, constant, sizeOf(constant));
+			} else if (instruction instanceof LoadInstruction) {
+				int index = ((LoadInstruction) instruction).getIndex();
+				push(stack, locals[index], ((LoadInstruction) instruction).getType(cpgen).getSize());
+			} else if (instruction instanceof StoreInstruction) {
+				int index = ((StoreInstruction) instruction).getIndex();
+				locals[index] = pop(stack, ((StoreInstruction) instruction).getType(cpgen).getSize());
+			} else if (instruction instanceof IINC) {
+				IINC iinc = (IINC) instruction;
+				Number value = locals[iinc.getIndex()];
+				locals[iinc.getIndex()] = value == null ? null : (Number) (value.intValue() + iinc.getIncrement());
+			} else if (ConstantEvaluator.canEvaluate(opcode)) {
+				int[] sizes = ConstantEvaluator.operandSizes(opcode);
+				Number[] operands = new Number[sizes.length];
+				boolean known = true;
+				for (int i = sizes.length - 1; i >= 0; i--) {
+					operands[i] = pop(stack, sizes[i]);
+					known &= operands[i] != null;
+				}
+				Number result = known ? ConstantEvaluator.evaluate(opcode, operands) : null;
+				if (result == null && (known || ConstantEvaluator.canThrow(opcode))) {
+					// It throws, or it might
+					return Outcome.UNKNOWN;
+				}
+				push(stack, result, ConstantEvaluator.resultSize(opcode));
+			} else if (instruction instanceof IfInstruction) {
+				Number[] operands = new Number[instruction.consumeStack(cpgen)];
+				for (int i = operands.length - 1; i >= 0; i--) {
+					operands[i] = pop(stack, 1);
+				}
+				Boolean jumps = ConstantEvaluator.evaluateCondition(opcode, Arrays.asList(operands));
+				if (jumps == null) {
+					return Outcome.UNKNOWN;
+				}
+				if (jumps) {
+					next = ((IfInstruction) instruction).getTarget();
+				}
+			} else if (instruction instanceof GotoInstruction) {
+				next = ((GotoInstruction) instruction).getTarget();
+			} else if (instruction instanceof StackInstruction) {
+				shuffle(stack, opcode);
+			} else if (instruction instanceof ReturnInstruction) {
+				return instruction instanceof ARETURN || opcode == Constants.RETURN ? Outcome.UNKNOWN : Outcome.RETURNED;
+			} else if (instruction instanceof GETSTATIC) {
+				GETSTATIC field = (GETSTATIC) instruction;
+				Number value = fieldConstants.get(field.getReferenceType(cpgen).toString(), field.getFieldName(cpgen), field.getSignature(cpgen));
+				if (value == null) {
+					return Outcome.UNKNOWN;
+				}
+				push(stack, value, sizeOf(value));
+			} else if (instruction instanceof INVOKESTATIC) {
+				InvokeInstruction invoke = (InvokeInstruction) instruction;
+				Summary callee = resolve(className, invoke, cpgen);
+				Type[] argumentTypes = invoke.getArgumentTypes(cpgen);
+				Number[] calleeArguments = new Number[argumentTypes.length];
+				for (int i = calleeArguments.length - 1; i >= 0; i--) {
+					calleeArguments[i] = pop(stack, argumentTypes[i].getSize());
+				}
+				Number result;
+				if (callee != null) {
+					result = execute(callee, calleeArguments, depth + 1, budget, deadline);
+				} else {
+					// A whitelisted intrinsic, which summarise() checked; it is only called on known arguments
+					Object value = Arrays.asList(calleeArguments).contains(null) ? null : intrinsics.evaluate(
+							invoke.getReferenceType(cpgen).toString(), invoke.getMethodName(cpgen), invoke.getSignature(cpgen), null, calleeArguments);
+					result = value instanceof Number ? (Number) value : null;
+				}
+				if (result == null) {
+					return Outcome.UNKNOWN;
+				}
+				push(stack, result, invoke.getReturnType(cpgen).getSize());
+			} else if (opcode != Constants.NOP) {
+				return Outcome.UNKNOWN;
+			}
+			handle = next;
+		}
+		return Outcome.UNKNOWN;
+	}
+
+	private static int sizeOf(Number value) {
+		return value instanceof Long || value instanceof Double ? 2 : 1;
+	}
+
+	// Category 2 values take two words holding the same value, so stack instructions can move words.
+	private static void push(List<Number> stack, Number value, int size) {
+		for (int i = 0; i < size; i++) {
+			stack.add(value);
+		}
+	}
+
+	private static Number pop(List<Number> stack, int size) {
+		Number value = null;
+		for (int i = 0; i < size; i++) {
+			value = stack.remove(stack.size() - 1);
+		}
+		return value;
+	}
+
+	private static void shuffle(List<Number> stack, short opcode) {
+		int top = stack.size();
+		switch (opcode) {
+			case Constants.POP:
+				pop(stack, 1);
+				break;
+			case Constants.POP2:
+				pop(stack, 2);
+				break;
+			case Constants.DUP:
+				stack.add(stack.get(top - 1));
+				break;
+			case Constants.DUP_X1:
+				stack.add(top - 2, stack.get(top - 1));
+				break;
+			case Constants.DUP_X2:
+				stack.add(top - 3, stack.get(top - 1));
+				break;
+			case Constants.DUP2:
+				stack.addAll(new ArrayList<>(stack.subList(top - 2, top)));
+				break;
+			case Constants.DUP2_X1:
+				stack.addAll(top - 3, new ArrayList<>(stack.subList(top - 2, top)));
+				break;
+			case Constants.DUP2_X2:
+				stack.addAll(top - 4, new ArrayList<>(stack.subList(top - 2, top)));
+				break;
+			case Constants.SWAP:
+				stack.add(top - 2, stack.remove(top - 1));
+				break;
+			default:
+				throw new IllegalStateException("unexpected stack instruction " + Constants.OPCODE_NAMES[opcode]);
+		}
+	}
+
+	// The summary of a pure method, or null if the method is not pure or not in the tree.
+	Summary get(String className, String name, String signature) {
+		return lookup(key(className, name, signature));
+	}
+
+	private Summary lookup(String key) {
+		Summary summary = summaries.get(key);
+		if (used != null) {
+			used.put(FACT + key, summary == null ? "-" : summary.fact());
+		}
+		return summary;
+	}
+
+	// What the summaries say about the method, given as class.name and signature; see Summary.fact().
+	String fact(String key) {
+		Summary summary = summaries.get(key);
+		return summary == null ? "-" : summary.fact();
+	}
+
+	int size() {
+		return summaries.size();
+	}
+}
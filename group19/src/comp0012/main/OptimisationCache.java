@@ -0,0 +1,124 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of optimised class files.
+ * Entries are keyed by a SHA-256 of the optimiser configuration followed by the input class bytes,
+ * so a class is only re-optimised when its bytes, the optimiser version or the enabled passes change,
+ * or when one of the facts about the rest of the program stored with its entry no longer holds.
+ */
+public class OptimisationCache
+{
+	private final Path root;
+	private final byte[] configuration;
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public OptimisationCache(Path root, String configuration) throws IOException
+	{
+		this.root = root;
+		this.configuration = configuration.getBytes(StandardCharsets.UTF_8);
+		Files.createDirectories(root);
+	}
+
+	public String key(byte[] classBytes) {
+		MessageDigest digest = newDigest();
+		digest.update(configuration);
+		digest.update((byte) 0);
+		digest.update(classBytes);
+		return hex(digest);
+	}
+
+	// A SHA-256 digest, which every Java runtime provides.
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Completes the digest, in lower-case hexadecimal.
+	static String hex(MessageDigest digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the cached optimised bytes, or null on a miss. An entry optimised against facts of the program
+	 * that have changed since is a miss too; with no program, as for a class optimised on its own, the
+	 * facts are not checked.
+	 */
+	public byte[] get(String key, ProgramIndex program) throws IOException {
+		Path entry = entryPath(key);
+		if (!Files.isRegularFile(entry)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(entry)));
+		Map<String, String> dependencies = new HashMap<>();
+		for (int count = in.readInt(); count > 0; count--) {
+			dependencies.put(in.readUTF(), in.readUTF());
+		}
+		if (program != null && !program.isCurrent(dependencies)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return in.readAllBytes();
+	}
+
+	// Stores the optimised bytes with the facts of the program the class was optimised against.
+	public void put(String key, byte[] optimisedBytes, Map<String, String> dependencies) throws IOException {
+		Path entry = entryPath(key);
+		Files.createDirectories(entry.getParent());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(dependencies.size());
+		for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+			out.writeUTF(dependency.getKey());
+			out.writeUTF(dependency.getValue());
+		}
+		out.write(optimisedBytes);
+
+		// Write to a temporary file first so concurrent readers never observe a partial entry
+		Path tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+		try {
+			Files.write(tmp, bytes.toByteArray());
+			Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	private Path entryPath(String key) {
+		return root.resolve(key.substring(0, 2)).resolve(key + ".entry");
+	}
+}
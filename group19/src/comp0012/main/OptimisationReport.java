@@ -0,0 +1,317 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Metrics of an optimiser run: for every class, the time it took and its size before and after; for every
+ * method, its time, fixpoint iterations, instruction counts and the reasons passes gave up on it; and for
+ * every pass over a method, how often it ran, how often it changed something, what it folded and its time.
+ *
+ * Classes are added from the worker threads as they finish. The report is written as JSON, or as CSV with
+ * one row per pass over a method, so it can be loaded into a dashboard.
+ */
+public class OptimisationReport
+{
+	public static final class PassMetrics
+	{
+		int runs;
+		int changedRuns;
+		int folds;
+		long nanos;
+
+		void record(long startNanos, boolean changed, int passFolds) {
+			nanos += System.nanoTime() - startNanos;
+			runs++;
+			if (changed) {
+				changedRuns++;
+			}
+			folds += passFolds;
+		}
+
+		void add(PassMetrics other) {
+			runs += other.runs;
+			changedRuns += other.changedRuns;
+			folds += other.folds;
+			nanos += other.nanos;
+		}
+	}
+
+	public static final class MethodMetrics
+	{
+		final String className;
+		final String method;
+		int iterations;
+		int instructionsBefore;
+		int instructionsAfter;
+		long nanos;
+		final Map<String, PassMetrics> passes = new LinkedHashMap<>();
+		final Set<String> bailouts = new LinkedHashSet<>();
+
+		MethodMetrics(String className, String method) {
+			this.className = className;
+			this.method = method;
+		}
+
+		PassMetrics pass(String name) {
+			PassMetrics metrics = passes.get(name);
+			if (metrics == null) {
+				metrics = new PassMetrics();
+				passes.put(name, metrics);
+			}
+			return metrics;
+		}
+
+		// Records why a pass left the method alone; repeated reasons from later iterations are kept once.
+		void bailout(String pass, String reason) {
+			if (reason != null) {
+				bailouts.add(pass + ": " + reason);
+			}
+		}
+	}
+
+	public static final class ClassMetrics
+	{
+		final String className;
+		final List<MethodMetrics> methods = new ArrayList<>();
+		long nanos;
+		boolean modified;
+		// Taken from the cache, so no pass ran and there are no method metrics
+		boolean cached;
+		long bytesIn;
+		long bytesOut;
+		// Methods with code the pre-scan found nothing to fold in, which no pass ran over
+		int skippedMethods;
+
+		ClassMetrics(String className) {
+			this.className = className;
+		}
+	}
+
+	private final List<ClassMetrics> classes = Collections.synchronizedList(new ArrayList<ClassMetrics>());
+
+	void add(ClassMetrics metrics) {
+		classes.add(metrics);
+	}
+
+	// A class file served from the cache, recorded so the report still accounts for every input class.
+	void addCached(String path, long bytesIn, long bytesOut) {
+		String className = path.replace('\\', '/').replaceAll("\\.class$", "").replace('/', '.');
+		ClassMetrics metrics = new ClassMetrics(className);
+		metrics.cached = true;
+		metrics.bytesIn = bytesIn;
+		metrics.bytesOut = bytesOut;
+		add(metrics);
+	}
+
+	// Classes in name order, so reports of the same input compare cleanly whatever the number of threads.
+	private List<ClassMetrics> sortedClasses() {
+		List<ClassMetrics> sorted;
+		synchronized (classes) {
+			sorted = new ArrayList<>(classes);
+		}
+		sorted.sort(Comparator.comparing((ClassMetrics c) -> c.className));
+		return sorted;
+	}
+
+	public List<MethodMetrics> slowestMethods(int count) {
+		List<MethodMetrics> methods = new ArrayList<>();
+		for (ClassMetrics cls : sortedClasses()) {
+			methods.addAll(cls.methods);
+		}
+		methods.sort(Comparator.comparingLong((MethodMetrics m) -> m.nanos).reversed());
+		return methods.subList(0, Math.min(count, methods.size()));
+	}
+
+	// Totals of each pass over every method, in the order the passes run.
+	private Map<String, PassMetrics> passTotals(List<ClassMetrics> sorted) {
+		Map<String, PassMetrics> totals = new LinkedHashMap<>();
+		for (ClassMetrics cls : sorted) {
+			for (MethodMetrics method : cls.methods) {
+				for (Map.Entry<String, PassMetrics> pass : method.passes.entrySet()) {
+					if (!totals.containsKey(pass.getKey())) {
+						totals.put(pass.getKey(), new PassMetrics());
+					}
+					totals.get(pass.getKey()).add(pass.getValue());
+				}
+			}
+		}
+		return totals;
+	}
+
+	public void printSummary(PrintStream out, int slowest) {
+		List<ClassMetrics> sorted = sortedClasses();
+		for (Map.Entry<String, PassMetrics> pass : passTotals(sorted).entrySet()) {
+			PassMetrics metrics = pass.getValue();
+			out.println(String.format(Locale.ROOT, "Pass %-22s %8.1f ms, %d run(s), %d changed, %d fold(s)",
+					pass.getKey(), millis(metrics.nanos), metrics.runs, metrics.changedRuns, metrics.folds));
+		}
+		List<MethodMetrics> methods = slowestMethods(slowest);
+		if (!methods.isEmpty()) {
+			out.println("Slowest methods:");
+		}
+		for (MethodMetrics method : methods) {
+			out.println(String.format(Locale.ROOT, "  %8.1f ms  %s.%s (%d iteration(s), %d -> %d instructions)",
+					millis(method.nanos), method.className, method.method, method.iterations,
+					method.instructionsBefore, method.instructionsAfter));
+		}
+	}
+
+	// Writes the report as CSV if the file name ends in .csv, and as JSON otherwise.
+	public void write(Path file) throws IOException {
+		String text = file.toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? toCsv() : toJson();
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	String toCsv() {
+		StringBuilder csv = new StringBuilder();
+		csv.append("class,method,iterations,instructions_before,instructions_after,method_ms,pass,runs,changed_runs,folds,pass_ms,bailouts\n");
+		for (ClassMetrics cls : sortedClasses()) {
+			for (MethodMetrics method : cls.methods) {
+				for (Map.Entry<String, PassMetrics> pass : method.passes.entrySet()) {
+					PassMetrics metrics = pass.getValue();
+					csv.append(csvField(cls.className)).append(',').append(csvField(method.method)).append(',')
+							.append(method.iterations).append(',').append(method.instructionsBefore).append(',')
+							.append(method.instructionsAfter).append(',').append(formatMillis(method.nanos)).append(',')
+							.append(csvField(pass.getKey())).append(',').append(metrics.runs).append(',')
+							.append(metrics.changedRuns).append(',').append(metrics.folds).append(',')
+							.append(formatMillis(metrics.nanos)).append(',').append(csvField(String.join("; ", method.bailouts)))
+							.append('\n');
+				}
+			}
+		}
+		return csv.toString();
+	}
+
+	String toJson() {
+		List<ClassMetrics> sorted = sortedClasses();
+		long nanos = 0;
+		int methodCount = 0;
+		int skippedCount = 0;
+		for (ClassMetrics cls : sorted) {
+			nanos += cls.nanos;
+			methodCount += cls.methods.size();
+			skippedCount += cls.skippedMethods;
+		}
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"version\": ").append(jsonString(ConstantFolder.VERSION)).append(",\n");
+		json.append("  \"classes\": ").append(sorted.size()).append(",\n");
+		json.append("  \"methods\": ").append(methodCount).append(",\n");
+		json.append("  \"skippedMethods\": ").append(skippedCount).append(",\n");
+		json.append("  \"millis\": ").append(formatMillis(nanos)).append(",\n");
+
+		json.append("  \"passes\": {");
+		String separator = "\n";
+		for (Map.Entry<String, PassMetrics> pass : passTotals(sorted).entrySet()) {
+			json.append(separator).append("    ").append(jsonString(pass.getKey())).append(": ").append(passJson(pass.getValue()));
+			separator = ",\n";
+		}
+		json.append("\n  },\n");
+
+		json.append("  \"slowestMethods\": [");
+		separator = "\n";
+		for (MethodMetrics method : slowestMethods(10)) {
+			json.append(separator).append("    {\"class\": ").append(jsonString(method.className))
+					.append(", \"method\": ").append(jsonString(method.method))
+					.append(", \"millis\": ").append(formatMillis(method.nanos)).append('}');
+			separator = ",\n";
+		}
+		json.append("\n  ],\n");
+
+		json.append("  \"classDetails\": [");
+		separator = "\n";
+		for (ClassMetrics cls : sorted) {
+			json.append(separator).append("    {\"class\": ").append(jsonString(cls.className))
+					.append(", \"millis\": ").append(formatMillis(cls.nanos))
+					.append(", \"modified\": ").append(cls.modified)
+					.append(", \"cached\": ").append(cls.cached)
+					.append(", \"bytesIn\": ").append(cls.bytesIn)
+					.append(", \"bytesOut\": ").append(cls.bytesOut)
+					.append(", \"skippedMethods\": ").append(cls.skippedMethods)
+					.append(", \"methods\": [");
+			String methodSeparator = "\n";
+			for (MethodMetrics method : cls.methods) {
+				json.append(methodSeparator).append("      {\"method\": ").append(jsonString(method.method))
+						.append(", \"millis\": ").append(formatMillis(method.nanos))
+						.append(", \"iterations\": ").append(method.iterations)
+						.append(", \"instructionsBefore\": ").append(method.instructionsBefore)
+						.append(", \"instructionsAfter\": ").append(method.instructionsAfter)
+						.append(", \"passes\": {");
+				String passSeparator = "";
+				for (Map.Entry<String, PassMetrics> pass : method.passes.entrySet()) {
+					json.append(passSeparator).append(jsonString(pass.getKey())).append(": ").append(passJson(pass.getValue()));
+					passSeparator = ", ";
+				}
+				json.append("}, \"bailouts\": [");
+				String bailoutSeparator = "";
+				for (String bailout : method.bailouts) {
+					json.append(bailoutSeparator).append(jsonString(bailout));
+					bailoutSeparator = ", ";
+				}
+				json.append("]}");
+				methodSeparator = ",\n";
+			}
+			json.append(cls.methods.isEmpty() ? "]}" : "\n    ]}");
+			separator = ",\n";
+		}
+		json.append("\n  ]\n}\n");
+		return json.toString();
+	}
+
+	private static String passJson(PassMetrics metrics) {
+		return "{\"runs\": " + metrics.runs + ", \"changedRuns\": " + metrics.changedRuns + ", \"folds\": " + metrics.folds
+				+ ", \"millis\": " + formatMillis(metrics.nanos) + "}";
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", millis(nanos));
+	}
+
+	static String jsonString(String value) {
+		StringBuilder escaped = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			switch (c) {
+				case '"': escaped.append("\\\""); break;
+				case '\\': escaped.append("\\\\"); break;
+				case '\n': escaped.append("\\n"); break;
+				case '\r': escaped.append("\\r"); break;
+				case '\t': escaped.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						escaped.append(String.format("\\u%04x", (int) c));
+					} else {
+						escaped.append(c);
+					}
+			}
+		}
+		return escaped.append('"').toString();
+	}
+
+	static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,154 @@
+package comp0012.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thin client of OptimiserDaemon: takes the same arguments as Main, plus -port to name the daemon's port,
+ * -token to name the file holding its token if the daemon was given one, and -stop to shut it down, and
+ * exits with the status Main would have. Paths are made absolute before they are sent, as the daemon may
+ * run in another directory. When no daemon is listening, or there is no token to send it, the arguments
+ * are run by Main in this JVM instead, so a build never depends on one having been started.
+ */
+public class OptimiserClient
+{
+	// The options of Main whose value is a path
+	private static final List<String> PATH_OPTIONS = Arrays.asList("-in", "-out", "-cache", "-report", "-intrinsics");
+
+	public static void main(String args[]) throws IOException {
+		int port = OptimiserDaemon.DEFAULT_PORT;
+		Path token = null;
+		boolean stop = false;
+		List<String> forwarded = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-token") && i + 1 < args.length) {
+				token = Paths.get(args[++i]);
+			} else if (args[i].equals("-stop")) {
+				stop = true;
+			} else if (PATH_OPTIONS.contains(args[i]) && i + 1 < args.length) {
+				forwarded.add(args[i]);
+				forwarded.add(Paths.get(args[++i]).toAbsolutePath().toString());
+			} else {
+				forwarded.add(args[i]);
+			}
+		}
+		String[] arguments = forwarded.toArray(new String[forwarded.size()]);
+		if (token == null) {
+			token = OptimiserDaemon.defaultTokenFile(port);
+		}
+
+		int status;
+		try {
+			status = stop ? stop(port, token) : run(port, token, arguments, System.out, System.err);
+		} catch (ConnectException | NoSuchFileException e) {
+			String missing = "No optimiser daemon on port " + port
+					+ (e instanceof NoSuchFileException ? " with its token in " + token : "");
+			if (stop) {
+				System.err.println(missing);
+				System.exit(1);
+			}
+			System.err.println(missing + "; optimising in this JVM");
+			status = Main.execute(arguments, System.out, System.err, null);
+		}
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	// Runs Main in the daemon with the given arguments, printing its output here, and returns its exit status.
+	static int run(int port, Path token, String[] args, PrintStream out, PrintStream err) throws IOException {
+		try (Socket socket = connect(port)) {
+			DataOutputStream request = request(socket, token);
+			request.writeByte(OptimiserDaemon.RUN);
+			request.writeInt(args.length);
+			for (String arg : args) {
+				request.writeUTF(arg);
+			}
+			request.flush();
+			return receive(socket, out, err, null);
+		}
+	}
+
+	/**
+	 * Optimises a single class in the daemon and returns the optimised bytes.
+	 * Throws an IOException with the daemon's error if the class cannot be optimised.
+	 */
+	static byte[] optimise(int port, Path token, byte[] classBytes) throws IOException {
+		try (Socket socket = connect(port)) {
+			DataOutputStream request = request(socket, token);
+			request.writeByte(OptimiserDaemon.OPTIMISE);
+			request.writeInt(classBytes.length);
+			request.write(classBytes);
+			request.flush();
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			ByteArrayOutputStream optimised = new ByteArrayOutputStream();
+			if (receive(socket, null, new PrintStream(errors, true, "UTF-8"), optimised) != 0) {
+				throw new IOException(errors.toString("UTF-8").trim());
+			}
+			return optimised.toByteArray();
+		}
+	}
+
+	static int stop(int port, Path token) throws IOException {
+		try (Socket socket = connect(port)) {
+			DataOutputStream request = request(socket, token);
+			request.writeByte(OptimiserDaemon.STOP);
+			request.flush();
+			return receive(socket, null, System.err, null);
+		}
+	}
+
+	private static Socket connect(int port) throws IOException {
+		return new Socket(InetAddress.getLoopbackAddress(), port);
+	}
+
+	// The stream to write a request to, started with the daemon's token read from the given file
+	private static DataOutputStream request(Socket socket, Path token) throws IOException {
+		byte[] bytes = Files.readAllBytes(token);
+		if (bytes.length != OptimiserDaemon.TOKEN_LENGTH) {
+			throw new IOException(token + " does not hold an optimiser daemon token");
+		}
+		DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		request.write(bytes);
+		return request;
+	}
+
+	// Copies the replies to the streams given until the exit status arrives, and returns it.
+	private static int receive(Socket socket, PrintStream out, PrintStream err, ByteArrayOutputStream optimised) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		while (true) {
+			byte tag = in.readByte();
+			if (tag == OptimiserDaemon.EXIT) {
+				return in.readInt();
+			}
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			if (tag == OptimiserDaemon.OUT && out != null) {
+				out.write(bytes);
+				out.flush();
+			} else if (tag == OptimiserDaemon.ERR && err != null) {
+				err.write(bytes);
+				err.flush();
+			} else if (tag == OptimiserDaemon.CLASS && optimised != null) {
+				optimised.write(bytes);
+			}
+		}
+	}
+}
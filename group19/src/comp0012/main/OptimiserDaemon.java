@@ -0,0 +1,305 @@
+package comp0012.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Long-running optimiser that serves requests from OptimiserClient over a local socket, so repeated runs
+ * skip JVM startup, loading BCEL and a cold JIT:
+ *
+ *   java comp0012.main.OptimiserDaemon -port 7012 &
+ *   java comp0012.main.OptimiserClient -in build/classes -out optimised/classes -cache .cache
+ *
+ * A client either forwards a command line of Main, whose output is streamed back as it is printed, or sends
+ * the bytes of a single class and gets the optimised bytes back. The index of an input tree is kept until
+ * the tree changes, and the classes read from the class path to merge stack map types are kept for good.
+ * Up to MAX_CONNECTIONS connections are served in parallel, and the rest wait their turn.
+ *
+ * The daemon only listens on the loopback address, and files are read and written as the user running it,
+ * so only that user may ask it for anything. As with the Gradle daemon, it writes a random token to a file
+ * only its owner can read, by default ~/.comp0012/optimiser-daemon-PORT.token, and every request must start
+ * with that token; requests without it are refused before anything else is read.
+ *
+ * Every message is a tag byte; a request is the token followed by one that runs Main with a length-prefixed
+ * list of arguments, optimises one length-prefixed class, or stops the daemon. Replies are length-prefixed
+ * chunks of standard output, standard error or the optimised class, ended by the exit status.
+ */
+public class OptimiserDaemon implements Closeable
+{
+	public static final int DEFAULT_PORT = 7012;
+
+	// Requests
+	static final byte RUN = 'R';
+	static final byte OPTIMISE = 'O';
+	static final byte STOP = 'S';
+
+	// Replies
+	static final byte OUT = 'o';
+	static final byte ERR = 'e';
+	static final byte CLASS = 'c';
+	static final byte EXIT = 'x';
+
+	// Bytes of the token that starts every request
+	static final int TOKEN_LENGTH = 32;
+	// Limits on a request, well above any real one, checked before anything is allocated for it
+	static final int MAX_ARGUMENTS = 4096;
+	static final int MAX_CLASS_BYTES = 64 * 1024 * 1024;
+	static final int MAX_CONNECTIONS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	// How long a client may take to send its request, so a silent one cannot hold a connection for good
+	static final int REQUEST_TIMEOUT_MILLIS = 30000;
+
+	private static class Arguments
+	{
+		@Option(name="-port", usage="Local port the daemon listens on (0 = any free port)")
+		private int port = DEFAULT_PORT;
+
+		@Option(name="-token", usage="File the daemon writes its token to (default ~/.comp0012/optimiser-daemon-PORT.token)")
+		private String token = null;
+	}
+
+	private final ServerSocket server;
+	private final Path tokenFile;
+	private final byte[] token = new byte[TOKEN_LENGTH];
+	private final ProgramIndexCache indexes = new ProgramIndexCache(ProgramIndexCache.DEFAULT_CAPACITY);
+	private final ExecutorService connections = Executors.newFixedThreadPool(MAX_CONNECTIONS, runnable -> {
+		Thread thread = new Thread(runnable, "optimiser-daemon-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public OptimiserDaemon(int port) throws IOException {
+		this(port, null);
+	}
+
+	// A daemon writing its token to the given file, or to the default one for its port if null
+	public OptimiserDaemon(int port, Path tokenFile) throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.tokenFile = tokenFile != null ? tokenFile : defaultTokenFile(getPort());
+		new SecureRandom().nextBytes(token);
+		try {
+			writeToken(this.tokenFile, token);
+		} catch (IOException | RuntimeException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	// Where the daemon on the given port writes its token unless told otherwise
+	static Path defaultTokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".comp0012", "optimiser-daemon-" + port + ".token");
+	}
+
+	// Writes the token to a new file only its owner can read or write.
+	private static void writeToken(Path file, byte[] token) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Files.deleteIfExists(file);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			// Created with the permissions, so the token is never readable by others even for a moment
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			// Without POSIX permissions, as on Windows, the file takes the access list of the user's own directory
+			Files.createFile(file);
+		}
+		Files.write(file, token);
+	}
+
+	public static void main(String args[]) throws IOException {
+		Arguments arguments = new Arguments();
+		CmdLineParser parser = new CmdLineParser(arguments);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(-1);
+		}
+		OptimiserDaemon daemon = new OptimiserDaemon(arguments.port, arguments.token != null ? Paths.get(arguments.token) : null);
+		System.out.println("Optimiser daemon listening on port " + daemon.getPort() + ", token in " + daemon.getTokenFile());
+		daemon.serve();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public Path getTokenFile() {
+		return tokenFile;
+	}
+
+	ProgramIndexCache getIndexes() {
+		return indexes;
+	}
+
+	// Accepts connections until the daemon is closed.
+	public void serve() throws IOException {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (SocketException e) {
+				if (server.isClosed()) {
+					break;
+				}
+				throw e;
+			}
+			connections.execute(() -> serve(socket));
+		}
+		connections.shutdown();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		Files.deleteIfExists(tokenFile);
+	}
+
+	private void serve(Socket socket) {
+		try (Socket connection = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+			connection.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+			byte[] presented = new byte[TOKEN_LENGTH];
+			in.readFully(presented);
+			// Compared in constant time, so the time taken gives nothing of the token away
+			if (!MessageDigest.isEqual(token, presented)) {
+				refuse(out, "Not authorised: the request does not carry the token in " + tokenFile);
+				return;
+			}
+			byte request = in.readByte();
+			int status;
+			if (request == RUN) {
+				int count = in.readInt();
+				if (count < 0 || count > MAX_ARGUMENTS) {
+					refuse(out, "Invalid request: " + count + " arguments, more than " + MAX_ARGUMENTS + " or negative");
+					return;
+				}
+				// Each argument is at most 65535 bytes, by the format readUTF reads
+				String[] args = new String[count];
+				for (int i = 0; i < args.length; i++) {
+					args[i] = in.readUTF();
+				}
+				status = run(args, out);
+			} else if (request == OPTIMISE) {
+				int length = in.readInt();
+				if (length < 0 || length > MAX_CLASS_BYTES) {
+					refuse(out, "Invalid request: a class of " + length + " bytes, more than " + MAX_CLASS_BYTES + " or negative");
+					return;
+				}
+				byte[] classBytes = new byte[length];
+				in.readFully(classBytes);
+				status = optimise(classBytes, out);
+			} else if (request == STOP) {
+				close();
+				status = 0;
+			} else {
+				send(out, ERR, ("Unknown request " + request + "\n").getBytes("UTF-8"));
+				status = -1;
+			}
+			out.writeByte(EXIT);
+			out.writeInt(status);
+		} catch (IOException e) {
+			// The client went away; whatever it asked for has been done or abandoned
+		}
+	}
+
+	// Replies with the error and a failed exit status, without doing anything the request asked.
+	private static void refuse(DataOutputStream out, String error) throws IOException {
+		send(out, ERR, (error + "\n").getBytes("UTF-8"));
+		out.writeByte(EXIT);
+		out.writeInt(-1);
+	}
+
+	private int run(String[] args, DataOutputStream out) throws UnsupportedEncodingException {
+		PrintStream stdout = new PrintStream(new BufferedOutputStream(new ReplyStream(out, OUT)), true, "UTF-8");
+		PrintStream stderr = new PrintStream(new BufferedOutputStream(new ReplyStream(out, ERR)), true, "UTF-8");
+		int status;
+		try {
+			status = Main.execute(args, stdout, stderr, indexes);
+		} catch (IOException | RuntimeException e) {
+			stderr.println(e);
+			status = 1;
+		}
+		stdout.flush();
+		stderr.flush();
+		return status;
+	}
+
+	private static int optimise(byte[] classBytes, DataOutputStream out) throws IOException {
+		byte[] optimised;
+		try {
+			optimised = new ConstantFolder(new ByteArrayInputStream(classBytes), "request").getOptimizedBytes();
+		} catch (IOException | RuntimeException e) {
+			send(out, ERR, (e + "\n").getBytes("UTF-8"));
+			return 1;
+		}
+		send(out, CLASS, optimised);
+		return 0;
+	}
+
+	private static void send(DataOutputStream out, byte tag, byte[] bytes) throws IOException {
+		synchronized (out) {
+			out.writeByte(tag);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	// Sends everything written to it to the client, as replies with the given tag
+	private static final class ReplyStream extends OutputStream
+	{
+		private final DataOutputStream out;
+		private final byte tag;
+
+		ReplyStream(DataOutputStream out, byte tag) {
+			this.out = out;
+			this.tag = tag;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			synchronized (out) {
+				out.writeByte(tag);
+				out.writeInt(length);
+				out.write(bytes, offset, length);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+	}
+}
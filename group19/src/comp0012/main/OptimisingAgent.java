@@ -0,0 +1,192 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Java agent that optimises classes as they are loaded, for code that cannot be optimised ahead of time:
+ *
+ *   java -javaagent:optimiser-agent.jar=include=com.acme,exclude=com.acme.generated,cache=/tmp/cache ...
+ *
+ * Options are comma-separated and may be repeated: include and exclude take a package, which covers its
+ * subpackages; cache names the directory of a persistent cache, so later runs skip the optimiser for
+ * classes they have seen; verbose prints what the agent did when the JVM exits. Without an include, every
+ * class outside the JDK and the optimiser itself is optimised.
+ *
+ * The cache directory may be the one given to Main's -cache, but the entries are not shared: Main optimises
+ * each class against the whole input tree and its options, the agent each class on its own with the
+ * defaults, so the two key their entries differently.
+ *
+ * Class loading never fails because of the agent: a class the optimiser rejects, or any other error,
+ * leaves the class exactly as it was. Nothing is loaded or parsed until the first class is transformed,
+ * and a class found in the cache only costs the hash of its bytes.
+ */
+public class OptimisingAgent implements ClassFileTransformer
+{
+	// Never transformed: the JDK, and the classes the transformer itself needs
+	private static final List<String> DEFAULT_EXCLUDES = Arrays.asList(
+			"java/", "javax/", "jdk/", "sun/", "com/sun/", "comp0012/main/", "org/apache/bcel/");
+
+	private final List<String> includes = new ArrayList<>();
+	private final List<String> excludes = new ArrayList<>(DEFAULT_EXCLUDES);
+	private OptimisationCache cache = null;
+	private boolean verbose = false;
+
+	private final AtomicInteger optimised = new AtomicInteger();
+	private final AtomicInteger unchanged = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong nanos = new AtomicLong();
+
+	// Set while a thread is optimising, so classes loaded by the optimiser itself are left alone
+	private final ThreadLocal<Boolean> busy = new ThreadLocal<>();
+
+	public static void premain(String arguments, Instrumentation instrumentation) {
+		instrumentation.addTransformer(new OptimisingAgent(arguments));
+	}
+
+	// Attached to a running JVM, only classes loaded from then on are optimised.
+	public static void agentmain(String arguments, Instrumentation instrumentation) {
+		premain(arguments, instrumentation);
+	}
+
+	public OptimisingAgent(String arguments) {
+		if (arguments != null) {
+			for (String argument : arguments.split(",")) {
+				parseOption(argument.trim());
+			}
+		}
+		if (verbose) {
+			Runtime.getRuntime().addShutdownHook(new Thread(this::printSummary));
+		}
+	}
+
+	private void parseOption(String option) {
+		int equals = option.indexOf('=');
+		String name = equals < 0 ? option : option.substring(0, equals);
+		String value = equals < 0 ? "" : option.substring(equals + 1);
+		switch (name) {
+			case "":
+				break;
+			case "include":
+				includes.add(packagePrefix(value));
+				break;
+			case "exclude":
+				excludes.add(packagePrefix(value));
+				break;
+			case "cache":
+				try {
+					// Never the configuration of a Main run, whose classes may depend on others of its tree
+					cache = new OptimisationCache(Paths.get(value), "constant-folder-agent-" + ConstantFolder.VERSION);
+				} catch (Exception e) {
+					// A bad cache must not stop the application from starting; optimise without one
+					System.err.println("optimiser agent: cache disabled: " + e);
+				}
+				break;
+			case "verbose":
+				verbose = true;
+				break;
+			default:
+				System.err.println("optimiser agent: ignoring unknown option " + option);
+		}
+	}
+
+	// com.acme becomes com/acme/, which matches the classes of com.acme and its subpackages.
+	private static String packagePrefix(String packageName) {
+		String prefix = packageName.replace('.', '/');
+		return prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	// Whether the class, given by its internal name, is one the options select.
+	boolean accepts(String className) {
+		for (String exclude : excludes) {
+			if (className.startsWith(exclude)) {
+				return false;
+			}
+		}
+		if (includes.isEmpty()) {
+			return true;
+		}
+		for (String include : includes) {
+			if (className.startsWith(include)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		// Hidden classes have no name, and redefinitions must keep the shape of the loaded class
+		if (className == null || classBeingRedefined != null || busy.get() != null || !accepts(className)) {
+			return null;
+		}
+
+		busy.set(Boolean.TRUE);
+		long start = System.nanoTime();
+		try {
+			byte[] result = optimise(className, classfileBuffer);
+			if (result == null) {
+				unchanged.incrementAndGet();
+			} else {
+				optimised.incrementAndGet();
+			}
+			return result;
+		} catch (Throwable e) {
+			// Including errors such as a StackOverflowError on a huge method: the class loads unoptimised
+			failed.incrementAndGet();
+			if (verbose) {
+				System.err.println("optimiser agent: " + className + " left unoptimised: " + e);
+			}
+			return null;
+		} finally {
+			nanos.addAndGet(System.nanoTime() - start);
+			busy.remove();
+		}
+	}
+
+	// The optimised class, or null if it is the same as the original.
+	private byte[] optimise(String className, byte[] original) throws Exception {
+		String key = null;
+		if (cache != null) {
+			key = cache.key(original);
+			byte[] cached = cache.get(key, null);
+			if (cached != null) {
+				return Arrays.equals(cached, original) ? null : cached;
+			}
+		}
+
+		ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(original), className + ".class");
+		byte[] result = folder.getOptimizedBytes();
+		if (!folder.isModified()) {
+			// Keep the original encoding of classes the optimiser did not touch
+			result = original;
+		}
+		if (cache != null) {
+			cache.put(key, result, folder.getDependencies());
+		}
+		return result == original ? null : result;
+	}
+
+	private void printSummary() {
+		System.err.println(String.format("optimiser agent: %d class(es) optimised, %d unchanged, %d failed in %.1f ms%s",
+				optimised.get(), unchanged.get(), failed.get(), nanos.get() / 1e6,
+				cache == null ? "" : ", cache " + cache.getHits() + " hit(s), " + cache.getMisses() + " miss(es)"));
+	}
+
+	int getOptimised() {
+		return optimised.get();
+	}
+
+	int getFailed() {
+		return failed.get();
+	}
+}
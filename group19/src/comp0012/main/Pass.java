@@ -0,0 +1,25 @@
+package comp0012.main;
+
+import java.util.List;
+
+/**
+ * An optimisation pass over one method. The PassManager runs a pipeline of passes over each method
+ * until none of them changes it, so a pass only needs to make progress, not to finish the job.
+ */
+interface Pass
+{
+	// The name it is selected by with -passes and reported under
+	String getName();
+
+	// The lowest optimisation level that runs it
+	int getLevel();
+
+	// The passes that run before this one whenever both are in a pipeline, because it folds what they leave
+	List<String> getRunsAfter();
+
+	/**
+	 * Runs the pass over the method once and returns whether it changed the code. What it folded, and why
+	 * it left the method alone if it did, is reported to the context.
+	 */
+	boolean run(PassContext method);
+}
@@ -0,0 +1,75 @@
+package comp0012.main;
+
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.MethodGen;
+
+/**
+ * A method the passes are run over, with what they need of its class and the analyses of its current
+ * code that they share. An analysis is computed by the first pass that asks for it and kept until a pass
+ * changes the code.
+ */
+final class PassContext
+{
+	final MethodGen methodGen;
+	final ConstantPoolGen cpgen;
+	final ProgramIndex program;
+	final BootstrapMethods bootstrapMethods; // null if the class has none
+	final Field[] fields;
+	final int loopBudget;
+	final OptimisationReport.MethodMetrics metrics;
+
+	private ControlFlowGraph cfg = null;
+
+	// Reported by the pass that is running
+	private int folds;
+	private String bailout;
+
+	// Time spent in passes so far, over every iteration
+	long nanos = 0;
+	// Why the method went over its budget, or null while it has not
+	String overBudget = null;
+	// When the time budget left for the passes running now runs out
+	Deadline deadline = Deadline.NONE;
+
+	PassContext(MethodGen methodGen, ConstantPoolGen cpgen, ProgramIndex program, BootstrapMethods bootstrapMethods,
+			Field[] fields, int loopBudget, OptimisationReport.MethodMetrics metrics) {
+		this.methodGen = methodGen;
+		this.cpgen = cpgen;
+		this.program = program;
+		this.bootstrapMethods = bootstrapMethods;
+		this.fields = fields;
+		this.loopBudget = loopBudget;
+		this.metrics = metrics;
+	}
+
+	ControlFlowGraph getControlFlowGraph() {
+		if (cfg == null) {
+			cfg = new ControlFlowGraph(methodGen);
+		}
+		return cfg;
+	}
+
+	// Drops the analyses of the code, once a pass has changed it.
+	void invalidate() {
+		cfg = null;
+	}
+
+	void report(int folds, String bailout) {
+		this.folds = folds;
+		this.bailout = bailout;
+	}
+
+	int takeFolds() {
+		int taken = folds;
+		folds = 0;
+		return taken;
+	}
+
+	String takeBailout() {
+		String taken = bailout;
+		bailout = null;
+		return taken;
+	}
+}
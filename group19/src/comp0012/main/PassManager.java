@@ -0,0 +1,280 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the passes run over each method and runs them, within a budget.
+ *
+ * A pipeline is either every standard pass up to an optimisation level, or the passes named with -passes.
+ * Either way it is put in dependency order: each pass runs after those it lists in getRunsAfter() and are
+ * in the pipeline, and otherwise passes keep the order they were given in.
+ *
+ * A method goes over its budget when it has, or grows to, more instructions than allowed, or when its
+ * passes have taken longer than allowed in total. It is then left exactly as it was, and a warning says so.
+ * The time budget is checked between passes, and as they go by the passes that loop: loop unrolling, and
+ * any pass interpreting pure methods, stop part way once the method's Deadline has passed.
+ */
+final class PassManager
+{
+	static final int MAX_LEVEL = 3;
+	static final int DEFAULT_LEVEL = MAX_LEVEL;
+	// Far beyond any method a compiler writes; only generated code gets near it
+	static final int DEFAULT_INSTRUCTION_BUDGET = 20000;
+
+	private abstract static class StandardPass implements Pass
+	{
+		private final String name;
+		private final int level;
+		private final List<String> runsAfter;
+
+		StandardPass(String name, int level, String... runsAfter) {
+			this.name = name;
+			this.level = level;
+			this.runsAfter = Arrays.asList(runsAfter);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public List<String> getRunsAfter() {
+			return runsAfter;
+		}
+	}
+
+	// Every pass there is, in the order they run at the highest level
+	static final List<Pass> STANDARD_PASSES = Collections.unmodifiableList(Arrays.<Pass>asList(
+			// TASKS 1-3: SIMPLE FOLDING, CONSTANT VARIABLES AND DYNAMIC VARIABLES
+			new StandardPass("peephole", 1) {
+				public boolean run(PassContext method) {
+					PeepholeFolder peephole = new PeepholeFolder(method.methodGen, method.cpgen, method.program, method.deadline);
+					boolean changed = peephole.run();
+					method.report(peephole.getFolds(), null);
+					return changed;
+				}
+			},
+			// ALGEBRAIC IDENTITIES AND STRENGTH REDUCTION WITH ONE CONSTANT OPERAND
+			new StandardPass("algebra", 1, "peephole") {
+				public boolean run(PassContext method) {
+					AlgebraicSimplifier algebra = new AlgebraicSimplifier(method.methodGen, method.cpgen);
+					boolean changed = algebra.run();
+					method.report(algebra.getFolds(), null);
+					return changed;
+				}
+			},
+			// STRING CONCATENATION AND PURE LIBRARY CALLS ON CONSTANTS
+			new StandardPass("strings", 1, "peephole") {
+				public boolean run(PassContext method) {
+					StringFolder strings = new StringFolder(method.methodGen, method.cpgen, method.program.getIntrinsics(), method.bootstrapMethods);
+					boolean changed = strings.run();
+					method.report(strings.getFolds(), null);
+					return changed;
+				}
+			},
+			// TASK 4: CONSTANTS THAT FLOW ACROSS BRANCHES AND LOOPS
+			new StandardPass("constant-propagation", 2, "peephole") {
+				public boolean run(PassContext method) {
+					ConstantPropagation propagation = new ConstantPropagation(method.methodGen, method.cpgen, method.getControlFlowGraph());
+					boolean changed = propagation.run();
+					method.report(propagation.getFolds(), propagation.getBailout());
+					return changed;
+				}
+			},
+			// TASK 5: CONSTANT BRANCHES AND UNREACHABLE CODE
+			new StandardPass("branch-folding", 2, "constant-propagation") {
+				public boolean run(PassContext method) {
+					BranchFolder branches = new BranchFolder(method.methodGen, method.cpgen);
+					boolean changed = branches.run();
+					method.report(branches.getFolds(), branches.getBailout());
+					return changed;
+				}
+			},
+			// EXPRESSIONS A BASIC BLOCK COMPUTES MORE THAN ONCE
+			new StandardPass("value-numbering", 2, "algebra") {
+				public boolean run(PassContext method) {
+					ValueNumbering numbering = new ValueNumbering(method.methodGen, method.cpgen, method.fields);
+					boolean changed = numbering.run();
+					method.report(numbering.getFolds(), null);
+					return changed;
+				}
+			},
+			// TASK 6: DEAD STORES AND UNUSED LOCALS
+			new StandardPass("dead-stores", 2, "constant-propagation", "branch-folding") {
+				public boolean run(PassContext method) {
+					DeadStoreEliminator deadStores = new DeadStoreEliminator(method.methodGen, method.cpgen, method.getControlFlowGraph());
+					boolean changed = deadStores.run();
+					method.report(deadStores.getFolds(), deadStores.getBailout());
+					return changed;
+				}
+			},
+			// COUNTED LOOPS, EVALUATED OR UNROLLED SO THE NEXT ITERATION FOLDS THE COUNTER
+			new StandardPass("loops", 3, "constant-propagation", "dead-stores") {
+				public boolean run(PassContext method) {
+					LoopUnroller loops = new LoopUnroller(method.methodGen, method.cpgen, method.program, method.loopBudget,
+							method.deadline);
+					boolean changed = loops.run();
+					method.report(loops.getFolds(), null);
+					return changed;
+				}
+			},
+			// INLINING OF TINY PURE METHODS, FOLDED THROUGH BY THE NEXT ITERATION
+			new StandardPass("inlining", 3, "loops") {
+				public boolean run(PassContext method) {
+					CallInliner inliner = new CallInliner(method.methodGen, method.cpgen, method.program);
+					boolean changed = inliner.run();
+					method.report(inliner.getFolds(), null);
+					return changed;
+				}
+			}));
+
+	private final List<Pass> pipeline;
+	private int instructionBudget = DEFAULT_INSTRUCTION_BUDGET;
+	private long nanosBudget = 0;
+
+	// Methods left unchanged over their budget, from every class this manager ran over
+	private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+	private PassManager(List<Pass> passes) {
+		this.pipeline = Collections.unmodifiableList(order(passes));
+	}
+
+	// Every standard pass up to the level; level 0 runs none.
+	static PassManager forLevel(int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("optimisation level must be 0 to " + MAX_LEVEL);
+		}
+		List<Pass> passes = new ArrayList<>();
+		for (Pass pass : STANDARD_PASSES) {
+			if (pass.getLevel() <= level) {
+				passes.add(pass);
+			}
+		}
+		return new PassManager(passes);
+	}
+
+	// The standard passes named, separated by commas.
+	static PassManager forPasses(String names) {
+		Map<String, Pass> byName = new LinkedHashMap<>();
+		for (Pass pass : STANDARD_PASSES) {
+			byName.put(pass.getName(), pass);
+		}
+		List<Pass> passes = new ArrayList<>();
+		for (String name : names.split(",")) {
+			Pass pass = byName.get(name.trim());
+			if (pass == null) {
+				throw new IllegalArgumentException("unknown pass " + name.trim() + "; the passes are " + String.join(", ", byName.keySet()));
+			}
+			if (!passes.contains(pass)) {
+				passes.add(pass);
+			}
+		}
+		return new PassManager(passes);
+	}
+
+	// Each pass after those it runs after, and otherwise in the order given.
+	private static List<Pass> order(List<Pass> passes) {
+		List<Pass> remaining = new ArrayList<>(passes);
+		List<Pass> ordered = new ArrayList<>();
+		while (!remaining.isEmpty()) {
+			Pass next = null;
+			for (Pass pass : remaining) {
+				if (isReady(pass, remaining)) {
+					next = pass;
+					break;
+				}
+			}
+			if (next == null) {
+				throw new IllegalStateException("passes depend on each other in a cycle: " + remaining);
+			}
+			remaining.remove(next);
+			ordered.add(next);
+		}
+		return ordered;
+	}
+
+	private static boolean isReady(Pass pass, List<Pass> remaining) {
+		for (Pass other : remaining) {
+			if (pass.getRunsAfter().contains(other.getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The most instructions a method may have, before or after any pass; 0 for no limit
+	void setInstructionBudget(int instructions) {
+		this.instructionBudget = instructions;
+	}
+
+	// The longest all the passes over a method may take together; 0 for no limit
+	void setTimeBudget(long millis) {
+		this.nanosBudget = millis * 1000000L;
+	}
+
+	List<Pass> getPipeline() {
+		return pipeline;
+	}
+
+	List<String> getWarnings() {
+		return warnings;
+	}
+
+	// Identifies the pipeline and budgets, for the cache configuration.
+	String describe() {
+		StringBuilder description = new StringBuilder();
+		for (Pass pass : pipeline) {
+			description.append(pass.getName()).append(',');
+		}
+		return description.append(instructionBudget).append(',').append(nanosBudget).toString();
+	}
+
+	/**
+	 * Runs every pass of the pipeline over the method once, recording what each did; returns whether any of
+	 * them changed it. Returns false as soon as the method is over its budget, which then says why.
+	 */
+	boolean run(PassContext method) {
+		boolean changed = false;
+		method.deadline = nanosBudget > 0 ? Deadline.in(nanosBudget - method.nanos) : Deadline.NONE;
+		for (Pass pass : pipeline) {
+			if (isOverBudget(method)) {
+				return false;
+			}
+			long start = System.nanoTime();
+			boolean passChanged = pass.run(method);
+			method.metrics.pass(pass.getName()).record(start, passChanged, method.takeFolds());
+			method.metrics.bailout(pass.getName(), method.takeBailout());
+			method.nanos += System.nanoTime() - start;
+			if (passChanged) {
+				method.invalidate();
+				changed = true;
+			}
+		}
+		return changed && !isOverBudget(method);
+	}
+
+	private boolean isOverBudget(PassContext method) {
+		if (method.overBudget != null) {
+			return true;
+		}
+		int instructions = method.methodGen.getInstructionList().getLength();
+		if (instructionBudget > 0 && instructions > instructionBudget) {
+			method.overBudget = instructions + " instructions, over the budget of " + instructionBudget;
+		} else if (nanosBudget > 0 && method.nanos > nanosBudget) {
+			method.overBudget = String.format("%.1f ms of passes, over the budget of %d ms", method.nanos / 1e6, nanosBudget / 1000000L);
+		} else {
+			return false;
+		}
+		method.metrics.bailout("budget", method.overBudget);
+		warnings.add(method.metrics.className + "." + method.metrics.method + ": " + method.overBudget + "; left unchanged");
+		return true;
+	}
+}
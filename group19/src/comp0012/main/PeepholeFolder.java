@@ -0,0 +1,432 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Single forward pass over a method that folds constants.
+ *
+ * The pass keeps an abstract operand stack, one entry per stack word, recording which values are known
+ * constants and which instruction pushed them, together with the locals known to hold a constant or a
+ * String constant. Loads of known locals are replaced by the constant, as are reads of static fields the ProgramIndex knows
+ * and calls to pure methods whose result the known arguments decide, and arithmetic whose operands are
+ * both known is replaced by its result, however the operands were pushed. Everything known is forgotten at jump targets
+ * and after instructions that never fall through, so the pass only relies on straight-line code.
+ */
+class PeepholeFolder
+{
+	// A value on the abstract operand stack. Category 2 values occupy two consecutive words holding the same Value.
+	private static class Value
+	{
+		final Number constant;
+		final int size;
+		// The instruction that pushed the value and nothing else, so it can be deleted when the value is folded
+		InstructionHandle producer;
+
+		Value(Number constant, int size, InstructionHandle producer) {
+			this.constant = constant;
+			this.size = size;
+			this.producer = producer;
+		}
+	}
+
+	private static final Value UNKNOWN = new Value(null, 1, null);
+
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	// May be null, when only the method itself is folded
+	private final ProgramIndex program;
+	// After which calls are no longer evaluated
+	private final Deadline deadline;
+	// Whether local 0 holds this throughout, so a call on it cannot throw a NullPointerException
+	private final boolean thisIntact;
+
+	private final List<Value> stack = new ArrayList<>();
+	// The constants the locals hold, BOTTOM where none is known
+	private final LocalLattice locals;
+	// Locals holding a String constant, null elsewhere; loading it again with LDC gives the same interned String
+	private final String[] strings;
+
+	// Loads replaced by a constant and instructions replaced by their result
+	private int folds;
+
+	PeepholeFolder(MethodGen methodGen, ConstantPoolGen cpgen) {
+		this(methodGen, cpgen, null, Deadline.NONE);
+	}
+
+	PeepholeFolder(MethodGen methodGen, ConstantPoolGen cpgen, ProgramIndex program, Deadline deadline) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		this.program = program;
+		this.deadline = deadline;
+
+		boolean intact = !methodGen.isStatic();
+		// Passes that add locals may not have updated max_locals yet
+		int slots = Math.max(methodGen.getMaxLocals(), 1);
+		for (Instruction instruction : InstructionUtil.instructions(instructionList)) {
+			intact &= !(instruction instanceof ASTORE && ((ASTORE) instruction).getIndex() == 0);
+			if (instruction instanceof LocalVariableInstruction) {
+				LocalVariableInstruction local = (LocalVariableInstruction) instruction;
+				slots = Math.max(slots, local.getIndex() + (local instanceof IINC ? 1 : local.getType(cpgen).getSize()));
+			}
+		}
+		this.thisIntact = intact;
+		this.locals = new LocalLattice(slots, LocalLattice.BOTTOM);
+		this.strings = new String[slots];
+	}
+
+	boolean run() {
+		boolean modified = false;
+
+		InstructionHandle handle = instructionList.getStart();
+		while (handle != null) {
+			InstructionHandle next = handle.getNext();
+			if (InstructionUtil.isJumpTarget(handle)) {
+				forget();
+			}
+
+			if (step(handle)) {
+				folds++;
+				modified = true;
+			}
+
+			if (InstructionUtil.endsBlock(handle.getInstruction())) {
+				forget();
+			}
+			handle = next;
+		}
+
+		if (modified) {
+			instructionList.setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	private void forget() {
+		stack.clear();
+		locals.fill(LocalLattice.BOTTOM);
+		Arrays.fill(strings, null);
+	}
+
+	// Interprets one instruction; returns whether it was rewritten.
+	private boolean step(InstructionHandle handle) {
+		Instruction instruction = handle.getInstruction();
+
+		Number constant = getConstantValue(instruction, cpgen);
+		if (constant != null) {
+			push(new Value(constant, sizeOf(constant), handle));
+			return false;
+		}
+
+		if (instruction instanceof LoadInstruction && !(instruction instanceof ALOAD)) {
+			Number value = locals.get(((LoadInstruction) instruction).getIndex());
+			if (value == null) {
+				push(new Value(null, ((LoadInstruction) instruction).getType(cpgen).getSize(), null));
+				return false;
+			}
+			handle.setInstruction(createFoldingInstruction(value, cpgen));
+			push(new Value(value, sizeOf(value), handle));
+			return true;
+		}
+
+		if (getStringValue(handle, cpgen) != null) {
+			// Not a number, but remembered so a store can record the local as holding the String
+			push(new Value(null, 1, handle));
+			return false;
+		}
+
+		if (instruction instanceof ALOAD && strings[((ALOAD) instruction).getIndex()] != null) {
+			handle.setInstruction(new LDC(cpgen.addString(strings[((ALOAD) instruction).getIndex()])));
+			push(new Value(null, 1, handle));
+			return true;
+		}
+
+		if (instruction instanceof ALOAD && ((ALOAD) instruction).getIndex() == 0 && thisIntact) {
+			// Not a constant, but remembered so a folded call on this can delete the load
+			push(new Value(null, 1, handle));
+			return false;
+		}
+
+		if (instruction instanceof InvokeInstruction && program != null) {
+			MethodSummaries.Summary callee = program.getMethods().resolve(methodGen.getClassName(), (InvokeInstruction) instruction, cpgen);
+			if (callee != null) {
+				return foldCall(handle, callee);
+			}
+		}
+
+		if (instruction instanceof GETSTATIC && program != null) {
+			Number value = program.getFieldConstants().valueOf((GETSTATIC) instruction, cpgen, methodGen);
+			if (value != null) {
+				handle.setInstruction(createFoldingInstruction(value, cpgen));
+				push(new Value(value, sizeOf(value), handle));
+				return true;
+			}
+		}
+
+		if (instruction instanceof StoreInstruction) {
+			StoreInstruction store = (StoreInstruction) instruction;
+			int size = store.getType(cpgen).getSize();
+			Value value = pop(size);
+			int index = store.getIndex();
+
+			// A store also breaks any category 2 value that overlapped the slot
+			if (index > 0 && locals.sizeOf(index - 1) == 2) {
+				locals.setBottom(index - 1);
+			}
+			if (size == 2) {
+				locals.setBottom(index + 1);
+				strings[index + 1] = null;
+			}
+			if (value.constant != null && !(store instanceof ASTORE)) {
+				locals.set(index, value.constant);
+			} else {
+				locals.setBottom(index);
+			}
+			strings[index] = store instanceof ASTORE ? getStringValue(value.producer, cpgen) : null;
+			return false;
+		}
+
+		if (instruction instanceof IINC) {
+			IINC iinc = (IINC) instruction;
+			if (locals.kind(iinc.getIndex()) == LocalLattice.INT) {
+				locals.setInt(iinc.getIndex(), locals.intValue(iinc.getIndex()) + iinc.getIncrement());
+			}
+			return false;
+		}
+
+		if (ConstantEvaluator.canEvaluate(instruction.getOpcode())) {
+			return fold(handle, instruction);
+		}
+
+		if (instruction instanceof StackInstruction) {
+			shuffle((StackInstruction) instruction);
+			return false;
+		}
+
+		popWords(instruction.consumeStack(cpgen));
+		pushUnknownWords(instruction.produceStack(cpgen));
+		return false;
+	}
+
+	// Arithmetic, comparisons and conversions, folded when every operand is a constant that can be deleted.
+	private boolean fold(InstructionHandle handle, Instruction instruction) {
+		short opcode = instruction.getOpcode();
+		int[] sizes = ConstantEvaluator.operandSizes(opcode);
+		Value[] operands = new Value[sizes.length];
+		Number[] constants = new Number[sizes.length];
+		boolean known = true;
+		for (int i = sizes.length - 1; i >= 0; i--) {
+			operands[i] = pop(sizes[i]);
+			constants[i] = operands[i].constant;
+			known &= operands[i].constant != null && operands[i].producer != null;
+		}
+
+		Number result = known ? ConstantEvaluator.evaluate(opcode, constants) : null;
+		if (result == null) {
+			push(new Value(null, ConstantEvaluator.resultSize(opcode), null));
+			return false;
+		}
+
+		for (Value operand : operands) {
+			InstructionUtil.delete(methodGen, operand.producer);
+		}
+		handle.setInstruction(createFoldingInstruction(result, cpgen));
+		push(new Value(result, sizeOf(result), handle));
+		return true;
+	}
+
+	/**
+	 * A call to a pure method, folded when the arguments known here decide its result. The pushes of the
+	 * arguments and of this are deleted where they can be, and anything else the call consumed is popped.
+	 */
+	private boolean foldCall(InstructionHandle handle, MethodSummaries.Summary callee) {
+		Value[] arguments = new Value[callee.argumentTypes.length];
+		Number[] constants = new Number[arguments.length];
+		for (int i = arguments.length - 1; i >= 0; i--) {
+			arguments[i] = pop(callee.argumentTypes[i].getSize());
+			constants[i] = arguments[i].constant;
+		}
+		Value receiver = callee.isStatic ? null : pop(1);
+		boolean receiverIsThis = receiver == null || (receiver.constant == null && receiver.producer != null);
+
+		Number result = receiverIsThis ? program.getMethods().evaluate(callee, constants, deadline) : null;
+		if (result == null) {
+			push(new Value(null, callee.returnType.getSize(), null));
+			return false;
+		}
+
+		// Values still on the stack below the call are popped, last first
+		List<Instruction> replacement = new ArrayList<>();
+		for (int i = -1; i < arguments.length; i++) {
+			Value operand = i < 0 ? receiver : arguments[i];
+			if (operand == null) {
+				continue;
+			}
+			if (operand.producer != null) {
+				InstructionUtil.delete(methodGen, operand.producer);
+			} else {
+				replacement.add(0, i >= 0 && callee.argumentTypes[i].getSize() == 2 ? InstructionConstants.POP2 : InstructionConstants.POP);
+			}
+		}
+		replacement.add(createFoldingInstruction(result, cpgen));
+
+		InstructionHandle last = handle;
+		handle.setInstruction(replacement.get(0));
+		for (Instruction instruction : replacement.subList(1, replacement.size())) {
+			last = instructionList.append(last, instruction);
+		}
+		push(new Value(result, sizeOf(result), last));
+		return true;
+	}
+
+	// DUP, SWAP and friends move words around; the moved values stay known but can no longer be deleted.
+	private void shuffle(StackInstruction instruction) {
+		int consumed = instruction.consumeStack(cpgen);
+		List<Value> words = new ArrayList<>();
+		for (int i = 0; i < consumed; i++) {
+			Value word = stack.isEmpty() ? UNKNOWN : stack.remove(stack.size() - 1);
+			word.producer = null;
+			words.add(0, word);
+		}
+
+		// words[0] is the deepest consumed word
+		switch (instruction.getOpcode()) {
+			case Constants.POP:
+			case Constants.POP2:
+				break;
+			case Constants.DUP:
+				pushWords(words, 0, 0);
+				break;
+			case Constants.DUP_X1:
+				pushWords(words, 1, 0, 1);
+				break;
+			case Constants.DUP_X2:
+				pushWords(words, 2, 0, 1, 2);
+				break;
+			case Constants.DUP2:
+				pushWords(words, 0, 1, 0, 1);
+				break;
+			case Constants.DUP2_X1:
+				pushWords(words, 1, 2, 0, 1, 2);
+				break;
+			case Constants.DUP2_X2:
+				pushWords(words, 2, 3, 0, 1, 2, 3);
+				break;
+			case Constants.SWAP:
+				pushWords(words, 1, 0);
+				break;
+			default:
+				pushUnknownWords(instruction.produceStack(cpgen));
+		}
+	}
+
+	private void pushWords(List<Value> words, int... order) {
+		for (int index : order) {
+			stack.add(words.get(index));
+		}
+	}
+
+	private void push(Value value) {
+		for (int i = 0; i < value.size; i++) {
+			stack.add(value);
+		}
+	}
+
+	// Pops one value of the given size; anything that does not line up is treated as unknown.
+	private Value pop(int size) {
+		Value top = stack.isEmpty() ? UNKNOWN : stack.remove(stack.size() - 1);
+		if (size == 1) {
+			return top.size == 1 ? top : UNKNOWN;
+		}
+		Value below = stack.isEmpty() ? UNKNOWN : stack.remove(stack.size() - 1);
+		return top == below && top.size == 2 ? top : UNKNOWN;
+	}
+
+	private void popWords(int words) {
+		for (int i = 0; i < words && !stack.isEmpty(); i++) {
+			stack.remove(stack.size() - 1);
+		}
+	}
+
+	private void pushUnknownWords(int words) {
+		for (int i = 0; i < words; i++) {
+			stack.add(UNKNOWN);
+		}
+	}
+
+	private static int sizeOf(Number value) {
+		return value instanceof Long || value instanceof Double ? 2 : 1;
+	}
+
+	// The numeric constant pushed by the instruction, or null if it does not push one.
+	static Number getConstantValue(Instruction ins, ConstantPoolGen constPoolGen) {
+		if (ins instanceof ConstantPushInstruction) {
+			return ((ConstantPushInstruction) ins).getValue(); // ICONST, BIPUSH, SIPUSH, LCONST, FCONST, DCONST.
+		} else if (ins instanceof LDC) {
+			Object value = ((LDC) ins).getValue(constPoolGen);
+			return value instanceof Number ? (Number) value : null; // Could be Integer or Float.
+		} else if (ins instanceof LDC2_W) {
+			return (Number) ((LDC2_W) ins).getValue(constPoolGen); // Could be Long or Double.
+		}
+		return null;
+	}
+
+	// The String constant the instruction pushes, or null if it is not an LDC of a String.
+	static String getStringValue(InstructionHandle handle, ConstantPoolGen constPoolGen) {
+		if (handle != null && handle.getInstruction() instanceof LDC) {
+			Object value = ((LDC) handle.getInstruction()).getValue(constPoolGen);
+			return value instanceof String ? (String) value : null;
+		}
+		return null;
+	}
+
+	/**
+	 * The shortest instruction that pushes the value: ICONST/LCONST/FCONST/DCONST, then BIPUSH or SIPUSH,
+	 * and only then LDC (which BCEL widens to LDC_W past index 255) or LDC2_W with a constant pool entry.
+	 */
+	static Instruction createFoldingInstruction(Number result, ConstantPoolGen constPoolGen) {
+		if (result instanceof Integer) {
+			int value = (Integer) result;
+			if (value >= -1 && value <= 5) {
+				return new ICONST(value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				return new BIPUSH((byte) value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				return new SIPUSH((short) value);
+			}
+			return new LDC(constPoolGen.addInteger(value));
+		}
+		else if (result instanceof Float) {
+			// Float.equals compares bit patterns, so -0.0f is not mistaken for FCONST_0
+			if (result.equals(0.0f) || result.equals(1.0f) || result.equals(2.0f)) {
+				return new FCONST((Float) result);
+			}
+			return new LDC(constPoolGen.addFloat((Float) result));
+		}
+		else if (result instanceof Long) {
+			if ((Long) result == 0L || (Long) result == 1L) {
+				return new LCONST((Long) result);
+			}
+			return new LDC2_W(constPoolGen.addLong((Long) result));
+		}
+		else if (result instanceof Double) {
+			if (result.equals(0.0) || result.equals(1.0)) {
+				return new DCONST((Double) result);
+			}
+			return new LDC2_W(constPoolGen.addDouble((Double) result));
+		}
+		else {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+
+/**
+ * What the optimiser knows about the whole input tree before it optimises any class of it: the constant
+ * static fields (FieldConstantIndex), the pure methods (MethodSummaries) and the library methods taken
+ * to be pure (PureIntrinsics). It is only read once built,
+ * so the classes can then be optimised in parallel against it.
+ */
+public class ProgramIndex
+{
+	private final FieldConstantIndex fieldConstants;
+	private final ClassHierarchy hierarchy;
+	private final PureIntrinsics intrinsics;
+	private final MethodSummaries methods;
+
+	private ProgramIndex(PureIntrinsics intrinsics) {
+		this.fieldConstants = new FieldConstantIndex();
+		this.hierarchy = new ClassHierarchy();
+		this.intrinsics = intrinsics;
+		this.methods = new MethodSummaries(fieldConstants, intrinsics);
+	}
+
+	private ProgramIndex(ProgramIndex index, Map<String, String> used) {
+		this.fieldConstants = index.fieldConstants.recording(used);
+		this.hierarchy = index.hierarchy.recording(used);
+		this.intrinsics = index.intrinsics;
+		this.methods = index.methods.recording(used);
+	}
+
+	// Receives each class of the tree in turn
+	private interface ClassVisitor
+	{
+		void visit(JavaClass cls);
+	}
+
+	// Indexes every class file in the directory tree.
+	public static ProgramIndex ofDirectory(final Path root, PureIntrinsics intrinsics) throws IOException {
+		return build(intrinsics, visitor -> {
+			try (Stream<Path> files = Files.walk(root)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					if (file.toString().endsWith(".class") && Files.isRegularFile(file)) {
+						visit(Files.readAllBytes(file), visitor);
+					}
+				}
+			}
+		});
+	}
+
+	// Indexes every class file entry of the JAR/ZIP file.
+	public static ProgramIndex ofArchive(final String path, PureIntrinsics intrinsics) throws IOException {
+		return build(intrinsics, visitor -> {
+			try (ZipFile archive = new ZipFile(path)) {
+				Enumeration<? extends ZipEntry> entries = archive.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+						visit(archive.getInputStream(entry).readAllBytes(), visitor);
+					}
+				}
+			}
+		});
+	}
+
+	// Indexes the classes given, e.g. the single class optimised when there is no input tree.
+	static ProgramIndex of(final JavaClass... classes) {
+		try {
+			return build(PureIntrinsics.defaults(), visitor -> {
+				for (JavaClass cls : classes) {
+					visitor.visit(cls);
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Walks the tree, calling the visitor with each class
+	private interface Tree
+	{
+		void walk(ClassVisitor visitor) throws IOException;
+	}
+
+	/**
+	 * Walks the tree twice rather than holding every class in memory: every field constant must be known
+	 * before the methods reading them are summarised.
+	 */
+	private static ProgramIndex build(PureIntrinsics intrinsics, Tree tree) throws IOException {
+		final ProgramIndex index = new ProgramIndex(intrinsics);
+		tree.walk(cls -> {
+			try {
+				index.hierarchy.add(cls);
+				index.fieldConstants.add(cls);
+			} catch (RuntimeException e) {
+				// Code BCEL cannot read; nothing from the class is indexed
+			}
+		});
+		tree.walk(cls -> {
+			try {
+				index.methods.add(cls);
+			} catch (RuntimeException e) {
+				// Likewise, its methods are left unsummarised
+			}
+		});
+		index.methods.summarise();
+		return index;
+	}
+
+	// Class files that cannot be parsed are skipped here; the optimiser reports them when it gets to them.
+	private static void visit(byte[] classFile, ClassVisitor visitor) {
+		JavaClass cls;
+		try {
+			cls = new ClassParser(new ByteArrayInputStream(classFile), "index").parse();
+		} catch (IOException | ClassFormatException e) {
+			return;
+		}
+		visitor.visit(cls);
+	}
+
+	FieldConstantIndex getFieldConstants() {
+		return fieldConstants;
+	}
+
+	MethodSummaries getMethods() {
+		return methods;
+	}
+
+	ClassHierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	PureIntrinsics getIntrinsics() {
+		return intrinsics;
+	}
+
+	public int getFieldCount() {
+		return fieldConstants.size();
+	}
+
+	public int getMethodCount() {
+		return methods.size();
+	}
+
+	/**
+	 * A view of the index that records in used what optimising one class reads of the program, each fact
+	 * under the question it answers. The cache keeps them with the optimised class, which is reused for as
+	 * long as isCurrent() holds for them, whatever else in the tree changes.
+	 */
+	ProgramIndex recording(Map<String, String> used) {
+		return new ProgramIndex(this, used);
+	}
+
+	// Whether the index still gives the recorded answer to every question.
+	boolean isCurrent(Map<String, String> used) {
+		for (Map.Entry<String, String> fact : used.entrySet()) {
+			if (!fact.getValue().equals(fact(fact.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The answer to a question a view recorded, or null if there is no such question.
+	private String fact(String question) {
+		if (question.startsWith(ClassHierarchy.FACT)) {
+			return hierarchy.fact(question.substring(ClassHierarchy.FACT.length()));
+		}
+		if (question.startsWith(MethodSummaries.FACT)) {
+			return methods.fact(question.substring(MethodSummaries.FACT.length()));
+		}
+		if (question.startsWith(FieldConstantIndex.FIELD_FACT)) {
+			return fieldConstants.fieldFact(question.substring(FieldConstantIndex.FIELD_FACT.length()));
+		}
+		if (question.startsWith(FieldConstantIndex.INITIALISATION_FACT)) {
+			return fieldConstants.initialisationFact(question.substring(FieldConstantIndex.INITIALISATION_FACT.length()));
+		}
+		return null;
+	}
+
+	/**
+	 * Identifies the parts of the index every class is optimised against, for the cache configuration;
+	 * what a class reads of the rest is checked entry by entry.
+	 */
+	public String fingerprint() {
+		MessageDigest digest = OptimisationCache.newDigest();
+		intrinsics.digest(digest);
+		return OptimisationCache.hex(digest);
+	}
+}
@@ -0,0 +1,109 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The program indexes a daemon keeps between runs, so optimising the same input tree again skips the two
+ * walks over every class that indexing it takes.
+ *
+ * An index is reused while nothing it was built from has changed: every class file of the tree, or the
+ * archive, and the intrinsics file must have the same size and modification time. Checking that only
+ * reads the directory entries. The most recently used few indexes are kept.
+ */
+final class ProgramIndexCache
+{
+	static final int DEFAULT_CAPACITY = 8;
+
+	private static final class Entry
+	{
+		final String stamp;
+		final ProgramIndex index;
+
+		Entry(String stamp, ProgramIndex index) {
+			this.stamp = stamp;
+			this.index = index;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+	private int hits = 0;
+	private int misses = 0;
+
+	ProgramIndexCache(final int capacity) {
+		// In access order, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * The index of the directory tree or JAR/ZIP file, with the intrinsics of the given file or the defaults,
+	 * built now unless an earlier one is still up to date.
+	 */
+	ProgramIndex get(String inputRoot, String intrinsicsFile) throws IOException {
+		Path input = Paths.get(inputRoot).toAbsolutePath().normalize();
+		Path intrinsics = intrinsicsFile == null ? null : Paths.get(intrinsicsFile).toAbsolutePath().normalize();
+		String key = input + "\n" + intrinsics;
+		String stamp = stamp(input, intrinsics);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.stamp.equals(stamp)) {
+				hits++;
+				return entry.index;
+			}
+			misses++;
+		}
+
+		// Built outside the lock, so runs over other trees are not held up
+		PureIntrinsics pure = intrinsics != null ? PureIntrinsics.load(intrinsics) : PureIntrinsics.defaults();
+		ProgramIndex index = Main.isArchive(inputRoot) ? ProgramIndex.ofArchive(inputRoot, pure) : ProgramIndex.ofDirectory(input, pure);
+		synchronized (this) {
+			entries.put(key, new Entry(stamp, index));
+		}
+		return index;
+	}
+
+	synchronized int getHits() {
+		return hits;
+	}
+
+	synchronized int getMisses() {
+		return misses;
+	}
+
+	// Digest of the path, size and modification time of every file the index is built from.
+	private static String stamp(Path input, Path intrinsics) throws IOException {
+		MessageDigest digest = OptimisationCache.newDigest();
+		if (Files.isDirectory(input)) {
+			try (Stream<Path> files = Files.walk(input)) {
+				for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+					if (file.toString().endsWith(".class") && Files.isRegularFile(file)) {
+						digestFile(digest, file);
+					}
+				}
+			}
+		} else {
+			digestFile(digest, input);
+		}
+		if (intrinsics != null) {
+			digestFile(digest, intrinsics);
+		}
+		return OptimisationCache.hex(digest);
+	}
+
+	private static void digestFile(MessageDigest digest, Path file) throws IOException {
+		String line = file + " " + Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis() + "\n";
+		digest.update(line.getBytes(StandardCharsets.UTF_8));
+	}
+}
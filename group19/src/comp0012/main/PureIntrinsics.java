@@ -0,0 +1,250 @@
+package comp0012.main;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BasicType;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+/**
+ * Whitelist of library methods known to be pure, so calls to them on constant arguments are evaluated while
+ * optimising, by calling them through reflection, and replaced by their result.
+ *
+ * Methods are named with their descriptor, e.g. java.lang.Math.abs(I)I. Only methods taking and returning
+ * primitives and Strings are evaluated, and only those whose result is the same on every JVM belong here:
+ * Math.sin or Double.toString, whose results may differ between JVMs or releases, do not. A call that
+ * throws is left for the program to throw at run time.
+ *
+ * The defaults can be changed with a file of one method per line: a line adds a method, a line starting
+ * with - removes one, and lines starting with # are comments.
+ */
+public class PureIntrinsics
+{
+	static final List<String> DEFAULTS = Arrays.asList(
+			"java.lang.Math.abs(I)I", "java.lang.Math.abs(J)J", "java.lang.Math.abs(F)F", "java.lang.Math.abs(D)D",
+			"java.lang.Math.min(II)I", "java.lang.Math.min(JJ)J", "java.lang.Math.min(FF)F", "java.lang.Math.min(DD)D",
+			"java.lang.Math.max(II)I", "java.lang.Math.max(JJ)J", "java.lang.Math.max(FF)F", "java.lang.Math.max(DD)D",
+			"java.lang.Math.sqrt(D)D", "java.lang.StrictMath.sqrt(D)D",
+			"java.lang.Math.floorDiv(II)I", "java.lang.Math.floorDiv(JJ)J", "java.lang.Math.floorMod(II)I", "java.lang.Math.floorMod(JJ)J",
+			"java.lang.Math.addExact(II)I", "java.lang.Math.addExact(JJ)J", "java.lang.Math.subtractExact(II)I",
+			"java.lang.Math.subtractExact(JJ)J", "java.lang.Math.multiplyExact(II)I", "java.lang.Math.multiplyExact(JJ)J",
+			"java.lang.Math.negateExact(I)I", "java.lang.Math.negateExact(J)J", "java.lang.Math.toIntExact(J)I",
+			"java.lang.Math.signum(F)F", "java.lang.Math.signum(D)D",
+			"java.lang.Integer.bitCount(I)I", "java.lang.Integer.highestOneBit(I)I", "java.lang.Integer.lowestOneBit(I)I",
+			"java.lang.Integer.numberOfLeadingZeros(I)I", "java.lang.Integer.numberOfTrailingZeros(I)I",
+			"java.lang.Integer.reverse(I)I", "java.lang.Integer.reverseBytes(I)I", "java.lang.Integer.rotateLeft(II)I",
+			"java.lang.Integer.rotateRight(II)I", "java.lang.Integer.signum(I)I", "java.lang.Integer.compare(II)I",
+			"java.lang.Integer.hashCode(I)I", "java.lang.Integer.sum(II)I", "java.lang.Integer.min(II)I", "java.lang.Integer.max(II)I",
+			"java.lang.Integer.toString(I)Ljava/lang/String;", "java.lang.Integer.toString(II)Ljava/lang/String;",
+			"java.lang.Integer.toHexString(I)Ljava/lang/String;", "java.lang.Integer.toBinaryString(I)Ljava/lang/String;",
+			"java.lang.Integer.toOctalString(I)Ljava/lang/String;", "java.lang.Integer.parseInt(Ljava/lang/String;)I",
+			"java.lang.Long.bitCount(J)I", "java.lang.Long.numberOfLeadingZeros(J)I", "java.lang.Long.numberOfTrailingZeros(J)I",
+			"java.lang.Long.reverse(J)J", "java.lang.Long.reverseBytes(J)J", "java.lang.Long.rotateLeft(JI)J",
+			"java.lang.Long.rotateRight(JI)J", "java.lang.Long.signum(J)I", "java.lang.Long.compare(JJ)I",
+			"java.lang.Long.hashCode(J)I", "java.lang.Long.sum(JJ)J", "java.lang.Long.min(JJ)J", "java.lang.Long.max(JJ)J",
+			"java.lang.Long.toString(J)Ljava/lang/String;", "java.lang.Long.toHexString(J)Ljava/lang/String;",
+			"java.lang.Long.parseLong(Ljava/lang/String;)J",
+			"java.lang.Short.toString(S)Ljava/lang/String;", "java.lang.Byte.toString(B)Ljava/lang/String;",
+			"java.lang.Boolean.hashCode(Z)I", "java.lang.Boolean.toString(Z)Ljava/lang/String;",
+			"java.lang.Character.hashCode(C)I", "java.lang.Character.toString(C)Ljava/lang/String;",
+			"java.lang.Double.compare(DD)I", "java.lang.Double.hashCode(D)I", "java.lang.Double.doubleToLongBits(D)J",
+			"java.lang.Double.isNaN(D)Z", "java.lang.Double.isInfinite(D)Z",
+			"java.lang.Float.compare(FF)I", "java.lang.Float.hashCode(F)I", "java.lang.Float.floatToIntBits(F)I",
+			"java.lang.Float.isNaN(F)Z", "java.lang.Float.isInfinite(F)Z",
+			"java.lang.String.valueOf(I)Ljava/lang/String;", "java.lang.String.valueOf(J)Ljava/lang/String;",
+			"java.lang.String.valueOf(Z)Ljava/lang/String;", "java.lang.String.valueOf(C)Ljava/lang/String;",
+			"java.lang.String.length()I", "java.lang.String.isEmpty()Z", "java.lang.String.hashCode()I",
+			"java.lang.String.charAt(I)C", "java.lang.String.indexOf(I)I", "java.lang.String.indexOf(Ljava/lang/String;)I",
+			"java.lang.String.substring(I)Ljava/lang/String;", "java.lang.String.substring(II)Ljava/lang/String;",
+			"java.lang.String.concat(Ljava/lang/String;)Ljava/lang/String;", "java.lang.String.equals(Ljava/lang/Object;)Z",
+			"java.lang.String.startsWith(Ljava/lang/String;)Z", "java.lang.String.endsWith(Ljava/lang/String;)Z");
+
+	private final Set<String> methods = new TreeSet<>(DEFAULTS);
+
+	// The reflected method of each whitelisted method looked up so far, or empty if it cannot be called
+	private final Map<String, Optional<Method>> resolved = new ConcurrentHashMap<>();
+
+	public static PureIntrinsics defaults() {
+		return new PureIntrinsics();
+	}
+
+	// The defaults, changed by the lines of the file.
+	public static PureIntrinsics load(Path file) throws IOException {
+		PureIntrinsics intrinsics = new PureIntrinsics();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			if (line.startsWith("-")) {
+				intrinsics.methods.remove(line.substring(1).trim());
+			} else {
+				intrinsics.methods.add(line);
+			}
+		}
+		return intrinsics;
+	}
+
+	private PureIntrinsics() {
+	}
+
+	private static String key(String className, String name, String descriptor) {
+		return className + "." + name + descriptor;
+	}
+
+	boolean contains(String className, String name, String descriptor) {
+		return methods.contains(key(className, name, descriptor));
+	}
+
+	/**
+	 * The result of the whitelisted method on the constants pushed for its receiver, or null for a static
+	 * method, and arguments: a Number for a primitive, with booleans and chars as ints, or a String. Null
+	 * if the method is not whitelisted or cannot be called, a constant is not of the type it is passed as,
+	 * or the call throws.
+	 */
+	Object evaluate(String className, String name, String descriptor, Object receiver, Object[] arguments) {
+		if (!contains(className, name, descriptor)) {
+			return null;
+		}
+		Method method = resolve(className, name, descriptor);
+		if (method == null || Modifier.isStatic(method.getModifiers()) != (receiver == null)) {
+			return null;
+		}
+		Type[] types = Type.getArgumentTypes(descriptor);
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			values[i] = toJava(arguments[i], types[i]);
+			if (values[i] == null) {
+				return null;
+			}
+		}
+		if (receiver != null && !method.getDeclaringClass().isInstance(receiver)) {
+			return null;
+		}
+
+		Object result;
+		try {
+			result = method.invoke(receiver, values);
+		} catch (InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
+			return null;
+		}
+		if (result instanceof Boolean) {
+			return (Boolean) result ? 1 : 0;
+		}
+		if (result instanceof Character) {
+			return (int) (Character) result;
+		}
+		if (result instanceof Byte || result instanceof Short) {
+			return ((Number) result).intValue();
+		}
+		return result instanceof Number || result instanceof String ? result : null;
+	}
+
+	// A constant as the bytecode pushes it, converted to the value reflection passes as the given type.
+	private static Object toJava(Object constant, Type type) {
+		if (type.equals(Type.STRING)) {
+			return constant instanceof String ? constant : null;
+		}
+		switch (type.getType()) {
+			case org.apache.bcel.Constants.T_INT:
+				return constant instanceof Integer ? constant : null;
+			case org.apache.bcel.Constants.T_BOOLEAN:
+				return constant instanceof Integer ? (Object) ((Integer) constant != 0) : null;
+			case org.apache.bcel.Constants.T_CHAR:
+				return constant instanceof Integer ? (Object) (char) (int) (Integer) constant : null;
+			case org.apache.bcel.Constants.T_BYTE:
+				return constant instanceof Integer ? (Object) (byte) (int) (Integer) constant : null;
+			case org.apache.bcel.Constants.T_SHORT:
+				return constant instanceof Integer ? (Object) (short) (int) (Integer) constant : null;
+			case org.apache.bcel.Constants.T_LONG:
+				return constant instanceof Long ? constant : null;
+			case org.apache.bcel.Constants.T_FLOAT:
+				return constant instanceof Float ? constant : null;
+			case org.apache.bcel.Constants.T_DOUBLE:
+				return constant instanceof Double ? constant : null;
+			default:
+				// Object parameters, e.g. String.equals(Object), are only passed Strings
+				return constant instanceof String ? constant : null;
+		}
+	}
+
+	private Method resolve(String className, String name, String descriptor) {
+		String key = key(className, name, descriptor);
+		Optional<Method> method = resolved.get(key);
+		if (method == null) {
+			method = Optional.ofNullable(lookup(className, name, descriptor));
+			resolved.put(key, method);
+		}
+		return method.orElse(null);
+	}
+
+	private static Method lookup(String className, String name, String descriptor) {
+		try {
+			Type[] types = Type.getArgumentTypes(descriptor);
+			Class<?>[] parameters = new Class<?>[types.length];
+			for (int i = 0; i < types.length; i++) {
+				parameters[i] = toClass(types[i]);
+			}
+			Method method = Class.forName(className, false, PureIntrinsics.class.getClassLoader()).getMethod(name, parameters);
+			return method.getReturnType() == toClass(Type.getReturnType(descriptor)) ? method : null;
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static Class<?> toClass(Type type) throws ClassNotFoundException {
+		if (type instanceof BasicType) {
+			switch (type.getType()) {
+				case org.apache.bcel.Constants.T_BOOLEAN: return boolean.class;
+				case org.apache.bcel.Constants.T_BYTE: return byte.class;
+				case org.apache.bcel.Constants.T_CHAR: return char.class;
+				case org.apache.bcel.Constants.T_SHORT: return short.class;
+				case org.apache.bcel.Constants.T_INT: return int.class;
+				case org.apache.bcel.Constants.T_LONG: return long.class;
+				case org.apache.bcel.Constants.T_FLOAT: return float.class;
+				case org.apache.bcel.Constants.T_DOUBLE: return double.class;
+				default: return void.class;
+			}
+		}
+		if (type instanceof ObjectType && !(type instanceof ArrayType)) {
+			return Class.forName(((ObjectType) type).getClassName(), false, PureIntrinsics.class.getClassLoader());
+		}
+		throw new ClassNotFoundException(type.toString());
+	}
+
+	// Whether the method takes and returns only primitives, so pure methods of the program may call it.
+	boolean isNumeric(String className, String name, String descriptor) {
+		if (!contains(className, name, descriptor) || !(Type.getReturnType(descriptor) instanceof BasicType)) {
+			return false;
+		}
+		for (Type type : Type.getArgumentTypes(descriptor)) {
+			if (!(type instanceof BasicType)) {
+				return false;
+			}
+		}
+		Method method = resolve(className, name, descriptor);
+		return method != null && Modifier.isStatic(method.getModifiers());
+	}
+
+	// Adds the whitelist to the digest identifying the optimiser's configuration.
+	void digest(MessageDigest digest) {
+		for (String method : methods) {
+			digest.update(("intrinsic " + method + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,482 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.Unknown;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BasicType;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.InstructionTargeter;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+/**
+ * The StackMapTable of a method whose code is being rewritten.
+ * Every frame is attached to the instruction it describes as an InstructionTargeter, so frames follow
+ * the code through insertions and deletions and are re-encoded with fresh offsets once the passes are done.
+ */
+class StackMapFrames
+{
+	static final String ATTRIBUTE_NAME = "StackMapTable";
+
+	static class VerificationType
+	{
+		final byte tag;
+		final String className; // ITEM_Object only
+		InstructionHandle newSite; // ITEM_NewObject only
+
+		VerificationType(byte tag, String className, InstructionHandle newSite) {
+			this.tag = tag;
+			this.className = className;
+			this.newSite = newSite;
+		}
+
+		boolean sameAs(VerificationType other) {
+			return tag == other.tag && newSite == other.newSite
+					&& (className == null ? other.className == null : className.equals(other.className));
+		}
+	}
+
+	class Frame implements InstructionTargeter
+	{
+		InstructionHandle target;
+		VerificationType[] locals;
+		VerificationType[] stack;
+
+		// The frames of the method the frame belongs to, to which copies of it are added
+		StackMapFrames owner() {
+			return StackMapFrames.this;
+		}
+
+		public boolean containsTarget(InstructionHandle ih) {
+			if (target == ih) {
+				return true;
+			}
+			for (VerificationType type : locals) {
+				if (type.newSite == ih) return true;
+			}
+			for (VerificationType type : stack) {
+				if (type.newSite == ih) return true;
+			}
+			return false;
+		}
+
+		public void updateTarget(InstructionHandle oldIh, InstructionHandle newIh) {
+			if (target == oldIh) {
+				target = newIh;
+			}
+			for (VerificationType type : locals) {
+				if (type.newSite == oldIh) type.newSite = newIh;
+			}
+			for (VerificationType type : stack) {
+				if (type.newSite == oldIh) type.newSite = newIh;
+			}
+			if (!containsTarget(oldIh)) {
+				oldIh.removeTargeter(this);
+			}
+			if (newIh != null) {
+				newIh.addTargeter(this);
+			}
+		}
+
+		/**
+		 * Moves the local in each slot to newSlots[slot], or turns it into Top if that is -1.
+		 * The uninitialized this of a constructor stays where it is, since the verifier tracks it separately.
+		 */
+		void remapLocals(int[] newSlots) {
+			List<VerificationType> slots = new ArrayList<>(); // one entry per slot; null for the second half of a category 2 type
+			List<VerificationType> dropped = new ArrayList<>();
+			int slot = 0;
+			for (VerificationType type : locals) {
+				int newSlot = slot < newSlots.length ? newSlots[slot] : -1;
+				if (type.tag == Constants.ITEM_InitObject) {
+					newSlot = slot;
+				}
+				if (newSlot >= 0 && type.tag != Constants.ITEM_Bogus) {
+					while (slots.size() < newSlot + size(type)) {
+						slots.add(top());
+					}
+					slots.set(newSlot, type);
+					if (size(type) == 2) {
+						slots.set(newSlot + 1, null);
+					}
+				} else {
+					dropped.add(type);
+				}
+				slot += size(type);
+			}
+
+			List<VerificationType> remapped = new ArrayList<>();
+			for (VerificationType type : slots) {
+				if (type != null) {
+					remapped.add(type);
+				}
+			}
+			while (!remapped.isEmpty() && remapped.get(remapped.size() - 1).tag == Constants.ITEM_Bogus) {
+				remapped.remove(remapped.size() - 1);
+			}
+			locals = remapped.toArray(new VerificationType[remapped.size()]);
+
+			for (VerificationType type : dropped) {
+				if (type.newSite != null && !containsTarget(type.newSite)) {
+					type.newSite.removeTargeter(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a copy of the frame describing another instruction, for code copied elsewhere: an uninitialized
+	 * object created by a NEW that was copied too is created by the copy of the NEW.
+	 */
+	Frame copyFrame(Frame frame, InstructionHandle target, Map<InstructionHandle, InstructionHandle> copies) {
+		Frame copy = new Frame();
+		copy.target = target;
+		copy.locals = copyTypes(frame.locals);
+		copy.stack = copyTypes(frame.stack);
+		target.addTargeter(copy);
+		for (VerificationType type : copy.locals) {
+			moveNewSite(copy, type, copies);
+		}
+		for (VerificationType type : copy.stack) {
+			moveNewSite(copy, type, copies);
+		}
+		frames.add(copy);
+		return copy;
+	}
+
+	private static void moveNewSite(Frame frame, VerificationType type, Map<InstructionHandle, InstructionHandle> copies) {
+		if (type.newSite != null) {
+			if (copies.containsKey(type.newSite)) {
+				type.newSite = copies.get(type.newSite);
+			}
+			type.newSite.addTargeter(frame);
+		}
+	}
+
+	private static boolean needsFrame(InstructionHandle handle) {
+		return InstructionUtil.isJumpTarget(handle)
+				|| (handle.getPrev() != null && InstructionUtil.endsBlock(handle.getPrev().getInstruction()));
+	}
+
+	// The frames describing the state at the given instruction.
+	static List<Frame> framesAt(InstructionHandle handle) {
+		List<Frame> found = new ArrayList<>();
+		if (handle.hasTargeters()) {
+			for (InstructionTargeter targeter : handle.getTargeters()) {
+				if (targeter instanceof Frame && ((Frame) targeter).target == handle) {
+					found.add((Frame) targeter);
+				}
+			}
+		}
+		return found;
+	}
+
+	private static VerificationType top() {
+		return new VerificationType(Constants.ITEM_Bogus, null, null);
+	}
+
+	private static int size(VerificationType type) {
+		return type.tag == Constants.ITEM_Long || type.tag == Constants.ITEM_Double ? 2 : 1;
+	}
+
+	private final List<Frame> frames = new ArrayList<>();
+	private final VerificationType[] initialLocals;
+
+	private StackMapFrames(VerificationType[] initialLocals) {
+		this.initialLocals = initialLocals;
+	}
+
+	// No frames yet, for a method whose frames are computed rather than carried.
+	static StackMapFrames empty(MethodGen methodGen) {
+		return new StackMapFrames(initialLocals(methodGen));
+	}
+
+	// Adds the frame describing the state on entry to the instruction.
+	void addFrame(InstructionHandle target, VerificationType[] locals, VerificationType[] stack) {
+		Frame frame = new Frame();
+		frame.target = target;
+		frame.locals = locals;
+		frame.stack = stack;
+		frames.add(frame);
+	}
+
+	/**
+	 * Removes the StackMapTable from the method and attaches its frames to the instruction list.
+	 * Returns null if the method has no StackMapTable.
+	 */
+	static StackMapFrames detach(MethodGen methodGen, ConstantPoolGen cpgen) {
+		for (Attribute attribute : methodGen.getCodeAttributes()) {
+			String name = ((ConstantUtf8) cpgen.getConstant(attribute.getNameIndex())).getBytes();
+			if (ATTRIBUTE_NAME.equals(name)) {
+				StackMapFrames frames = new StackMapFrames(initialLocals(methodGen));
+				try {
+					frames.decode(attribute, methodGen.getInstructionList(), cpgen);
+				} catch (IOException e) {
+					throw new IllegalStateException("Malformed StackMapTable in " + methodGen.getName(), e);
+				}
+				methodGen.removeCodeAttribute(attribute);
+				return frames;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the frames against the current instruction positions and adds the resulting
+	 * StackMapTable to the method.
+	 */
+	void attach(MethodGen methodGen, ConstantPoolGen cpgen) {
+		InstructionList instructionList = methodGen.getInstructionList();
+		instructionList.setPositions();
+
+		// A frame is only required where control can arrive other than by falling through; frames that
+		// deleted code left on an ordinary instruction are dropped and the verifier infers the state there
+		List<Frame> live = new ArrayList<>();
+		for (Frame frame : frames) {
+			if (frame.target != null && instructionList.contains(frame.target) && needsFrame(frame.target)) {
+				live.add(frame);
+			}
+		}
+		if (live.isEmpty()) {
+			return;
+		}
+		Collections.sort(live, new Comparator<Frame>() {
+			public int compare(Frame a, Frame b) {
+				return Integer.compare(a.target.getPosition(), b.target.getPosition());
+			}
+		});
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			List<Frame> encoded = new ArrayList<>();
+			for (Frame frame : live) {
+				// Two frames redirected onto the same instruction describe the same state; keep the later one
+				if (!encoded.isEmpty() && encoded.get(encoded.size() - 1).target == frame.target) {
+					encoded.set(encoded.size() - 1, frame);
+				} else {
+					encoded.add(frame);
+				}
+			}
+
+			out.writeShort(encoded.size());
+			VerificationType[] previousLocals = initialLocals;
+			int previousOffset = -1;
+			for (Frame frame : encoded) {
+				int offset = frame.target.getPosition();
+				int delta = previousOffset < 0 ? offset : offset - previousOffset - 1;
+				encodeFrame(out, frame, delta, previousLocals, cpgen);
+				previousLocals = frame.locals;
+				previousOffset = offset;
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		byte[] data = bytes.toByteArray();
+		int nameIndex = cpgen.addUtf8(ATTRIBUTE_NAME);
+		methodGen.addCodeAttribute(new Unknown(nameIndex, data.length, data, cpgen.getConstantPool()));
+	}
+
+	private void decode(Attribute attribute, InstructionList instructionList, ConstantPoolGen cpgen) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		attribute.dump(new DataOutputStream(raw));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+		in.skipBytes(6); // attribute_name_index and attribute_length
+
+		int count = in.readUnsignedShort();
+		VerificationType[] locals = initialLocals;
+		int offset = -1;
+		for (int i = 0; i < count; i++) {
+			int frameType = in.readUnsignedByte();
+			VerificationType[] stack = new VerificationType[0];
+			int delta;
+
+			if (frameType <= Constants.SAME_FRAME_MAX) {
+				delta = frameType;
+			} else if (frameType <= Constants.SAME_LOCALS_1_STACK_ITEM_FRAME_MAX) {
+				delta = frameType - Constants.SAME_LOCALS_1_STACK_ITEM_FRAME;
+				stack = new VerificationType[] { readType(in, instructionList, cpgen) };
+			} else if (frameType == Constants.SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED) {
+				delta = in.readUnsignedShort();
+				stack = new VerificationType[] { readType(in, instructionList, cpgen) };
+			} else if (frameType >= Constants.CHOP_FRAME && frameType <= Constants.CHOP_FRAME_MAX) {
+				delta = in.readUnsignedShort();
+				locals = Arrays.copyOf(locals, locals.length - (Constants.SAME_FRAME_EXTENDED - frameType));
+			} else if (frameType == Constants.SAME_FRAME_EXTENDED) {
+				delta = in.readUnsignedShort();
+			} else if (frameType >= Constants.APPEND_FRAME && frameType <= Constants.APPEND_FRAME_MAX) {
+				delta = in.readUnsignedShort();
+				int appended = frameType - Constants.SAME_FRAME_EXTENDED;
+				VerificationType[] extended = Arrays.copyOf(locals, locals.length + appended);
+				for (int j = locals.length; j < extended.length; j++) {
+					extended[j] = readType(in, instructionList, cpgen);
+				}
+				locals = extended;
+			} else if (frameType == Constants.FULL_FRAME) {
+				delta = in.readUnsignedShort();
+				locals = new VerificationType[in.readUnsignedShort()];
+				for (int j = 0; j < locals.length; j++) {
+					locals[j] = readType(in, instructionList, cpgen);
+				}
+				stack = new VerificationType[in.readUnsignedShort()];
+				for (int j = 0; j < stack.length; j++) {
+					stack[j] = readType(in, instructionList, cpgen);
+				}
+			} else {
+				throw new IOException("Unknown stack map frame type " + frameType);
+			}
+
+			offset = offset < 0 ? delta : offset + delta + 1;
+			Frame frame = new Frame();
+			frame.target = instructionList.findHandle(offset);
+			if (frame.target == null) {
+				throw new IOException("Stack map frame at " + offset + " is not on an instruction boundary");
+			}
+			frame.locals = copyTypes(locals);
+			frame.stack = stack;
+			frame.target.addTargeter(frame);
+			for (VerificationType type : frame.locals) {
+				if (type.newSite != null) type.newSite.addTargeter(frame);
+			}
+			for (VerificationType type : frame.stack) {
+				if (type.newSite != null) type.newSite.addTargeter(frame);
+			}
+			frames.add(frame);
+		}
+	}
+
+	private static VerificationType[] copyTypes(VerificationType[] types) {
+		VerificationType[] copy = new VerificationType[types.length];
+		for (int i = 0; i < types.length; i++) {
+			copy[i] = new VerificationType(types[i].tag, types[i].className, types[i].newSite);
+		}
+		return copy;
+	}
+
+	private static VerificationType readType(DataInputStream in, InstructionList instructionList, ConstantPoolGen cpgen) throws IOException {
+		byte tag = in.readByte();
+		if (tag == Constants.ITEM_Object) {
+			String className = cpgen.getConstantPool().getConstantString(in.readUnsignedShort(), Constants.CONSTANT_Class);
+			return new VerificationType(tag, className, null);
+		} else if (tag == Constants.ITEM_NewObject) {
+			int newOffset = in.readUnsignedShort();
+			InstructionHandle newSite = instructionList.findHandle(newOffset);
+			if (newSite == null) {
+				throw new IOException("Uninitialized type refers to " + newOffset + ", which is not an instruction");
+			}
+			return new VerificationType(tag, null, newSite);
+		}
+		return new VerificationType(tag, null, null);
+	}
+
+	private static void writeType(DataOutputStream out, VerificationType type, ConstantPoolGen cpgen) throws IOException {
+		out.writeByte(type.tag);
+		if (type.tag == Constants.ITEM_Object) {
+			out.writeShort(cpgen.addClass(type.className));
+		} else if (type.tag == Constants.ITEM_NewObject) {
+			out.writeShort(type.newSite.getPosition());
+		}
+	}
+
+	private static void encodeFrame(DataOutputStream out, Frame frame, int delta, VerificationType[] previousLocals,
+									ConstantPoolGen cpgen) throws IOException {
+		VerificationType[] locals = frame.locals;
+		VerificationType[] stack = frame.stack;
+		int common = commonPrefix(previousLocals, locals);
+
+		if (stack.length == 0 && common == locals.length && common == previousLocals.length) {
+			if (delta <= Constants.SAME_FRAME_MAX) {
+				out.writeByte(Constants.SAME_FRAME + delta);
+			} else {
+				out.writeByte(Constants.SAME_FRAME_EXTENDED);
+				out.writeShort(delta);
+			}
+		} else if (stack.length == 1 && common == locals.length && common == previousLocals.length) {
+			if (delta <= Constants.SAME_LOCALS_1_STACK_ITEM_FRAME_MAX - Constants.SAME_LOCALS_1_STACK_ITEM_FRAME) {
+				out.writeByte(Constants.SAME_LOCALS_1_STACK_ITEM_FRAME + delta);
+			} else {
+				out.writeByte(Constants.SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED);
+				out.writeShort(delta);
+			}
+			writeType(out, stack[0], cpgen);
+		} else if (stack.length == 0 && common == locals.length && previousLocals.length - common <= 3) {
+			out.writeByte(Constants.SAME_FRAME_EXTENDED - (previousLocals.length - common));
+			out.writeShort(delta);
+		} else if (stack.length == 0 && common == previousLocals.length && locals.length - common <= 3) {
+			out.writeByte(Constants.SAME_FRAME_EXTENDED + (locals.length - common));
+			out.writeShort(delta);
+			for (int i = common; i < locals.length; i++) {
+				writeType(out, locals[i], cpgen);
+			}
+		} else {
+			out.writeByte(Constants.FULL_FRAME);
+			out.writeShort(delta);
+			out.writeShort(locals.length);
+			for (VerificationType type : locals) {
+				writeType(out, type, cpgen);
+			}
+			out.writeShort(stack.length);
+			for (VerificationType type : stack) {
+				writeType(out, type, cpgen);
+			}
+		}
+	}
+
+	private static int commonPrefix(VerificationType[] a, VerificationType[] b) {
+		int i = 0;
+		while (i < a.length && i < b.length && a[i].sameAs(b[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	// The implicit frame at offset 0, derived from the method descriptor.
+	private static VerificationType[] initialLocals(MethodGen methodGen) {
+		List<VerificationType> locals = new ArrayList<>();
+		if (!methodGen.isStatic()) {
+			if (methodGen.getName().equals(Constants.CONSTRUCTOR_NAME)) {
+				locals.add(new VerificationType(Constants.ITEM_InitObject, null, null));
+			} else {
+				locals.add(new VerificationType(Constants.ITEM_Object, methodGen.getClassName().replace('.', '/'), null));
+			}
+		}
+		for (Type type : methodGen.getArgumentTypes()) {
+			locals.add(fromType(type));
+		}
+		return locals.toArray(new VerificationType[locals.size()]);
+	}
+
+	static VerificationType fromType(Type type) {
+		if (type instanceof ArrayType) {
+			return new VerificationType(Constants.ITEM_Object, type.getSignature(), null);
+		} else if (type instanceof ObjectType) {
+			return new VerificationType(Constants.ITEM_Object, ((ObjectType) type).getClassName().replace('.', '/'), null);
+		} else if (type == BasicType.LONG) {
+			return new VerificationType(Constants.ITEM_Long, null, null);
+		} else if (type == BasicType.DOUBLE) {
+			return new VerificationType(Constants.ITEM_Double, null, null);
+		} else if (type == BasicType.FLOAT) {
+			return new VerificationType(Constants.ITEM_Float, null, null);
+		}
+		return new VerificationType(Constants.ITEM_Integer, null, null);
+	}
+}
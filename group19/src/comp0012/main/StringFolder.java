@@ -0,0 +1,356 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantMethodHandle;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantObject;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.generic.*;
+
+/**
+ * Replaces computations of a String or number from constants by an LDC of the result:
+ *
+ *   "a" + CONST + 3, compiled either to an invokedynamic call of StringConcatFactory or to a chain of
+ *   StringBuilder (or StringBuffer) appends, becomes the one String, and
+ *
+ *   a call of a whitelisted PureIntrinsics method, e.g. Math.abs(-5) or "abc".length(), becomes its result.
+ *
+ * Only operands pushed by constant instructions immediately before the call are folded, with nothing in
+ * between control can jump to. Floats and doubles are never converted to text: how Double.toString writes
+ * them has changed between Java releases, and the program must print what its own JVM would. The folded
+ * String is an interned constant, as javac makes "a" + "b"; code comparing it with == could tell.
+ */
+class StringFolder
+{
+	private static final String CONCAT_FACTORY = "java.lang.invoke.StringConcatFactory";
+	private static final char ARGUMENT_TAG = '\u0001';
+	private static final char CONSTANT_TAG = '\u0002';
+
+	// Longest constant a class file can hold, in bytes of its modified UTF-8 encoding
+	private static final int MAX_UTF8_LENGTH = 65535;
+
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	private final PureIntrinsics intrinsics;
+	// May be null, when the class makes no invokedynamic calls
+	private final BootstrapMethods bootstrapMethods;
+
+	// Concatenations and calls replaced by their result
+	private int folds;
+
+	StringFolder(MethodGen methodGen, ConstantPoolGen cpgen, PureIntrinsics intrinsics, BootstrapMethods bootstrapMethods) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		this.intrinsics = intrinsics;
+		this.bootstrapMethods = bootstrapMethods;
+	}
+
+	boolean run() {
+		if (instructionList == null || instructionList.isEmpty()) {
+			return false;
+		}
+		boolean modified = false;
+		// Folding only deletes instructions before the call, so a result can feed the next call at once
+		for (InstructionHandle handle = instructionList.getStart(); handle != null; handle = handle.getNext()) {
+			Instruction instruction = handle.getInstruction();
+			boolean folded = false;
+			if (instruction instanceof INVOKEDYNAMIC) {
+				folded = foldConcatenation(handle);
+			} else if (instruction instanceof INVOKEVIRTUAL && isBuilderToString((INVOKEVIRTUAL) instruction)) {
+				folded = foldBuilder(handle);
+			} else if (instruction instanceof INVOKESTATIC || instruction instanceof INVOKEVIRTUAL) {
+				folded = foldIntrinsic(handle);
+			}
+			if (folded) {
+				folds++;
+				modified = true;
+			}
+		}
+
+		if (modified) {
+			instructionList.setPositions();
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	// The constant pushed by the instruction: a Number, a String, or null for anything else.
+	private Object constantOf(InstructionHandle handle) {
+		Number number = PeepholeFolder.getConstantValue(handle.getInstruction(), cpgen);
+		return number != null ? number : PeepholeFolder.getStringValue(handle, cpgen);
+	}
+
+	/**
+	 * The constants pushed by the count instructions right before the call, in order, or null if any of
+	 * them pushes something else or control can arrive between them other than through the first.
+	 */
+	private List<Object> constantsBefore(InstructionHandle call, int count) {
+		List<Object> constants = new ArrayList<>();
+		InstructionHandle handle = call;
+		for (int i = 0; i < count; i++) {
+			if (InstructionUtil.isJumpTarget(handle)) {
+				return null;
+			}
+			handle = handle.getPrev();
+			Object constant = handle == null ? null : constantOf(handle);
+			if (constant == null) {
+				return null;
+			}
+			constants.add(constant);
+		}
+		Collections.reverse(constants);
+		return constants;
+	}
+
+	// Deletes the count instructions before the call and makes the call push the result instead.
+	private boolean replace(InstructionHandle call, int count, Object result) {
+		Instruction push;
+		if (result instanceof String) {
+			if (utf8Length((String) result) > MAX_UTF8_LENGTH) {
+				return false;
+			}
+			push = new LDC(cpgen.addString((String) result));
+		} else {
+			push = PeepholeFolder.createFoldingInstruction((Number) result, cpgen);
+		}
+		for (int i = 0; i < count; i++) {
+			InstructionUtil.delete(methodGen, call.getPrev());
+		}
+		call.setInstruction(push);
+		return true;
+	}
+
+	private static int utf8Length(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+		return length;
+	}
+
+	/**
+	 * How String.valueOf writes a constant passed as the given type, or null if it is not folded: floats
+	 * and doubles, and Strings passed as anything but a String, Object or CharSequence.
+	 */
+	private static String text(Object constant, Type type) {
+		if (constant instanceof String) {
+			return type.equals(Type.STRING) || type.equals(Type.OBJECT) || type.getSignature().equals("Ljava/lang/CharSequence;")
+					? (String) constant : null;
+		}
+		if (!(constant instanceof Integer || constant instanceof Long)) {
+			return null;
+		}
+		switch (type.getSignature()) {
+			case "I":
+			case "B":
+			case "S":
+			case "J":
+				return constant.toString();
+			case "Z":
+				return String.valueOf((Integer) constant != 0);
+			case "C":
+				return String.valueOf((char) (int) (Integer) constant);
+			default:
+				return null;
+		}
+	}
+
+	// An invokedynamic call of StringConcatFactory whose arguments are all constants.
+	private boolean foldConcatenation(InstructionHandle call) {
+		if (bootstrapMethods == null) {
+			return false;
+		}
+		ConstantInvokeDynamic site = (ConstantInvokeDynamic) cpgen.getConstant(((INVOKEDYNAMIC) call.getInstruction()).getIndex());
+		ConstantNameAndType nameAndType = (ConstantNameAndType) cpgen.getConstant(site.getNameAndTypeIndex());
+		String descriptor = utf8(nameAndType.getSignatureIndex());
+		if (site.getBootstrapMethodAttrIndex() >= bootstrapMethods.getBootstrapMethods().length) {
+			return false;
+		}
+		BootstrapMethod bootstrap = bootstrapMethods.getBootstrapMethods()[site.getBootstrapMethodAttrIndex()];
+		Constant handle = cpgen.getConstant(bootstrap.getBootstrapMethodRef());
+		if (!(handle instanceof ConstantMethodHandle)) {
+			return false;
+		}
+		ConstantCP factory = (ConstantCP) cpgen.getConstant(((ConstantMethodHandle) handle).getReferenceIndex());
+		String className = utf8(((ConstantClass) cpgen.getConstant(factory.getClassIndex())).getNameIndex()).replace('/', '.');
+		String name = utf8(((ConstantNameAndType) cpgen.getConstant(factory.getNameAndTypeIndex())).getNameIndex());
+		if (!className.equals(CONCAT_FACTORY) || !Type.getReturnType(descriptor).equals(Type.STRING)) {
+			return false;
+		}
+
+		Type[] types = Type.getArgumentTypes(descriptor);
+		int[] arguments = bootstrap.getBootstrapArguments();
+		String recipe;
+		if (name.equals("makeConcatWithConstants") && arguments.length > 0 && cpgen.getConstant(arguments[0]) instanceof ConstantString) {
+			recipe = utf8(((ConstantString) cpgen.getConstant(arguments[0])).getStringIndex());
+		} else if (name.equals("makeConcat")) {
+			recipe = new String(new char[types.length]).replace('\0', ARGUMENT_TAG);
+		} else {
+			return false;
+		}
+
+		List<Object> constants = constantsBefore(call, types.length);
+		if (constants == null) {
+			return false;
+		}
+		StringBuilder result = new StringBuilder();
+		int argument = 0;
+		int bootstrapConstant = 1;
+		for (char c : recipe.toCharArray()) {
+			String part;
+			if (c == ARGUMENT_TAG) {
+				part = argument < types.length ? text(constants.get(argument), types[argument]) : null;
+				argument++;
+			} else if (c == CONSTANT_TAG) {
+				part = bootstrapConstant < arguments.length ? bootstrapText(arguments[bootstrapConstant]) : null;
+				bootstrapConstant++;
+			} else {
+				part = String.valueOf(c);
+			}
+			if (part == null) {
+				return false;
+			}
+			result.append(part);
+		}
+		return argument == types.length && replace(call, types.length, result.toString());
+	}
+
+	// A constant of the recipe passed to the bootstrap method, as text.
+	private String bootstrapText(int index) {
+		Constant constant = cpgen.getConstant(index);
+		if (constant instanceof ConstantString) {
+			return utf8(((ConstantString) constant).getStringIndex());
+		}
+		if (constant instanceof ConstantObject) {
+			Object value = ((ConstantObject) constant).getConstantValue(cpgen.getConstantPool());
+			return value instanceof Integer || value instanceof Long ? value.toString() : null;
+		}
+		return null;
+	}
+
+	private String utf8(int index) {
+		return ((ConstantUtf8) cpgen.getConstant(index)).getBytes();
+	}
+
+	private boolean isBuilderToString(INVOKEVIRTUAL invoke) {
+		return isBuilder(invoke.getReferenceType(cpgen).toString()) && invoke.getMethodName(cpgen).equals("toString")
+				&& invoke.getSignature(cpgen).equals("()Ljava/lang/String;");
+	}
+
+	private static boolean isBuilder(String className) {
+		return className.equals("java.lang.StringBuilder") || className.equals("java.lang.StringBuffer");
+	}
+
+	/**
+	 * new StringBuilder, dup, an optional constant and the constructor, then a constant and an append for
+	 * each part, and toString: the chain javac before Java 9 makes for a concatenation. It is matched
+	 * backwards from the toString call.
+	 */
+	private boolean foldBuilder(InstructionHandle call) {
+		String builder = ((INVOKEVIRTUAL) call.getInstruction()).getReferenceType(cpgen).toString();
+		List<String> parts = new ArrayList<>();
+		int count = 0;
+		InstructionHandle handle = call.getPrev();
+		while (handle != null && isBuilderCall(handle, builder, "append") && handle.getPrev() != null) {
+			Type[] types = ((InvokeInstruction) handle.getInstruction()).getArgumentTypes(cpgen);
+			String part = types.length == 1 ? textOf(handle.getPrev(), types[0]) : null;
+			if (part == null) {
+				return false;
+			}
+			parts.add(part);
+			count += 2;
+			handle = handle.getPrev().getPrev();
+		}
+
+		if (handle == null || !isBuilderCall(handle, builder, "<init>")) {
+			return false;
+		}
+		Type[] types = ((InvokeInstruction) handle.getInstruction()).getArgumentTypes(cpgen);
+		if (types.length == 1) {
+			// Not the constructor taking the initial capacity, or an Object
+			boolean text = types[0].equals(Type.STRING) || types[0].getSignature().equals("Ljava/lang/CharSequence;");
+			String part = text && handle.getPrev() != null ? textOf(handle.getPrev(), types[0]) : null;
+			if (part == null) {
+				return false;
+			}
+			parts.add(part);
+			count++;
+			handle = handle.getPrev();
+		} else if (types.length != 0) {
+			return false;
+		}
+		count++;
+		handle = handle.getPrev();
+		if (handle == null || handle.getPrev() == null || !(handle.getInstruction() instanceof DUP)
+				|| !(handle.getPrev().getInstruction() instanceof NEW)
+				|| !((NEW) handle.getPrev().getInstruction()).getLoadClassType(cpgen).getClassName().equals(builder)) {
+			return false;
+		}
+		count += 2;
+
+		// Nothing may jump into the chain after the new
+		for (InstructionHandle inside = handle; inside != call.getNext(); inside = inside.getNext()) {
+			if (InstructionUtil.isJumpTarget(inside)) {
+				return false;
+			}
+		}
+		Collections.reverse(parts);
+		StringBuilder result = new StringBuilder();
+		for (String part : parts) {
+			result.append(part);
+		}
+		return replace(call, count, result.toString());
+	}
+
+	private boolean isBuilderCall(InstructionHandle handle, String builder, String name) {
+		if (!(handle.getInstruction() instanceof InvokeInstruction)) {
+			return false;
+		}
+		InvokeInstruction invoke = (InvokeInstruction) handle.getInstruction();
+		String returnType = name.equals("<init>") ? "V" : "L" + builder.replace('.', '/') + ";";
+		return (name.equals("<init>") ? invoke instanceof INVOKESPECIAL : invoke instanceof INVOKEVIRTUAL)
+				&& invoke.getReferenceType(cpgen).toString().equals(builder) && invoke.getMethodName(cpgen).equals(name)
+				&& invoke.getSignature(cpgen).endsWith(")" + returnType);
+	}
+
+	private String textOf(InstructionHandle handle, Type type) {
+		Object constant = constantOf(handle);
+		return constant == null ? null : text(constant, type);
+	}
+
+	// A call of a whitelisted method whose receiver, if any, and arguments are all constants.
+	private boolean foldIntrinsic(InstructionHandle call) {
+		InvokeInstruction invoke = (InvokeInstruction) call.getInstruction();
+		String className = invoke.getReferenceType(cpgen).toString();
+		String name = invoke.getMethodName(cpgen);
+		String descriptor = invoke.getSignature(cpgen);
+		if (intrinsics == null || !intrinsics.contains(className, name, descriptor)) {
+			return false;
+		}
+		boolean isStatic = invoke instanceof INVOKESTATIC;
+		int count = invoke.getArgumentTypes(cpgen).length + (isStatic ? 0 : 1);
+		List<Object> constants = constantsBefore(call, count);
+		if (constants == null) {
+			return false;
+		}
+		Object receiver = isStatic ? null : constants.remove(0);
+		Object result = intrinsics.evaluate(className, name, descriptor, receiver, constants.toArray());
+		return result != null && replace(call, count, result);
+	}
+}
@@ -0,0 +1,363 @@
+package comp0012.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.generic.*;
+
+/**
+ * Local value numbering: removes expressions a basic block computes again from the same values.
+ *
+ * Every value the block pushes gets a number, equal for two values known to be the same: loads of a local
+ * with no store to it in between, equal constants, and the same operation on the same numbers (in either
+ * order for int and long +, *, &, | and ^). Arithmetic, array lengths and reads of the class's own
+ * non-volatile fields are numbered; a field read is forgotten at any field write, call or monitor
+ * instruction, as the value may have changed by then. When the code pushing a value the block has already
+ * computed is a straight run of such instructions, it is replaced by a DUP if the earlier result is on top of
+ * the stack, a load of a local still holding it, or a load of a fresh local the earlier result is now
+ * also stored to. A fresh local is only worth it for an operation on two values or a field read.
+ *
+ * As the earlier computation succeeded, the one replaced would not have thrown either.
+ */
+class ValueNumbering
+{
+	// A value on the abstract operand stack. Category 2 values occupy two consecutive words holding the same Value.
+	private static class Value
+	{
+		final int number;
+		final Type type;
+		// The run of instructions that pushes the value and does nothing else, or null when there is none
+		final InstructionHandle start;
+		final InstructionHandle end;
+		// Instructions in the run, and whether it reads a field
+		final int length;
+		final boolean readsField;
+
+		Value(int number, Type type, InstructionHandle start, InstructionHandle end, int length, boolean readsField) {
+			this.number = number;
+			this.type = type;
+			this.start = start;
+			this.end = end;
+			this.length = length;
+			this.readsField = readsField;
+		}
+
+		int size() {
+			return type.getSize();
+		}
+	}
+
+	// The first computation of a value in the block, after which it can be stored for later ones.
+	private static class Expression
+	{
+		final int number;
+		final Type type;
+		final InstructionHandle end;
+		// The fresh local the result was stored to, or -1
+		int local = -1;
+
+		Expression(int number, Type type, InstructionHandle end) {
+			this.number = number;
+			this.type = type;
+			this.end = end;
+		}
+	}
+
+	private static final Set<Short> COMMUTATIVE = new HashSet<>(Arrays.asList(
+			Constants.IADD, Constants.IMUL, Constants.IAND, Constants.IOR, Constants.IXOR,
+			Constants.LADD, Constants.LMUL, Constants.LAND, Constants.LOR, Constants.LXOR));
+
+	private final MethodGen methodGen;
+	private final InstructionList instructionList;
+	private final ConstantPoolGen cpgen;
+	// Non-volatile fields of the class, by name and descriptor, whose reads can be numbered
+	private final Set<String> stableFields = new HashSet<>();
+
+	private final List<Value> stack = new ArrayList<>();
+	// The number of the value each local holds, and its size
+	private final Map<Integer, Integer> locals = new HashMap<>();
+	private final Map<Integer, Integer> localSizes = new HashMap<>();
+	// Constants, loads and operations already seen in the block, by a key of what they compute
+	private final Map<String, Expression> expressions = new HashMap<>();
+	// Field reads, kept apart as they are forgotten when a field may have changed
+	private final Map<String, Expression> fieldReads = new HashMap<>();
+	private int nextNumber;
+	private int nextLocal;
+
+	// Expressions replaced by an earlier result
+	private int folds;
+
+	ValueNumbering(MethodGen methodGen, ConstantPoolGen cpgen, Field[] fields) {
+		this.methodGen = methodGen;
+		this.instructionList = methodGen.getInstructionList();
+		this.cpgen = cpgen;
+		for (Field field : fields) {
+			if (!field.isVolatile()) {
+				stableFields.add(field.getName() + ":" + field.getSignature() + ":" + field.isStatic());
+			}
+		}
+	}
+
+	boolean run() {
+		if (instructionList == null || instructionList.isEmpty()) {
+			return false;
+		}
+		methodGen.setMaxLocals();
+		nextLocal = methodGen.getMaxLocals();
+		boolean modified = false;
+
+		InstructionHandle handle = instructionList.getStart();
+		while (handle != null) {
+			InstructionHandle next = handle.getNext();
+			// A replaced operation is deleted
+			Instruction instruction = handle.getInstruction();
+			if (InstructionUtil.isJumpTarget(handle)) {
+				forget();
+			}
+
+			if (step(handle)) {
+				folds++;
+				modified = true;
+			}
+
+			if (InstructionUtil.endsBlock(instruction)) {
+				forget();
+			}
+			handle = next;
+		}
+
+		if (modified) {
+			instructionList.setPositions();
+			methodGen.setMaxLocals(Math.max(methodGen.getMaxLocals(), nextLocal));
+		}
+		return modified;
+	}
+
+	int getFolds() {
+		return folds;
+	}
+
+	private void forget() {
+		stack.clear();
+		locals.clear();
+		localSizes.clear();
+		expressions.clear();
+		fieldReads.clear();
+	}
+
+	// Numbers the value of one instruction; returns whether it and the code pushing its operands were replaced.
+	private boolean step(InstructionHandle handle) {
+		Instruction instruction = handle.getInstruction();
+
+		Number constant = PeepholeFolder.getConstantValue(instruction, cpgen);
+		String string = PeepholeFolder.getStringValue(handle, cpgen);
+		if (constant != null || string != null) {
+			String key = constant != null ? constant.getClass().getSimpleName() + " " + constant : "String " + string;
+			Type type = constant != null ? ((TypedInstruction) instruction).getType(cpgen) : Type.STRING;
+			push(new Value(numberOf(key, type, handle).number, type, handle, handle, 1, false));
+			return false;
+		}
+
+		if (instruction instanceof LoadInstruction) {
+			LoadInstruction load = (LoadInstruction) instruction;
+			Integer number = locals.get(load.getIndex());
+			if (number == null) {
+				number = nextNumber++;
+				locals.put(load.getIndex(), number);
+				localSizes.put(load.getIndex(), load.getType(cpgen).getSize());
+			}
+			push(new Value(number, load.getType(cpgen), handle, handle, 1, false));
+			return false;
+		}
+
+		if (instruction instanceof StoreInstruction) {
+			StoreInstruction store = (StoreInstruction) instruction;
+			Value value = pop(store.getType(cpgen).getSize());
+			setLocal(store.getIndex(), value.number, value.size());
+			return false;
+		}
+
+		if (instruction instanceof IINC) {
+			setLocal(((IINC) instruction).getIndex(), nextNumber++, 1);
+			return false;
+		}
+
+		short opcode = instruction.getOpcode();
+		if (ConstantEvaluator.canEvaluate(opcode) || instruction instanceof ARRAYLENGTH) {
+			int[] sizes = instruction instanceof ARRAYLENGTH ? new int[] { 1 } : ConstantEvaluator.operandSizes(opcode);
+			Value[] operands = new Value[sizes.length];
+			int[] numbers = new int[sizes.length];
+			for (int i = sizes.length - 1; i >= 0; i--) {
+				operands[i] = pop(sizes[i]);
+				numbers[i] = operands[i].number;
+			}
+			if (COMMUTATIVE.contains(opcode)) {
+				Arrays.sort(numbers);
+			}
+			Type type = instruction instanceof ARRAYLENGTH ? Type.INT : ConstantEvaluator.resultType(opcode);
+			return number(handle, opcode + " " + Arrays.toString(numbers), expressions, type, operands, false);
+		}
+
+		if ((instruction instanceof GETFIELD || instruction instanceof GETSTATIC) && isStable((FieldInstruction) instruction)) {
+			FieldInstruction read = (FieldInstruction) instruction;
+			Value[] operands = instruction instanceof GETFIELD ? new Value[] { pop(1) } : new Value[0];
+			String key = read.getIndex() + (operands.length > 0 ? " " + operands[0].number : "");
+			return number(handle, key, fieldReads, read.getType(cpgen), operands, true);
+		}
+
+		if (instruction instanceof PUTFIELD || instruction instanceof PUTSTATIC || instruction instanceof InvokeInstruction
+				|| instruction instanceof MONITORENTER || instruction instanceof MONITOREXIT) {
+			fieldReads.clear();
+		}
+		popWords(instruction.consumeStack(cpgen));
+		int words = instruction.produceStack(cpgen);
+		for (int i = 0; i < words; i++) {
+			stack.add(new Value(nextNumber++, Type.UNKNOWN, null, null, 0, false));
+		}
+		return false;
+	}
+
+	/**
+	 * Numbers the result of an operation on the operands, and replaces the operation and the code pushing
+	 * its operands when the block has computed the same value before.
+	 */
+	private boolean number(InstructionHandle handle, String key, Map<String, Expression> seen, Type type,
+			Value[] operands, boolean readsField) {
+		// The run that pushes the result: the operands' runs one after the other, then the operation
+		InstructionHandle start = operands.length > 0 ? operands[0].start : handle;
+		int length = 1;
+		for (int i = 0; i < operands.length && start != null; i++) {
+			InstructionHandle next = i + 1 < operands.length ? operands[i + 1].start : handle;
+			if (operands[i].start == null || operands[i].end.getNext() != next) {
+				start = null;
+			} else {
+				length += operands[i].length;
+				readsField |= operands[i].readsField;
+			}
+		}
+
+		Expression expression = seen.get(key);
+		if (expression == null) {
+			expression = new Expression(nextNumber++, type, handle);
+			seen.put(key, expression);
+			push(new Value(expression.number, type, start, handle, length, readsField));
+			return false;
+		}
+
+		Instruction reuse = start == null ? null : reuse(expression, length >= 3 || readsField);
+		if (reuse == null) {
+			push(new Value(expression.number, type, start, handle, length, readsField));
+			return false;
+		}
+		start.setInstruction(reuse);
+		InstructionHandle after = handle.getNext();
+		while (start.getNext() != after) {
+			forgetExpressionsAt(start.getNext());
+			InstructionUtil.delete(methodGen, start.getNext());
+		}
+		push(new Value(expression.number, type, start, start, 1, false));
+		return true;
+	}
+
+	// The instruction pushing the earlier result again, or null when there is no cheap way to.
+	private Instruction reuse(Expression expression, boolean worthStoring) {
+		int size = expression.type.getSize();
+		if (stack.size() >= size && stack.get(stack.size() - 1).number == expression.number) {
+			return size == 2 ? InstructionConstants.DUP2 : InstructionConstants.DUP;
+		}
+		for (Map.Entry<Integer, Integer> local : locals.entrySet()) {
+			if (local.getValue() == expression.number && localSizes.get(local.getKey()) == size) {
+				return InstructionFactory.createLoad(expression.type, local.getKey());
+			}
+		}
+		if (!worthStoring) {
+			return null;
+		}
+
+		expression.local = nextLocal;
+		nextLocal += size;
+		InstructionHandle dup = instructionList.append(expression.end, size == 2 ? InstructionConstants.DUP2 : InstructionConstants.DUP);
+		instructionList.append(dup, InstructionFactory.createStore(expression.type, expression.local));
+		setLocal(expression.local, expression.number, size);
+		return InstructionFactory.createLoad(expression.type, expression.local);
+	}
+
+	// Drops the expressions first computed by an instruction about to be deleted, which can no longer be stored.
+	private void forgetExpressionsAt(InstructionHandle handle) {
+		for (Map<String, Expression> seen : Arrays.asList(expressions, fieldReads)) {
+			Iterator<Expression> iterator = seen.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().end == handle) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	// Whether reads of the field can be numbered: a non-volatile field declared by the class itself.
+	private boolean isStable(FieldInstruction instruction) {
+		return methodGen.getClassName().equals(instruction.getReferenceType(cpgen).toString())
+				&& stableFields.contains(instruction.getFieldName(cpgen) + ":" + instruction.getSignature(cpgen) + ":"
+						+ (instruction instanceof GETSTATIC));
+	}
+
+	// The number of a constant, which the block may push any number of times.
+	private Expression numberOf(String key, Type type, InstructionHandle handle) {
+		Expression expression = expressions.get(key);
+		if (expression == null) {
+			expression = new Expression(nextNumber++, type, handle);
+			expressions.put(key, expression);
+		}
+		return expression;
+	}
+
+	private void setLocal(int index, int number, int size) {
+		// A store also breaks any category 2 value that overlapped the slot
+		if (localSizes.getOrDefault(index - 1, 1) == 2) {
+			locals.remove(index - 1);
+			localSizes.remove(index - 1);
+		}
+		if (size == 2) {
+			locals.remove(index + 1);
+			localSizes.remove(index + 1);
+		}
+		locals.put(index, number);
+		localSizes.put(index, size);
+	}
+
+	private void push(Value value) {
+		stack.add(value);
+		if (value.size() == 2) {
+			stack.add(value);
+		}
+	}
+
+	private Value pop(int size) {
+		if (stack.size() < size) {
+			stack.clear();
+			return new Value(nextNumber++, Type.UNKNOWN, null, null, 0, false);
+		}
+		Value value = stack.remove(stack.size() - 1);
+		if (size == 2) {
+			Value low = stack.remove(stack.size() - 1);
+			if (low != value) {
+				return new Value(nextNumber++, Type.UNKNOWN, null, null, 0, false);
+			}
+		}
+		return value;
+	}
+
+	private void popWords(int words) {
+		for (int i = 0; i < words && !stack.isEmpty(); i++) {
+			stack.remove(stack.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package comp0012.target;
+
+public class AlgebraicSimplification
+{
+    public int methodOne(int x){
+        return x * 1 + 0 - x / 1;
+    }
+
+    public long methodTwo(long x){
+        return x * 8L + (x | 0L);
+    }
+
+    public int methodThree(int[] a){
+        return a.length % 8 + a.length / 4;
+    }
+
+    public int methodFour(int x){
+        return (x - x) + (x ^ x) + (x & x);
+    }
+
+    public double methodFive(double d){
+        return d * 1.0 + d * 0.0;
+    }
+
+    public int methodSix(int x){
+        return -(-x) * 2 + x * -1;
+    }
+
+    public int methodSeven(int x){
+        int scale = 1;
+        return ((x & 0xff) % 16) * scale + (x >>> 28) / 2 + x % 16;
+    }
+}
@@ -0,0 +1,50 @@
+package comp0012.target;
+
+public class BranchFolding
+{
+    public int methodOne(){
+        int a = 534245;
+        int b = 1234;
+        if (a > b) {
+            return a - b;
+        }
+        return b - a;
+    }
+
+    public String methodTwo(){
+        long x = 4835783423L;
+        long y = 400000;
+        double d = 0.5;
+        if (x < y || d > 1.0) {
+            return "unreachable";
+        }
+        return "reachable";
+    }
+
+    public int methodThree(int k){
+        int key = 3;
+        switch (key) {
+            case 1:
+                return k;
+            case 3:
+                return k * 2;
+            default:
+                return -k;
+        }
+    }
+
+    public int methodFour(int n){
+        boolean debug = false;
+        int result = n;
+        try {
+            if (debug) {
+                result = n / 0;
+            }
+            result += 10;
+        } catch (ArithmeticException e) {
+            result = -1;
+        }
+        return result;
+    }
+
+}
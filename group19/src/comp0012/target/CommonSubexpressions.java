@@ -0,0 +1,40 @@
+package comp0012.target;
+
+public class CommonSubexpressions
+{
+    private int count = 3;
+
+    public int methodOne(int a, int b){
+        return a * b + a * b * 2;
+    }
+
+    public int methodTwo(int a, int b, int c){
+        int x = a * b + c;
+        int y = a * b - c;
+        return x * y;
+    }
+
+    public int methodThree(int[] values){
+        return values.length * values.length + values.length;
+    }
+
+    public int methodFour(){
+        int before = count * count;
+        bump();
+        return before + count * count;
+    }
+
+    public long methodFive(long a, long b){
+        return (a + b) * (b + a);
+    }
+
+    public int methodSix(int a){
+        int x = a * a;
+        a = a + 1;
+        return x + a * a;
+    }
+
+    private void bump(){
+        count++;
+    }
+}
@@ -0,0 +1,37 @@
+package comp0012.target;
+
+public class DeadStoreElimination
+{
+    public long methodOne(){
+        long x = 4835783423L;
+        long y = 400000;
+        long unused = x * y;
+        return x - y;
+    }
+
+    public int methodTwo(int n){
+        int a = 3;
+        double scratch = n * 0.5;
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += a * i;
+        }
+        return sum;
+    }
+
+    public int methodThree(int n){
+        int result = 0;
+        try {
+            result = n * 2;
+            if (n < 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IllegalArgumentException e) {
+            return result;
+        } finally {
+            result = -1;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,42 @@
+package comp0012.target;
+
+public class FieldConstantFolding
+{
+    static final class Limits {
+        static final int WIDTH;
+        static final int HEIGHT;
+        static final long AREA;
+        static final double SCALE = 1.5;
+        static final boolean WIDE;
+
+        static {
+            int w = 4;
+            WIDTH = w * 8 + 2;
+            HEIGHT = WIDTH / 2;
+            AREA = (long) WIDTH * HEIGHT * 1000;
+            WIDE = WIDTH > 30;
+        }
+    }
+
+    static final class Clock {
+        static final long START = System.nanoTime();
+    }
+
+    public int methodOne(){
+        return Limits.WIDTH * Limits.HEIGHT;
+    }
+
+    public long methodTwo(){
+        long area = Limits.AREA;
+        return area / 1000 + 1;
+    }
+
+    public boolean methodThree(){
+        return Limits.SCALE * Limits.HEIGHT > 25 && Limits.WIDE;
+    }
+
+    public boolean methodFour(){
+        return Clock.START != 0;
+    }
+
+}
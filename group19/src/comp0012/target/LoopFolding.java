@@ -0,0 +1,87 @@
+package comp0012.target;
+
+public class LoopFolding
+{
+    public int methodOne(){
+        int sum = 0;
+        for (int i = 0; i < 100; i++) {
+            sum += i * i;
+        }
+        return sum;
+    }
+
+    public long methodTwo(){
+        long product = 1;
+        int i = 1;
+        do {
+            product *= i;
+            i++;
+        } while (i <= 15);
+        return product;
+    }
+
+    public String methodThree(){
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            sb.append(i * 3).append(',');
+        }
+        return sb.toString();
+    }
+
+    public int methodFour(int x){
+        int total = x;
+        for (int i = 10; i > 0; i -= 2) {
+            if (total > 100) {
+                break;
+            }
+            total += i;
+        }
+        return total;
+    }
+
+    public int methodFive(int[] values){
+        int sum = 0;
+        for (int i = 0; i < 64; i++) {
+            sum += values[i % values.length];
+        }
+        return sum;
+    }
+
+    public int methodSix(){
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 4; j++) {
+                count += i * j;
+            }
+        }
+        return count;
+    }
+
+    public int methodSeven(boolean fromZero){
+        int i = fromZero ? 0 : 5;
+        int sum = 0;
+        for (; i < 10; i++) {
+            sum += i;
+        }
+        return sum;
+    }
+
+    public int methodEight(){
+        int sum = 0;
+        for (int i = 20; i >= 3; i -= 4) {
+            sum += i;
+        }
+        for (int i = 7; i != 0; i--) {
+            sum += i * 100;
+        }
+        int j = 9;
+        do {
+            sum += j * 10000;
+            j++;
+        } while (j < 5);
+        for (int k = Integer.MAX_VALUE - 2; k > 0; k++) {
+            sum += 1000000;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,67 @@
+package comp0012.target;
+
+public class PureMethodFolding
+{
+    private static int square(int x){
+        return x * x;
+    }
+
+    private static int clamp(int value, int low, int high){
+        if (value < low) {
+            return low;
+        }
+        if (value > high) {
+            return high;
+        }
+        return value;
+    }
+
+    private static long factorial(int n){
+        long result = 1;
+        for (int i = 2; i <= n; i++) {
+            result *= i;
+        }
+        return result;
+    }
+
+    static int version(){
+        return 3;
+    }
+
+    private static int scale(int x){
+        return x * 4 + 1;
+    }
+
+    private static int ratio(int a, int b){
+        return a / b;
+    }
+
+    private int offset(){
+        return 10;
+    }
+
+    public int methodOne(){
+        return square(12) + clamp(150, 0, 100);
+    }
+
+    public long methodTwo(){
+        return factorial(10) + version();
+    }
+
+    public int methodThree(int x){
+        return scale(x) + scale(2);
+    }
+
+    public int methodFour(){
+        return offset() * 2;
+    }
+
+    public int methodFive(){
+        try {
+            return ratio(1, 0);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+}
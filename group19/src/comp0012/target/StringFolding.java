@@ -0,0 +1,41 @@
+package comp0012.target;
+
+public class StringFolding
+{
+    public String methodOne(){
+        int a = 4;
+        char c = 'b';
+        return "a" + a + c + true + 7L;
+    }
+
+    public String methodTwo(){
+        String name = "x";
+        int n = Math.abs(-12);
+        return name + "=" + n;
+    }
+
+    public int methodThree(){
+        return Integer.toString(Math.max(3, 40)).length() + Long.hashCode(5000000000L);
+    }
+
+    public double methodFour(){
+        return Math.sqrt(16.0) + Math.min(2.5, 1.5);
+    }
+
+    public String methodFive(){
+        double d = 0.1;
+        return "d=" + d;
+    }
+
+    public String methodSix(){
+        return new StringBuilder("k").append(1).append('c').append("-").append(false).toString();
+    }
+
+    public int methodSeven(){
+        try {
+            return Integer.parseInt("12x");
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the raw bytecode pre-scan that decides which methods, and so which classes, the passes run over.
+ */
+public class CandidateScannerTest {
+
+    private final ClassGen cgen = new ClassGen("Scanned", "java.lang.Object", "Scanned.java", Constants.ACC_PUBLIC, null);
+    private final ConstantPoolGen cp = cgen.getConstantPool();
+    private final InstructionFactory factory = new InstructionFactory(cgen);
+
+    private void method(String name, Type returnType, Instruction... instructions) {
+        InstructionList il = new InstructionList();
+        for (Instruction instruction : instructions) {
+            if (instruction instanceof BranchInstruction) {
+                il.append((BranchInstruction) instruction);
+            } else {
+                il.append(instruction);
+            }
+        }
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, returnType, new Type[] { Type.INT }, null, name, "Scanned", il, cp);
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+    }
+
+    // The candidate flags of the methods added so far, in order.
+    private boolean[] scan() {
+        CandidateScanner scanner = CandidateScanner.scan(cgen.getJavaClass().getBytes());
+        assertEquals("Scanned", scanner.getClassName());
+        boolean[] candidates = new boolean[cgen.getMethods().length];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = scanner.isCandidate(i);
+        }
+        return candidates;
+    }
+
+    @Test
+    public void testNothingToFold() throws Exception {
+        cgen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        cgen.addField(new FieldGen(Constants.ACC_PRIVATE, Type.INT, "value", cp).getField());
+        method("get", Type.INT, InstructionConstants.ALOAD_0, factory.createGetField("Scanned", "value", Type.INT),
+                InstructionConstants.IRETURN);
+        method("set", Type.VOID, InstructionConstants.ALOAD_0, new ILOAD(1), factory.createPutField("Scanned", "value", Type.INT),
+                InstructionConstants.RETURN);
+        method("add", Type.INT, new ILOAD(1), InstructionConstants.ALOAD_0, factory.createGetField("Scanned", "value", Type.INT),
+                InstructionConstants.IADD, InstructionConstants.IRETURN);
+        method("zero", Type.INT, InstructionConstants.ICONST_0, InstructionConstants.IRETURN);
+        method("print", Type.VOID, factory.createGetStatic("java.lang.System", "out", Type.getType("Ljava/io/PrintStream;")),
+                new ILOAD(1), factory.createInvoke("java.io.PrintStream", "println", Type.VOID, new Type[] { Type.INT },
+                        Constants.INVOKEVIRTUAL), InstructionConstants.RETURN);
+        assertArrayEquals(new boolean[6], scan());
+
+        // The class is copied as it was read, and never parsed
+        byte[] bytes = cgen.getJavaClass().getBytes();
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(bytes), "Scanned.class");
+        byte[] optimised = folder.getOptimizedBytes();
+        assertArrayEquals(bytes, optimised);
+        assertFalse(folder.isModified());
+        assertNull(folder.original);
+        assertEquals(6, folder.getMetrics().skippedMethods);
+    }
+
+    @Test
+    public void testCandidates() {
+        Instruction getField = factory.createGetField("Scanned", "value", Type.INT);
+        method("fold", Type.INT, InstructionConstants.ICONST_2, new ILOAD(1), InstructionConstants.IADD, InstructionConstants.IRETURN);
+        method("store", Type.VOID, new ILOAD(1), new ISTORE(2), InstructionConstants.RETURN);
+        method("increment", Type.VOID, new IINC(1, 1), InstructionConstants.RETURN);
+        method("field", Type.INT, InstructionConstants.ALOAD_0, getField, InstructionConstants.ALOAD_0, getField,
+                InstructionConstants.IADD, InstructionConstants.IRETURN);
+        method("negate", Type.INT, new ILOAD(1), InstructionConstants.INEG, InstructionConstants.INEG, InstructionConstants.IRETURN);
+        method("same", Type.INT, new ILOAD(1), new ILOAD(1), InstructionConstants.ISUB, InstructionConstants.IRETURN);
+        method("inverse", Type.INT, new ILOAD(1), InstructionConstants.I2L, InstructionConstants.L2I, InstructionConstants.IRETURN);
+        method("constant", Type.INT, factory.createGetStatic("Other", "LIMIT", Type.INT), InstructionConstants.IRETURN);
+        method("call", Type.INT, new ILOAD(1), factory.createInvoke("java.lang.Math", "abs", Type.INT, new Type[] { Type.INT },
+                Constants.INVOKESTATIC), InstructionConstants.IRETURN);
+        method("pop", Type.VOID, new ILOAD(1), InstructionConstants.POP, InstructionConstants.RETURN);
+        method("unreachable", Type.VOID, InstructionConstants.RETURN, InstructionConstants.NOP, InstructionConstants.RETURN);
+        boolean[] all = new boolean[11];
+        Arrays.fill(all, true);
+        assertArrayEquals(all, scan());
+    }
+
+    // int name(int x) { if (x == 0) return x; else return x; }, comparing x + 1 instead with a constant.
+    private void branch(String name, boolean constant) {
+        InstructionList il = new InstructionList();
+        InstructionHandle zero = il.append(new ILOAD(1));
+        il.append(InstructionConstants.IRETURN);
+        il.insert(InstructionConstants.IRETURN);
+        il.insert(new ILOAD(1));
+        il.insert(new IFEQ(zero));
+        if (constant) {
+            il.insert(InstructionConstants.IADD);
+            il.insert(InstructionConstants.ICONST_1);
+        }
+        il.insert(new ILOAD(1));
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.INT, new Type[] { Type.INT }, null, name, "Scanned", il, cp);
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+    }
+
+    @Test
+    public void testReachableBranches() {
+        branch("plain", false);
+        branch("constant", true);
+        assertArrayEquals(new boolean[] { false, true }, scan());
+    }
+
+    @Test
+    public void testUnreadableClassFile() {
+        CandidateScanner scanner = CandidateScanner.scan(new byte[] { (byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, 0, 0 });
+        assertNull(scanner.getClassName());
+        assertTrue(scanner.hasCandidates());
+        assertTrue(scanner.isCandidate(0));
+    }
+
+}
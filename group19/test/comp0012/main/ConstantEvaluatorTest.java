@@ -0,0 +1,176 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the constant evaluator against the JVM: every expected value is computed by the Java operator
+ * or cast that compiles to the opcode under test, over operands that cover the edge cases.
+ */
+public class ConstantEvaluatorTest {
+
+    static final int[] INTS = { 0, 1, -1, 2, -2, 3, 7, 31, 32, 33, 63, 64, 65, -31, -32, -33, 127, 128, -128, -129,
+            255, 32767, 32768, -32768, -32769, 65535, 65536, 123456789, -987654321,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1 };
+
+    static final long[] LONGS = { 0L, 1L, -1L, 2L, -2L, 31L, 32L, 63L, 64L, 65L, -64L, 4835783423L, -4835783423L,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 32, (1L << 32) + 1, 1L << 53, (1L << 53) + 1,
+            Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1 };
+
+    static final float[] FLOATS = { 0.0f, -0.0f, 1.0f, -1.0f, 0.5f, -0.5f, 1.5f, 2.5f, -2.5f, 3.0f, 0.1f, 1e10f, -1e10f,
+            2147483647.0f, 2147483648.0f, -2147483648.0f, 9.223372e18f, -9.223373e18f, 16777217.0f,
+            Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE, -Float.MAX_VALUE,
+            Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN };
+
+    static final double[] DOUBLES = { 0.0, -0.0, 1.0, -1.0, 0.5, -0.5, 1.5, 2.5, -2.5, 3.0, 0.1, 0.67, 38.435792873,
+            1e300, -1e300, 2147483647.0, 2147483647.5, 2147483648.0, -2147483648.5, 9.223372036854776e18, -9.3e18,
+            3.4028235677973366e38, 1.401298464324817e-45, 7e-46, 9007199254740993.0,
+            Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, -Double.MAX_VALUE,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN };
+
+    private static void check(Number expected, short opcode, Number... operands) {
+        // Boxed equality tells -0.0 from 0.0 and treats NaN as equal to itself
+        assertEquals(Constants.OPCODE_NAMES[opcode] + " " + java.util.Arrays.toString(operands),
+                expected, ConstantEvaluator.evaluate(opcode, operands));
+    }
+
+    @Test
+    public void testIntArithmetic(){
+        for (int a : INTS) {
+            check(-a, Constants.INEG, a);
+            for (int b : INTS) {
+                check(a + b, Constants.IADD, a, b);
+                check(a - b, Constants.ISUB, a, b);
+                check(a * b, Constants.IMUL, a, b);
+                check(b == 0 ? null : (Integer) (a / b), Constants.IDIV, a, b);
+                check(b == 0 ? null : (Integer) (a % b), Constants.IREM, a, b);
+                check(a & b, Constants.IAND, a, b);
+                check(a | b, Constants.IOR, a, b);
+                check(a ^ b, Constants.IXOR, a, b);
+                check(a << b, Constants.ISHL, a, b);
+                check(a >> b, Constants.ISHR, a, b);
+                check(a >>> b, Constants.IUSHR, a, b);
+            }
+        }
+        check(Integer.MIN_VALUE, Constants.IDIV, Integer.MIN_VALUE, -1);
+        check(0, Constants.IREM, Integer.MIN_VALUE, -1);
+    }
+
+    @Test
+    public void testLongArithmetic(){
+        for (long a : LONGS) {
+            check(-a, Constants.LNEG, a);
+            for (long b : LONGS) {
+                check(a + b, Constants.LADD, a, b);
+                check(a - b, Constants.LSUB, a, b);
+                check(a * b, Constants.LMUL, a, b);
+                check(b == 0 ? null : (Long) (a / b), Constants.LDIV, a, b);
+                check(b == 0 ? null : (Long) (a % b), Constants.LREM, a, b);
+                check(a & b, Constants.LAND, a, b);
+                check(a | b, Constants.LOR, a, b);
+                check(a ^ b, Constants.LXOR, a, b);
+                check(Long.compare(a, b), Constants.LCMP, a, b);
+            }
+            for (int distance : INTS) {
+                check(a << distance, Constants.LSHL, a, distance);
+                check(a >> distance, Constants.LSHR, a, distance);
+                check(a >>> distance, Constants.LUSHR, a, distance);
+            }
+        }
+        check(Long.MIN_VALUE, Constants.LDIV, Long.MIN_VALUE, -1L);
+    }
+
+    @Test
+    public void testFloatArithmetic(){
+        for (float a : FLOATS) {
+            check(-a, Constants.FNEG, a);
+            for (float b : FLOATS) {
+                check(a + b, Constants.FADD, a, b);
+                check(a - b, Constants.FSUB, a, b);
+                check(a * b, Constants.FMUL, a, b);
+                check(a / b, Constants.FDIV, a, b);
+                check(a % b, Constants.FREM, a, b);
+                check(a > b ? 1 : a == b ? 0 : a < b ? -1 : -1, Constants.FCMPL, a, b);
+                check(a > b ? 1 : a == b ? 0 : a < b ? -1 : 1, Constants.FCMPG, a, b);
+            }
+        }
+        check(Float.NEGATIVE_INFINITY, Constants.FDIV, -1.0f, 0.0f);
+        check(-0.0f, Constants.FMUL, -1.0f, 0.0f);
+        check(0, Constants.FCMPL, -0.0f, 0.0f);
+    }
+
+    @Test
+    public void testDoubleArithmetic(){
+        for (double a : DOUBLES) {
+            check(-a, Constants.DNEG, a);
+            for (double b : DOUBLES) {
+                check(a + b, Constants.DADD, a, b);
+                check(a - b, Constants.DSUB, a, b);
+                check(a * b, Constants.DMUL, a, b);
+                check(a / b, Constants.DDIV, a, b);
+                check(a % b, Constants.DREM, a, b);
+                check(a > b ? 1 : a == b ? 0 : a < b ? -1 : -1, Constants.DCMPL, a, b);
+                check(a > b ? 1 : a == b ? 0 : a < b ? -1 : 1, Constants.DCMPG, a, b);
+            }
+        }
+        check(-1, Constants.DCMPL, Double.NaN, 0.0);
+        check(1, Constants.DCMPG, Double.NaN, 0.0);
+    }
+
+    @Test
+    public void testConversions(){
+        for (int a : INTS) {
+            check((long) a, Constants.I2L, a);
+            check((float) a, Constants.I2F, a);
+            check((double) a, Constants.I2D, a);
+            check((int) (byte) a, Constants.I2B, a);
+            check((int) (char) a, Constants.I2C, a);
+            check((int) (short) a, Constants.I2S, a);
+        }
+        for (long a : LONGS) {
+            check((int) a, Constants.L2I, a);
+            check((float) a, Constants.L2F, a);
+            check((double) a, Constants.L2D, a);
+        }
+        for (float a : FLOATS) {
+            check((int) a, Constants.F2I, a);
+            check((long) a, Constants.F2L, a);
+            check((double) a, Constants.F2D, a);
+        }
+        for (double a : DOUBLES) {
+            check((int) a, Constants.D2I, a);
+            check((long) a, Constants.D2L, a);
+            check((float) a, Constants.D2F, a);
+        }
+        check(0, Constants.D2I, Double.NaN);
+        check(Integer.MAX_VALUE, Constants.D2I, 1e300);
+        check(Long.MIN_VALUE, Constants.F2L, Float.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void testConditions(){
+        for (int a : INTS) {
+            assertEquals(a == 0, ConstantEvaluator.evaluateCondition(Constants.IFEQ, java.util.Arrays.asList(a)));
+            assertEquals(a < 0, ConstantEvaluator.evaluateCondition(Constants.IFLT, java.util.Arrays.asList(a)));
+            for (int b : INTS) {
+                assertEquals(a != b, ConstantEvaluator.evaluateCondition(Constants.IF_ICMPNE, java.util.Arrays.asList(a, b)));
+                assertEquals(a <= b, ConstantEvaluator.evaluateCondition(Constants.IF_ICMPLE, java.util.Arrays.asList(a, b)));
+            }
+        }
+    }
+
+    @Test
+    public void testUnfoldable(){
+        assertNull(ConstantEvaluator.evaluate(Constants.IADD, 1, 2L));
+        assertNull(ConstantEvaluator.evaluate(Constants.LSHL, 1L, 2L));
+        assertNull(ConstantEvaluator.evaluate(Constants.IALOAD, 1, 2));
+        assertTrue(ConstantEvaluator.canThrow(Constants.LREM));
+        assertFalse(ConstantEvaluator.canThrow(Constants.DREM));
+    }
+
+}
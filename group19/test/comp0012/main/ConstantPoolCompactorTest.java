@@ -0,0 +1,62 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.ClassGen;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the constant pool compactor drops exactly the unreferenced constants and that the
+ * compacted class still loads.
+ */
+public class ConstantPoolCompactorTest {
+
+    private static byte[] classBytes(Class<?> cls) throws Exception {
+        InputStream in = cls.getResourceAsStream(cls.getSimpleName() + ".class");
+        try {
+            return in.readAllBytes();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static JavaClass parse(byte[] bytes) throws Exception {
+        return new ClassParser(new ByteArrayInputStream(bytes), "test").parse();
+    }
+
+    @Test
+    public void testUnusedConstantsRemoved() throws Exception {
+        ClassGen gen = new ClassGen(parse(classBytes(ConstantEvaluator.class)));
+        gen.getConstantPool().addString("never referenced");
+        gen.getConstantPool().addLong(123456789012L);
+        byte[] padded = gen.getJavaClass().getBytes();
+
+        byte[] compacted = ConstantPoolCompactor.compact(padded);
+        assertTrue(compacted.length < padded.length);
+        assertFalse(new String(compacted, "ISO-8859-1").contains("never referenced"));
+        Class<?> loaded = TestClasses.define(ConstantEvaluator.class.getName(), compacted);
+        assertTrue(loaded != ConstantEvaluator.class);
+        assertEquals(ConstantEvaluator.class.getName(), loaded.getName());
+    }
+
+    @Test
+    public void testCompactingTwiceChangesNothing() throws Exception {
+        byte[] once = ConstantPoolCompactor.compact(classBytes(ConstantPoolCompactorTest.class));
+        assertArrayEquals(once, ConstantPoolCompactor.compact(once));
+    }
+
+    @Test
+    public void testUnparseableInputReturnedUnchanged() {
+        byte[] garbage = { (byte) 0xCA, (byte) 0xFE, 0, 1, 2 };
+        assertArrayEquals(garbage, ConstantPoolCompactor.compact(garbage));
+    }
+
+}
@@ -0,0 +1,165 @@
+package comp0012.main;
+
+import java.util.Arrays;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which loads sparse conditional constant propagation replaces: constants that meet at a merge or go
+ * round a loop, arms a constant branch never takes, and locals seen by an exception handler.
+ */
+public class ConstantPropagationTest {
+
+    private final ConstantPoolGen cpgen = new ConstantPoolGen();
+
+    // A static int method of Flow with the given int arguments
+    private MethodGen method(InstructionList il, int arguments) {
+        Type[] types = new Type[arguments];
+        Arrays.fill(types, Type.INT);
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, types, null, "flow", "Flow", il,
+                cpgen);
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        return methodGen;
+    }
+
+    // The constant now at the handle, or null if it still loads the local
+    private Number constantAt(InstructionHandle handle) {
+        return PeepholeFolder.getConstantValue(handle.getInstruction(), cpgen);
+    }
+
+    // if (a > 0) { x = 5; } else { x = other; } return x;
+    private InstructionHandle merge(InstructionList il, int other) {
+        il.append(new ILOAD(0));
+        BranchHandle toElse = il.append(new IFLE(null));
+        il.append(new BIPUSH((byte) 5));
+        il.append(new ISTORE(1));
+        BranchHandle toJoin = il.append(new GOTO(null));
+        toElse.setTarget(il.append(new BIPUSH((byte) other)));
+        il.append(new ISTORE(1));
+        InstructionHandle join = il.append(new ILOAD(1));
+        toJoin.setTarget(join);
+        il.append(InstructionConstants.IRETURN);
+        return join;
+    }
+
+    @Test
+    public void testMergeOfEqualConstants() {
+        InstructionList il = new InstructionList();
+        InstructionHandle join = merge(il, 5);
+        MethodGen methodGen = method(il, 1);
+        ControlFlowGraph cfg = new ControlFlowGraph(methodGen);
+        assertEquals(2, cfg.blockAt(join).predecessors.size());
+
+        ConstantPropagation propagation = new ConstantPropagation(methodGen, cpgen, cfg);
+        assertTrue(propagation.run());
+        assertEquals(5, constantAt(join));
+        assertEquals(1, propagation.getFolds());
+    }
+
+    @Test
+    public void testMergeOfDifferentConstants() {
+        InstructionList il = new InstructionList();
+        InstructionHandle join = merge(il, 6);
+        ConstantPropagation propagation = new ConstantPropagation(method(il, 1), cpgen);
+        assertFalse(propagation.run());
+        assertNull(constantAt(join));
+        assertNull(propagation.getBailout());
+    }
+
+    @Test
+    public void testAroundLoop() {
+        // int k = 7; int i = 0; while (i < n) { i = i + k; } return k + i;
+        InstructionList il = new InstructionList();
+        il.append(new BIPUSH((byte) 7));
+        il.append(new ISTORE(1));
+        il.append(InstructionConstants.ICONST_0);
+        il.append(new ISTORE(2));
+        InstructionHandle test = il.append(new ILOAD(2));
+        il.append(new ILOAD(0));
+        BranchHandle exit = il.append(new IF_ICMPGE(null));
+        il.append(new ILOAD(2));
+        InstructionHandle kInLoop = il.append(new ILOAD(1));
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(2));
+        il.append(new GOTO(test));
+        InstructionHandle kAfter = il.append(new ILOAD(1));
+        exit.setTarget(kAfter);
+        InstructionHandle iAfter = il.append(new ILOAD(2));
+        il.append(InstructionConstants.IADD);
+        il.append(InstructionConstants.IRETURN);
+
+        assertTrue(new ConstantPropagation(method(il, 1), cpgen).run());
+        // k keeps its value on the back edge, but i is 0 on entry and 7 more on each trip round
+        assertEquals(7, constantAt(kInLoop));
+        assertEquals(7, constantAt(kAfter));
+        assertNull(constantAt(test));
+        assertNull(constantAt(iAfter));
+    }
+
+    @Test
+    public void testUnreachableArmPruned() {
+        // int c = 1; int x; if (c == 0) { x = c + 9; } else { x = 4; } return x;
+        InstructionList il = new InstructionList();
+        il.append(InstructionConstants.ICONST_1);
+        il.append(new ISTORE(0));
+        InstructionHandle condition = il.append(new ILOAD(0));
+        BranchHandle toElse = il.append(new IFNE(null));
+        InstructionHandle dead = il.append(new ILOAD(0));
+        il.append(new BIPUSH((byte) 9));
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(1));
+        BranchHandle toJoin = il.append(new GOTO(null));
+        toElse.setTarget(il.append(InstructionConstants.ICONST_4));
+        il.append(new ISTORE(1));
+        InstructionHandle join = il.append(new ILOAD(1));
+        toJoin.setTarget(join);
+        il.append(InstructionConstants.IRETURN);
+
+        assertTrue(new ConstantPropagation(method(il, 0), cpgen).run());
+        assertEquals(1, constantAt(condition));
+        // The arm the branch never takes is not visited, so its x = 10 does not meet the 4 at the join
+        assertNull(constantAt(dead));
+        assertEquals(4, constantAt(join));
+    }
+
+    @Test
+    public void testExceptionHandlerSeesEveryValue() {
+        // int x = 1; try { x = 2; Other.call(); x = 3; } catch (Throwable t) { return x; } return x;
+        InstructionList il = new InstructionList();
+        il.append(InstructionConstants.ICONST_1);
+        il.append(new ISTORE(0));
+        InstructionHandle start = il.append(InstructionConstants.ICONST_2);
+        il.append(new ISTORE(0));
+        il.append(new InstructionFactory(cpgen).createInvoke("Other", "call", Type.VOID, Type.NO_ARGS, Constants.INVOKESTATIC));
+        il.append(InstructionConstants.ICONST_3);
+        InstructionHandle end = il.append(new ISTORE(0));
+        InstructionHandle normal = il.append(new ILOAD(0));
+        il.append(InstructionConstants.IRETURN);
+        InstructionHandle handler = il.append(InstructionConstants.POP);
+        InstructionHandle caught = il.append(new ILOAD(0));
+        il.append(InstructionConstants.IRETURN);
+        MethodGen methodGen = method(il, 0);
+        methodGen.addExceptionHandler(start, end, handler, null);
+
+        ControlFlowGraph cfg = new ControlFlowGraph(methodGen);
+        ControlFlowGraph.BasicBlock handlerBlock = cfg.blockAt(handler);
+        assertTrue(cfg.blockAt(start).handlers.contains(handlerBlock));
+        for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()) {
+            assertFalse(block.successors.contains(handlerBlock));
+        }
+
+        assertTrue(new ConstantPropagation(methodGen, cpgen, cfg).run());
+        assertEquals(3, constantAt(normal));
+        // The call may throw with x = 2, and the handler is reached from any point of the range
+        assertNull(constantAt(caught));
+    }
+
+}
@@ -0,0 +1,90 @@
+package comp0012.main;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which static final fields the whole-program index records, and the values it records for them.
+ */
+public class FieldConstantIndexTest {
+
+    // class Settings { static final int LIMIT; static { LIMIT = 6 * 7; } } plus a method of the given body
+    private static byte[] settingsClass(String superclass, Instruction... otherMethod) {
+        ClassGen cgen = new ClassGen("Settings", superclass, "Settings.java", Constants.ACC_PUBLIC, null);
+        ConstantPoolGen cpgen = cgen.getConstantPool();
+        cgen.addField(new FieldGen(Constants.ACC_STATIC | Constants.ACC_FINAL, Type.INT, "LIMIT", cpgen).getField());
+        int field = cpgen.addFieldref("Settings", "LIMIT", "I");
+
+        InstructionList clinit = new InstructionList();
+        clinit.append(new BIPUSH((byte) 6));
+        clinit.append(new BIPUSH((byte) 7));
+        clinit.append(InstructionConstants.IMUL);
+        clinit.append(new PUTSTATIC(field));
+        clinit.append(InstructionConstants.RETURN);
+        addMethod(cgen, "<clinit>", clinit);
+
+        InstructionList other = new InstructionList();
+        for (Instruction instruction : otherMethod) {
+            other.append(instruction instanceof FieldInstruction ? new PUTSTATIC(field) : instruction);
+        }
+        other.append(InstructionConstants.RETURN);
+        addMethod(cgen, "reset", other);
+        return cgen.getJavaClass().getBytes();
+    }
+
+    private static void addMethod(ClassGen cgen, String name, InstructionList il) {
+        MethodGen methodGen = new MethodGen(Constants.ACC_STATIC, Type.VOID, Type.NO_ARGS, null, name, "Settings", il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+    }
+
+    @Test
+    public void testInitialisedFields() throws Exception {
+        FieldConstantIndex index = new FieldConstantIndex();
+        index.add(TestClasses.targetClass("FieldConstantFolding$Limits"));
+        String limits = "comp0012.target.FieldConstantFolding$Limits";
+        assertEquals(34, index.get(limits, "WIDTH", "I"));
+        assertEquals(17, index.get(limits, "HEIGHT", "I"));
+        assertEquals(578000L, index.get(limits, "AREA", "J"));
+        assertEquals(1.5, index.get(limits, "SCALE", "D"));
+        assertEquals(1, index.get(limits, "WIDE", "Z"));
+        assertEquals(5, index.size());
+        assertTrue(index.isInitialisationFree(limits));
+    }
+
+    @Test
+    public void testInitialiserWithSideEffects() throws Exception {
+        FieldConstantIndex index = new FieldConstantIndex();
+        index.add(TestClasses.targetClass("FieldConstantFolding$Clock"));
+        index.add(settingsClass("java.lang.Thread"));
+        assertEquals(0, index.size());
+        assertFalse(index.isInitialisationFree("comp0012.target.FieldConstantFolding$Clock"));
+        assertFalse(index.isInitialisationFree("Settings"));
+    }
+
+    @Test
+    public void testFieldsStoredElsewhere() {
+        FieldConstantIndex index = new FieldConstantIndex();
+        index.add(settingsClass("java.lang.Object"));
+        assertEquals(42, index.get("Settings", "LIMIT", "I"));
+
+        FieldConstantIndex stored = new FieldConstantIndex();
+        stored.add(settingsClass("java.lang.Object", new ICONST(0), new PUTSTATIC(0)));
+        assertNull(stored.get("Settings", "LIMIT", "I"));
+    }
+
+    @Test
+    public void testMalformedClassSkipped() {
+        FieldConstantIndex index = new FieldConstantIndex();
+        index.add(new byte[] { (byte) 0xCA, (byte) 0xFE });
+        assertEquals(0, index.size());
+    }
+
+}
@@ -0,0 +1,140 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test that the stack map frames computed for rewritten methods satisfy the split verifier, and the
+ * class hierarchy they merge reference types with.
+ */
+public class FrameComputerTest {
+
+    /*
+     * public class Framed {
+     *     public int pick(int x) { List l; if (x == 0) l = new ArrayList(); else l = new LinkedList(); int base = 2 + 3; return l.size() + base; }
+     * }
+     * as a Java 8 class file, but without the StackMapTable the verifier needs at the branch targets.
+     */
+    private static byte[] framedClass() {
+        ClassGen cgen = new ClassGen("Framed", "java.lang.Object", "Framed.java", Constants.ACC_PUBLIC, null);
+        cgen.setMajor(52);
+        cgen.setMinor(0);
+        cgen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        InstructionFactory factory = new InstructionFactory(cgen);
+        InstructionList il = new InstructionList();
+
+        InstructionHandle join = il.append(InstructionConstants.ICONST_2);
+        il.append(InstructionConstants.ICONST_3);
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(3));
+        il.append(new ALOAD(2));
+        il.append(factory.createInvoke("java.util.List", "size", Type.INT, Type.NO_ARGS, Constants.INVOKEINTERFACE));
+        il.append(new ILOAD(3));
+        il.append(InstructionConstants.IADD);
+        il.append(InstructionConstants.IRETURN);
+
+        InstructionList linked = new InstructionList();
+        InstructionHandle otherwise = linked.append(factory.createNew("java.util.LinkedList"));
+        linked.append(InstructionConstants.DUP);
+        linked.append(factory.createInvoke("java.util.LinkedList", "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+        linked.append(new ASTORE(2));
+        il.insert(linked);
+
+        InstructionList array = new InstructionList();
+        array.append(new ILOAD(1));
+        array.append(new IFNE(otherwise));
+        array.append(factory.createNew("java.util.ArrayList"));
+        array.append(InstructionConstants.DUP);
+        array.append(factory.createInvoke("java.util.ArrayList", "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+        array.append(new ASTORE(2));
+        array.append(new GOTO(join));
+        il.insert(array);
+
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.INT, new Type[] { Type.INT }, null, "pick", "Framed", il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+        return cgen.getJavaClass().getBytes();
+    }
+
+    @Test
+    public void testRewrittenMethodVerifies() throws Exception {
+        byte[] original = framedClass();
+        try {
+            TestClasses.define("Framed", original).getConstructor().newInstance(); // linking the class verifies it
+            fail("the original has no stack map frames");
+        } catch (VerifyError expected) {
+        }
+
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(original), "Framed.class");
+        byte[] optimised = folder.getOptimizedBytes();
+        assertTrue(folder.isModified());
+        Class<?> loaded = TestClasses.define("Framed", optimised);
+        Object instance = loaded.getConstructor().newInstance();
+        assertEquals(5, loaded.getMethod("pick", int.class).invoke(instance, 0));
+        assertEquals(5, loaded.getMethod("pick", int.class).invoke(instance, 1));
+
+        // The two lists meet as their common superclass
+        JavaClass cls = new ClassParser(new ByteArrayInputStream(optimised), "Framed.class").parse();
+        boolean framed = false;
+        for (Method method : cls.getMethods()) {
+            for (Attribute attribute : method.getCode().getAttributes()) {
+                framed |= method.getName().equals("pick") && attribute.getName().equals(StackMapFrames.ATTRIBUTE_NAME);
+            }
+        }
+        assertTrue(framed);
+        assertTrue(new ConstantPoolGen(cls.getConstantPool()).lookupClass("java.util.AbstractList") >= 0);
+    }
+
+    @Test
+    public void testSubroutinesNotTyped() {
+        // void run() { jsr L; return; L: astore_1; ret 1 }
+        ClassGen cgen = new ClassGen("Subroutine", "java.lang.Object", "Subroutine.java", Constants.ACC_PUBLIC, null);
+        InstructionList il = new InstructionList();
+        InstructionHandle subroutine = il.append(new ASTORE(1));
+        il.append(new RET(1));
+        il.insert(InstructionConstants.RETURN);
+        il.insert(new JSR(subroutine));
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, Type.NO_ARGS, null, "run", "Subroutine", il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+
+        FrameComputer computer = new FrameComputer(methodGen, cgen.getConstantPool(), new ClassHierarchy());
+        assertNull(computer.compute());
+        assertEquals("method has subroutines (JSR/RET)", computer.getFailure());
+    }
+
+    @Test
+    public void testCommonSuperclass() {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        hierarchy.add(new ClassGen("Stack", "java.util.ArrayList", "Stack.java", Constants.ACC_PUBLIC, null).getJavaClass());
+
+        assertEquals("java/util/AbstractList", hierarchy.commonSuperclass("java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/util/AbstractList", hierarchy.commonSuperclass("Stack", "java/util/LinkedList"));
+        assertEquals("java/util/ArrayList", hierarchy.commonSuperclass("java/util/ArrayList", "Stack"));
+        assertEquals("java/lang/Number", hierarchy.commonSuperclass("java/lang/Integer", "java/lang/Long"));
+        assertEquals(ClassHierarchy.OBJECT, hierarchy.commonSuperclass("java/lang/String", "java/util/List"));
+
+        assertEquals("[Ljava/util/AbstractList;", hierarchy.commonSuperclass("[Ljava/util/LinkedList;", "[LStack;"));
+        assertEquals("[[Ljava/lang/Number;", hierarchy.commonSuperclass("[[Ljava/lang/Integer;", "[[Ljava/lang/Double;"));
+        assertEquals(ClassHierarchy.OBJECT, hierarchy.commonSuperclass("[I", "[J"));
+        assertEquals(ClassHierarchy.OBJECT, hierarchy.commonSuperclass("[I", "java/lang/String"));
+
+        assertNull(hierarchy.commonSuperclass("Missing", "java/lang/String"));
+        assertNotNull(hierarchy.commonSuperclass("Stack", "Stack"));
+    }
+
+}
@@ -0,0 +1,75 @@
+package comp0012.main;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that deleting instructions keeps every branch registered with its target, including branches
+ * BCEL counts as equal because they have the same opcode and target.
+ */
+public class InstructionUtilTest {
+
+    private static MethodGen method(InstructionList il) {
+        ClassGen cgen = new ClassGen("Jumps", "java.lang.Object", "Jumps.java", Constants.ACC_PUBLIC, null);
+        return new MethodGen(Constants.ACC_PUBLIC, Type.VOID, Type.NO_ARGS, null, "run", "Jumps", il, cgen.getConstantPool());
+    }
+
+    @Test
+    public void testDeleteEqualBranch() {
+        // goto L; goto L; L: return
+        InstructionList il = new InstructionList();
+        InstructionHandle target = il.append(InstructionConstants.RETURN);
+        InstructionHandle second = il.insert(new GOTO(target));
+        InstructionHandle first = il.insert(new GOTO(target));
+        assertTrue(first.getInstruction().equals(second.getInstruction()));
+
+        InstructionUtil.delete(method(il), first);
+        assertTrue(InstructionUtil.isJumpTarget(target));
+        assertEquals(1, InstructionUtil.branchesTo(il, target).size());
+    }
+
+    @Test
+    public void testDeleteTargetOfEqualBranches() {
+        // goto L; goto L; L: nop; return
+        InstructionList il = new InstructionList();
+        InstructionHandle target = il.append(InstructionConstants.NOP);
+        InstructionHandle next = il.append(InstructionConstants.RETURN);
+        InstructionHandle second = il.insert(new GOTO(target));
+        InstructionHandle first = il.insert(new GOTO(target));
+
+        InstructionUtil.delete(method(il), target);
+        assertSame(next, ((BranchInstruction) first.getInstruction()).getTarget());
+        assertSame(next, ((BranchInstruction) second.getInstruction()).getTarget());
+        assertTrue(InstructionUtil.isJumpTarget(next));
+    }
+
+    @Test
+    public void testBranchesByTarget() {
+        // goto L; goto L; tableswitch { 0: L, 1: L, default: M }; L: nop; M: return
+        InstructionList il = new InstructionList();
+        InstructionHandle target = il.append(InstructionConstants.NOP);
+        InstructionHandle other = il.append(InstructionConstants.RETURN);
+        InstructionHandle select = il.insert(new TABLESWITCH(new int[] { 0, 1 }, new InstructionHandle[] { target, target }, other));
+        InstructionHandle second = il.insert(new GOTO(target));
+        InstructionHandle first = il.insert(new GOTO(target));
+
+        Map<InstructionHandle, List<BranchInstruction>> branches = InstructionUtil.branchesByTarget(il);
+        List<BranchInstruction> toTarget = branches.get(target);
+        // Both equal gotos, and the switch once however many of its cases go there
+        assertEquals(3, toTarget.size());
+        assertSame(first.getInstruction(), toTarget.get(0));
+        assertSame(second.getInstruction(), toTarget.get(1));
+        assertSame(select.getInstruction(), toTarget.get(2));
+        assertEquals(InstructionUtil.branchesTo(il, target), toTarget);
+        assertEquals(1, branches.get(other).size());
+    }
+
+}
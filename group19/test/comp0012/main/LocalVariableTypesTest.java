@@ -0,0 +1,104 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.LocalVariable;
+import org.apache.bcel.classfile.LocalVariableTypeTable;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that the generic signatures of local variables survive the rewriting of their method, with the
+ * ranges of the variables they describe.
+ */
+public class LocalVariableTypesTest {
+
+    private static final String NAMES = "Ljava/util/List<Ljava/lang/String;>;";
+
+    // public class Names { public static int count() { List<String> names = new ArrayList<>(); int extra = 2 + 3; return names.size() + extra; } }
+    private static byte[] namesClass() {
+        ClassGen cgen = new ClassGen("Names", "java.lang.Object", "Names.java", Constants.ACC_PUBLIC, null);
+        ConstantPoolGen cpgen = cgen.getConstantPool();
+        InstructionFactory factory = new InstructionFactory(cgen);
+        ObjectType list = new ObjectType("java.util.List");
+        InstructionList il = new InstructionList();
+        il.append(factory.createNew("java.util.ArrayList"));
+        il.append(InstructionConstants.DUP);
+        il.append(factory.createInvoke("java.util.ArrayList", "<init>", Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+        il.append(new ASTORE(0));
+        InstructionHandle start = il.append(new ICONST(2));
+        il.append(new ICONST(3));
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(1));
+        il.append(new ALOAD(0));
+        il.append(factory.createInvoke("java.util.List", "size", Type.INT, Type.NO_ARGS, Constants.INVOKEINTERFACE));
+        il.append(new ILOAD(1));
+        il.append(InstructionConstants.IADD);
+        InstructionHandle end = il.append(InstructionConstants.IRETURN);
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null, "count",
+                "Names", il, cpgen);
+        LocalVariableGen names = methodGen.addLocalVariable("names", list, 0, start, end);
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+
+        il.setPositions();
+        LocalVariable range = names.getLocalVariable(cpgen);
+        LocalVariable generic = new LocalVariable(range.getStartPC(), range.getLength(), cpgen.addUtf8("names"), cpgen.addUtf8(NAMES), 0,
+                cpgen.getConstantPool());
+        methodGen.addCodeAttribute(new LocalVariableTypeTable(cpgen.addUtf8(LocalVariableTypes.ATTRIBUTE_NAME), 12,
+                new LocalVariable[] { generic }, cpgen.getConstantPool()));
+        cgen.addMethod(methodGen.getMethod());
+        return cgen.getJavaClass().getBytes();
+    }
+
+    private static Code count(byte[] bytes) throws Exception {
+        for (Method method : new ClassParser(new ByteArrayInputStream(bytes), "Names.class").parse().getMethods()) {
+            if (method.getName().equals("count")) {
+                return method.getCode();
+            }
+        }
+        throw new AssertionError("no count method");
+    }
+
+    private static LocalVariableTypeTable typeTable(Code code) {
+        for (Attribute attribute : code.getAttributes()) {
+            if (attribute instanceof LocalVariableTypeTable) {
+                return (LocalVariableTypeTable) attribute;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testTypeTableFollowsVariable() throws Exception {
+        byte[] original = namesClass();
+        LocalVariable before = typeTable(count(original)).getLocalVariableTypeTable()[0];
+
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(original), "Names.class");
+        Code code = count(folder.getOptimizedBytes());
+        assertTrue(folder.isModified());
+        LocalVariableTypeTable types = typeTable(code);
+        assertNotNull(types);
+        assertEquals(1, types.getTableLength());
+
+        LocalVariable after = types.getLocalVariableTypeTable()[0];
+        LocalVariable variable = code.getLocalVariableTable().getLocalVariable(0, after.getStartPC());
+        assertEquals("names", after.getName());
+        assertEquals(NAMES, after.getSignature());
+        assertEquals("Ljava/util/List;", variable.getSignature());
+        assertEquals(variable.getStartPC(), after.getStartPC());
+        assertEquals(variable.getLength(), after.getLength());
+        // 2 + 3 has been folded inside the variable's range
+        assertTrue(after.getLength() < before.getLength());
+    }
+
+}
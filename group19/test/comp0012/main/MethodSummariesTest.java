@@ -0,0 +1,112 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test which methods are summarised as pure, and the results the summaries give for calls to them.
+ */
+public class MethodSummariesTest {
+
+    private static final String TARGET = "comp0012.target.PureMethodFolding";
+
+    private static JavaClass parse(byte[] bytes) throws Exception {
+        return new ClassParser(new ByteArrayInputStream(bytes), "test").parse();
+    }
+
+    private static MethodSummaries target() throws Exception {
+        InputStream in = MethodSummariesTest.class.getResourceAsStream("/comp0012/target/PureMethodFolding.class");
+        try {
+            return ProgramIndex.of(parse(in.readAllBytes())).getMethods();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Number evaluate(MethodSummaries methods, String name, String signature, Number... arguments) {
+        MethodSummaries.Summary summary = methods.get(TARGET, name, signature);
+        assertNotNull(name + " is not summarised", summary);
+        return methods.evaluate(summary, arguments, Deadline.NONE);
+    }
+
+    @Test
+    public void testEvaluate() throws Exception {
+        MethodSummaries methods = target();
+        assertEquals(144, evaluate(methods, "square", "(I)I", 12));
+        assertEquals(100, evaluate(methods, "clamp", "(III)I", 150, 0, 100));
+        assertEquals(3628800L, evaluate(methods, "factorial", "(I)J", 10));
+        assertEquals(3, evaluate(methods, "version", "()I"));
+        assertEquals(10, evaluate(methods, "offset", "()I"));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        MethodSummaries methods = target();
+        MethodSummaries.Summary factorial = methods.get(TARGET, "factorial", "(I)J");
+        assertEquals(3628800L, methods.evaluate(factorial, new Number[] { 10 }, Deadline.in(60000000000L)));
+        // The interpreter gives up part way through the loop once the deadline has passed
+        assertNull(methods.evaluate(factorial, new Number[] { 10 }, Deadline.in(-1)));
+    }
+
+    @Test
+    public void testUnknownResults() throws Exception {
+        MethodSummaries methods = target();
+        // Depends on the unknown argument
+        assertNull(evaluate(methods, "scale", "(I)I", (Number) null));
+        assertNull(evaluate(methods, "clamp", "(III)I", null, 0, 100));
+        // Would throw, or might
+        assertNull(evaluate(methods, "ratio", "(II)I", 1, 0));
+        assertNull(evaluate(methods, "ratio", "(II)I", 1, null));
+        // Runs out of steps
+        assertNull(evaluate(methods, "factorial", "(I)J", MethodSummaries.STEP_BUDGET));
+    }
+
+    // class Impure { static int time() { return (int) System.nanoTime(); } static int twice() { return time() * 2; } static int two() { return 2; } }
+    @Test
+    public void testImpurityPropagates() throws Exception {
+        ClassGen cgen = new ClassGen("Impure", "java.lang.Object", "Impure.java", Constants.ACC_PUBLIC, null);
+        InstructionFactory factory = new InstructionFactory(cgen);
+
+        InstructionList time = new InstructionList();
+        time.append(factory.createInvoke("java.lang.System", "nanoTime", Type.LONG, Type.NO_ARGS, Constants.INVOKESTATIC));
+        time.append(InstructionConstants.L2I);
+        time.append(InstructionConstants.IRETURN);
+        addMethod(cgen, "time", time);
+
+        InstructionList twice = new InstructionList();
+        twice.append(factory.createInvoke("Impure", "time", Type.INT, Type.NO_ARGS, Constants.INVOKESTATIC));
+        twice.append(new ICONST(2));
+        twice.append(InstructionConstants.IMUL);
+        twice.append(InstructionConstants.IRETURN);
+        addMethod(cgen, "twice", twice);
+
+        InstructionList two = new InstructionList();
+        two.append(new ICONST(2));
+        two.append(InstructionConstants.IRETURN);
+        addMethod(cgen, "two", two);
+
+        MethodSummaries methods = ProgramIndex.of(parse(cgen.getJavaClass().getBytes())).getMethods();
+        assertNull(methods.get("Impure", "time", "()I"));
+        assertNull(methods.get("Impure", "twice", "()I"));
+        assertNotNull(methods.get("Impure", "two", "()I"));
+        assertEquals(1, methods.size());
+    }
+
+    private static void addMethod(ClassGen cgen, String name, InstructionList il) {
+        MethodGen methodGen = new MethodGen(Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null, name, "Impure", il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+    }
+
+}
@@ -0,0 +1,146 @@
+package comp0012.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that a cached class is reused while the facts of the program it was optimised against hold,
+ * however much of the rest of the program changes.
+ */
+public class OptimisationCacheTest {
+
+    private static JavaClass emptyClass(String name, String superclass) {
+        return new ClassGen(name, superclass, name + ".java", Constants.ACC_PUBLIC, null).getJavaClass();
+    }
+
+    // public class name { public static int value() { return result; } }, or return callee.value() + 1 if callee is given
+    private static JavaClass valueClass(String name, int result, String callee) {
+        ClassGen cgen = new ClassGen(name, "java.lang.Object", name + ".java", Constants.ACC_PUBLIC, null);
+        InstructionList il = new InstructionList();
+        if (callee == null) {
+            il.append(new PUSH(cgen.getConstantPool(), result));
+        } else {
+            il.append(new InstructionFactory(cgen).createInvoke(callee, "value", Type.INT, Type.NO_ARGS, Constants.INVOKESTATIC));
+            il.append(InstructionConstants.ICONST_1);
+            il.append(InstructionConstants.IADD);
+        }
+        il.append(InstructionConstants.IRETURN);
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null, "value",
+                name, il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        cgen.addMethod(methodGen.getMethod());
+        return cgen.getJavaClass();
+    }
+
+    // public class Limits { public static final int WIDTH = width; }
+    private static JavaClass limitsClass(int width) {
+        ClassGen cgen = new ClassGen("Limits", "java.lang.Object", "Limits.java", Constants.ACC_PUBLIC, null);
+        FieldGen field = new FieldGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC | Constants.ACC_FINAL, Type.INT, "WIDTH",
+                cgen.getConstantPool());
+        field.setInitValue(width);
+        cgen.addField(field.getField());
+        return cgen.getJavaClass();
+    }
+
+    // The cache line Main prints for a run over the input with the cache
+    private static String run(Path input, Path output, Path cache) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, Main.execute(new String[] { "-in", input.toString(), "-out", output.toString(), "-cache", cache.toString() },
+                new PrintStream(out, true), new PrintStream(out, true), null));
+        for (String line : out.toString().split("\\R")) {
+            if (line.startsWith("Cache: ")) {
+                return line;
+            }
+        }
+        throw new AssertionError("no cache line in " + out);
+    }
+
+    @Test
+    public void testUnrelatedClassKeepsEntries() throws Exception {
+        Path input = Files.createTempDirectory("cache-in");
+        Path output = Files.createTempDirectory("cache-out");
+        Path cache = Files.createTempDirectory("cache");
+        Files.createDirectories(input.resolve("comp0012/target"));
+        for (String name : new String[] { "SimpleFolding", "ConstantVariableFolding", "DynamicVariableFolding" }) {
+            Files.write(input.resolve("comp0012/target/" + name + ".class"), TestClasses.targetClass(name));
+        }
+        assertEquals("Cache: 0 hit(s), 3 miss(es)", run(input, output, cache));
+        assertEquals("Cache: 3 hit(s), 0 miss(es)", run(input, output, cache));
+
+        Files.write(input.resolve("Empty.class"), new ClassGen("Empty", "java.lang.Object", "Empty.java", Constants.ACC_PUBLIC, null)
+                .getJavaClass().getBytes());
+        assertEquals("Cache: 3 hit(s), 1 miss(es)", run(input, output, cache));
+    }
+
+    @Test
+    public void testFieldDependencies() {
+        Map<String, String> used = new TreeMap<>();
+        assertEquals(640, ProgramIndex.of(limitsClass(640)).recording(used).getFieldConstants().get("Limits", "WIDTH", "I").intValue());
+        assertEquals("Integer:640", used.get("field Limits.WIDTH:I"));
+
+        assertTrue(ProgramIndex.of(limitsClass(640), emptyClass("Unrelated", "java.lang.Object")).isCurrent(used));
+        assertFalse(ProgramIndex.of(limitsClass(480)).isCurrent(used));
+        assertFalse(ProgramIndex.of(emptyClass("Unrelated", "java.lang.Object")).isCurrent(used));
+    }
+
+    @Test
+    public void testHierarchyDependencies() throws Exception {
+        ProgramIndex program = ProgramIndex.of(emptyClass("Base", "java.lang.Object"), emptyClass("Left", "Base"),
+                emptyClass("Right", "Base"));
+        Map<String, String> used = new TreeMap<>();
+        assertEquals("Base", program.recording(used).getHierarchy().commonSuperclass("Left", "Right"));
+        assertEquals("java/lang/Object false", used.get("class Base"));
+        assertTrue(program.isCurrent(used));
+
+        OptimisationCache cache = new OptimisationCache(Files.createTempDirectory("cache"), "test");
+        String key = cache.key(new byte[] { 1, 2, 3 });
+        cache.put(key, new byte[] { 4, 5 }, used);
+        assertArrayEquals(new byte[] { 4, 5 }, cache.get(key, program));
+
+        // A class the frames never looked at changes nothing
+        ProgramIndex grown = ProgramIndex.of(emptyClass("Base", "java.lang.Object"), emptyClass("Left", "Base"),
+                emptyClass("Right", "Base"), emptyClass("Unrelated", "java.lang.Object"));
+        assertArrayEquals(new byte[] { 4, 5 }, cache.get(key, grown));
+
+        // Right no longer extends Base, so the frames merging it with Left would be wrong
+        ProgramIndex moved = ProgramIndex.of(emptyClass("Base", "java.lang.Object"), emptyClass("Left", "Base"),
+                emptyClass("Right", "java.lang.Object"));
+        assertFalse(moved.isCurrent(used));
+        assertNull(cache.get(key, moved));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testMethodDependencies() {
+        ProgramIndex program = ProgramIndex.of(valueClass("Six", 6, null), valueClass("Seven", 7, null), valueClass("Caller", 0, "Seven"));
+        Map<String, String> used = new TreeMap<>();
+        MethodSummaries methods = program.recording(used).getMethods();
+        assertEquals(8, methods.evaluate(methods.get("Caller", "value", "()I"), new Number[0], Deadline.NONE).intValue());
+        // The callee the interpreter reached is recorded with the method looked up, as is whether calling it is safe
+        assertEquals(3, used.size());
+        assertTrue(used.containsKey("method Seven.value()I"));
+        assertEquals("true", used.get("initialisation-free Seven"));
+
+        assertTrue(ProgramIndex.of(valueClass("Six", 60, null), valueClass("Seven", 7, null), valueClass("Caller", 0, "Seven")).isCurrent(used));
+        assertTrue(ProgramIndex.of(valueClass("Seven", 7, null), valueClass("Caller", 0, "Seven")).isCurrent(used));
+        assertFalse(ProgramIndex.of(valueClass("Six", 6, null), valueClass("Seven", 70, null), valueClass("Caller", 0, "Seven")).isCurrent(used));
+        assertFalse(ProgramIndex.of(valueClass("Six", 6, null), valueClass("Caller", 0, "Seven")).isCurrent(used));
+    }
+
+}
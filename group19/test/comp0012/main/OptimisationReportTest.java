@@ -0,0 +1,100 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the metrics the optimiser records for every class, method and pass, and the reports written from them.
+ */
+public class OptimisationReportTest {
+
+    private static ConstantFolder optimise(byte[] bytes) throws Exception {
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(bytes), "test");
+        folder.getOptimizedBytes();
+        return folder;
+    }
+
+    private static OptimisationReport.MethodMetrics method(OptimisationReport.ClassMetrics metrics, String name) {
+        for (OptimisationReport.MethodMetrics method : metrics.methods) {
+            if (method.method.startsWith(name + "(")) {
+                return method;
+            }
+        }
+        throw new AssertionError("no metrics for " + name);
+    }
+
+    @Test
+    public void testMethodMetrics() throws Exception {
+        OptimisationReport.ClassMetrics metrics = optimise(TestClasses.foldingClass()).getMetrics();
+        assertEquals("Folding", metrics.className);
+        assertTrue(metrics.modified);
+
+        OptimisationReport.MethodMetrics fold = method(metrics, "fold");
+        assertEquals(8, fold.instructionsBefore);
+        assertEquals(2, fold.instructionsAfter); // bipush 20; ireturn
+        assertTrue(fold.iterations >= 2); // the last iteration changes nothing
+        assertEquals(fold.iterations, fold.pass("peephole").runs);
+        assertTrue(fold.pass("peephole").folds >= 3);
+        assertTrue(fold.pass("dead-stores").folds >= 1);
+        assertTrue(fold.bailouts.isEmpty());
+
+        // The constructor has nothing to fold, so no pass runs over it
+        assertEquals(1, metrics.skippedMethods);
+        assertEquals(1, metrics.methods.size());
+    }
+
+    @Test
+    public void testBailoutRecorded() throws Exception {
+        // void run() { jsr L; return; L: astore_1; ret 1 }
+        ClassGen cgen = new ClassGen("Subroutine", "java.lang.Object", "Subroutine.java", Constants.ACC_PUBLIC, null);
+        cgen.setMajor(49);
+        InstructionList il = new InstructionList();
+        InstructionHandle subroutine = il.append(new ASTORE(1));
+        il.append(new RET(1));
+        il.insert(InstructionConstants.RETURN);
+        il.insert(new JSR(subroutine));
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, Type.NO_ARGS, null, "run", "Subroutine", il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+
+        OptimisationReport.MethodMetrics run = method(optimise(cgen.getJavaClass().getBytes()).getMetrics(), "run");
+        assertTrue(run.bailouts.contains("constant-propagation: method has subroutines (JSR/RET)"));
+        assertTrue(run.bailouts.contains("dead-stores: method has subroutines (JSR/RET)"));
+    }
+
+    @Test
+    public void testReports() throws Exception {
+        OptimisationReport report = new OptimisationReport();
+        OptimisationReport.ClassMetrics metrics = optimise(TestClasses.targetClass("BranchFolding")).getMetrics();
+        report.add(metrics);
+        report.addCached("comp0012/target/SimpleFolding.class", 10, 8);
+
+        String csv = report.toCsv();
+        int passes = metrics.methods.get(0).passes.size();
+        assertEquals(1 + metrics.methods.size() * passes, csv.split("\n").length);
+        assertTrue(csv.startsWith("class,method,iterations,"));
+
+        String json = report.toJson();
+        assertTrue(json.contains("\"classes\": 2"));
+        assertTrue(json.contains("\"skippedMethods\": " + metrics.skippedMethods + ","));
+        assertTrue(json.contains("\"class\": \"comp0012.target.SimpleFolding\", \"millis\": 0.000, \"modified\": false, \"cached\": true"));
+        assertTrue(json.contains("\"branch-folding\": {\"runs\": "));
+        assertFalse(report.slowestMethods(3).isEmpty());
+    }
+
+    @Test
+    public void testEscaping() {
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", OptimisationReport.jsonString("a\"b\\c\n\u0001"));
+        assertEquals("\"x,\"\"y\"\"\"", OptimisationReport.csvField("x,\"y\""));
+        assertEquals("plain", OptimisationReport.csvField("plain"));
+    }
+
+}
@@ -0,0 +1,170 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the optimiser daemon and its client: runs of Main, single classes, the indexes kept between runs,
+ * and the requests refused.
+ */
+public class OptimiserDaemonTest {
+
+    private OptimiserDaemon daemon;
+    private Path token;
+    private Thread serving;
+
+    @Before
+    public void start() throws Exception {
+        token = Files.createTempDirectory("daemon-token").resolve("daemon.token");
+        daemon = new OptimiserDaemon(0, token);
+        serving = new Thread(() -> {
+            try {
+                daemon.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        serving.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        daemon.close();
+        serving.join(10000);
+    }
+
+    // Sends the request, preceded by the token given, and returns the daemon's reply
+    private DataInputStream send(byte[] presented, byte... request) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.write(presented);
+        out.write(request);
+        out.flush();
+        return new DataInputStream(socket.getInputStream());
+    }
+
+    // The error the reply starts with, after checking the request failed
+    private static String refusal(DataInputStream reply) throws IOException {
+        assertEquals(OptimiserDaemon.ERR, reply.readByte());
+        byte[] error = new byte[reply.readInt()];
+        reply.readFully(error);
+        assertEquals(OptimiserDaemon.EXIT, reply.readByte());
+        assertEquals(-1, reply.readInt());
+        reply.close();
+        return new String(error, "UTF-8");
+    }
+
+    @Test
+    public void testRunsReuseIndex() throws Exception {
+        Path input = Files.createTempDirectory("daemon-in");
+        Path output = Files.createTempDirectory("daemon-out");
+        Files.createDirectories(input.resolve("comp0012/target"));
+        byte[] original = TestClasses.targetClass("SimpleFolding");
+        Files.write(input.resolve("comp0012/target/SimpleFolding.class"), original);
+        String[] args = { "-in", input.toString(), "-out", output.toString() };
+
+        for (int run = 1; run <= 2; run++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            assertEquals(0, OptimiserClient.run(daemon.getPort(), token, args, new PrintStream(out, true), new PrintStream(err, true)));
+            assertTrue(out.toString().contains("Class files: " + original.length + " -> "));
+            assertEquals("", err.toString());
+        }
+        assertEquals(1, daemon.getIndexes().getMisses());
+        assertEquals(1, daemon.getIndexes().getHits());
+        assertTrue(Files.isRegularFile(output.resolve("comp0012/target/SimpleFolding.class")));
+
+        // A changed tree is indexed again
+        Files.write(input.resolve("comp0012/target/ConstantVariableFolding.class"), TestClasses.targetClass("ConstantVariableFolding"));
+        assertEquals(0, OptimiserClient.run(daemon.getPort(), token, args, new PrintStream(new ByteArrayOutputStream()), System.err));
+        assertEquals(2, daemon.getIndexes().getMisses());
+        assertTrue(Files.isRegularFile(output.resolve("comp0012/target/ConstantVariableFolding.class")));
+    }
+
+    @Test
+    public void testInvalidArguments() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = OptimiserClient.run(daemon.getPort(), token, new String[] { "-threads", "0" }, new PrintStream(new ByteArrayOutputStream()),
+                new PrintStream(err, true));
+        assertEquals(-1, status);
+        assertTrue(err.toString().contains("-in"));
+
+        // The daemon carries on serving
+        assertFalse(OptimiserClient.optimise(daemon.getPort(), token, TestClasses.targetClass("SimpleFolding")).length == 0);
+    }
+
+    @Test
+    public void testOptimiseClass() throws Exception {
+        byte[] original = TestClasses.targetClass("SimpleFolding");
+        ConstantFolder local = new ConstantFolder(new ByteArrayInputStream(original), "SimpleFolding.class");
+        assertArrayEquals(local.getOptimizedBytes(), OptimiserClient.optimise(daemon.getPort(), token, original));
+
+        try {
+            OptimiserClient.optimise(daemon.getPort(), token, new byte[] { 1, 2, 3 });
+            fail("not a class file");
+        } catch (IOException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        assertEquals(0, OptimiserClient.stop(daemon.getPort(), token));
+        serving.join(10000);
+        assertFalse(serving.isAlive());
+        assertFalse(Files.exists(token));
+    }
+
+    @Test
+    public void testTokenFile() throws Exception {
+        assertEquals(OptimiserDaemon.TOKEN_LENGTH, Files.size(token));
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(token)));
+        }
+    }
+
+    @Test
+    public void testWrongTokenRefused() throws Exception {
+        byte[] wrong = Files.readAllBytes(token);
+        wrong[0] ^= 1;
+        assertTrue(refusal(send(wrong, OptimiserDaemon.STOP)).startsWith("Not authorised"));
+
+        // The stop was not carried out
+        assertTrue(serving.isAlive());
+        assertFalse(OptimiserClient.optimise(daemon.getPort(), token, TestClasses.targetClass("SimpleFolding")).length == 0);
+    }
+
+    @Test
+    public void testBadLengthsRefused() throws Exception {
+        byte[] presented = Files.readAllBytes(token);
+        // RUN with -1 arguments, and OPTIMISE with a class of 2 GB
+        assertTrue(refusal(send(presented, OptimiserDaemon.RUN, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff))
+                .startsWith("Invalid request"));
+        assertTrue(refusal(send(presented, OptimiserDaemon.OPTIMISE, (byte) 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff))
+                .startsWith("Invalid request"));
+
+        // The daemon carries on serving
+        assertFalse(OptimiserClient.optimise(daemon.getPort(), token, TestClasses.targetClass("SimpleFolding")).length == 0);
+    }
+
+}
@@ -0,0 +1,75 @@
+package comp0012.main;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the load-time agent's transformer: which classes it selects, what it returns for them,
+ * and that it falls back to the original class on bad input.
+ */
+public class OptimisingAgentTest {
+
+    private static byte[] transform(OptimisingAgent agent, String internalName, byte[] bytes) {
+        return agent.transform(null, internalName, null, null, bytes);
+    }
+
+    @Test
+    public void testPackageFilters() {
+        OptimisingAgent agent = new OptimisingAgent("include=com.acme, include=org.example.app ,exclude=com.acme.generated");
+        assertTrue(agent.accepts("com/acme/Widget"));
+        assertTrue(agent.accepts("com/acme/util/Strings"));
+        assertTrue(agent.accepts("org/example/app/Main"));
+        assertFalse(agent.accepts("com/acmecorp/Widget"));
+        assertFalse(agent.accepts("com/acme/generated/Parser"));
+        assertFalse(agent.accepts("org/example/Other"));
+
+        OptimisingAgent everything = new OptimisingAgent(null);
+        assertTrue(everything.accepts("com/acme/Widget"));
+        assertFalse(everything.accepts("java/lang/String"));
+        assertFalse(everything.accepts("comp0012/main/ConstantFolder"));
+        assertFalse(everything.accepts("org/apache/bcel/generic/ICONST"));
+    }
+
+    @Test
+    public void testTransform() {
+        OptimisingAgent agent = new OptimisingAgent("include=agent");
+        byte[] original = TestClasses.foldingClass("agent.Folding");
+        byte[] optimised = transform(agent, "agent/Folding", original);
+        assertNotNull(optimised);
+        assertTrue(optimised.length < original.length);
+        assertEquals(1, agent.getOptimised());
+
+        assertNull(transform(agent, "other/Folding", TestClasses.foldingClass("other.Folding")));
+        // Redefinitions and hidden classes are never touched
+        assertNull(agent.transform(null, "agent/Folding", Object.class, null, original));
+        assertNull(transform(agent, null, original));
+    }
+
+    @Test
+    public void testFallbackToOriginal() {
+        OptimisingAgent agent = new OptimisingAgent("");
+        assertNull(transform(agent, "broken/Class", new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0 }));
+        assertEquals(1, agent.getFailed());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File cacheDir = Files.createTempDirectory("agent-cache").toFile();
+        byte[] original = TestClasses.foldingClass("cached.Folding");
+
+        byte[] first = transform(new OptimisingAgent("cache=" + cacheDir), "cached/Folding", original);
+        OptimisingAgent second = new OptimisingAgent("cache=" + cacheDir);
+        assertArrayEquals(first, transform(second, "cached/Folding", original));
+        assertEquals(1, second.getOptimised());
+    }
+
+}
@@ -0,0 +1,154 @@
+package comp0012.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the pipelines the pass manager builds for each level and pass list, and the budgets it enforces.
+ */
+public class PassManagerTest {
+
+    private static List<String> names(PassManager passes) {
+        List<String> names = new ArrayList<>();
+        for (Pass pass : passes.getPipeline()) {
+            names.add(pass.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testLevels() {
+        assertTrue(PassManager.forLevel(0).getPipeline().isEmpty());
+        assertEquals(Arrays.asList("peephole", "algebra", "strings"), names(PassManager.forLevel(1)));
+        assertEquals(Arrays.asList("peephole", "algebra", "strings", "constant-propagation", "branch-folding", "value-numbering",
+                "dead-stores", "loops", "inlining"), names(PassManager.forLevel(PassManager.DEFAULT_LEVEL)));
+    }
+
+    @Test
+    public void testDependencyOrder() {
+        assertEquals(Arrays.asList("peephole", "constant-propagation", "dead-stores"),
+                names(PassManager.forPasses("dead-stores, peephole,constant-propagation")));
+        // Passes that do not depend on each other keep the order given
+        assertEquals(Arrays.asList("inlining", "strings"), names(PassManager.forPasses("inlining,strings,inlining")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPass() {
+        PassManager.forPasses("peephole,unrolling");
+    }
+
+    @Test
+    public void testLevelZero() throws Exception {
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(TestClasses.foldingClass()), "Folding.class");
+        folder.setPasses(PassManager.forLevel(0));
+        folder.getOptimizedBytes();
+        assertFalse(folder.isModified());
+    }
+
+    @Test
+    public void testInstructionBudget() throws Exception {
+        byte[] original = TestClasses.foldingClass();
+        PassManager passes = PassManager.forLevel(PassManager.DEFAULT_LEVEL);
+        passes.setInstructionBudget(3);
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(original), "Folding.class");
+        folder.setPasses(passes);
+
+        assertArrayEquals(original, folder.getOptimizedBytes());
+        assertTrue(folder.isOverBudget());
+        assertEquals(Arrays.asList("Folding.fold()I: 8 instructions, over the budget of 3; left unchanged"), passes.getWarnings());
+        OptimisationReport.MethodMetrics fold = folder.getMetrics().methods.get(0);
+        assertTrue(fold.bailouts.contains("budget: 8 instructions, over the budget of 3"));
+        assertEquals(8, fold.instructionsAfter);
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        ClassGen cgen = new ClassGen(new ClassParser(new ByteArrayInputStream(TestClasses.foldingClass()), "Folding.class").parse());
+        MethodGen methodGen = new MethodGen(cgen.getMethods()[1], "Folding", cgen.getConstantPool());
+        PassContext method = new PassContext(methodGen, cgen.getConstantPool(), ProgramIndex.of(cgen.getJavaClass()), null,
+                cgen.getFields(), LoopUnroller.DEFAULT_BUDGET, new OptimisationReport.MethodMetrics("Folding", "fold()I"));
+        PassManager passes = PassManager.forLevel(1);
+        passes.setTimeBudget(1000);
+
+        assertTrue(passes.run(method));
+        method.nanos = 2000000000L; // as if the passes had taken two seconds so far
+        assertFalse(passes.run(method));
+        assertTrue(method.overBudget.endsWith("ms of passes, over the budget of 1000 ms"));
+        assertEquals(1, passes.getWarnings().size());
+    }
+
+    // public static int sum() { int sum = 0; for (int i = 0; i < 10; i++) { sum += i; } return sum; }
+    private static MethodGen sumMethod(ClassGen cgen) {
+        InstructionList il = new InstructionList();
+        il.append(InstructionConstants.ICONST_0);
+        il.append(new ISTORE(0));
+        il.append(InstructionConstants.ICONST_0);
+        il.append(new ISTORE(1));
+        InstructionHandle test = il.append(new ILOAD(1));
+        il.append(new BIPUSH((byte) 10));
+        BranchHandle exit = il.append(new IF_ICMPGE(null));
+        il.append(new ILOAD(0));
+        il.append(new ILOAD(1));
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(0));
+        il.append(new IINC(1, 1));
+        il.append(new GOTO(test));
+        exit.setTarget(il.append(new ILOAD(0)));
+        il.append(InstructionConstants.IRETURN);
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT, Type.NO_ARGS, null, "sum",
+                cgen.getClassName(), il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        return methodGen;
+    }
+
+    @Test
+    public void testDeadlineStopsLoops() {
+        ClassGen cgen = new ClassGen("Sum", "java.lang.Object", "Sum.java", Constants.ACC_PUBLIC, null);
+        ProgramIndex program = ProgramIndex.of(cgen.getJavaClass());
+
+        MethodGen passed = sumMethod(cgen);
+        int length = passed.getInstructionList().getLength();
+        assertFalse(new LoopUnroller(passed, cgen.getConstantPool(), program, LoopUnroller.DEFAULT_BUDGET, Deadline.in(-1)).run());
+        assertEquals(length, passed.getInstructionList().getLength());
+
+        MethodGen open = sumMethod(cgen);
+        assertTrue(new LoopUnroller(open, cgen.getConstantPool(), program, LoopUnroller.DEFAULT_BUDGET, Deadline.NONE).run());
+    }
+
+    @Test
+    public void testCommandLine() throws Exception {
+        Path input = Files.createTempDirectory("passes-in");
+        Path output = Files.createTempDirectory("passes-out");
+        byte[] original = TestClasses.foldingClass();
+        Files.write(input.resolve("Folding.class"), original);
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+
+        assertEquals(0, Main.execute(new String[] { "-in", input.toString(), "-out", output.toString(), "-O0" }, out, out, null));
+        assertArrayEquals(original, Files.readAllBytes(output.resolve("Folding.class")));
+        assertEquals(0, Main.execute(new String[] { "-in", input.toString(), "-out", output.toString(), "-passes", "peephole" }, out, out, null));
+        assertTrue(Files.readAllBytes(output.resolve("Folding.class")).length < original.length);
+
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(-1, Main.execute(new String[] { "-in", input.toString(), "-out", output.toString(), "-passes", "nope" }, out,
+                new PrintStream(err, true), null));
+        assertTrue(err.toString().contains("unknown pass nope"));
+    }
+
+}
@@ -0,0 +1,67 @@
+package comp0012.main;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test evaluation of whitelisted library methods and changes to the whitelist from a file.
+ */
+public class PureIntrinsicsTest {
+
+    private final PureIntrinsics defaults = PureIntrinsics.defaults();
+
+    @Test
+    public void evaluatesWhitelistedMethods() {
+        assertEquals(5, defaults.evaluate("java.lang.Math", "abs", "(I)I", null, new Object[] { -5 }));
+        assertEquals(4.0, defaults.evaluate("java.lang.Math", "sqrt", "(D)D", null, new Object[] { 16.0 }));
+        assertEquals("ff", defaults.evaluate("java.lang.Integer", "toHexString", "(I)Ljava/lang/String;", null, new Object[] { 255 }));
+        // Booleans and chars are passed and returned as the ints the bytecode pushes
+        assertEquals("true", defaults.evaluate("java.lang.String", "valueOf", "(Z)Ljava/lang/String;", null, new Object[] { 1 }));
+        assertEquals((int) 'b', defaults.evaluate("java.lang.String", "charAt", "(I)C", "abc", new Object[] { 1 }));
+        assertEquals(1, defaults.evaluate("java.lang.String", "isEmpty", "()Z", "", new Object[0]));
+    }
+
+    @Test
+    public void leavesOtherCallsUnevaluated() {
+        // Not whitelisted: the result may differ between JVMs
+        assertNull(defaults.evaluate("java.lang.Math", "sin", "(D)D", null, new Object[] { 1.0 }));
+        assertNull(defaults.evaluate("java.lang.Double", "toString", "(D)Ljava/lang/String;", null, new Object[] { 0.1 }));
+        // Throws at run time
+        assertNull(defaults.evaluate("java.lang.Integer", "parseInt", "(Ljava/lang/String;)I", null, new Object[] { "12x" }));
+        assertNull(defaults.evaluate("java.lang.Math", "addExact", "(II)I", null, new Object[] { Integer.MAX_VALUE, 1 }));
+        // A static method needs no receiver, an instance method one of its class
+        assertNull(defaults.evaluate("java.lang.String", "length", "()I", null, new Object[0]));
+        assertNull(defaults.evaluate("java.lang.String", "length", "()I", 3, new Object[0]));
+    }
+
+    @Test
+    public void numericMethodsAreCallableFromPureMethods() {
+        assertTrue(defaults.isNumeric("java.lang.Math", "max", "(II)I"));
+        assertFalse(defaults.isNumeric("java.lang.Integer", "toString", "(I)Ljava/lang/String;"));
+        assertFalse(defaults.isNumeric("java.lang.String", "length", "()I"));
+    }
+
+    @Test
+    public void fileAddsAndRemovesMethods() throws Exception {
+        Path file = Files.createTempFile("intrinsics", ".txt");
+        try {
+            Files.write(file, Arrays.asList("# changes", "java.lang.Math.cbrt(D)D", "-java.lang.Math.abs(I)I", ""), StandardCharsets.UTF_8);
+            PureIntrinsics intrinsics = PureIntrinsics.load(file);
+            assertEquals(3.0, intrinsics.evaluate("java.lang.Math", "cbrt", "(D)D", null, new Object[] { 27.0 }));
+            assertNull(intrinsics.evaluate("java.lang.Math", "abs", "(I)I", null, new Object[] { -5 }));
+            assertTrue(intrinsics.contains("java.lang.Math", "max", "(II)I"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
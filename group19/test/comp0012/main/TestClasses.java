@@ -0,0 +1,59 @@
+package comp0012.main;
+
+import java.io.InputStream;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+/**
+ * Classes the tests optimise, and a way to load the result.
+ */
+final class TestClasses {
+
+    private TestClasses() {
+    }
+
+    // The compiled class of the given name in comp0012.target
+    static byte[] targetClass(String name) throws Exception {
+        InputStream in = TestClasses.class.getResourceAsStream("/comp0012/target/" + name + ".class");
+        try {
+            return in.readAllBytes();
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] foldingClass() {
+        return foldingClass("Folding");
+    }
+
+    // public class Folding { public int fold() { int a = 2 + 3; return a * 4; } } without javac's folding
+    static byte[] foldingClass(String className) {
+        ClassGen cgen = new ClassGen(className, "java.lang.Object", "Folding.java", Constants.ACC_PUBLIC, null);
+        cgen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        InstructionList il = new InstructionList();
+        il.append(new ICONST(2));
+        il.append(new ICONST(3));
+        il.append(InstructionConstants.IADD);
+        il.append(new ISTORE(1));
+        il.append(new ILOAD(1));
+        il.append(new ICONST(4));
+        il.append(InstructionConstants.IMUL);
+        il.append(InstructionConstants.IRETURN);
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.INT, Type.NO_ARGS, null, "fold", className, il, cgen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+        return cgen.getJavaClass().getBytes();
+    }
+
+    // Defines the class from the bytes in a loader of its own, even if the tests have loaded a class of that name
+    static Class<?> define(final String name, final byte[] bytes) throws Exception {
+        return new ClassLoader(TestClasses.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+                return className.equals(name) ? defineClass(className, bytes, 0, bytes.length) : super.loadClass(className, resolve);
+            }
+        }.loadClass(name);
+    }
+}
@@ -0,0 +1,66 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test simplification of arithmetic with one constant operand
+ */
+public class AlgebraicSimplificationTest {
+
+    AlgebraicSimplification as = new AlgebraicSimplification();
+
+    private static final int[] INTS = { 0, 1, -1, 7, -7, 1000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+    @Test
+    public void testMethodOne(){
+        for (int x : INTS) {
+            assertEquals(0, as.methodOne(x));
+        }
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(45L, as.methodTwo(5L));
+        assertEquals(-45L, as.methodTwo(-5L));
+        assertEquals(Long.MIN_VALUE * 8L + Long.MIN_VALUE, as.methodTwo(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(0, as.methodThree(new int[0]));
+        assertEquals(3 + 2, as.methodThree(new int[11]));
+        assertEquals(1 + 8, as.methodThree(new int[33]));
+    }
+
+    @Test
+    public void testMethodFour(){
+        for (int x : INTS) {
+            assertEquals(x, as.methodFour(x));
+        }
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(3.0, as.methodFive(3.0), 0.0);
+        assertEquals(Double.NaN, as.methodFive(Double.POSITIVE_INFINITY), 0.0);
+        assertEquals(Double.NaN, as.methodFive(Double.NaN), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, 1.0 / as.methodFive(-0.0), 0.0);
+    }
+
+    @Test
+    public void testMethodSix(){
+        for (int x : INTS) {
+            assertEquals(x * 2 - x, as.methodSix(x));
+        }
+    }
+
+    @Test
+    public void testMethodSeven(){
+        for (int x : INTS) {
+            assertEquals(((x & 0xff) % 16) + (x >>> 28) / 2 + x % 16, as.methodSeven(x));
+        }
+    }
+
+}
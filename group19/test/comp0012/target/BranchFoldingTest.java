@@ -0,0 +1,34 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test constant branch folding and unreachable code elimination
+ */
+public class BranchFoldingTest {
+
+    BranchFolding bf = new BranchFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(533011, bf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals("reachable", bf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(14, bf.methodThree(7));
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(15, bf.methodFour(5));
+    }
+
+}
@@ -0,0 +1,47 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test removal of expressions a block computes more than once
+ */
+public class CommonSubexpressionsTest {
+
+    CommonSubexpressions cs = new CommonSubexpressions();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(18, cs.methodOne(2, 3));
+        assertEquals(-18, cs.methodOne(-2, 3));
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(35, cs.methodTwo(2, 3, 1));
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(30, cs.methodThree(new int[5]));
+    }
+
+    @Test
+    public void testMethodFour(){
+        // The call in between changes the field, so the second read must not reuse the first
+        assertEquals(9 + 16, cs.methodFour());
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(49L, cs.methodFive(3L, 4L));
+        assertEquals(0L, cs.methodFive(Long.MAX_VALUE, Long.MIN_VALUE + 1));
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals(9 + 16, cs.methodSix(3));
+    }
+
+}
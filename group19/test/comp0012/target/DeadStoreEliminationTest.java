@@ -0,0 +1,30 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test dead store and dead local elimination
+ */
+public class DeadStoreEliminationTest {
+
+    DeadStoreElimination dse = new DeadStoreElimination();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(4835383423L, dse.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(30, dse.methodTwo(5));
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(-1, dse.methodThree(4));
+        assertEquals(-6, dse.methodThree(-3));
+    }
+
+}
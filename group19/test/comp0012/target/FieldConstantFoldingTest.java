@@ -0,0 +1,34 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding of static final fields initialised to constants in another class
+ */
+public class FieldConstantFoldingTest {
+
+    FieldConstantFolding fcf = new FieldConstantFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(578, fcf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(579L, fcf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(true, fcf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(true, fcf.methodFour());
+    }
+
+}
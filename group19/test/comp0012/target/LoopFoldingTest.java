@@ -0,0 +1,56 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test evaluation and unrolling of counted loops
+ */
+public class LoopFoldingTest {
+
+    LoopFolding lf = new LoopFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(328350, lf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(1307674368000L, lf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals("0,3,6,9,", lf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(30, lf.methodFour(0));
+        assertEquals(105, lf.methodFour(95));
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(127, lf.methodFive(new int[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals(18, lf.methodSix());
+    }
+
+    @Test
+    public void testMethodSeven(){
+        assertEquals(45, lf.methodSeven(true));
+        assertEquals(35, lf.methodSeven(false));
+    }
+
+    @Test
+    public void testMethodEight(){
+        assertEquals(3092860, lf.methodEight());
+    }
+
+}
@@ -0,0 +1,40 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding of calls to pure methods and inlining of tiny ones
+ */
+public class PureMethodFoldingTest {
+
+    PureMethodFolding pmf = new PureMethodFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(244, pmf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals(3628803L, pmf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(30, pmf.methodThree(5));
+        assertEquals(-2, pmf.methodThree(-3));
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(20, pmf.methodFour());
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals(-1, pmf.methodFive());
+    }
+
+}
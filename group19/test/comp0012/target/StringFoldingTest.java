@@ -0,0 +1,49 @@
+package comp0012.target;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding of string concatenation and pure library calls
+ */
+public class StringFoldingTest {
+
+    StringFolding sf = new StringFolding();
+
+    @Test
+    public void testMethodOne(){
+        assertEquals("a4btrue7", sf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals("x=12", sf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(2 + Long.hashCode(5000000000L), sf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(5.5, sf.methodFour(), 0.0);
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals("d=0.1", sf.methodFive());
+    }
+
+    @Test
+    public void testMethodSix(){
+        assertEquals("k1c-false", sf.methodSix());
+    }
+
+    @Test
+    public void testMethodSeven(){
+        assertEquals(-1, sf.methodSeven());
+    }
+
+}